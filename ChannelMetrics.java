@@ -0,0 +1,90 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+  * Counters for one of the server's channels, summed over its clients (see ClientMetrics),
+  * with its senders and receivers, and failovers.
+  */
+public class ChannelMetrics extends StreamMetrics implements ChannelMetricsMBean {
+
+  private final String name;
+
+  private final int id;
+
+  private final LongAdder senders = new LongAdder();
+  private final LongAdder receivers = new LongAdder();
+
+  private final LongAdder failovers = new LongAdder();
+  private final LongAdder failoversDone = new LongAdder();
+  private final LongAdder failoverNanos = new LongAdder();
+  private volatile long lastFailoverNanos;
+
+  /**
+    * When the failover under way started, by System.nanoTime(), or 0 if none is.
+    */
+  private final AtomicLong failoverStart = new AtomicLong();
+
+  ChannelMetrics(String name, int id) {
+    this.name = name;
+    this.id = id;
+    register("type=Channel,id=" + id);
+  }
+
+  /**
+    * Counts a packet from a sender, ending any failover under way: audio's arriving again.
+    */
+  void packetIn(int bytes) {
+    super.packetIn(bytes);
+    long start = failoverStart.get();
+    if (start != 0 && failoverStart.compareAndSet(start, 0)) {
+      long nanos = System.nanoTime() - start;
+      failoversDone.increment();
+      failoverNanos.add(nanos);
+      lastFailoverNanos = nanos;
+    }
+  }
+
+  /**
+    * @param sender  whether the client's a sender; otherwise it's a receiver.
+    * @param count   1 when the client joins or takes the role, -1 when it leaves or gives it up.
+    */
+  void clientCount(boolean sender, int count) {
+    (sender ? senders : receivers).add(count);
+  }
+
+  void failoverStarted() {
+    failovers.increment();
+    failoverStart.compareAndSet(0, Math.max(1, System.nanoTime()));
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getId() {
+    return id;
+  }
+
+  public long getSenders() {
+    return senders.sum();
+  }
+
+  public long getReceivers() {
+    return receivers.sum();
+  }
+
+  public long getFailovers() {
+    return failovers.sum();
+  }
+
+  public double getLastFailoverMillis() {
+    long start = failoverStart.get();
+    return (start != 0 ? System.nanoTime() - start : lastFailoverNanos) / 1e6;
+  }
+
+  public double getAverageFailoverMillis() {
+    long count = failoversDone.sum();
+    return count == 0 ? 0 : failoverNanos.sum() / 1e6 / count;
+  }
+
+}
@@ -0,0 +1,37 @@
+/**
+  * What's going on on one of the server's channels, as seen over JMX. Registered as
+  * SoundServer:type=Channel,id=n.
+  */
+public interface ChannelMetricsMBean extends StreamMetricsMBean {
+
+  String getName();
+
+  int getId();
+
+  /**
+    * @return clients sending to the channel now: one, or more if the server mixes.
+    */
+  long getSenders();
+
+  /**
+    * @return clients receiving from the channel now.
+    */
+  long getReceivers();
+
+  /**
+    * @return times the channel's sender was lost and another was to take over.
+    */
+  long getFailovers();
+
+  /**
+    * @return how long, in milliseconds, the last failover took: from the sender being lost to
+    *         audio arriving from the next. Counts up while one's under way.
+    */
+  double getLastFailoverMillis();
+
+  /**
+    * @return how long finished failovers took on average, in milliseconds.
+    */
+  double getAverageFailoverMillis();
+
+}
@@ -0,0 +1,160 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.sound.sampled.AudioFormat;
+
+import audio.AudioCodec;
+import audio.AudioCodecs;
+import audio.AudioMixer;
+
+import static util.SoundUtil.*;
+
+/**
+  * Mixes the audio of all a channel's senders, in real time, when the server mixes
+  * rather than picking one sender per channel (see --mix). The mix is made when the
+  * first sender says its format, in the PCM that format decodes to, and senders whose
+  * audio decodes to anything else are left out of it.
+  *
+  * Every blockMs a block is mixed and handed to the channel's Output, which sends it on
+  * to receivers as the channel's audio, in loops of loopMs. While nobody is sending,
+  * nothing is mixed.
+  */
+public class ChannelMixer extends Thread {
+
+  /**
+    * Program's name as displayed in log messages.
+    */
+  private final static String loggingName = "ChannelMixer";
+
+  /**
+    * Where a channel's mix goes. Called on the mixer's thread.
+    */
+  interface Output {
+
+    /**
+      * @param block   a block of the mix, in format.
+      * @param length  its length in bytes, the same every time.
+      */
+    void mixed(byte[] block, int length, AudioFormat format);
+  }
+
+  /**
+    * Audio mixed at a time.
+    */
+  static final int blockMs = 10;
+
+  /**
+    * How long a loop of the mix, as receivers are sent it, lasts.
+    */
+  static final int loopMs = 1000;
+
+  /**
+    * How far ahead of what's being mixed a sender's first packet goes, so how late its later ones may be.
+    */
+  private static final int latencyMs = 60;
+
+  /**
+    * Blocks each sender's audio is held in ahead of being mixed: 2.56 s, so a sender that
+    * sends its loops whole, rather than streaming, has loops of up to about that mixed.
+    */
+  private static final int slots = 256;
+
+  private final int maxInputs;
+
+  /**
+    * Most audio bytes a sender's packet carries.
+    */
+  private final int maxPayload;
+
+  private final Output output;
+
+  /**
+    * Made when the first sender joins.
+    */
+  private AudioMixer mixer;
+
+  private byte[] block;
+
+  /**
+    * Held by a sender joining. A lock rather than synchronized, so a handler on a virtual
+    * thread that waits for it gives up its carrier thread meanwhile.
+    */
+  private final ReentrantLock joinLock = new ReentrantLock();
+
+  /**
+    * @param channelId   number of the channel, for logging.
+    * @param maxInputs   most senders mixed at once.
+    * @param maxPayload  most audio bytes a sender's packet carries.
+    */
+  ChannelMixer(int channelId, int maxInputs, int maxPayload, Output output) {
+    super(loggingName + "-" + channelId);
+    setDaemon(true);
+    this.maxInputs = maxInputs;
+    this.maxPayload = maxPayload;
+    this.output = output;
+  }
+
+  /**
+    * Adds a sender to the mix, starting the mix if it's the first.
+    *
+    * @param format  format of the audio it sends, as sent.
+    * @return        its way into the mix, or null if its audio can't be mixed with the rest,
+    *                or the mix has as many senders as it can take.
+    */
+  MixerFeed join(AudioFormat format) {
+    joinLock.lock();
+    try {
+      AudioCodec codec = AudioCodecs.forFormat(format);
+      if (codec == null)
+        return null;
+      AudioFormat pcm = codec.decodedFormat(format);
+      if (mixer == null) {
+        if (!AudioMixer.mixes(pcm))
+          return null;
+        int blockFrames = Math.max(1, (int) (pcm.getFrameRate() * blockMs / 1000));
+        mixer = new AudioMixer(maxInputs, pcm, blockFrames, (int) (pcm.getFrameRate() * latencyMs / 1000), slots);
+        block = new byte[mixer.getBlockBytes()];
+        log("Mixing in " + pcm + ", up to " + maxInputs + " senders.");
+        start();
+      } else if (!pcm.matches(mixer.getFormat())) {
+        return null;
+      }
+      int input = mixer.addInput();
+      return input < 0 ? null : new MixerFeed(mixer, input, codec, format, maxPayload);
+    } finally {
+      joinLock.unlock();
+    }
+  }
+
+  /**
+    * Mixes a block every blockMs, on time, for as long as there's anyone to mix.
+    */
+  public void run() {
+    long blockNanos = TimeUnit.MILLISECONDS.toNanos(blockMs);
+    long next = System.nanoTime();
+    while (true) {
+      if (mixer.getInputCount() == 0) {
+        LockSupport.parkNanos(blockNanos);
+        next = System.nanoTime();
+        continue;
+      }
+      mixer.mix(block, 0);
+      output.mixed(block, block.length, mixer.getFormat());
+
+      next += blockNanos;
+      long wait = next - System.nanoTime();
+      if (wait > 0) {
+        LockSupport.parkNanos(wait);
+      } else if (wait < -TimeUnit.MILLISECONDS.toNanos(latencyMs)) {
+        log("Fell " + TimeUnit.NANOSECONDS.toMillis(-wait) + " ms behind. Skipping ahead.");
+        next = System.nanoTime();
+      }
+    }
+  }
+
+  private void log(String msg) {
+    logger(getName(), msg);
+  }
+
+}
@@ -0,0 +1,89 @@
+/**
+  * Counters for one of the server's clients. Everything counted is counted for its
+  * channel too (see ChannelMetrics), so the channel's totals outlive its clients.
+  */
+public class ClientMetrics extends StreamMetrics implements ClientMetricsMBean {
+
+  private final int clientId;
+
+  private final ChannelMetrics channel;
+
+  private volatile boolean sender;
+
+  /**
+    * Counts the client on its channel, and registers its counters.
+    */
+  ClientMetrics(int clientId, ChannelMetrics channel, boolean sender) {
+    this.clientId = clientId;
+    this.channel = channel;
+    this.sender = sender;
+    channel.clientCount(sender, 1);
+    register("type=Client,channel=" + channel.getId() + ",id=" + clientId);
+  }
+
+  /**
+    * Client's changed role, eg to take over as sender.
+    */
+  void setSender(boolean sender) {
+    if (sender == this.sender)
+      return;
+    channel.clientCount(this.sender, -1);
+    channel.clientCount(sender, 1);
+    this.sender = sender;
+  }
+
+  /**
+    * Client's gone: stops counting it on its channel, and unregisters its counters.
+    */
+  void close() {
+    channel.clientCount(sender, -1);
+    unregister();
+  }
+
+  void packetIn(int bytes) {
+    super.packetIn(bytes);
+    channel.packetIn(bytes);
+  }
+
+  void packetOut(int bytes) {
+    super.packetOut(bytes);
+    channel.packetOut(bytes);
+  }
+
+  void udpTimeout() {
+    super.udpTimeout();
+    channel.udpTimeout();
+  }
+
+  void badPacket() {
+    super.badPacket();
+    channel.badPacket();
+  }
+
+  void missingPackets(int count) {
+    super.missingPackets(count);
+    channel.missingPackets(count);
+  }
+
+  /**
+    * Only a sender's loops count for the channel: they're the channel's loops.
+    */
+  void loopDone(long nanos) {
+    super.loopDone(nanos);
+    if (sender)
+      channel.loopDone(nanos);
+  }
+
+  public int getClientId() {
+    return clientId;
+  }
+
+  public int getChannel() {
+    return channel.getId();
+  }
+
+  public String getRole() {
+    return sender ? "SENDER" : "RECEIVER";
+  }
+
+}
@@ -0,0 +1,19 @@
+/**
+  * What's going on with one of the server's clients, as seen over JMX. Registered as
+  * SoundServer:type=Client,channel=n,id=m while the client's connected.
+  */
+public interface ClientMetricsMBean extends StreamMetricsMBean {
+
+  int getClientId();
+
+  /**
+    * @return id of the channel the client's on.
+    */
+  int getChannel();
+
+  /**
+    * @return SENDER or RECEIVER.
+    */
+  String getRole();
+
+}
@@ -0,0 +1,1686 @@
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.sampled.AudioFormat;
+
+import audio.AudioRing;
+import audio.LoopScheduler;
+
+import net.AudioFormatArgs;
+import net.AudioPacket;
+import net.ControlMessage;
+import net.ControlOp;
+import net.FecEncoder;
+import net.Heartbeat;
+import net.Liveness;
+import net.MulticastGroup;
+import net.Nack;
+import net.StandbyArgs;
+import net.TokenBucket;
+
+import util.LogLevel;
+
+import static util.SoundUtil.*;
+
+/**
+  * Serves one client on a SelectorLoop. Does what a SoundServerThread does, but as a
+  * state machine driven by the loop instead of blocking calls on its own thread.
+  * All methods except the constructor run on the owning loop's thread.
+  */
+public class ClientSession implements SelectorLoop.Handler {
+
+  /**
+    * Program's name as displayed in log messages.
+    */
+  private final static String loggingName = "ClientSession";
+
+  /**
+    * How long to wait for the first audio packet of a loop from the sender client.
+    */
+  private static int udpFirstPacketTimeoutMs = 2000;
+
+  /**
+    * How long to wait between audio packets from the sender client before taking what's arrived as the whole loop.
+    */
+  private static int udpPacketTimeoutMs = 1000;
+
+  /**
+    * How long a streaming sender client can go without sending before it's taken to be dead.
+    */
+  private static int udpStreamTimeoutMs = 2000;
+
+  /**
+    * How long to wait for the next packet of a streamed loop being sent to a receiver client,
+    * before giving up on the rest of it.
+    */
+  private static int frameWaitTimeoutMs = 3000;
+
+  /**
+    * Where the session is in the conversation with its client.
+    */
+  private enum State {
+    EXPECT_ID,
+    EXPECT_ROLE,
+    EXPECT_UDP_PORT,
+    EXPECT_ACK_LENGTH,          // sender: client announces length of its audio, or that it'll stream it
+    STREAMING_AUDIO,            // sender: audio arriving continuously over UDP
+    SENDER_IDLE,                // sender: between loops
+    EXPECT_READY_TO_SEND,       // sender: asked client for a loop
+    RECEIVING_AUDIO,            // sender: loop arriving over UDP
+    EXPECT_READY_FOR_LENGTH,    // receiver: between loops
+    WAITING_FOR_AUDIO,          // receiver: nothing published since the last loop sent
+    EXPECT_RECEIVER_PORT,       // receiver: told client the length
+    EXPECT_READY_TO_RECEIVE,    // receiver: got client's UDP port
+    SENDING_AUDIO,              // receiver: loop going out over UDP
+    CLOSED
+  }
+
+  private enum ClientRoles {
+    SENDER,
+    RECEIVER
+  }
+
+  private final NioSoundServer server;
+
+  /**
+    * Loop the session runs on: the one it was accepted onto, then, if it's a sender, its channel's home.
+    */
+  private SelectorLoop loop;
+
+  /**
+    * Loop the session is moving to once it's handled the message in hand, or null.
+    */
+  private SelectorLoop movingTo;
+
+  /**
+    * Channel client joined, or null until it has.
+    */
+  private NioChannel channel;
+
+  /**
+    * Counters for the client, shown over JMX. Null until it's joined a channel.
+    */
+  private ClientMetrics metrics;
+
+  private final SocketChannel tcpChannel;
+
+  private SelectionKey tcpKey;
+
+  private final int clientId;
+
+  /**
+    * UDP port this session receives audio on if it handles the sender client.
+    */
+  private final int udpPort;
+
+  /**
+    * This session as a candidate to take over as sender-client handler, or null if its client may not send.
+    */
+  private SharedFailoverInfo.Candidate candidate;
+
+  /**
+    * Set, by whichever thread failed over, when this session's been elected to take over as sender-client handler.
+    */
+  private volatile boolean elected;
+
+  private ClientRoles clientRole;
+
+  private State state;
+
+  /**
+    * Incoming TCP bytes not yet making up a whole message.
+    */
+  private final ByteBuffer tcpIn;
+
+  /**
+    * Tag and first argument (or -1) of the message being handled.
+    */
+  private int messageTag;
+  private int messageArg;
+
+  /**
+    * Where the message being handled starts in tcpIn, for arguments after the first.
+    */
+  private int messageStart;
+
+  /**
+    * Outgoing TCP bytes not yet written.
+    */
+  private ByteBuffer tcpOut;
+
+  /**
+    * Arguments of a reply with more than one, reused.
+    */
+  private final int[] replyArgs;
+
+  /**
+    * Audio bytes per packet agreed with the client (see ControlOp.PAYLOAD_SIZE), both ways.
+    */
+  private int payloadSize;
+
+  /**
+    * Arguments of an AUDIO_FORMAT message, reused.
+    */
+  private final int[] formatArgs;
+
+  // Sender-handling state
+
+  private DatagramChannel udpReceivingChannel;
+
+  /**
+    * Each datagram from the sender client is received here, then its audio is put in place in the loop.
+    */
+  private ByteBuffer packetBuffer;
+
+  private int receivedAudioArrayLength;
+
+  /**
+    * Format of the sender client's audio, as it said (see ControlOp.AUDIO_FORMAT), or null if it hasn't.
+    */
+  private AudioFormat incomingFormat;
+
+  /**
+    * What the receiver client said, in a STANDBY request, it would send if it took over: the
+    * format, length and kind of its audio, and how often it would send heartbeats. Format's
+    * null if it's not standing by.
+    */
+  private AudioFormat standbyFormat;
+  private int standbyLength;
+  private boolean standbyStreams;
+  private int standbyHeartbeatMs;
+
+  /**
+    * Loop being received. Each packet's audio is put at the offset its header gives.
+    */
+  private ByteBuffer incomingAudio;
+
+  /**
+    * Way into the channel's mix for the sender client's audio, if the channel mixes and its audio can be mixed.
+    * Audio isn't gathered into incomingAudio then.
+    */
+  private MixerFeed mixerFeed;
+
+  /**
+    * Channel's stream, if the sender client streams and the channel doesn't mix: each packet
+    * is received straight into it and published at once, rather than gathered into incomingAudio.
+    */
+  private AudioRing stream;
+
+  /**
+    * Audio bytes of the loop received so far.
+    */
+  private int incomingBytes;
+
+  /**
+    * System.nanoTime() of the last audio packet, so stream timeouts ride out wall-clock steps.
+    */
+  private long lastPacketTime;
+
+  /**
+    * Tells whether the sender client is still there, from its heartbeats, or null if it doesn't send them.
+    */
+  private Liveness senderLiveness;
+
+  /**
+    * System.nanoTime() when the sender client was last asked for a loop, or, if it streams,
+    * when the loop it's streaming started.
+    */
+  private long ingestStart;
+
+  /**
+    * System.nanoTime() when sending the receiver client its loop started.
+    */
+  private long sendStart;
+
+  /**
+    * Decides when to ask the sender client for its next loop. Made once the first loop has arrived.
+    */
+  private LoopScheduler loopScheduler;
+
+  /**
+    * Loop number, so stale receive timers can tell they're stale.
+    */
+  private int audioReceiveCount;
+
+  // Receiver-handling state
+
+  /**
+    * Published loop being sent to the receiver client, held till it's sent the next, or null.
+    */
+  private SharedLoop loopSending;
+
+  /**
+    * This session's view of the published loop it is sending.
+    */
+  private ByteBuffer outgoingAudio;
+
+  /**
+    * Channel's stream the loop being sent is read from, packet by packet as each is published,
+    * or null if it's a published loop.
+    */
+  private AudioRing streamSending;
+
+  /**
+    * This session's window onto the channel's stream, made when it first sends from it.
+    */
+  private AudioRing.Frame frame;
+
+  /**
+    * Sequence numbers in the stream of the first packet of the loop being sent, and of the next to send.
+    */
+  private long streamLoopStart;
+  private long streamSeq;
+
+  /**
+    * Length of the streamed loop being sent.
+    */
+  private int streamLoopLength;
+
+  /**
+    * Whether all of the streamed loop being sent that will be has been: it's ended, been cut
+    * short by the next, or been lost to the sender client overwriting it or going quiet.
+    */
+  private boolean streamLoopDone;
+
+  /**
+    * Whether the session's parked waiting for the next packet of the streamed loop being sent.
+    */
+  private boolean awaitingFrame;
+
+  /**
+    * System.nanoTime() when a packet of the streamed loop being sent was last sent.
+    */
+  private long lastFrameTime;
+
+  /**
+    * Sequence number in the stream of the first packet of the last streamed loop sent, or -1.
+    */
+  private long lastStreamLoopSent;
+
+  /**
+    * Sequence number in the stream of the packet sent in each slot of the streamed loop being
+    * sent, or -1, so packets asked for again can be found.
+    */
+  private long[] sentFrames;
+
+  /**
+    * Number of the last loop sent to the receiver client (see SharedLoop.getNumber()),
+    * so it's sent each loop once and waits for the next, or 0 if it's been sent none.
+    */
+  private long lastLoopSent;
+
+  private SocketAddress receiverAddress;
+
+  /**
+    * Format of the audio the receiver client was last told of, or null if it hasn't been.
+    */
+  private AudioFormat formatSent;
+
+  /**
+    * Audio bytes per packet of the loop being sent: payloadSize, less any part of an audio frame,
+    * so packets start and end on frame boundaries.
+    */
+  private int loopPayloadSize;
+
+  /**
+    * Packet being sent to the receiver client: a header and a packet's worth of outgoingAudio.
+    */
+  private ByteBuffer sendBuffer;
+
+  /**
+    * Packet being sent to the receiver client: sendBuffer or a parity packet.
+    */
+  private ByteBuffer outgoingPacket;
+
+  /**
+    * Works out forward error correction parity for audio sent to receiver client, or null if none is sent.
+    */
+  private FecEncoder fecEncoder;
+
+  /**
+    * Limits how fast packets the receiver client asks for again are resent, or null if they aren't.
+    */
+  private final TokenBucket retransmitBucket;
+
+  /**
+    * Packet slots of outgoingAudio the receiver client has asked for again and hasn't been resent yet.
+    */
+  private final BitSet retransmitSlots;
+
+  /**
+    * Packet being resent to the receiver client. Empty when there's none.
+    */
+  private ByteBuffer retransmitBuffer;
+
+  /**
+    * Packets resent for the current loop, and ones asked for that the rate limit dropped.
+    */
+  private int packetsResent;
+  private int resendsLimited;
+
+  /**
+    * Whether the receiver client asked to take its loops from the multicast group.
+    */
+  private boolean clientWantsMulticast;
+
+  /**
+    * Sequence number of the first packet of the last loop the receiver client was told to take from the group, or -1.
+    */
+  private int lastMulticastSeq;
+
+  /**
+    * Arguments of a MULTICAST_LOOP message, reused.
+    */
+  private final int[] multicastLoopArgs;
+
+  /**
+    * Sequence number of the next packet sent to the receiver client.
+    */
+  private int sendSeq;
+
+  /**
+    * System.nanoTime() when the session started, for packet timestamps.
+    */
+  private final long streamStart;
+
+  ClientSession(NioSoundServer server, SelectorLoop loop, SocketChannel channel, int id, int port) {
+    this.server = server;
+    this.loop = loop;
+    tcpChannel = channel;
+    clientId = id;
+    udpPort = port;
+    clientRole = ClientRoles.RECEIVER; // Until client's joined a channel.
+    state = State.EXPECT_ID;
+    tcpIn = ByteBuffer.allocate(1024);
+    tcpOut = ByteBuffer.allocate(1024);
+    replyArgs = new int[2];
+    formatArgs = new int[AudioFormatArgs.count];
+    streamStart = System.nanoTime();
+    int retransmitRate = server.getRetransmitRate();
+    retransmitBucket = retransmitRate > 0 ? new TokenBucket(retransmitRate, Math.max(1, retransmitRate / 4)) : null;
+    retransmitSlots = new BitSet();
+    setPayloadSize(Math.min(AudioPacket.defaultPayload, server.getMaxPayload()));
+    lastMulticastSeq = -1;
+    multicastLoopArgs = new int[5];
+    lastStreamLoopSent = -1;
+    sentFrames = new long[0];
+  }
+
+  /**
+    * Sizes the packet buffers, and the forward error correction, for a payload size.
+    */
+  private void setPayloadSize(int bytes) {
+    payloadSize = bytes;
+    packetBuffer = ByteBuffer.allocateDirect(AudioPacket.headerLength + payloadSize);
+    sendBuffer = ByteBuffer.allocateDirect(AudioPacket.headerLength + payloadSize);
+    fecEncoder = server.getFecParityCount() > 0
+        ? new FecEncoder(server.getFecGroupSize(), server.getFecParityCount(), payloadSize) : null;
+    retransmitBuffer = ByteBuffer.allocateDirect(AudioPacket.headerLength + payloadSize);
+    retransmitBuffer.limit(0);
+  }
+
+  /**
+    * Registers with the loop and starts listening to the client, and writing to it if replies are still to go.
+    */
+  void start() {
+    try {
+      tcpKey = loop.register(tcpChannel, tcpOut.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ, this);
+      log("Session started on UDP port " + udpPort + " on " + loop.getName());
+    } catch (IOException e) {
+      e.printStackTrace();
+      close();
+    }
+  }
+
+  public void handle(SelectionKey key) throws IOException {
+    if (key == tcpKey) {
+      if (key.isWritable())
+        tcpFlush();
+      if (key.isValid() && key.isReadable())
+        tcpRead();
+    } else if (key.isReadable()) {
+      udpReceive();
+    }
+  }
+
+  /**
+    * Reads what the client sent and handles each complete message. The client may
+    * send several without waiting for replies, so there may be more than one.
+    */
+  private void tcpRead() throws IOException {
+    int n = tcpChannel.read(tcpIn);
+    if (n < 0) {
+      lostConnection();
+      return;
+    }
+
+    tcpIn.flip();
+    handleMessages();
+  }
+
+  /**
+    * Handles each complete message in tcpIn, which is ready to be read from, then readies it to
+    * be read into. Stops early if the session closes, or moves loop, leaving the rest for later.
+    */
+  private void handleMessages() {
+    while (true) {
+      int start = tcpIn.position();
+      int length = ControlMessage.getLength(tcpIn, start, tcpIn.remaining());
+      if (length < 0)
+        break;
+      tcpIn.position(start + length);
+      ControlOp op = ControlMessage.isWellFormed(tcpIn, start) ? ControlMessage.getOp(tcpIn, start) : null;
+      if (op == null)
+        continue; // Not one we know. Skip it.
+      messageTag = ControlMessage.getTag(tcpIn, start);
+      messageArg = ControlMessage.getArg(tcpIn, start, 0, -1);
+      messageStart = start;
+      onMessage(op);
+      if (state == State.CLOSED)
+        return;
+      if (movingTo != null) {
+        tcpIn.compact();
+        moveToChannelHome();
+        return;
+      }
+    }
+    tcpIn.compact();
+
+    if (!tcpIn.hasRemaining()) {
+      error("Message too long. Closing.");
+      close();
+    }
+  }
+
+  /**
+    * Advances the state machine on a message from the client.
+    */
+  private void onMessage(ControlOp message) {
+    if (message == ControlOp.HEARTBEAT && clientRole == ClientRoles.SENDER) { // Comes before the sender's length, in any state.
+      watchHeartbeats(messageArg);
+      return;
+    }
+    switch (state) {
+      case EXPECT_ID:
+        expectAndReply(message, ControlOp.ID, clientId, State.EXPECT_ROLE);
+        break;
+      case EXPECT_ROLE:
+        if (message == ControlOp.CHANNEL && channel == null) {
+          onChannel();
+          break;
+        }
+        if (message == ControlOp.ROLE && channel == null) { // Client didn't name one: it's on the unnamed channel.
+          joinChannel("", true);
+          if (movingTo != null) {
+            tcpIn.position(messageStart); // Handled again once on the channel's home loop.
+            break;
+          }
+        }
+        if (state == State.CLOSED)
+          break;
+        expectAndReply(message, ControlOp.ROLE, clientRole == ClientRoles.SENDER ? ControlMessage.SENDER : ControlMessage.RECEIVER,
+            State.EXPECT_UDP_PORT);
+        break;
+      case EXPECT_UDP_PORT:
+        if (message == ControlOp.PAYLOAD_SIZE)
+          onPayloadSize();
+        else if (expectAndReply(message, ControlOp.UDP_PORT, udpPort, null))
+          becomeRole();
+        break;
+      case EXPECT_ACK_LENGTH:
+        onArrayLength(message);
+        break;
+      case EXPECT_READY_TO_SEND:
+        if (message == ControlOp.READY_TO_SEND)
+          startReceivingAudio();
+        break;
+      case RECEIVING_AUDIO:
+        if (message != ControlOp.READY_TO_SEND) // which comes after the loop's first packets at times
+          log("Ignoring message in state " + state + ": " + message);
+        break;
+      case SENDING_AUDIO:           // client gave up on the rest of the loop
+      case EXPECT_READY_FOR_LENGTH:
+        if (message == ControlOp.STANDBY)
+          onStandby();
+        else if (message == ControlOp.READY_FOR_ARRAY_LENGTH) {
+          clientWantsMulticast = messageArg == ControlMessage.MULTICAST;
+          sendArrayLength();
+        }
+        break;
+      case EXPECT_RECEIVER_PORT:
+        onReceiverPort(message);
+        break;
+      case EXPECT_READY_TO_RECEIVE:
+        if (message == ControlOp.READY_TO_RECEIVE)
+          startSendingAudio();
+        break;
+      default:
+        log("Ignoring message in state " + state + ": " + message);
+    }
+  }
+
+  /**
+    * Replies to an expected request and moves on to the next state.
+    *
+    * @return whether message was as expected.
+    */
+  private boolean expectAndReply(ControlOp message, ControlOp expected, int arg, State next) {
+    if (message != expected) {
+      log("Unexpected message. Not replying: " + message);
+      return false;
+    }
+    tcpReply(expected, arg);
+    if (next != null)
+      state = next;
+    return true;
+  }
+
+  /**
+    * Joins the channel client names, with the role it asks for, and replies with the channel's number.
+    */
+  private void onChannel() {
+    String name = ControlMessage.getString(tcpIn, messageStart, 1);
+    joinChannel(name == null ? "" : name, messageArg != ControlMessage.RECEIVER);
+    if (state != State.CLOSED)
+      tcpReply(ControlOp.CHANNEL, channel.getId());
+  }
+
+  /**
+    * Joins a channel. Client is sender if it may send and the channel has no sender yet,
+    * otherwise a receiver. A sender session moves to the channel's home, if that's another
+    * loop, once it's done with the message in hand. A receiver session stays on this loop.
+    *
+    * @param mayPublish  whether client may send, and so take over if the channel's sender dies.
+    */
+  private void joinChannel(String name, boolean mayPublish) {
+    try {
+      channel = server.joinChannel(name);
+    } catch (IOException e) {
+      e.printStackTrace();
+      close();
+      return;
+    }
+    if (channel.isMixing()) // Every client that may send does, and none is in line to take over.
+      clientRole = mayPublish ? ClientRoles.SENDER : ClientRoles.RECEIVER;
+    else {
+      candidate = channel.getFailoverInfo().join(mayPublish, new SharedFailoverInfo.Listener() {
+        public void electedSender() {
+          onElected();
+        }
+      });
+      clientRole = channel.getFailoverInfo().isSender(candidate) ? ClientRoles.SENDER : ClientRoles.RECEIVER;
+    }
+    metrics = new ClientMetrics(clientId, channel.getMetrics(), clientRole == ClientRoles.SENDER);
+    log("Client joined channel " + channel + " as " + clientRole + (mayPublish ? "." : ", subscribed only."));
+    if (clientRole != ClientRoles.SENDER)
+      channel.subscribe(loop);
+    else if (channel.getHome() != loop)
+      movingTo = channel.getHome();
+  }
+
+  /**
+    * Moves the sender session to its channel's home loop. Messages the client's sent already
+    * that haven't been handled yet are handled there.
+    */
+  private void moveToChannelHome() {
+    tcpKey.cancel();
+    log("Moving from " + loop.getName() + " to " + movingTo.getName());
+    loop = movingTo;
+    movingTo = null;
+    loop.execute(new Runnable() {
+      public void run() {
+        start();
+        if (state == State.CLOSED)
+          return;
+        tcpIn.flip();
+        handleMessages();
+      }
+    });
+  }
+
+  /**
+    * Agrees to as much of the client's proposed payload size as the server allows, and
+    * says where probes of it are echoed: the port audio is sent to receivers from.
+    */
+  private void onPayloadSize() {
+    if (messageArg <= 0) {
+      log("Bad payload size proposed. Not replying: " + messageArg);
+      return;
+    }
+    int agreed = Math.min(messageArg, server.getMaxPayload());
+    if (agreed != payloadSize)
+      setPayloadSize(agreed);
+    try {
+      replyArgs[1] = loop.getUdpSendPort();
+    } catch (IOException e) {
+      e.printStackTrace();
+      replyArgs[1] = 0;
+    }
+    replyArgs[0] = payloadSize;
+    tcpReply(ControlOp.PAYLOAD_SIZE, replyArgs, 2);
+    log("Payload size agreed: " + payloadSize);
+  }
+
+  /**
+    * Handshake is over - start behaving as a sender or receiver handler.
+    */
+  private void becomeRole() {
+    if (clientRole == ClientRoles.SENDER) {
+      if (udpSetUpReceivingChannel())
+        state = State.EXPECT_ACK_LENGTH;
+    } else {
+      state = State.EXPECT_READY_FOR_LENGTH;
+    }
+  }
+
+  //////////////////////////////
+  // Sender-client handling  //
+  ////////////////////////////
+
+  private boolean udpSetUpReceivingChannel() {
+    if (udpReceivingChannel != null)
+      return true;
+    try {
+      log("Opening UDP channel on port " + udpPort);
+      udpReceivingChannel = DatagramChannel.open();
+      udpReceivingChannel.bind(new InetSocketAddress(udpPort));
+      loop.register(udpReceivingChannel, SelectionKey.OP_READ, this);
+      return true;
+    } catch (IOException e) {
+      e.printStackTrace();
+      close();
+      return false;
+    }
+  }
+
+  private void onArrayLength(ControlOp message) {
+    if (message == ControlOp.AUDIO_FORMAT) {
+      onAudioFormat();
+      return;
+    }
+    int length = messageArg;
+    if (message == ControlOp.STREAM && length > 0) {
+      receivedAudioArrayLength = length;
+      tcpReply(ControlOp.ACK_STREAM);
+      startStreamingAudio();
+      return;
+    }
+    if (message != ControlOp.ACK_LENGTH || length < 0) {
+      error("Array length can't be set to specified value: " + message + " " + length);
+      return;
+    }
+    receivedAudioArrayLength = length;
+    tcpReply(ControlOp.ACK_LENGTH);
+    if (isLogging(LogLevel.DEBUG))
+      debug("Array length set to " + receivedAudioArrayLength);
+    scheduleNextLoop(0);
+  }
+
+  /**
+    * Has the sender client taken to be dead, and the session closed so another takes over, once it's
+    * missed as many of the heartbeats it said it sends as the server allows.
+    */
+  private void watchHeartbeats(int intervalMs) {
+    if (intervalMs <= 0) {
+      error("Bad heartbeat interval: " + intervalMs);
+      return;
+    }
+    boolean watching = senderLiveness != null;
+    senderLiveness = new Liveness(intervalMs, server.getHeartbeatMisses());
+    log("Sender client sends heartbeats every " + intervalMs + " ms. Taken to be dead after "
+        + senderLiveness.getDeadAfterMillis() + " ms without them.");
+    if (!watching)
+      scheduleLivenessCheck(senderLiveness.getDeadAfterMillis());
+  }
+
+  private void scheduleLivenessCheck(long delayMs) {
+    loop.schedule(delayMs, new Runnable() {
+      public void run() {
+        if (state == State.CLOSED)
+          return;
+        if (senderLiveness.isDead()) {
+          log("Sender client missed its heartbeats.");
+          metrics.udpTimeout();
+          close();
+        } else {
+          scheduleLivenessCheck(Math.max(1, senderLiveness.getMillisUntilDead()));
+        }
+      }
+    });
+  }
+
+  /**
+    * Takes the sender client's audio format, which comes before its loop length, and replies with it.
+    */
+  private void onAudioFormat() {
+    AudioFormat format = AudioFormatArgs.get(messageArg, ControlMessage.getArg(tcpIn, messageStart, 1, -1),
+        ControlMessage.getArg(tcpIn, messageStart, 2, -1), ControlMessage.getArg(tcpIn, messageStart, 3, -1),
+        ControlMessage.getArg(tcpIn, messageStart, 4, -1));
+    if (format == null) {
+      error("Bad audio format. Not replying.");
+      return;
+    }
+    incomingFormat = format;
+    log("Audio format set to " + format);
+    if (channel.isMixing()) {
+      if (mixerFeed != null)
+        mixerFeed.close();
+      mixerFeed = channel.joinMix(format);
+      if (mixerFeed == null)
+        log("Audio in " + format + " can't be mixed with the channel's. Ignoring it.");
+    }
+    AudioFormatArgs.put(format, formatArgs);
+    tcpReply(ControlOp.AUDIO_FORMAT, formatArgs, formatArgs.length);
+  }
+
+  /**
+    * Asks the sender client for its next loop after a delay.
+    */
+  private void scheduleNextLoop(long delayMs) {
+    state = State.SENDER_IDLE;
+    loop.schedule(delayMs, new Runnable() {
+      public void run() {
+        if (state == State.SENDER_IDLE)
+          askForLoop();
+      }
+    });
+  }
+
+  private void askForLoop() {
+    state = State.EXPECT_READY_TO_SEND;
+    ingestStart = System.nanoTime();
+    tcpSend(ControlOp.READY_TO_RECEIVE);
+  }
+
+  private void startReceivingAudio() {
+    state = State.RECEIVING_AUDIO;
+    incomingAudio = channel.isMixing() ? null : channel.takeLoopBuffer(receivedAudioArrayLength);
+    incomingBytes = 0;
+    lastPacketTime = System.nanoTime();
+    scheduleReceiveTimeout(++audioReceiveCount, udpFirstPacketTimeoutMs);
+  }
+
+  /**
+    * Ends the loop if no packet has arrived for a while, as the blocking handler's socket timeout does.
+    */
+  private void scheduleReceiveTimeout(final int receiveCount, long delayMs) {
+    loop.schedule(delayMs, new Runnable() {
+      public void run() {
+        if (state != State.RECEIVING_AUDIO || receiveCount != audioReceiveCount)
+          return;
+        long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastPacketTime);
+        if (idle >= udpPacketTimeoutMs || incomingBytes == 0 && idle >= udpFirstPacketTimeoutMs) {
+          log("**** UDP TIMEOUT ****");
+          metrics.udpTimeout();
+          metrics.missingPackets((receivedAudioArrayLength - incomingBytes + payloadSize - 1) / payloadSize);
+          finishReceivingAudio();
+        } else {
+          scheduleReceiveTimeout(receiveCount, udpPacketTimeoutMs - idle);
+        }
+      }
+    });
+  }
+
+  /**
+    * Drains waiting datagrams. Those arriving between loops are dropped, but once the client's
+    * been asked for a loop its packets start it, even if its READY_TO_SEND has yet to be read:
+    * both may be read in the same pass of the loop, in either order.
+    */
+  private void udpReceive() throws IOException {
+    while (true) {
+      if (state == State.STREAMING_AUDIO && stream != null) {
+        udpReceiveStream();
+        return;
+      }
+      packetBuffer.clear();
+      if (udpReceivingChannel.receive(packetBuffer) == null)
+        return;
+      if (senderLiveness != null)
+        senderLiveness.heard();
+      if (Heartbeat.isHeartbeat(packetBuffer, 0, packetBuffer.position()))
+        continue;
+      if (state == State.EXPECT_READY_TO_SEND) // Loop's overtaken the client's READY_TO_SEND.
+        startReceivingAudio();
+      if (state != State.RECEIVING_AUDIO && state != State.STREAMING_AUDIO)
+        continue;
+
+      packetBuffer.flip();
+      if (!AudioPacket.hasHeader(packetBuffer.remaining())) {
+        metrics.badPacket();
+        continue;
+      }
+      int offset = AudioPacket.getOffset(packetBuffer, 0);
+      int length = Math.min(packetBuffer.remaining() - AudioPacket.headerLength, receivedAudioArrayLength - offset);
+      if (offset < 0 || length <= 0) {
+        metrics.badPacket();
+        continue;
+      }
+      metrics.packetIn(packetBuffer.remaining());
+      lastPacketTime = System.nanoTime();
+
+      // Streamed loops follow one another unannounced, so a loop's start means the last one is over.
+      if (state == State.STREAMING_AUDIO && incomingBytes > 0 && (AudioPacket.getFlags(packetBuffer, 0) & AudioPacket.LOOP_START) != 0)
+        streamedLoopDone();
+
+      if (!channel.isMixing())
+        incomingAudio.put(offset, packetBuffer, AudioPacket.headerLength, length);
+      else if (mixerFeed != null)
+        mixerFeed.feed(packetBuffer, 0, packetBuffer.remaining());
+      incomingBytes += length;
+
+      if (incomingBytes >= receivedAudioArrayLength) {
+        if (state == State.STREAMING_AUDIO)
+          streamedLoopDone();
+        else
+          finishReceivingAudio();
+      }
+    }
+  }
+
+  /**
+    * Drains waiting datagrams of the sender client's stream, each received straight into the
+    * channel's stream and published to receiver sessions at once, as the blocking handler does.
+    * Packets with no audio after their header, or whose offset is outside the loop, are dropped.
+    */
+  private void udpReceiveStream() throws IOException {
+    while (true) {
+      ByteBuffer frameBuffer = stream.beginWrite();
+      int start = frameBuffer.position();
+      if (udpReceivingChannel.receive(frameBuffer) == null) {
+        stream.abortWrite();
+        return;
+      }
+      if (senderLiveness != null)
+        senderLiveness.heard();
+
+      // Whatever came is in the slot now, so if it's no good the slot's old frame is lost too.
+      // Not rewinding means abortWrite() leaves the slot marked as overwritten.
+      int length = frameBuffer.position() - start;
+      if (Heartbeat.isHeartbeat(frameBuffer, start, length)) {
+        stream.abortWrite();
+        continue;
+      }
+      int payload = length - AudioPacket.headerLength;
+      int offset = payload <= 0 ? -1 : AudioPacket.getOffset(frameBuffer, start);
+      if (offset < 0 || offset >= receivedAudioArrayLength) {
+        stream.abortWrite();
+        metrics.badPacket();
+        continue;
+      }
+      stream.commitWrite(offset, receivedAudioArrayLength);
+      channel.framePublished();
+      metrics.packetIn(length);
+      lastPacketTime = System.nanoTime();
+
+      incomingBytes += Math.min(payload, receivedAudioArrayLength - offset);
+      if (incomingBytes >= receivedAudioArrayLength) { // A loop's worth in, whatever order it came in.
+        long now = System.nanoTime();
+        metrics.loopDone(now - ingestStart);
+        ingestStart = now;
+        incomingBytes -= receivedAudioArrayLength;
+      }
+    }
+  }
+
+  /**
+    * @return the loop received so far, with silence where packets were lost, ready to be
+    *         published. Empty if nothing arrived.
+    */
+  private ByteBuffer incomingLoop() {
+    incomingAudio.limit(incomingBytes > 0 ? receivedAudioArrayLength : 0);
+    incomingAudio.position(0);
+    return incomingAudio;
+  }
+
+  /**
+    * Publishes the loop, as received, for receiver sessions to send from.
+    */
+  private void finishReceivingAudio() {
+    if (isLogging(LogLevel.DEBUG))
+      debug("Received final byte: " + incomingBytes);
+    if (!channel.isMixing())
+      channel.publishAudio(incomingLoop(), incomingFormat);
+    incomingAudio = null;
+    metrics.loopDone(System.nanoTime() - ingestStart);
+
+    // Ask for the next loop so it's in just as receivers finish playing this one.
+    if (loopScheduler == null) {
+      loopScheduler = new LoopScheduler(incomingFormat, receivedAudioArrayLength);
+      log("Loop plays for " + TimeUnit.NANOSECONDS.toMillis(loopScheduler.getLoopNanos()) + " ms");
+    }
+    loopScheduler.loopIngested(ingestStart);
+    scheduleNextLoop(TimeUnit.NANOSECONDS.toMillis(loopScheduler.getNanosUntilNextIngest()));
+  }
+
+  /**
+    * Sender client streams audio with no signalling between loops. Each packet is published
+    * to receiver sessions as soon as it arrives, in the channel's stream, unless the channel
+    * mixes, when it goes into the mix.
+    */
+  private void startStreamingAudio() {
+    state = State.STREAMING_AUDIO;
+    log("Receiving audio stream.");
+    stream = channel.isMixing() ? null : channel.openStream(incomingFormat);
+    incomingBytes = 0;
+    lastPacketTime = System.nanoTime();
+    ingestStart = System.nanoTime();
+    scheduleStreamTimeout(udpStreamTimeoutMs);
+  }
+
+  /**
+    * Counts a streamed loop done, as it goes into the mix.
+    */
+  private void streamedLoopDone() {
+    incomingBytes = 0;
+    long now = System.nanoTime();
+    metrics.loopDone(now - ingestStart);
+    ingestStart = now;
+  }
+
+  /**
+    * Drops the sender client, so failover starts, if its stream stops for a while.
+    */
+  private void scheduleStreamTimeout(long delayMs) {
+    loop.schedule(delayMs, new Runnable() {
+      public void run() {
+        if (state != State.STREAMING_AUDIO)
+          return;
+        long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastPacketTime);
+        if (idle >= udpStreamTimeoutMs) {
+          log("Lost sender client's stream.");
+          metrics.udpTimeout();
+          close();
+        } else {
+          scheduleStreamTimeout(udpStreamTimeoutMs - idle);
+        }
+      }
+    });
+  }
+
+  /**
+    * Update info shared between sessions so another one takes over as sender-client handler.
+    */
+  private void failOver() {
+    if (channel.isMixing()) { // Senders come and go from the mix: nobody takes over.
+      log("Sender client leaving the mix.");
+      if (mixerFeed != null)
+        mixerFeed.close();
+      mixerFeed = null;
+      return;
+    }
+    log("Sender-handling session needs to fail over.");
+    channel.getFailoverInfo().failOver(candidate);
+  }
+
+  //////////////////////////////
+  // Receiver-client handling //
+  //////////////////////////////
+
+  /**
+    * @return whether this session has been elected to take over as sender-client handler.
+    */
+  private boolean isTakingOverHandlingSender() {
+    return elected;
+  }
+
+  /**
+    * Called, on the thread that failed over, when this session's been elected to take over as
+    * sender-client handler. Has the session's loop, which as a receiver's it never left, take
+    * it over at once if it's waiting for audio. It goes on sending from there, its loops
+    * handed to the channel's home to be published.
+    */
+  private void onElected() {
+    elected = true;
+    loop.execute(new Runnable() {
+      public void run() {
+        resumeWaiting();
+      }
+    });
+  }
+
+  private void sendArrayLength() {
+    if (isTakingOverHandlingSender()) {
+      log("Taking over as sender handler. Notifying client it needs to be sender now.");
+      clientRole = ClientRoles.SENDER;
+      metrics.setSender(true);
+      loop.removeReceiver(clientId);
+      channel.unsubscribe(loop);
+      releaseLoopSending();
+      if (standbyFormat != null) {
+        takeOverFromStandby();
+      } else {
+        tcpReply(ControlOp.BECOME_SENDER);
+        becomeRole();
+      }
+      return;
+    }
+
+    MulticastGroup group = channel.getMulticastGroup();
+    if (group != null && clientWantsMulticast && !channel.isStreaming()) {
+      sendMulticastLoop(group);
+      return;
+    }
+    if (channel.isStreaming()) {
+      sendStreamedLoopLength();
+      return;
+    }
+
+    SharedLoop latest = channel.getLatest();
+    long loopNumber = latest.getNumber();
+    if (!latest.getAudio().hasRemaining() || loopNumber == lastLoopSent || !latest.hold()) {
+      state = State.WAITING_FOR_AUDIO;
+      loop.addWaiting(channel, this);
+      return;
+    }
+    lastLoopSent = loopNumber;
+    releaseLoopSending();
+    loopSending = latest;
+    resetResends();
+
+    AudioFormat format = channel.getAudioFormat();
+    replyFormatIfNew(format);
+    int frameSize = format == null ? 1 : Math.max(1, format.getFrameSize());
+    loopPayloadSize = payloadSize >= frameSize ? payloadSize - payloadSize % frameSize : payloadSize;
+    if (fecEncoder != null && fecEncoder.getPayloadSize() != loopPayloadSize)
+      fecEncoder = new FecEncoder(server.getFecGroupSize(), server.getFecParityCount(), loopPayloadSize);
+
+    outgoingAudio = latest.getAudio().duplicate();
+    replyArgs[0] = outgoingAudio.remaining();
+    replyArgs[1] = loopPayloadSize;
+    tcpReply(ControlOp.ARRAY_LENGTH, replyArgs, 2);
+    tcpSend(ControlOp.READY_FOR_UDP_PORT);
+    state = State.EXPECT_RECEIVER_PORT;
+  }
+
+  /**
+    * Tells the receiver client the length of the latest loop of the channel's stream, which
+    * it's sent packet by packet as each is published, from the first on, or waits for the
+    * next loop to start if it's been sent the latest.
+    */
+  private void sendStreamedLoopLength() {
+    AudioRing ring = channel.getStream();
+    if (frame == null)
+      frame = ring.newFrame();
+    long loopStart = ring.getLatestLoopStart();
+    if (loopStart <= lastStreamLoopSent || ring.read(loopStart, frame) != AudioRing.OK) {
+      state = State.WAITING_FOR_AUDIO;
+      loop.addWaiting(channel, this);
+      return;
+    }
+    lastStreamLoopSent = loopStart;
+    releaseLoopSending();
+    streamSending = ring;
+    streamLoopStart = loopStart;
+    streamLoopLength = frame.loopLength;
+    resetResends();
+
+    replyFormatIfNew(ring.getFormat());
+    loopPayloadSize = frame.length - AudioPacket.headerLength; // Sender client's packets are all this big but the last.
+    if (sendBuffer.capacity() < frame.length) {
+      sendBuffer = ByteBuffer.allocateDirect(frame.length);
+      retransmitBuffer = ByteBuffer.allocateDirect(frame.length);
+      retransmitBuffer.limit(0);
+    }
+    if (fecEncoder != null && fecEncoder.getPayloadSize() != loopPayloadSize)
+      fecEncoder = new FecEncoder(server.getFecGroupSize(), server.getFecParityCount(), loopPayloadSize);
+    int slots = (streamLoopLength + loopPayloadSize - 1) / loopPayloadSize;
+    if (sentFrames.length < slots)
+      sentFrames = new long[slots];
+    Arrays.fill(sentFrames, -1);
+
+    replyArgs[0] = streamLoopLength;
+    replyArgs[1] = loopPayloadSize;
+    tcpReply(ControlOp.ARRAY_LENGTH, replyArgs, 2);
+    tcpSend(ControlOp.READY_FOR_UDP_PORT);
+    state = State.EXPECT_RECEIVER_PORT;
+  }
+
+  /**
+    * Logs what was resent of the last loop, and forgets it, for the next.
+    */
+  private void resetResends() {
+    if (packetsResent + resendsLimited > 0)
+      log("Resent " + packetsResent + " packets on request (" + resendsLimited + " over rate limit).");
+    packetsResent = 0;
+    resendsLimited = 0;
+    retransmitSlots.clear();
+    retransmitBuffer.limit(0);
+  }
+
+  /**
+    * Takes up the receiver client's offer to stand by to take over as sender, if it's in line
+    * to. Opens the channel its audio would come to now, so its keepalives find it open, and so
+    * it can start sending as soon as it's told to.
+    */
+  private void onStandby() {
+    AudioFormat format = AudioFormatArgs.get(messageArg, ControlMessage.getArg(tcpIn, messageStart, 1, -1),
+        ControlMessage.getArg(tcpIn, messageStart, 2, -1), ControlMessage.getArg(tcpIn, messageStart, 3, -1),
+        ControlMessage.getArg(tcpIn, messageStart, 4, -1));
+    int length = ControlMessage.getArg(tcpIn, messageStart, StandbyArgs.length, -1);
+    boolean accepted = candidate != null && format != null && length > 0;
+    if (accepted) {
+      standbyFormat = format;
+      standbyLength = length;
+      standbyStreams = ControlMessage.getArg(tcpIn, messageStart, StandbyArgs.streams, 0) == 1;
+      standbyHeartbeatMs = ControlMessage.getArg(tcpIn, messageStart, StandbyArgs.heartbeatMs, 0);
+      if (!udpSetUpReceivingChannel())
+        return;
+      log("Client standing by to take over, " + (standbyStreams ? "streaming " : "looping ") + length + " bytes of " + format
+          + ", with keepalives every " + ControlMessage.getArg(tcpIn, messageStart, StandbyArgs.keepaliveMs, 0) + " ms.");
+    } else {
+      log(candidate == null ? "Client can't take over, so can't stand by." : "Bad offer to stand by. Declining it.");
+    }
+    tcpReply(ControlOp.STANDBY, accepted ? 1 : 0);
+  }
+
+  /**
+    * Tells the client to take over, going by what it said when it offered to stand by rather
+    * than waiting for it to say it again: asks for its first loop in the same write, so one
+    * message isn't held up behind the other, or waits for its stream.
+    */
+  private void takeOverFromStandby() {
+    makeRoom(ControlMessage.headerLength);
+    ControlMessage.put(tcpOut, ControlOp.BECOME_SENDER, messageTag);
+    incomingFormat = standbyFormat;
+    log("Audio format set to " + incomingFormat);
+    receivedAudioArrayLength = standbyLength;
+    standbyFormat = null;
+    if (standbyHeartbeatMs > 0)
+      watchHeartbeats(standbyHeartbeatMs);
+    if (standbyStreams) {
+      tcpWrite();
+      startStreamingAudio();
+    } else {
+      askForLoop();
+    }
+  }
+
+  /**
+    * Tells the receiver client to take the latest loop from the multicast group, which it's
+    * been sent to already, or waits for one if the client's been told of the latest.
+    */
+  private void sendMulticastLoop(MulticastGroup group) {
+    int firstSeq;
+    ByteBuffer audio;
+    do {  // Sequence number is published before audio, so if it hasn't changed they go together.
+      firstSeq = channel.getMulticastFirstSeq();
+      audio = channel.getLatest().getAudio();
+    } while (firstSeq != channel.getMulticastFirstSeq());
+
+    if (firstSeq < 0 || firstSeq == lastMulticastSeq) {
+      state = State.WAITING_FOR_AUDIO;
+      loop.addWaiting(channel, this);
+      return;
+    }
+
+    lastMulticastSeq = firstSeq;
+    replyFormatIfNew(channel.getAudioFormat());
+    multicastLoopArgs[0] = audio.remaining();
+    multicastLoopArgs[1] = firstSeq;
+    multicastLoopArgs[2] = group.getAddressAsInt();
+    multicastLoopArgs[3] = group.getPort();
+    multicastLoopArgs[4] = channel.getMulticastPayloadSize();
+    tcpReply(ControlOp.MULTICAST_LOOP, multicastLoopArgs, multicastLoopArgs.length);
+    state = State.EXPECT_READY_FOR_LENGTH;
+  }
+
+  /**
+    * Lets go of the loop last sent to the receiver client, so its storage can be reused once
+    * nobody else holds it. Packets of it the client asks for again aren't resent after this.
+    */
+  private void releaseLoopSending() {
+    streamSending = null;
+    awaitingFrame = false;
+    retransmitSlots.clear();
+    if (loopSending == null)
+      return;
+    loopSending.release();
+    loopSending = null;
+    outgoingAudio = null;
+  }
+
+  /**
+    * @return length of the loop being sent to the receiver client, or -1 if there's none to resend packets of.
+    */
+  private int sendingLength() {
+    if (streamSending != null)
+      return streamLoopLength;
+    return outgoingAudio == null ? -1 : outgoingAudio.limit();
+  }
+
+  /**
+    * Tells the receiver client the format of the audio it's about to be sent, if it's changed
+    * (eg after a failover) or the client hasn't been told it yet. Goes ahead of the reply it
+    * asked for, with the same tag.
+    */
+  private void replyFormatIfNew(AudioFormat format) {
+    if (format == null || formatSent != null && format.matches(formatSent))
+      return;
+    AudioFormatArgs.put(format, formatArgs);
+    tcpReply(ControlOp.AUDIO_FORMAT, formatArgs, formatArgs.length);
+    formatSent = format;
+  }
+
+  /**
+    * Called by the loop when audio has been published or this session's been elected to take over.
+    */
+  void resumeWaiting() {
+    if (state == State.WAITING_FOR_AUDIO) {
+      sendArrayLength();
+    } else if (state == State.SENDING_AUDIO && awaitingFrame) {
+      awaitingFrame = false;
+      loop.queueSend(this);
+    }
+  }
+
+  private void onReceiverPort(ControlOp message) {
+    int port = messageArg;
+    if (message != ControlOp.RECEIVER_UDP_PORT || port <= 0) {
+      error("Bad UDP port from receiver client: " + message + " " + port);
+      close();
+      return;
+    }
+    if (isLogging(LogLevel.DEBUG))
+      debug("Received receiver's UDP port: " + port);
+    receiverAddress = new InetSocketAddress(((InetSocketAddress) tcpChannel.socket().getRemoteSocketAddress()).getAddress(), port);
+    state = State.EXPECT_READY_TO_RECEIVE;
+  }
+
+  private void startSendingAudio() {
+    state = State.SENDING_AUDIO;
+    outgoingPacket = null;
+    if (fecEncoder != null)
+      fecEncoder.reset();
+    if (retransmitBucket != null)
+      loop.addReceiver(clientId, this);
+    sendStart = System.nanoTime();
+    if (streamSending != null) {
+      streamSeq = streamLoopStart;
+      streamLoopDone = false;
+      awaitingFrame = false;
+      lastFrameTime = sendStart;
+      scheduleFrameTimeout(streamLoopStart, frameWaitTimeoutMs);
+    } else {
+      outgoingAudio.position(0);
+    }
+    loop.queueSend(this);
+  }
+
+  /**
+    * Gives up on the rest of the streamed loop being sent if no more of it's been published
+    * for a while, eg the sender client's gone, as the blocking handler does.
+    */
+  private void scheduleFrameTimeout(final long loopStart, long delayMs) {
+    loop.schedule(delayMs, new Runnable() {
+      public void run() {
+        if (state != State.SENDING_AUDIO || streamSending == null || streamLoopStart != loopStart || streamLoopDone)
+          return;
+        long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastFrameTime);
+        if (!awaitingFrame || idle < frameWaitTimeoutMs) {
+          scheduleFrameTimeout(loopStart, awaitingFrame ? frameWaitTimeoutMs - idle : frameWaitTimeoutMs);
+          return;
+        }
+        log("Timed out waiting for audio from sender client. Skipping rest of loop.");
+        awaitingFrame = false;
+        streamLoopDone = true;
+        loop.queueSend(ClientSession.this);
+      }
+    });
+  }
+
+  /**
+    * Called by the loop with a NACK from the receiver client: queues the packets it asks
+    * for to be resent, if they're of the loop still being sent.
+    */
+  void onNack(ByteBuffer nack, int length, SocketAddress from) {
+    if (retransmitBucket == null || sendingLength() < 0 || !from.equals(receiverAddress))
+      return;
+    int slots = (sendingLength() + loopPayloadSize - 1) / loopPayloadSize;
+    int first = Nack.getFirstSlot(nack, 0, loopPayloadSize);
+    int count = Math.min(Nack.getSlotCount(length), slots - first);
+    int missing = 0;
+    for (int i = 0; i < count; i++) {
+      if (first >= 0 && Nack.isMissing(nack, 0, i)) {
+        retransmitSlots.set(first + i);
+        missing++;
+      }
+    }
+    metrics.missingPackets(missing);
+    if (!retransmitSlots.isEmpty())
+      loop.queueSend(this);
+  }
+
+  /**
+    * Sends audio to the receiver client until done or the socket buffer is full.
+    * Each packet is a header and the next packet's worth of audio, copied into sendBuffer,
+    * which is kept and sent again if the socket buffer was full. Parity packets, if
+    * any, go out as soon as their group is done. Packets the client asked for again
+    * go out first.
+    *
+    * @return true if there's nothing left to send.
+    */
+  boolean pumpUdpSend(DatagramChannel channel) throws IOException {
+    if (state == State.CLOSED)
+      return true; // Closed while queued, eg after a send failed.
+    if (!pumpRetransmits(channel))
+      return false;
+    if (state != State.SENDING_AUDIO)
+      return true;
+
+    while (true) {
+      if (outgoingPacket == null || !outgoingPacket.hasRemaining()) {
+        outgoingPacket = nextOutgoingPacket();
+        if (outgoingPacket == null)
+          break;
+      }
+      int sent = channel.send(outgoingPacket, receiverAddress);
+      if (sent == 0)
+        return false;
+      metrics.packetOut(sent);
+    }
+
+    if (awaitingFrame) {
+      loop.addWaiting(this.channel, this); // Sent all that's been published: till the next packet is.
+      return true;
+    }
+    metrics.loopDone(System.nanoTime() - sendStart);
+    state = State.EXPECT_READY_FOR_LENGTH;
+    return true;
+  }
+
+  /**
+    * Resends packets the receiver client asked for again, as fast as the rate limit allows.
+    * What's over the limit is dropped, not queued: the client asks again if it still can.
+    *
+    * @return true if there's nothing left to resend.
+    */
+  private boolean pumpRetransmits(DatagramChannel channel) throws IOException {
+    while (true) {
+      if (!retransmitBuffer.hasRemaining()) {
+        int slot = retransmitSlots.nextSetBit(0);
+        if (slot < 0)
+          return true;
+        if (!retransmitBucket.tryTake()) {
+          resendsLimited += retransmitSlots.cardinality();
+          retransmitSlots.clear();
+          return true;
+        }
+        retransmitSlots.clear(slot);
+        if (streamSending == null) {
+          putPacket(retransmitBuffer, slot * loopPayloadSize);
+        } else if (!putResentFrame(slot)) {
+          retransmitBuffer.limit(0); // Gone for good.
+          continue;
+        }
+        packetsResent++;
+      }
+      int sent = channel.send(retransmitBuffer, receiverAddress);
+      if (sent == 0)
+        return false;
+      metrics.packetOut(sent);
+    }
+  }
+
+  /**
+    * @return next packet to send the receiver client, or null if the loop's all sent, or if
+    *         what's been published of a streamed loop has, when awaitingFrame is set.
+    */
+  private ByteBuffer nextOutgoingPacket() {
+    if (fecEncoder != null && fecEncoder.getParityReady() > 0)
+      return fecEncoder.nextParity();
+
+    if (streamSending != null ? nextStreamPacket() : nextLoopPacket()) {
+      if (fecEncoder != null)
+        fecEncoder.add(sendBuffer);
+      return sendBuffer;
+    }
+    if (awaitingFrame)
+      return null;
+
+    if (fecEncoder != null) {
+      fecEncoder.flush();
+      if (fecEncoder.getParityReady() > 0)
+        return fecEncoder.nextParity();
+    }
+    return null;
+  }
+
+  /**
+    * Fills sendBuffer with the next packet of outgoingAudio.
+    *
+    * @return false if the loop's all sent.
+    */
+  private boolean nextLoopPacket() {
+    if (!outgoingAudio.hasRemaining())
+      return false;
+    int offset = outgoingAudio.position();
+    outgoingAudio.position(offset + putPacket(sendBuffer, offset));
+    return true;
+  }
+
+  /**
+    * Fills sendBuffer with the next packet of the streamed loop being sent, as soon as it's published.
+    *
+    * @return false if there's no more of the loop to send, or, setting awaitingFrame, none yet.
+    */
+  private boolean nextStreamPacket() {
+    if (streamLoopDone)
+      return false;
+    int status = streamSending.read(streamSeq, frame);
+    if (status == AudioRing.NOT_YET) {
+      if (isTakingOverHandlingSender()) {
+        log("Sender client gone mid-loop and this session is to take over. Skipping rest of loop.");
+        streamLoopDone = true;
+      } else {
+        awaitingFrame = true;
+      }
+      return false;
+    }
+    if (status == AudioRing.OVERRUN) {
+      log("Fell a whole ring behind the sender client. Skipping rest of loop.");
+      streamLoopDone = true;
+      return false;
+    }
+    if (streamSeq != streamLoopStart && frame.loopOffset == 0) {
+      streamLoopDone = true; // Next loop has started, so this one was cut short.
+      return false;
+    }
+
+    int length = putFrame(sendBuffer);
+    if (!streamSending.isIntact(frame)) {
+      log("Sender client overwrote packet while it was being sent. Skipping rest of loop.");
+      streamLoopDone = true;
+      return false;
+    }
+    int slot = frame.loopOffset / loopPayloadSize;
+    if (slot < sentFrames.length)
+      sentFrames[slot] = streamSeq;
+    if (frame.loopOffset + length >= streamLoopLength)
+      streamLoopDone = true; // Nothing more of this loop to send.
+    streamSeq++;
+    lastFrameTime = System.nanoTime();
+    return true;
+  }
+
+  /**
+    * Fills retransmitBuffer with the packet of the streamed loop being sent in a slot, if it's
+    * still in the stream.
+    *
+    * @return false if it's been overwritten since.
+    */
+  private boolean putResentFrame(int slot) {
+    if (slot >= sentFrames.length || sentFrames[slot] < 0 || streamSending.read(sentFrames[slot], frame) != AudioRing.OK
+        || frame.loopOffset != slot * loopPayloadSize || frame.loopLength != streamLoopLength)
+      return false;
+    putFrame(retransmitBuffer);
+    return streamSending.isIntact(frame);
+  }
+
+  /**
+    * Fills a buffer with the stream packet frame's read, with a header of this session's but
+    * the sender's timestamp, so the receiver's jitter takes in how the sender paced it.
+    *
+    * @return audio bytes in the packet.
+    */
+  private int putFrame(ByteBuffer packet) {
+    int length = Math.min(frame.length - AudioPacket.headerLength, streamLoopLength - frame.loopOffset);
+    packet.clear();
+    AudioPacket.putHeader(packet, 0, clientId, frame.loopOffset == 0 ? AudioPacket.LOOP_START : 0,
+        sendSeq++, frame.loopOffset, AudioPacket.getTimestamp(frame.data, frame.data.position()));
+    packet.put(AudioPacket.headerLength, frame.data, frame.data.position() + AudioPacket.headerLength, length);
+    packet.limit(AudioPacket.headerLength + length);
+    return length;
+  }
+
+  /**
+    * Fills a buffer with the packet of outgoingAudio at an offset, header and all.
+    *
+    * @return audio bytes in the packet.
+    */
+  private int putPacket(ByteBuffer packet, int offset) {
+    int length = Math.min(loopPayloadSize, outgoingAudio.limit() - offset);
+    packet.clear();
+    AudioPacket.putHeader(packet, 0, clientId, offset == 0 ? AudioPacket.LOOP_START : 0,
+        sendSeq++, offset, AudioPacket.timestamp(streamStart));
+    packet.put(AudioPacket.headerLength, outgoingAudio, offset, length);
+    packet.limit(AudioPacket.headerLength + length);
+    return length;
+  }
+
+  //////////////////////////////
+  // TCP plumbing             //
+  //////////////////////////////
+
+  /**
+    * Queues a message for the client and writes as much as the socket takes.
+    */
+  private void tcpSend(ControlOp message) {
+    makeRoom(ControlMessage.headerLength);
+    ControlMessage.put(tcpOut, message, 0);
+    tcpWrite();
+  }
+
+  /**
+    * Replies to the message being handled.
+    */
+  private void tcpReply(ControlOp message) {
+    makeRoom(ControlMessage.headerLength);
+    ControlMessage.put(tcpOut, message, messageTag);
+    tcpWrite();
+  }
+
+  private void tcpReply(ControlOp message, int arg) {
+    makeRoom(ControlMessage.headerLength + 4);
+    ControlMessage.put(tcpOut, message, messageTag, arg);
+    tcpWrite();
+  }
+
+  private void tcpReply(ControlOp message, int[] args, int count) {
+    makeRoom(ControlMessage.headerLength + 4 * count);
+    ControlMessage.put(tcpOut, message, messageTag, args, count);
+    tcpWrite();
+  }
+
+  /**
+    * Grows tcpOut if a client that isn't reading has let it fill up.
+    */
+  private void makeRoom(int length) {
+    if (tcpOut.remaining() < length) {
+      ByteBuffer bigger = ByteBuffer.allocate(tcpOut.capacity() * 2 + length);
+      tcpOut.flip();
+      bigger.put(tcpOut);
+      tcpOut = bigger;
+    }
+  }
+
+  /**
+    * Writes what's queued. If the client's gone, eg the write fails with a broken pipe,
+    * says so in a line and closes the session, as the loop does when a read fails.
+    */
+  private void tcpWrite() {
+    try {
+      tcpFlush();
+    } catch (IOException e) {
+      if (state != State.CLOSED)
+        log("Lost connection with client: " + e.getMessage());
+      close();
+    }
+  }
+
+  private void tcpFlush() throws IOException {
+    tcpOut.flip();
+    tcpChannel.write(tcpOut);
+    boolean pending = tcpOut.hasRemaining();
+    tcpOut.compact();
+    if (tcpKey.isValid())
+      tcpKey.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+  }
+
+  private void lostConnection() {
+    if (state == State.CLOSED)
+      return;
+    log("Lost connection with client");
+    close();
+  }
+
+  /**
+    * Closes the session's channels. If it was handling the sender client, another session takes over.
+    */
+  public void close() {
+    if (state == State.CLOSED)
+      return;
+    state = State.CLOSED;
+    releaseLoopSending();
+    if (clientRole == ClientRoles.SENDER) {
+      failOver();
+    } else {
+      loop.removeReceiver(clientId);
+      if (channel != null) {
+        channel.unsubscribe(loop);
+        channel.getFailoverInfo().leave(candidate); // Out of line to take over.
+      }
+    }
+    try {
+      tcpChannel.close();
+    } catch (IOException e) {
+      log("Error closing TCP channel: " + e.getMessage());
+    }
+    if (udpReceivingChannel != null) {
+      try {
+        udpReceivingChannel.close();
+      } catch (IOException e) {
+        log("Error closing UDP channel: " + e.getMessage());
+      }
+    }
+    if (metrics != null)
+      metrics.close();
+  }
+
+  private void log(String msg) {
+    logger(loggingName + "-" + clientId, msg);
+  }
+
+  /**
+    * Only logged at LogLevel.DEBUG: guard messages that take building with isLogging(LogLevel.DEBUG).
+    */
+  private void debug(String msg) {
+    logger(LogLevel.DEBUG, loggingName + "-" + clientId, msg);
+  }
+
+  private void error(String msg) {
+    logger(LogLevel.ERROR, loggingName + "-" + clientId, msg);
+  }
+
+}
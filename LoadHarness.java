@@ -0,0 +1,453 @@
+import java.io.IOException;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.sampled.AudioFormat;
+
+import net.AudioPacket;
+import net.Heartbeat;
+import net.MulticastGroup;
+
+import util.LogLevel;
+
+import static util.SoundUtil.*;
+
+/**
+  * Puts a SoundServer under load with no audio hardware: starts one in this program, with a
+  * sender and any number of receivers (see SimulatedClient) connecting to it over loopback,
+  * and checks that every byte received is what was sent. Can kill the sender every so often,
+  * so a receiver has to take over, and kill receivers too, as clients dying would. Or it can
+  * freeze the sender instead, leaving its connection open, so the server only finds out from
+  * its heartbeats (see net.Heartbeat) stopping. The sender can stream a frame at a time
+  * rather than send loops when asked, and receivers can take loops from a multicast group.
+  *
+  * Reports each receiver's throughput and loss, latency from the sender to the receivers,
+  * and for each failover, the gap in receivers' audio: from the sender being killed or
+  * frozen till they had a whole loop from the one that took over.
+  *
+  * Exits with 1 if anything received wasn't what was sent.
+  */
+public class LoadHarness {
+
+  private static String programName = "LoadHarness";
+
+  private static final String host = "localhost";
+
+  /**
+    * The port SoundServer listens on.
+    */
+  private static final int tcpPort = 789;
+
+  private static final int defaultReceivers = 10;
+
+  private static final int defaultSeconds = 20;
+
+  private static final int defaultSampleRate = 44100;
+
+  private static final int defaultLoopMs = 100;
+
+  private static final int defaultFrameMs = 20;
+
+  /**
+    * Receivers started at once, each lot once the last is set up: fewer than the server's
+    * backlog of connections waiting to be accepted, beyond which connections are reset.
+    */
+  private static final int startBatch = 32;
+
+  private static final long setUpTimeoutMs = 60000;
+
+  private static final long joinTimeoutMs = 5000;
+
+  private final int receiverCount;
+  private final int seconds;
+  private final int killEverySeconds;
+  private final int killReceivers;
+  private final AudioFormat format;
+  private final int loopLength;
+  private final int payloadSize;
+  private final int heartbeatMs;
+
+  /**
+    * Whether to freeze the sender rather than kill it.
+    */
+  private final boolean freeze;
+
+  /**
+    * Whether receivers stand by to take over as sender.
+    */
+  private final boolean standby;
+
+  /**
+    * How much audio the sender streams at a time, in milliseconds, or 0 for it to send loops when asked.
+    */
+  private final int streamFrameMs;
+
+  /**
+    * Whether receivers take loops from the server's multicast group.
+    */
+  private final boolean multicast;
+
+  private final List<SimulatedClient> clients = new ArrayList<SimulatedClient>();
+
+  /**
+    * Clients by the ID the server gave them, so receivers can find who sent a loop.
+    */
+  private final Map<Integer, SimulatedClient> clientsById = new ConcurrentHashMap<Integer, SimulatedClient>();
+
+  private final List<Kill> kills = new ArrayList<Kill>();
+
+  /**
+    * Clients killed before the end.
+    */
+  private final Set<SimulatedClient> killedEarly = new HashSet<SimulatedClient>();
+
+  private volatile Kill latestKill;
+
+  private final Random random = new Random(42);
+
+  /**
+    * A sender killed, and how long each receiver then went till it had a whole loop from another.
+    */
+  static class Kill {
+
+    final long at;
+    final int senderId;
+    final ConcurrentLinkedQueue<Long> gapNanos = new ConcurrentLinkedQueue<Long>();
+
+    Kill(long at, int senderId) {
+      this.at = at;
+      this.senderId = senderId;
+    }
+  }
+
+  LoadHarness(int receiverCount, int seconds, int killEverySeconds, int killReceivers, boolean freeze, int sampleRate, int loopMs,
+      int payloadSize, int heartbeatMs, boolean standby, int streamFrameMs, boolean multicast) {
+    this.receiverCount = receiverCount;
+    this.seconds = seconds;
+    this.killEverySeconds = killEverySeconds;
+    this.killReceivers = killReceivers;
+    this.freeze = freeze;
+    this.heartbeatMs = heartbeatMs;
+    this.standby = standby;
+    this.streamFrameMs = streamFrameMs;
+    this.multicast = multicast;
+    format = new AudioFormat(sampleRate, 16, 2, true, false);
+    int frameSize = format.getFrameSize(); // 4, a whole word, as SimulatedClient needs.
+    loopLength = Math.max(frameSize, (int) ((long) sampleRate * loopMs / 1000) * frameSize);
+    this.payloadSize = Math.max(frameSize, payloadSize - payloadSize % frameSize);
+  }
+
+  /**
+    * @return client the server gave this ID, or null if it's not one of ours.
+    */
+  SimulatedClient getClient(int id) {
+    return clientsById.get(id);
+  }
+
+  /**
+    * Called by a receiver each time it has a whole loop, to time failovers.
+    *
+    * @param seen      latest kill the receiver has seen the failover of.
+    * @param senderId  ID of the client that sent the loop.
+    * @return          latest kill it has now seen the failover of.
+    */
+  Kill loopReceived(Kill seen, int senderId, long now) {
+    Kill kill = latestKill;
+    if (kill == null || kill == seen || senderId == kill.senderId)
+      return seen;
+    kill.gapNanos.add(now - kill.at);
+    return kill;
+  }
+
+  /**
+    * @return whether the clients set up and everything received was what was sent.
+    */
+  private boolean run() throws InterruptedException {
+    log("Audio " + format + " in loops of " + loopLength + " bytes, packets of " + payloadSize
+        + (heartbeatMs > 0 ? ", heartbeats every " + heartbeatMs + " ms" : ", no heartbeats")
+        + (standby ? ", receivers standing by" : "")
+        + (streamFrameMs > 0 ? ", streamed in frames of " + streamFrameMs + " ms" : "")
+        + (multicast ? ", receivers taking it from the multicast group" : ""));
+    SimulatedClient first = startClient();
+    if (!first.awaitSetUp(setUpTimeoutMs) || !first.isSender()) {
+      error("First client didn't set up as sender. Is another server already on port " + tcpPort + "?");
+      return false;
+    }
+    for (int i = 0; i < receiverCount; i += startBatch) {
+      List<SimulatedClient> batch = new ArrayList<SimulatedClient>();
+      for (int j = i; j < Math.min(receiverCount, i + startBatch); j++)
+        batch.add(startClient());
+      for (SimulatedClient client : batch) {
+        if (!client.awaitSetUp(setUpTimeoutMs))
+          error(client.getName() + " didn't set up.");
+      }
+    }
+    log(clients.size() + " clients set up. Running for " + seconds + "s.");
+
+    long start = System.nanoTime();
+    long end = start + TimeUnit.SECONDS.toNanos(seconds);
+    long nextKill = killEverySeconds > 0 ? start + TimeUnit.SECONDS.toNanos(killEverySeconds) : Long.MAX_VALUE;
+    while (true) {
+      long wake = Math.min(end, nextKill);
+      long remaining;
+      while ((remaining = wake - System.nanoTime()) > 0)
+        TimeUnit.NANOSECONDS.sleep(remaining);
+      if (wake == end)
+        break;
+      killSenderAndReceivers();
+      nextKill += TimeUnit.SECONDS.toNanos(killEverySeconds);
+    }
+
+    long stop = System.nanoTime();
+    for (SimulatedClient client : clients)
+      client.kill();
+    for (SimulatedClient client : clients)
+      client.join(joinTimeoutMs);
+    return report(start, stop);
+  }
+
+  private SimulatedClient startClient() {
+    SimulatedClient client = new SimulatedClient(this, host, tcpPort, format, loopLength, payloadSize, heartbeatMs, standby,
+        streamFrameMs, multicast);
+    clients.add(client);
+    client.start();
+    return client;
+  }
+
+  /**
+    * Called by a client once the server's given it its ID.
+    */
+  void clientSetUp(SimulatedClient client) {
+    clientsById.put(client.getClientId(), client);
+  }
+
+  /**
+    * Kills (or freezes) the sender, and kills killReceivers receivers picked at random.
+    */
+  private void killSenderAndReceivers() {
+    long now = System.nanoTime();
+    List<SimulatedClient> receivers = new ArrayList<SimulatedClient>();
+    SimulatedClient sender = null;
+    for (SimulatedClient client : clients) {
+      if (client.isKilled())
+        continue;
+      if (client.isSender())
+        sender = client;
+      else
+        receivers.add(client);
+    }
+    if (sender != null) {
+      Kill kill = new Kill(now, sender.getClientId());
+      kills.add(kill);
+      latestKill = kill;
+      log((freeze ? "Freezing" : "Killing") + " sender " + sender.getName());
+      killedEarly.add(sender);
+      if (freeze)
+        sender.freeze();
+      else
+        sender.kill();
+    } else {
+      log("No sender to kill.");
+    }
+    for (int i = 0; i < killReceivers && !receivers.isEmpty(); i++) {
+      SimulatedClient receiver = receivers.remove(random.nextInt(receivers.size()));
+      log("Killing receiver " + receiver.getName());
+      killedEarly.add(receiver);
+      receiver.kill();
+    }
+  }
+
+  /**
+    * @return whether everything received was what was sent.
+    */
+  private boolean report(long start, long stop) {
+    System.out.println();
+    System.out.printf("%-22s %10s %7s %7s %6s %6s %6s %7s %8s %8s%n",
+        "client", "KB/s", "loss%", "loops", "short", "repeat", "stale", "corrupt", "p50 ms", "p99 ms");
+
+    double[] throughputs = new double[clients.size()];
+    int reported = 0;
+    long expected = 0;
+    long verified = 0;
+    long loopsComplete = 0;
+    long loopsIncomplete = 0;
+    long corrupt = 0;
+    List<long[]> latencies = new ArrayList<long[]>();
+    for (SimulatedClient client : clients) {
+      if (client.getBytesExpected() == 0)
+        continue; // The first sender, or a receiver that never got a loop.
+      long[] clientLatencies = client.getLatencyMicros();
+      Arrays.sort(clientLatencies);
+      latencies.add(clientLatencies);
+      double throughput = client.getBytesVerified() / 1024.0 / Math.max(1e-9, client.getSecondsReceiving(stop));
+      throughputs[reported++] = throughput;
+      expected += client.getBytesExpected();
+      verified += client.getBytesVerified();
+      loopsComplete += client.getLoopsComplete();
+      loopsIncomplete += client.getLoopsIncomplete();
+      corrupt += client.getCorruptPackets();
+      System.out.printf("%-22s %10.1f %7.2f %7d %6d %6d %6d %7d %8.1f %8.1f%s%n",
+          client.getName(), throughput, lossPercent(client.getBytesExpected(), client.getBytesVerified()),
+          client.getLoopsComplete(), client.getLoopsIncomplete(), client.getLoopsRepeated(), client.getStalePackets(),
+          client.getCorruptPackets(),
+          percentile(clientLatencies, 50) / 1000.0, percentile(clientLatencies, 99) / 1000.0,
+          killedEarly.contains(client) ? "  (killed)" : client.isSender() ? "  (took over)" : "");
+    }
+
+    throughputs = Arrays.copyOf(throughputs, reported);
+    Arrays.sort(throughputs);
+    long[] allLatencies = concat(latencies);
+    System.out.println();
+    System.out.printf("Ran %.1fs: %d receivers, audio sent at %.1f KB/s%n", (stop - start) / 1e9, reported,
+        format.getFrameRate() * format.getFrameSize() / 1024);
+    if (reported > 0) {
+      System.out.printf("Throughput per receiver: min %.1f, median %.1f, max %.1f KB/s. All receivers: %.1f MB/s%n",
+          throughputs[0], throughputs[reported / 2], throughputs[reported - 1], sum(throughputs) / 1024);
+    }
+    System.out.printf("Loss: %.3f%% of bytes. Loops whole: %d, short: %d%n", lossPercent(expected, verified), loopsComplete, loopsIncomplete);
+    System.out.printf("Latency, sender to receiver, of %d loops: p50 %.1f, p90 %.1f, p99 %.1f, max %.1f ms%n", allLatencies.length,
+        percentile(allLatencies, 50) / 1000.0, percentile(allLatencies, 90) / 1000.0, percentile(allLatencies, 99) / 1000.0,
+        percentile(allLatencies, 100) / 1000.0);
+    for (int i = 0; i < kills.size(); i++) {
+      Kill kill = kills.get(i);
+      long[] gaps = new long[kill.gapNanos.size()];
+      int n = 0;
+      for (long gap : kill.gapNanos)
+        gaps[n++] = TimeUnit.NANOSECONDS.toMicros(gap);
+      Arrays.sort(gaps);
+      System.out.printf("Failover %d at %.1fs, sender %d %s: ", i + 1, (kill.at - start) / 1e9, kill.senderId,
+          freeze ? "frozen" : "killed");
+      if (gaps.length == 0)
+        System.out.println("no receiver had audio again before the end.");
+      else
+        System.out.printf("%d receivers had audio again after a gap of median %.1f, p90 %.1f, max %.1f ms%n",
+            gaps.length, percentile(gaps, 50) / 1000.0, percentile(gaps, 90) / 1000.0, percentile(gaps, 100) / 1000.0);
+    }
+    System.out.println(corrupt == 0 ? "Everything received was what was sent." : corrupt + " packets received weren't what was sent.");
+    System.out.flush();
+    return corrupt == 0;
+  }
+
+  /**
+    * @return value at percentile p of sorted values, or 0 if there are none.
+    */
+  private static long percentile(long[] sorted, double p) {
+    if (sorted.length == 0)
+      return 0;
+    int i = (int) Math.ceil(p / 100 * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+  }
+
+  private static double lossPercent(long expected, long received) {
+    return expected == 0 ? 0 : 100.0 * (expected - received) / expected;
+  }
+
+  private static long[] concat(List<long[]> arrays) {
+    int length = 0;
+    for (long[] a : arrays)
+      length += a.length;
+    long[] all = new long[length];
+    int i = 0;
+    for (long[] a : arrays) {
+      System.arraycopy(a, 0, all, i, a.length);
+      i += a.length;
+    }
+    Arrays.sort(all);
+    return all;
+  }
+
+  private static double sum(double[] values) {
+    double sum = 0;
+    for (double v : values)
+      sum += v;
+    return sum;
+  }
+
+  private static void log(String msg) {
+    logger(programName, msg);
+  }
+
+  private static void error(String msg) {
+    logger(LogLevel.ERROR, programName, msg);
+  }
+
+  /**
+    * Usage: java LoadHarness [--receivers n] [--seconds s] [--kill-every s [--kill-receivers n] [--freeze]]
+    *                         [--nio [--loops n] | --virtual-threads] [--sample-rate hz] [--loop-ms ms] [--payload n]
+    *                         [--heartbeat-ms n] [--heartbeat-misses n] [--standby] [--stream [--frame-ms n]]
+    *                         [--multicast] [--log-level level]
+    *
+    * --receivers       receivers to start, after the sender (default: 10). Tried with up to 1000.
+    * --seconds         how long to run once all are set up (default: 20).
+    * --kill-every      kill the sender every s seconds, so a receiver takes over (default: never).
+    * --kill-receivers  receivers killed at random each time the sender is (default: 0).
+    * --freeze          freeze the sender rather than kill it: it stops sending, heartbeats and
+    *                   all, but its connection stays open.
+    * --nio             run the server as SoundServer --nio does, from --loops event loops.
+    * --virtual-threads handle each client on a virtual thread, as SoundServer --virtual-threads does.
+    * --sample-rate     of the 16-bit stereo audio sent (default: 44100).
+    * --loop-ms         length of each loop sent (default: 100).
+    * --payload         audio bytes per packet to ask for (default: 512).
+    * --heartbeat-ms    how often senders send heartbeats (default: 100). 0 for never.
+    * --heartbeat-misses  as for SoundServer (default: 3).
+    * --standby         receivers stand by to take over as sender, as SoundClient --standby does.
+    * --stream          the sender streams audio a frame at a time, at the rate it plays, as
+    *                   SoundClient --stream does, rather than sending a loop when asked.
+    * --frame-ms        how much audio to stream at a time (default: 20).
+    * --multicast       the server multicasts audio to its default group, on loopback, and
+    *                   receivers take it from there, as SoundClient --multicast does.
+    * --log-level       as for SoundServer (default here: error, so only the report is written).
+    */
+  public static void main(String[] args) throws InterruptedException, IOException {
+    setLogLevel(LogLevel.ERROR);
+    setLogLevel(args);
+    final boolean nio = hasFlag(args, "--nio");
+    final int loops = intFlag(args, "--loops", Runtime.getRuntime().availableProcessors());
+    final SoundServer soundServer = new SoundServer();
+    soundServer.setHeartbeatMisses(intFlag(args, "--heartbeat-misses", Heartbeat.defaultMisses));
+    if (hasFlag(args, "--virtual-threads") && !soundServer.setVirtualThreads(true))
+      error("This JVM has no virtual threads (they need Java 21). Handling clients on platform threads.");
+    final boolean multicast = hasFlag(args, "--multicast");
+    if (multicast) {
+      soundServer.setMulticast(new MulticastGroup((Inet4Address) InetAddress.getByName(MulticastGroup.defaultAddress),
+          MulticastGroup.defaultPort, MulticastGroup.loopbackInterface()));
+    }
+
+    Thread server = new Thread(new Runnable() {
+      public void run() {
+        try {
+          if (nio)
+            soundServer.launchNio(loops);
+          else
+            soundServer.launch();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }, "SoundServer");
+    server.setDaemon(true);
+    server.start();
+
+    LoadHarness harness = new LoadHarness(Math.max(0, intFlag(args, "--receivers", defaultReceivers)),
+        Math.max(1, intFlag(args, "--seconds", defaultSeconds)), Math.max(0, intFlag(args, "--kill-every", 0)),
+        Math.max(0, intFlag(args, "--kill-receivers", 0)), hasFlag(args, "--freeze"),
+        Math.max(1, intFlag(args, "--sample-rate", defaultSampleRate)), Math.max(1, intFlag(args, "--loop-ms", defaultLoopMs)),
+        Math.max(1, Math.min(AudioPacket.maxPayload, intFlag(args, "--payload", AudioPacket.defaultPayload))),
+        Math.max(0, intFlag(args, "--heartbeat-ms", Heartbeat.defaultIntervalMs)), hasFlag(args, "--standby"),
+        hasFlag(args, "--stream") ? Math.max(1, intFlag(args, "--frame-ms", defaultFrameMs)) : 0, multicast);
+    System.exit(harness.run() ? 0 : 1);
+  }
+
+}
@@ -0,0 +1,86 @@
+import java.nio.ByteBuffer;
+
+import javax.sound.sampled.AudioFormat;
+
+import audio.AudioCodec;
+import audio.AudioMixer;
+
+import net.AudioPacket;
+
+/**
+  * One sender's way into its channel's mix (see ChannelMixer): decodes each packet it
+  * sends and puts it in the mix for when it's due to play.
+  *
+  * When that is comes from the packet's place in its loop rather than from its own
+  * timestamp: a loop starts at the timestamp of its first packet, less that packet's
+  * offset, and each packet plays its offset's worth of audio after. So it's the same
+  * whether the sender streams, or sends each loop all at once, and jitter in sending
+  * doesn't move audio about.
+  */
+class MixerFeed {
+
+  private final AudioMixer mixer;
+
+  private final int input;
+
+  private final AudioCodec codec;
+
+  /**
+    * Format of the audio as sent.
+    */
+  private final AudioFormat format;
+
+  /**
+    * A packet's audio as sent, then as decoded.
+    */
+  private final byte[] encoded;
+  private final byte[] decoded;
+
+  /**
+    * Timestamp, on the sender's clock, of the start of the loop being sent, if one has started.
+    */
+  private boolean loopStarted;
+  private int loopStartTimestamp;
+
+  MixerFeed(AudioMixer mixer, int input, AudioCodec codec, AudioFormat format, int maxPayload) {
+    this.mixer = mixer;
+    this.input = input;
+    this.codec = codec;
+    this.format = format;
+    encoded = new byte[maxPayload];
+    decoded = new byte[codec.decodedLength(format, maxPayload)];
+  }
+
+  /**
+    * Decodes a packet from the sender and puts it in the mix.
+    *
+    * @param start   index of the packet in the buffer.
+    * @param length  of the packet.
+    * @return        bytes of audio it carried, as sent, or -1 if it carried none.
+    */
+  int feed(ByteBuffer packet, int start, int length) {
+    int payload = Math.min(length - AudioPacket.headerLength, encoded.length);
+    int offset = payload > 0 ? AudioPacket.getOffset(packet, start) : -1;
+    if (offset < 0)
+      return -1;
+
+    int offsetMicros = (int) (offset / format.getFrameSize() * 1e6 / format.getFrameRate());
+    if (!loopStarted || (AudioPacket.getFlags(packet, start) & AudioPacket.LOOP_START) != 0) {
+      loopStartTimestamp = AudioPacket.getTimestamp(packet, start) - offsetMicros;
+      loopStarted = true;
+    }
+
+    packet.get(start + AudioPacket.headerLength, encoded, 0, payload);
+    int pcmLength = codec.decode(format, encoded, 0, payload - payload % format.getFrameSize(), decoded, 0);
+    mixer.write(input, loopStartTimestamp + offsetMicros, decoded, 0, pcmLength);
+    return payload;
+  }
+
+  /**
+    * Takes the sender out of the mix.
+    */
+  void close() {
+    mixer.removeInput(input);
+  }
+
+}
@@ -0,0 +1,272 @@
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import audio.AudioRing;
+
+import net.AudioPacket;
+import net.FecEncoder;
+import net.MulticastGroup;
+
+import static util.SoundUtil.*;
+
+/**
+  * Sends audio from the sender client to a multicast group, once, for every receiver client
+  * that has joined it, instead of once per receiver. Receiver-handlers then only tell their
+  * clients which loop to take from the group (see ControlOp.MULTICAST_LOOP).
+  *
+  * With SoundServer it forwards frames from the AudioRing as the sender-handling thread
+  * writes them, header and all, as a receiver-handling thread would. With NioSoundServer
+  * it is handed each loop as it's published and packetises it, as a ClientSession would.
+  */
+public class MulticastPublisher extends Thread {
+
+  /**
+    * Program's name as displayed in log messages.
+    */
+  private final static String loggingName = "MulticastPublisher";
+
+
+  /**
+    * How long to wait for each frame before checking again.
+    */
+  private static long frameWaitTimeoutMs = 3000;
+
+  private final MulticastGroup group;
+
+  private final InetSocketAddress groupAddress;
+
+  private final DatagramChannel channel;
+
+  /**
+    * Audio bytes per packet when packetising loops.
+    */
+  private final int payloadSize;
+
+  /**
+    * Works out forward error correction parity for the group, or null if none is sent.
+    */
+  private FecEncoder fecEncoder;
+
+  private final int fecGroupSize;
+
+  private final int fecParityCount;
+
+  /**
+    * Audio written by the sender-handling thread, if forwarding from it.
+    */
+  private AudioRing audioRing;
+
+  private AudioRing.Frame frame;
+
+  /**
+    * Loops handed over by publish(), if packetising them.
+    */
+  private final LinkedBlockingQueue<SharedLoop> loops;
+
+  /**
+    * Sequence number the next loop handed to publish() starts at.
+    */
+  private final AtomicInteger nextLoopSeq;
+
+  /**
+    * Sequence number of the next packet packetised.
+    */
+  private int sendSeq;
+
+  private final ByteBuffer sendBuffer;
+
+  /**
+    * System.nanoTime() when started, for packet timestamps.
+    */
+  private final long streamStart;
+
+  private long packetsSent;
+
+  /**
+    * @param group           where to send.
+    * @param fecGroupSize    data packets per forward error correction group.
+    * @param fecParityCount  parity packets per group, or 0 for none.
+    * @param payloadSize     audio bytes per packet when packetising loops. Forwarded frames are sent as they are.
+    */
+  MulticastPublisher(MulticastGroup group, int fecGroupSize, int fecParityCount, int payloadSize) throws IOException {
+    super(loggingName);
+    this.group = group;
+    groupAddress = group.getSocketAddress();
+    channel = group.openSender();
+    this.fecGroupSize = fecGroupSize;
+    this.fecParityCount = fecParityCount;
+    this.payloadSize = payloadSize;
+    fecEncoder = fecParityCount > 0 ? new FecEncoder(fecGroupSize, fecParityCount, payloadSize) : null;
+    loops = new LinkedBlockingQueue<SharedLoop>();
+    nextLoopSeq = new AtomicInteger();
+    sendBuffer = ByteBuffer.allocateDirect(AudioPacket.headerLength + payloadSize);
+    streamStart = System.nanoTime();
+    setDaemon(true);
+  }
+
+  /**
+    * Forward frames written to audioRing. Call before start().
+    */
+  void forwardFrom(AudioRing audioRing) {
+    this.audioRing = audioRing;
+    frame = audioRing.newFrame();
+  }
+
+  MulticastGroup getGroup() {
+    return group;
+  }
+
+  /**
+    * @return audio bytes per packet of loops handed to publish().
+    */
+  int getPayloadSize() {
+    return payloadSize;
+  }
+
+  /**
+    * Queues a loop to be packetised and sent. Loops are sent in the order they're queued,
+    * so their sequence numbers are known before they go.
+    *
+    * @param loop  held for this, and let go of once it's sent.
+    * @return      sequence number of the loop's first packet.
+    */
+  int publish(SharedLoop loop) {
+    int slots = (loop.getAudio().remaining() + payloadSize - 1) / payloadSize;
+    int firstSeq = nextLoopSeq.getAndAdd(slots);
+    loops.add(loop);
+    return firstSeq;
+  }
+
+  public void run() {
+    log("Sending audio to " + group);
+    try {
+      if (audioRing != null)
+        forwardFrames();
+      else
+        sendLoops();
+    } catch (IOException e) {
+      e.printStackTrace();
+    } catch (InterruptedException e) {
+      log("Stopped.");
+    }
+  }
+
+  /**
+    * Sends each frame as the sender-handling thread writes it, straight from the ring.
+    * If this falls a whole ring behind, it skips to the latest frame.
+    */
+  private void forwardFrames() throws IOException {
+    long waitNanos = TimeUnit.MILLISECONDS.toNanos(frameWaitTimeoutMs);
+    long seq = audioRing.getPublished() + 1;
+
+    while (true) {
+      int status = audioRing.read(seq, frame);
+
+      if (status == AudioRing.NOT_YET) {
+        audioRing.awaitPublished(seq, waitNanos);
+        continue;
+      }
+
+      if (status == AudioRing.OVERRUN) {
+        log("Fell a whole ring behind the sender handler. Skipping to latest frame.");
+        seq = audioRing.getPublished();
+        if (fecEncoder != null)
+          fecEncoder.reset();
+        continue;
+      }
+
+      if (fecEncoder != null) {
+        if (frame.loopOffset == 0) {
+          flushParity(); // Groups don't span loops.
+          int loopPayload = frame.length - AudioPacket.headerLength;
+          if (loopPayload != fecEncoder.getPayloadSize())
+            fecEncoder = new FecEncoder(fecGroupSize, fecParityCount, loopPayload); // Sender client's size changed.
+        }
+        fecEncoder.add(frame.data);
+      }
+      send(frame.data);
+      if (!audioRing.isIntact(frame)) {
+        if (fecEncoder != null)
+          fecEncoder.reset(); // Parity would be of the wrong audio.
+      } else if (fecEncoder != null) {
+        if (frame.loopOffset + frame.length - AudioPacket.headerLength >= frame.loopLength)
+          fecEncoder.flush();
+        sendParity();
+      }
+      seq++;
+    }
+  }
+
+  /**
+    * Packetises and sends each loop handed to publish(), as fast as the socket takes it.
+    */
+  private void sendLoops() throws IOException, InterruptedException {
+    while (true) {
+      SharedLoop shared = loops.take();
+      try {
+        sendLoop(shared.getAudio().duplicate());
+      } finally {
+        shared.release();
+      }
+    }
+  }
+
+  private void sendLoop(ByteBuffer loop) throws IOException {
+    int length = loop.remaining();
+    if (fecEncoder != null)
+      fecEncoder.reset();
+
+    for (int offset = 0; offset < length; offset += payloadSize) {
+      int payload = Math.min(payloadSize, length - offset);
+      sendBuffer.clear();
+      AudioPacket.putHeader(sendBuffer, 0, 0, offset == 0 ? AudioPacket.LOOP_START : 0,
+          sendSeq++, offset, AudioPacket.timestamp(streamStart));
+      sendBuffer.put(AudioPacket.headerLength, loop, loop.position() + offset, payload);
+      sendBuffer.limit(AudioPacket.headerLength + payload);
+      if (fecEncoder != null)
+        fecEncoder.add(sendBuffer);
+      send(sendBuffer);
+      sendParity();
+    }
+    flushParity();
+  }
+
+  private void flushParity() throws IOException {
+    if (fecEncoder == null)
+      return;
+    fecEncoder.flush();
+    sendParity();
+  }
+
+  private void sendParity() throws IOException {
+    if (fecEncoder == null)
+      return;
+    while (fecEncoder.getParityReady() > 0)
+      send(fecEncoder.nextParity());
+  }
+
+  /**
+    * Sends a packet, leaving its position where it was. The channel blocks, so a full
+    * send buffer holds this thread up rather than dropping the packet.
+    */
+  private void send(ByteBuffer packet) throws IOException {
+    int start = packet.position();
+    channel.send(packet, groupAddress);
+    packet.position(start);
+    if (++packetsSent % 10000 == 0)
+      log("Packets sent: " + packetsSent);
+  }
+
+  private void log(String msg) {
+    logger(loggingName, msg);
+  }
+
+}
@@ -0,0 +1,384 @@
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import javax.sound.sampled.AudioFormat;
+
+import audio.AudioRing;
+
+import net.AudioPacket;
+import net.MulticastGroup;
+
+/**
+  * A named stream of audio on a NioSoundServer, with its own sender and receivers. Each
+  * channel has its own latest loop and failover info, and a home SelectorLoop its sender
+  * sessions are moved to once they join it, so senders of channels on different loops
+  * never contend. Receiver sessions stay on whichever loop took them, so a busy channel's
+  * fan-out is spread over every loop; each loop with receivers on the channel is woken
+  * once per loop published, and wakes only those receivers.
+  *
+  * A sender client that streams has each packet published as it arrives, into an AudioRing
+  * as SoundChannel's are, and receiver sessions send each on as soon as it's in, so what's
+  * held is a ring of packets however long the loop, and latency is a packet's, not a loop's.
+  * Loops of a streamed channel are sent to each receiver separately, not multicast.
+  *
+  * On a server that mixes, every client on a channel that may send is a sender, and
+  * what they send is mixed (see ChannelMixer) and published a loop at a time.
+  */
+public class NioChannel {
+
+  private final String name;
+
+  /**
+    * Number of the channel, in the order channels were first asked for. The unnamed channel is 0.
+    */
+  private final int id;
+
+  /**
+    * Loop the channel's sender sessions run on, and its loops are published on.
+    */
+  private final SelectorLoop home;
+
+  /**
+    * All the server's loops, by ID.
+    */
+  private final SelectorLoop[] loops;
+
+  /**
+    * Receiver sessions on the channel on each loop, by loop ID.
+    */
+  private final AtomicIntegerArray subscribers;
+
+  /**
+    * Wakes the channel's waiting receivers on each loop, by loop ID. Made once, so publishing allocates none.
+    */
+  private final Runnable[] wakers;
+
+  /**
+    * Whether each loop, by loop ID, has a waker queued that hasn't run yet, so packets published
+    * meanwhile needn't queue another.
+    */
+  private final AtomicIntegerArray wakePending;
+
+  private final SharedFailoverInfo failoverInfo;
+
+  /**
+    * Counters for the channel, shown over JMX.
+    */
+  private final ChannelMetrics metrics;
+
+  /**
+    * Latest complete loop of audio from the channel's sender client. Never modified once
+    * published, so receiver sessions can send slices of it without locking or copying.
+    */
+  private volatile SharedLoop latest;
+
+  /**
+    * Storage of loops nobody holds any more, to be reused for the next ones.
+    */
+  private final ConcurrentLinkedQueue<ByteBuffer> freeLoops;
+
+  /**
+    * Zeros, to silence reused storage with.
+    */
+  private static final byte[] silence = new byte[4096];
+
+  /**
+    * Number of loops published so far, which is the latest's number: 0 before any is.
+    * Only touched on the home loop. Receiver sessions read it from the loop itself (see
+    * SharedLoop.getNumber()), so whatever loop they're on they see a loop and its number together.
+    */
+  private long loopsPublished;
+
+  /**
+    * Format of the latest loop, or null if not known. Written before audio.
+    */
+  private volatile AudioFormat audioFormat;
+
+  /**
+    * Audio bytes per packet, at most, that sender clients send.
+    */
+  private final int maxPayload;
+
+  /**
+    * Packets of the sender client's audio as they arrive, if it streams, or null till one does.
+    * Written by one sender session at a time.
+    */
+  private volatile AudioRing stream;
+
+  /**
+    * Whether the latest audio is the stream's, rather than loops published whole.
+    */
+  private volatile boolean streaming;
+
+  /**
+    * Sends each loop published to the channel's multicast group, or null if loops are only sent to each receiver separately.
+    */
+  private final MulticastPublisher multicast;
+
+  /**
+    * Sequence number of the first packet of the latest loop multicast, or -1. Written before audio.
+    */
+  private volatile int multicastFirstSeq;
+
+  /**
+    * Mixes the channel's senders, or null if it has one sender at a time.
+    */
+  private final ChannelMixer mixer;
+
+  /**
+    * @param multicastGroup  group to multicast the channel's loops to, or null for none.
+    * @param maxMixInputs    most senders to mix, or 0 for one sender at a time.
+    */
+  NioChannel(String name, int id, SelectorLoop home, SelectorLoop[] loops, MulticastGroup multicastGroup, int fecGroupSize,
+      int fecParityCount, int maxPayload, int maxMixInputs) throws IOException {
+    this.name = name;
+    this.id = id;
+    this.home = home;
+    this.loops = loops;
+    this.maxPayload = maxPayload;
+    subscribers = new AtomicIntegerArray(loops.length);
+    wakers = new Runnable[loops.length];
+    wakePending = new AtomicIntegerArray(loops.length);
+    for (int i = 0; i < loops.length; i++) {
+      final SelectorLoop loop = loops[i];
+      final int loopId = i;
+      wakers[i] = new Runnable() {
+        public void run() {
+          wakePending.set(loopId, 0); // Anything published from now on wakes the loop again.
+          loop.wakeWaiting(NioChannel.this);
+        }
+      };
+    }
+    metrics = new ChannelMetrics(name, id);
+    failoverInfo = new SharedFailoverInfo(metrics);
+    freeLoops = new ConcurrentLinkedQueue<ByteBuffer>();
+    latest = new SharedLoop(ByteBuffer.allocate(0), 0, freeLoops);
+    multicastFirstSeq = -1;
+    if (multicastGroup != null) {
+      multicast = new MulticastPublisher(multicastGroup, fecGroupSize, fecParityCount, maxPayload);
+      multicast.start();
+    } else {
+      multicast = null;
+    }
+    mixer = maxMixInputs > 0 ? new ChannelMixer(id, maxMixInputs, maxPayload, new LoopOutput()) : null;
+  }
+
+  String getName() {
+    return name;
+  }
+
+  int getId() {
+    return id;
+  }
+
+  SelectorLoop getHome() {
+    return home;
+  }
+
+  SharedFailoverInfo getFailoverInfo() {
+    return failoverInfo;
+  }
+
+  ChannelMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+    * @return latest complete loop of audio, held by the channel till the next is published
+    *         (on the home loop). To read it after that, hold() it. Its number says whether
+    *         a receiver session's sent it already.
+    */
+  SharedLoop getLatest() {
+    return latest;
+  }
+
+  /**
+    * @return storage for a loop of this many bytes, silent, position 0 and limit the length:
+    *         the storage of a loop nobody holds any more if there's one big enough, so loops
+    *         of the same length go on reusing the same few direct buffers.
+    */
+  ByteBuffer takeLoopBuffer(int length) {
+    ByteBuffer buffer;
+    while ((buffer = freeLoops.poll()) != null) {
+      if (buffer.isDirect() && buffer.capacity() >= length) {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining())
+          buffer.put(silence, 0, Math.min(silence.length, buffer.remaining()));
+        buffer.clear();
+        buffer.limit(length);
+        return buffer;
+      }
+      // Too small for loops this long: left for the GC.
+    }
+    return ByteBuffer.allocateDirect(length);
+  }
+
+  /**
+    * Counts a receiver session on a loop in, so the loop is woken when audio is published.
+    * Call from that loop, before the session first looks at getLatest().
+    */
+  void subscribe(SelectorLoop loop) {
+    subscribers.incrementAndGet(loop.getLoopId());
+  }
+
+  /**
+    * Counts a receiver session out, as it closes or takes over as sender. Call from its loop.
+    */
+  void unsubscribe(SelectorLoop loop) {
+    subscribers.decrementAndGet(loop.getLoopId());
+  }
+
+  /**
+    * @return format of the latest loop, or null if not known. Read after getLatest(), it's at least as new as the loop.
+    */
+  AudioFormat getAudioFormat() {
+    return audioFormat;
+  }
+
+  /**
+    * @return group loops are multicast to, or null if they aren't.
+    */
+  MulticastGroup getMulticastGroup() {
+    return multicast == null ? null : multicast.getGroup();
+  }
+
+  /**
+    * @return sequence number of the first packet of the latest loop multicast, or -1 if none has been.
+    */
+  int getMulticastFirstSeq() {
+    return multicastFirstSeq;
+  }
+
+  /**
+    * @return audio bytes per packet of loops multicast.
+    */
+  int getMulticastPayloadSize() {
+    return multicast.getPayloadSize();
+  }
+
+  /**
+    * Publishes a loop of audio to the channel's receiver sessions, and to its multicast group if it has one.
+    * Called from anywhere else, eg by a session elected sender on the loop that took it, or by
+    * the mixer, the loop's handed to the home loop to be published there.
+    *
+    * @param loop    storage from takeLoopBuffer(), position 0 and limit the loop's length,
+    *                whose contents are never changed afterwards. The channel has it from now on.
+    * @param format  its format, or null if not known.
+    */
+  void publishAudio(final ByteBuffer loop, final AudioFormat format) {
+    if (Thread.currentThread() != home) {
+      home.execute(new Runnable() {
+        public void run() {
+          publishAudio(loop, format);
+        }
+      });
+      return;
+    }
+    SharedLoop published = new SharedLoop(loop, ++loopsPublished, freeLoops);
+    audioFormat = format;
+    if (multicast != null && loop.hasRemaining()) {
+      published.hold();
+      multicastFirstSeq = multicast.publish(published);
+    }
+    SharedLoop last = latest;
+    latest = published;
+    streaming = false;
+    last.release();
+    wakeWaitingReceivers();
+  }
+
+  /**
+    * Gets the channel's stream ready for a sender session to write the packets of a streaming
+    * sender client to, as they arrive, making it if it's the channel's first. Call from the
+    * session, which is its one writer till it's done.
+    *
+    * @param format  format of the audio, or null if not known.
+    */
+  synchronized AudioRing openStream(AudioFormat format) {
+    if (stream == null)
+      stream = new AudioRing(SoundServer.ringFrames(AudioPacket.headerLength + maxPayload), AudioPacket.headerLength + maxPayload);
+    stream.setFormat(format);
+    return stream;
+  }
+
+  /**
+    * @return the channel's stream, or null if nobody's streamed to it.
+    */
+  AudioRing getStream() {
+    return stream;
+  }
+
+  /**
+    * @return whether the latest audio is the stream's, so receiver sessions send from getStream(), not getLatest().
+    */
+  boolean isStreaming() {
+    return streaming;
+  }
+
+  /**
+    * Wakes receiver sessions waiting for the stream, after a packet's written to it.
+    */
+  void framePublished() {
+    if (!streaming)
+      streaming = true;
+    wakeWaitingReceivers();
+  }
+
+  /**
+    * Has each loop with receiver sessions on the channel re-examine those waiting, after audio is
+    * published, unless it's yet to for audio published before.
+    */
+  private void wakeWaitingReceivers() {
+    for (int i = 0; i < loops.length; i++) {
+      if (subscribers.get(i) > 0 && wakePending.compareAndSet(i, 0, 1))
+        loops[i].execute(wakers[i]);
+    }
+  }
+
+  /**
+    * @return whether the channel mixes its senders rather than having one at a time.
+    */
+  boolean isMixing() {
+    return mixer != null;
+  }
+
+  /**
+    * Adds a sender to the channel's mix.
+    *
+    * @param format  format of the audio it sends, as sent.
+    * @return        its way into the mix, or null if it can't be mixed.
+    */
+  MixerFeed joinMix(AudioFormat format) {
+    return mixer.join(format);
+  }
+
+  public String toString() {
+    return id + " (\"" + name + "\")";
+  }
+
+  /**
+    * Gathers the mix into loops of ChannelMixer.loopMs and publishes each once it's whole.
+    */
+  private class LoopOutput implements ChannelMixer.Output {
+
+    private ByteBuffer loop;
+
+    public void mixed(byte[] block, int length, final AudioFormat format) {
+      int loopLength = length * (ChannelMixer.loopMs / ChannelMixer.blockMs);
+      if (loop == null)
+        loop = takeLoopBuffer(loopLength);
+      loop.put(block, 0, length);
+      if (!loop.hasRemaining()) {
+        loop.flip();
+        publishAudio(loop, format);
+        loop = takeLoopBuffer(loopLength);
+      }
+    }
+  }
+
+}
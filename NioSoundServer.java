@@ -0,0 +1,242 @@
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import net.AudioPacket;
+import net.Heartbeat;
+import net.MulticastGroup;
+
+import static util.SoundUtil.*;
+
+/**
+  * Event-driven alternative to the thread-per-client SoundServer. Clients are spread
+  * over a small, fixed pool of SelectorLoops and each is served by a ClientSession,
+  * a state machine running the same ID/ROLE/UDP_PORT handshake and the same
+  * sender/receiver roles as SoundServerThread. Unchanged SoundClients work with either.
+  *
+  * Each channel (see NioChannel) has a home loop, the loops taking channels in turn, and
+  * a sender session moves to its channel's home once its client has said which channel it's
+  * on. Receiver sessions stay where they were accepted, so however many receivers a channel
+  * has, sending to them is shared by every loop.
+  */
+public class NioSoundServer {
+
+  /**
+    * Program's name as displayed in log messages.
+    */
+  private final static String loggingName = "NioSoundServer";
+
+  private final int tcpPort;
+
+  /**
+    * The event loops sessions are spread over.
+    */
+  private final SelectorLoop[] loops;
+
+  /**
+    * Loop the next accepted client is given to.
+    */
+  private int nextLoop;
+
+  /**
+    * Next unique ID given to a connecting client.
+    */
+  private int nextClientId;
+
+  /**
+    * UDP port of next session (only bound if the session handles the sender client).
+    */
+  private int nextUdpPort;
+
+  /**
+    * Most senders mixed on each channel, or 0 for one sender per channel at a time.
+    */
+  private int maxMixInputs;
+
+  /**
+    * Channels by name, made when first asked for.
+    */
+  private final Map<String, NioChannel> channels;
+
+  private int fecGroupSize;
+
+  /**
+    * Parity packets per group sent to receivers, or 0 for no forward error correction.
+    */
+  private int fecParityCount;
+
+  /**
+    * Most audio bytes a packet may carry, whatever a client proposes.
+    */
+  private int maxPayload;
+
+  /**
+    * Most packets a second resent to each receiver that asks for them again, or 0 for none.
+    */
+  private int retransmitRate;
+
+  /**
+    * Group the unnamed channel's loops are multicast to, the others' on the ports after, or null if loops are only sent to each receiver separately.
+    */
+  private MulticastGroup multicastGroup;
+
+  /**
+    * Heartbeats in a row a sender client that sends them may miss before it's taken to be dead.
+    */
+  private int heartbeatMisses;
+
+  /**
+    * @param tcpPort       port clients connect to.
+    * @param firstUdpPort  UDP port of the first client's session.
+    * @param loopCount     number of event loops (threads) to serve clients with.
+    */
+  public NioSoundServer(int tcpPort, int firstUdpPort, int loopCount) throws IOException {
+    this.tcpPort = tcpPort;
+    loops = new SelectorLoop[loopCount];
+    for (int i = 0; i < loopCount; i++)
+      loops[i] = new SelectorLoop(i);
+    nextLoop = 0;
+    nextClientId = 1;
+    nextUdpPort = firstUdpPort;
+    channels = new HashMap<String, NioChannel>();
+    maxPayload = AudioPacket.defaultPayload;
+    heartbeatMisses = Heartbeat.defaultMisses;
+  }
+
+  /**
+    * Starts the event loops, then accepts clients and hands each to a loop in turn.
+    * @throws IOException on socket setup failure.
+    */
+  public void launch() throws IOException {
+    log("Starting with " + loops.length + " event loops.");
+    joinChannel(""); // The unnamed channel, for clients that don't name one, gets the first multicast port.
+    for (SelectorLoop loop : loops)
+      loop.start();
+
+    ServerSocketChannel serverChannel = ServerSocketChannel.open();
+    serverChannel.bind(new InetSocketAddress(tcpPort));
+    log("Listening for TCP clients on port " + tcpPort);
+
+    while (true) {
+      SocketChannel channel = serverChannel.accept();
+      channel.socket().setTcpNoDelay(true); // A reply and the message after it mustn't wait on each other's ACKs.
+      log("Connection with client established.");
+
+      final SelectorLoop loop = loops[nextLoop];
+      nextLoop = (nextLoop + 1) % loops.length;
+
+      final ClientSession session = new ClientSession(this, loop, channel, nextClientId++, nextUdpPort++);
+
+      loop.execute(new Runnable() {
+        public void run() {
+          session.start();
+        }
+      });
+    }
+  }
+
+  /**
+    * Have audio sent to receivers protected by forward error correction (see net.FecEncoder).
+    * Call before launch().
+    *
+    * @param groupSize    data packets per group.
+    * @param parityCount  parity packets per group, or 0 for none.
+    */
+  public void setFec(int groupSize, int parityCount) {
+    fecGroupSize = groupSize;
+    fecParityCount = parityCount;
+  }
+
+  /**
+    * Have packets receivers say they lost (see net.Nack) resent, up to a rate. Call before launch().
+    *
+    * @param packetsPerSecond  most packets a second resent to each receiver, or 0 for none.
+    */
+  public void setRetransmitRate(int packetsPerSecond) {
+    retransmitRate = packetsPerSecond;
+  }
+
+  /**
+    * Caps the payload size clients may agree on (see ControlOp.PAYLOAD_SIZE). Call before launch().
+    */
+  public void setMaxPayload(int bytes) {
+    maxPayload = Math.max(1, Math.min(bytes, AudioPacket.maxPayload));
+  }
+
+  int getMaxPayload() {
+    return maxPayload;
+  }
+
+  /**
+    * Have each loop sent once to a multicast group, for receivers that can take it, as well
+    * as to each receiver that can't. Each channel has its own port: the group's for the
+    * unnamed channel, then the ones after in the order channels are opened. Call before launch().
+    *
+    * @param group  group to multicast to, or null for none.
+    */
+  void setMulticast(MulticastGroup group) {
+    multicastGroup = group;
+  }
+
+  /**
+    * Have every client on a channel that may send be a sender, and mix what they send (see ChannelMixer). Call before launch().
+    *
+    * @param maxInputs  most senders mixed on each channel, or 0 for one sender at a time.
+    */
+  void setMix(int maxInputs) {
+    maxMixInputs = maxInputs;
+  }
+
+  /**
+    * Have a sender client that sends heartbeats (see net.Heartbeat) taken to be dead once it's
+    * missed this many in a row. Call before launch().
+    */
+  void setHeartbeatMisses(int misses) {
+    heartbeatMisses = Math.max(1, misses);
+  }
+
+  int getHeartbeatMisses() {
+    return heartbeatMisses;
+  }
+
+  /**
+    * @return channel with this name, made if it's the first time it's been asked for, with the
+    *         next loop in turn as its senders' home.
+    * @throws IOException if its multicast publisher can't be set up.
+    */
+  synchronized NioChannel joinChannel(String name) throws IOException {
+    NioChannel channel = channels.get(name);
+    if (channel == null) {
+      int id = channels.size();
+      MulticastGroup group = multicastGroup == null ? null
+          : new MulticastGroup(multicastGroup.getAddress(), multicastGroup.getPort() + id, multicastGroup.getNetworkInterface());
+      channel = new NioChannel(name, id, loops[id % loops.length], loops, group, fecGroupSize, fecParityCount, maxPayload, maxMixInputs);
+      channels.put(name, channel);
+      log("Channel " + channel + " opened on " + channel.getHome().getName() + (group == null ? "." : ", multicast to " + group));
+    }
+    return channel;
+  }
+
+  int getRetransmitRate() {
+    return retransmitRate;
+  }
+
+  int getFecGroupSize() {
+    return fecGroupSize;
+  }
+
+  int getFecParityCount() {
+    return fecParityCount;
+  }
+
+  private void log(String msg) {
+    logger(loggingName, msg);
+  }
+
+}
@@ -0,0 +1,402 @@
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import net.AudioPacket;
+import net.Nack;
+import net.PayloadProbe;
+
+import util.LogLevel;
+
+import static util.SoundUtil.*;
+
+/**
+  * One event loop of the NIO server. Each loop owns a Selector and serves the
+  * client sessions assigned to it, so a fixed number of these threads (roughly one
+  * per core) can serve any number of clients.
+  *
+  * Everything a session does happens on its loop's thread. Other threads hand work
+  * to a loop with execute(), which queues it and wakes the selector.
+  */
+public class SelectorLoop extends Thread {
+
+  /**
+    * Program's name as displayed in log messages.
+    */
+  private final static String loggingName = "SelectorLoop";
+
+  /**
+    * Implemented by anything registered with a loop's selector.
+    */
+  interface Handler {
+
+    /**
+      * Called on the loop thread when the key is ready.
+      */
+    void handle(SelectionKey key) throws IOException;
+
+    /**
+      * Called on the loop thread if handle() throws.
+      */
+    void close();
+  }
+
+  /**
+    * A task to run on the loop thread at a given time, in System.nanoTime() terms so a
+    * step of the wall clock doesn't stall or fire every timer at once.
+    */
+  private static class Timer implements Comparable<Timer> {
+    final long deadline;
+    final Runnable task;
+
+    Timer(long deadline, Runnable task) {
+      this.deadline = deadline;
+      this.task = task;
+    }
+
+    public int compareTo(Timer other) {
+      return Long.signum(deadline - other.deadline); // nanoTime() may wrap.
+    }
+  }
+
+  private final int loopId;
+
+  private final Selector selector;
+
+  /**
+    * Work handed to this loop by other threads.
+    */
+  private final ConcurrentLinkedQueue<Runnable> tasks;
+
+  /**
+    * Only touched from the loop thread.
+    */
+  private final PriorityQueue<Timer> timers;
+
+  /**
+    * Shared by all receiver sessions on this loop for sending audio to their clients,
+    * and for hearing their NACKs back. Payload size probes (see net.PayloadProbe) sent
+    * to it are echoed.
+    */
+  private DatagramChannel udpSendChannel;
+
+  private SelectionKey udpSendKey;
+
+  /**
+    * Receiver sessions with audio still to send, in the order they asked for it.
+    */
+  private final ArrayDeque<ClientSession> pendingSends;
+
+  /**
+    * Receiver sessions waiting for audio to be published, by the channel they're on.
+    */
+  private final Map<NioChannel, List<ClientSession>> waiting;
+
+  /**
+    * An empty list wakeWaiting() swaps in for the one it's waking, so publishing doesn't
+    * allocate. Null while a wake is using it.
+    */
+  private List<ClientSession> spareWaiting;
+
+  /**
+    * Receiver sessions on this loop by client ID, so NACKs can be handed to the session whose audio they're about.
+    */
+  private final Map<Integer, ClientSession> receivers;
+
+  /**
+    * NACKs and probes are received into this.
+    */
+  private final ByteBuffer nackBuffer;
+
+  SelectorLoop(int id) throws IOException {
+    super(loggingName + "-" + id);
+    loopId = id;
+    selector = Selector.open();
+    tasks = new ConcurrentLinkedQueue<Runnable>();
+    timers = new PriorityQueue<Timer>();
+    pendingSends = new ArrayDeque<ClientSession>();
+    waiting = new HashMap<NioChannel, List<ClientSession>>();
+    spareWaiting = new ArrayList<ClientSession>();
+    receivers = new HashMap<Integer, ClientSession>();
+    nackBuffer = ByteBuffer.allocateDirect(AudioPacket.headerLength + AudioPacket.maxPayload);
+    setDaemon(true);
+  }
+
+  int getLoopId() {
+    return loopId;
+  }
+
+  /**
+    * Runs a task on the loop thread. Safe to call from any thread.
+    */
+  void execute(Runnable task) {
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+  /**
+    * Runs a task on the loop thread after a delay. Only call from the loop thread.
+    */
+  void schedule(long delayMs, Runnable task) {
+    timers.add(new Timer(System.nanoTime() + delayMs * 1000000, task));
+  }
+
+  /**
+    * Registers a channel with this loop's selector. Only call from the loop thread.
+    */
+  SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws IOException {
+    channel.configureBlocking(false);
+    return channel.register(selector, ops, handler);
+  }
+
+  /**
+    * Parks a receiver session until audio is published on its channel. Only call from the loop thread.
+    */
+  void addWaiting(NioChannel channel, ClientSession session) {
+    List<ClientSession> parked = waiting.get(channel);
+    if (parked == null) {
+      parked = new ArrayList<ClientSession>();
+      waiting.put(channel, parked);
+    }
+    parked.add(session);
+  }
+
+  /**
+    * Gives every receiver session parked on a channel another look at its shared state. Only call from the loop thread.
+    */
+  void wakeWaiting(NioChannel channel) {
+    List<ClientSession> parked = waiting.get(channel);
+    if (parked == null || parked.isEmpty())
+      return;
+    List<ClientSession> next = spareWaiting != null ? spareWaiting : new ArrayList<ClientSession>();
+    spareWaiting = null;
+    waiting.put(channel, next); // Sessions that park again while being woken go here.
+    for (int i = 0; i < parked.size(); i++) {
+      ClientSession session = parked.get(i);
+      try {
+        session.resumeWaiting();
+      } catch (RuntimeException e) {
+        closeAfter(e, session);
+      }
+    }
+    parked.clear();
+    spareWaiting = parked;
+  }
+
+  /**
+    * @return local port of the channel audio is sent from, which echoes probes.
+    */
+  int getUdpSendPort() throws IOException {
+    return ((InetSocketAddress) udpSendChannel.getLocalAddress()).getPort();
+  }
+
+  /**
+    * Lets a receiver session hear NACKs from its client. Only call from the loop thread.
+    */
+  void addReceiver(int clientId, ClientSession session) {
+    receivers.put(clientId, session);
+  }
+
+  void removeReceiver(int clientId) {
+    receivers.remove(clientId);
+  }
+
+  /**
+    * Queues a receiver session to have its pending audio sent. Only call from the loop thread.
+    */
+  void queueSend(ClientSession session) {
+    pendingSends.add(session);
+    pumpSends();
+  }
+
+  /**
+    * Sends as much pending audio as the socket buffer takes, then waits for it to be writable again.
+    */
+  private void pumpSends() {
+    while (!pendingSends.isEmpty()) {
+      ClientSession session = pendingSends.peek();
+      boolean done;
+      try {
+        done = session.pumpUdpSend(udpSendChannel);
+      } catch (IOException e) {
+        log("Closing handler after IO error sending audio: " + e.getMessage());
+        session.close();
+        done = true;
+      } catch (RuntimeException e) {
+        closeAfter(e, session);
+        done = true;
+      }
+      if (!done) {
+        udpSendKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        return;
+      }
+      pendingSends.poll();
+    }
+    udpSendKey.interestOps(SelectionKey.OP_READ);
+  }
+
+  /**
+    * Hands each NACK waiting on the send channel to the session it's for. Its stream ID
+    * is that of the audio it's about, ie the ID of the receiver client it came from.
+    * Probes are echoed straight back.
+    */
+  private void receiveNacks() throws IOException {
+    while (true) {
+      nackBuffer.clear();
+      SocketAddress from = udpSendChannel.receive(nackBuffer);
+      if (from == null)
+        return;
+      int length = nackBuffer.position();
+      if (PayloadProbe.isProbe(nackBuffer, 0, length)) {
+        nackBuffer.flip();
+        PayloadProbe.echo(udpSendChannel, nackBuffer, from);
+        continue;
+      }
+      if (!Nack.isNack(nackBuffer, 0, length))
+        continue;
+      ClientSession session = receivers.get(AudioPacket.getStreamId(nackBuffer, 0));
+      if (session != null) {
+        try {
+          session.onNack(nackBuffer, length, from);
+        } catch (RuntimeException e) {
+          closeAfter(e, session);
+        }
+      }
+    }
+  }
+
+  /**
+    * The event loop: run handed-over tasks, run due timers, wait for ready channels and dispatch them.
+    */
+  public void run() {
+    try {
+      udpSendChannel = DatagramChannel.open();
+      udpSendChannel.bind(null); // So its port is known before the first send.
+      udpSendKey = register(udpSendChannel, SelectionKey.OP_READ, null);
+    } catch (IOException e) {
+      e.printStackTrace();
+      return;
+    }
+
+    log("Started.");
+
+    while (true) {
+      try {
+        runTasks();
+        long timeout = runDueTimers();
+
+        selector.select(timeout);
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          dispatch(key);
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+      } catch (RuntimeException e) { // Whatever one handler does, the loop goes on serving the rest.
+        error("Unexpected error: " + e);
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private void dispatch(SelectionKey key) {
+    if (!key.isValid())
+      return;
+
+    if (key == udpSendKey) {
+      if (key.isReadable()) {
+        try {
+          receiveNacks();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+      if (key.isValid() && key.isWritable())
+        pumpSends();
+      return;
+    }
+
+    Handler handler = (Handler) key.attachment();
+    try {
+      handler.handle(key);
+    } catch (IOException e) {
+      log("Closing handler after IO error: " + e.getMessage());
+      handler.close();
+    } catch (RuntimeException e) {
+      closeAfter(e, handler);
+    }
+  }
+
+  /**
+    * Closes a handler that threw something unexpected, leaving the loop's other handlers be.
+    */
+  private void closeAfter(RuntimeException e, Handler handler) {
+    error("Closing handler after unexpected error: " + e);
+    e.printStackTrace();
+    try {
+      handler.close();
+    } catch (RuntimeException closing) {
+      closing.printStackTrace();
+    }
+  }
+
+  private void runTasks() {
+    Runnable task;
+    while ((task = tasks.poll()) != null)
+      runSafely(task);
+  }
+
+  /**
+    * Runs a task or timer. If it throws, says so and goes on to the next, rather than ending the loop.
+    */
+  private void runSafely(Runnable task) {
+    try {
+      task.run();
+    } catch (RuntimeException e) {
+      error("Task failed: " + e);
+      e.printStackTrace();
+    }
+  }
+
+  /**
+    * @return how long select() may block before the next timer is due (0 means forever).
+    */
+  private long runDueTimers() {
+    long now = System.nanoTime();
+    while (!timers.isEmpty() && timers.peek().deadline - now <= 0)
+      runSafely(timers.poll().task);
+
+    if (timers.isEmpty())
+      return 0;
+
+    return Math.max(1, (timers.peek().deadline - now + 999999) / 1000000);
+  }
+
+  private void log(String msg) {
+    logger(loggingName + "-" + loopId, msg);
+  }
+
+  private void error(String msg) {
+    logger(LogLevel.ERROR, loggingName + "-" + loopId, msg);
+  }
+
+}
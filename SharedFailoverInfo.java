@@ -1,41 +1,153 @@
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.Lock;
+import java.util.Map;
 
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+  * Info shared between the handlers of one channel's clients for managing failover. Handlers
+  * of clients that may send join as candidates in the order they connect; the first is the
+  * sender handler. When it fails, the oldest candidate still there is elected in its place,
+  * by compare-and-set, and told so through its listener: nobody polls, and nothing locks.
+  *
+  * Candidates leave as their clients go, so an election never picks a handler that's gone,
+  * and takes the same few steps however many have. How long each failover took, from the
+  * sender failing to audio arriving from the next, is counted in the channel's metrics.
+  */
 public class SharedFailoverInfo {
 
-  private Lock failoverLock;
-  private boolean needFailover;
-  private int udpPort; // of sender handling thread;
+  /**
+    * Told when its handler's been elected to take over as sender handler. Called on the
+    * thread that failed over, so should only pass the news on to the handler's own thread.
+    */
+  interface Listener {
+    void electedSender();
+  }
+
+  /**
+    * A handler in line to take over, or the sender handler.
+    */
+  static final class Candidate {
+
+    private final long joinOrder;
+
+    private final Listener listener;
+
+    /**
+      * Set when the handler leaves, so that if it's elected as it does, the election moves on.
+      */
+    private volatile boolean gone;
+
+    private Candidate(long joinOrder, Listener listener) {
+      this.joinOrder = joinOrder;
+      this.listener = listener;
+    }
 
-  public SharedFailoverInfo(int udpPortOfFirstThread) {
-    failoverLock = new ReentrantLock();
-    needFailover = false;
-    udpPort = udpPortOfFirstThread;
   }
 
-  void lock() { 
-    failoverLock.lock();
+  /**
+    * Candidates in line, oldest first. The sender handler isn't among them.
+    */
+  private final ConcurrentSkipListMap<Long, Candidate> candidates;
+
+  /**
+    * The sender handler, or null if the channel has none.
+    */
+  private final AtomicReference<Candidate> sender = new AtomicReference<Candidate>();
+
+  private final AtomicLong joinOrder = new AtomicLong();
+
+  private final ChannelMetrics metrics;
+
+  public SharedFailoverInfo(ChannelMetrics metrics) {
+    this(metrics, new ConcurrentSkipListMap<Long, Candidate>());
   }
 
-  void unlock() { 
-    failoverLock.unlock();
+  /**
+    * @param candidates  empty map to keep the line in, which tests may hook to act mid-election.
+    */
+  SharedFailoverInfo(ChannelMetrics metrics, ConcurrentSkipListMap<Long, Candidate> candidates) {
+    this.metrics = metrics;
+    this.candidates = candidates;
   }
 
-  synchronized void setNeedFailover(boolean b) { 
-    needFailover = b;
+  /**
+    * Adds a handler to the channel.
+    *
+    * @param mayPublish  whether its client may send. Those that may are in line to take over.
+    * @param listener    told if the handler's elected later on.
+    * @return            the handler as a candidate, or null if its client may not send.
+    */
+  Candidate join(boolean mayPublish, Listener listener) {
+    if (!mayPublish)
+      return null;
+    Candidate candidate = new Candidate(joinOrder.incrementAndGet(), listener);
+    if (sender.compareAndSet(null, candidate))
+      return candidate;
+    candidates.put(candidate.joinOrder, candidate);
+    if (sender.get() == null) // Channel lost its sender as this joined, and nobody was in line.
+      elect(null);
+    return candidate;
   }
 
-  synchronized boolean isFailed() { 
-    return needFailover;
+  /**
+    * @return whether the candidate's the sender handler: either it was first to join, or it's been elected.
+    */
+  boolean isSender(Candidate candidate) {
+    return candidate != null && sender.get() == candidate;
   }
 
-  synchronized void incrementUdpPort() { 
-    ++udpPort;
+  /**
+    * Takes a receiver handler that's ending out of line. If it had been elected, the next in line is.
+    */
+  void leave(Candidate candidate) {
+    if (candidate == null)
+      return;
+    candidate.gone = true;
+    candidates.remove(candidate.joinOrder, candidate);
+    if (sender.get() == candidate)
+      elect(candidate);
   }
 
-  synchronized int getUdpPort() { 
-    return udpPort;
+  /**
+    * Passes sending from the sender handler, which has failed and is dropped, to the oldest
+    * candidate, if there is one.
+    */
+  void failOver(Candidate failed) {
+    if (failed != null && sender.get() == failed) {
+      metrics.failoverStarted();
+      elect(failed);
+    }
   }
 
-}
+  /**
+    * Replaces the sender handler with the oldest candidate still there, and tells it so. If
+    * another thread replaces it first, that thread's election stands.
+    *
+    * @param from  the sender handler being replaced, or null if the channel has none.
+    */
+  private void elect(Candidate from) {
+    while (true) {
+      Map.Entry<Long, Candidate> oldest = candidates.pollFirstEntry();
+      Candidate next = oldest == null ? null : oldest.getValue();
+      if (!sender.compareAndSet(from, next)) {
+        if (next != null)
+          candidates.put(next.joinOrder, next);
+        return;
+      }
+      if (next == null) {
+        if (candidates.isEmpty())
+          return;
+        from = null; // One joined after the poll, while there was still a sender.
+        continue;
+      }
+      if (next.gone) {
+        from = next; // It left as it was elected.
+        continue;
+      }
+      next.listener.electedSender();
+      return;
+    }
+  }
 
+}
@@ -0,0 +1,90 @@
+import java.nio.ByteBuffer;
+
+import java.util.Queue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+  * A loop of audio published on an NioChannel, whose storage is given back to the channel
+  * to be reused once nobody's reading it, rather than left for the GC as a direct buffer
+  * per loop would be.
+  *
+  * Whoever reads it holds it: the channel while it's the latest loop, each receiver session
+  * while it's the loop it's sending (or resending from), and the multicast publisher till
+  * it's sent it. The last to let go puts the storage back in the channel's free list.
+  */
+class SharedLoop {
+
+  private final ByteBuffer storage;
+
+  /**
+    * Number of the loop on its channel, in the order published.
+    */
+  private final long number;
+
+  /**
+    * Read-only view of the loop, position 0 and limit its length.
+    */
+  private final ByteBuffer audio;
+
+  /**
+    * How many hold the loop. Once 0 it's never held again.
+    */
+  private final AtomicInteger holders;
+
+  private final Queue<ByteBuffer> free;
+
+  /**
+    * Makes a loop held once, by whoever publishes it.
+    *
+    * @param storage  loop's contents, position 0 and limit its length, never changed from now on.
+    * @param number   loop's number on its channel: 1 for the first published, 0 for none.
+    * @param free     where the storage goes once nobody holds the loop.
+    */
+  SharedLoop(ByteBuffer storage, long number, Queue<ByteBuffer> free) {
+    this.storage = storage;
+    this.number = number;
+    this.free = free;
+    audio = storage.asReadOnlyBuffer();
+    holders = new AtomicInteger(1);
+  }
+
+  /**
+    * @return the loop, read-only. Callers must duplicate() it before moving its position, and
+    *         mustn't read it once they've let go of it.
+    */
+  ByteBuffer getAudio() {
+    return audio;
+  }
+
+  /**
+    * @return loop's number on its channel, so a receiver session can tell if it's sent it already.
+    */
+  long getNumber() {
+    return number;
+  }
+
+  /**
+    * Holds the loop, if anybody still does.
+    *
+    * @return false if it's been let go of by all, and its storage may be reused already.
+    */
+  boolean hold() {
+    while (true) {
+      int count = holders.get();
+      if (count == 0)
+        return false;
+      if (holders.compareAndSet(count, count + 1))
+        return true;
+    }
+  }
+
+  /**
+    * Lets go of the loop. The last to let go gives its storage back.
+    */
+  void release() {
+    if (holders.decrementAndGet() == 0)
+      free.offer(storage);
+  }
+
+}
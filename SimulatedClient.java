@@ -0,0 +1,745 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.sampled.AudioFormat;
+
+import net.AudioFormatArgs;
+import net.AudioPacket;
+import net.ControlChannel;
+import net.ControlMessage;
+import net.ControlOp;
+import net.DatagramReceiver;
+import net.HeartbeatSender;
+import net.JitterBuffer;
+import net.MulticastGroup;
+import net.StandbyArgs;
+
+import util.LogLevel;
+
+import static util.SoundUtil.*;
+
+/**
+  * A client for LoadHarness to run many of in one program. It speaks the control protocol
+  * as SoundClient does, and sends or receives loops as its role says, taking over as
+  * sender when told to, but it sends synthetic audio rather than a file's, and checks what
+  * it receives rather than playing it. As sender it can stream, a frame at a time, as
+  * SoundClient --stream does, and as receiver it can take loops from the server's multicast
+  * group, as SoundClient --multicast does. It gives up on the rest of a loop when
+  * SoundClient's jitter buffer would, so a deadline too short for how audio's sent shows up
+  * as loops received short.
+  *
+  * The audio is 32-bit words, each the hash of its place in the loop XORed with a key made
+  * of the sender's ID and the number of the loop (see key()). So every packet says where it
+  * came from, and every byte of it can be checked, whichever packet of the loop it is and
+  * however the server has cut the loop up. Senders note when each loop went, so receivers
+  * can tell how long it took to get to them.
+  */
+public class SimulatedClient extends Thread {
+
+  private static final int firstPacketTimeoutMs = 2000;
+
+  /**
+    * Socket buffer for the multicast group, as SoundClient has.
+    */
+  private static final int multicastReceiveBufferSize = 4 * 1024 * 1024;
+
+  private static final int connectAttempts = 50;
+
+  private static final long connectRetryMs = 100;
+
+  /**
+    * Loops whose send times a sender remembers, a power of two.
+    */
+  private static final int sentLoopSlots = 1024;
+
+  private static final int loopBits = 20;
+
+  private final LoadHarness harness;
+  private final String host;
+  private final int tcpPort;
+  private final AudioFormat format;
+  private final int loopLength;
+  private int payloadSize;
+
+  /**
+    * How often to send heartbeats as sender, or 0 for never.
+    */
+  private final int heartbeatMs;
+  private volatile HeartbeatSender heartbeatSender;
+
+  /**
+    * Whether to offer, as receiver, to stand by to take over as sender, and whether the server took it up.
+    */
+  private final boolean standby;
+  private boolean standingBy;
+
+  /**
+    * How much audio to send at a time as a streaming sender, in milliseconds, or 0 to send a loop when asked.
+    */
+  private final int streamFrameMs;
+
+  /**
+    * Whether, as receiver, to take loops from the server's multicast group if it has one.
+    */
+  private final boolean multicast;
+
+  private Socket socket;
+  private ControlChannel control;
+  private DatagramChannel udpChannel;
+  private DatagramReceiver udpReceiver;
+  private InetSocketAddress udpServerAddress;
+
+  /**
+    * For receiving loops from the server's multicast group. Joined when first told to take a loop from it.
+    */
+  private volatile DatagramReceiver groupReceiver;
+  private int groupAddress;
+  private int groupPort;
+
+  /**
+    * Says when to give up on the rest of a loop, made for the payload size loops arrive in.
+    */
+  private JitterBuffer jitterBuffer;
+  private int receivePayloadSize;
+
+  /**
+    * What the jitter buffer puts the loop together in. The audio's checked packet by packet.
+    */
+  private byte[] loopBytes = new byte[0];
+
+  private volatile int id;
+  private volatile boolean sender;
+  private volatile boolean killed;
+  private volatile boolean frozen;
+
+  /**
+    * Counted down once the client knows its ID and role, or has given up.
+    */
+  private final CountDownLatch setUp = new CountDownLatch(1);
+
+  /**
+    * When each of the last sentLoopSlots loops sent finished going, by System.nanoTime(),
+    * and how many have. Written only by the client's own thread; loopsSent is written last.
+    */
+  private final long[] loopSentAt = new long[sentLoopSlots];
+  private volatile int loopsSent;
+
+  // What's been received, for LoadHarness to read once the client's thread has ended.
+
+  private long readyAt;
+  private long receivingEndedAt;
+  private long loopsComplete;
+  private long loopsIncomplete;
+  private long loopsRepeated;
+  private int lastLoopKey = -1;
+  private long bytesExpected;
+  private long bytesVerified;
+  private long corruptPackets;
+  private long stalePackets;
+  private long[] latencyMicros = new long[64];
+  private int latencyCount;
+
+  /**
+    * Latest kill this client has seen the failover of (see LoadHarness.Kill).
+    */
+  private LoadHarness.Kill failoverSeen;
+
+  /**
+    * @param loopLength   bytes of audio a loop sent, a whole number of 4-byte words.
+    * @param payloadSize  audio bytes per packet to ask for, a whole number of words.
+    * @param heartbeatMs  how often to send heartbeats as sender, or 0 for never.
+    * @param standby      whether to offer, as receiver, to stand by to take over as sender.
+    * @param streamFrameMs  how much audio to send at a time as a streaming sender, or 0 to send a loop when asked.
+    * @param multicast    whether, as receiver, to take loops from the server's multicast group.
+    */
+  SimulatedClient(LoadHarness harness, String host, int tcpPort, AudioFormat format, int loopLength, int payloadSize, int heartbeatMs,
+      boolean standby, int streamFrameMs, boolean multicast) {
+    super("SimulatedClient");
+    setDaemon(true);
+    this.harness = harness;
+    this.host = host;
+    this.tcpPort = tcpPort;
+    this.format = format;
+    this.loopLength = loopLength;
+    this.payloadSize = payloadSize;
+    this.heartbeatMs = heartbeatMs;
+    this.standby = standby;
+    this.streamFrameMs = streamFrameMs;
+    this.multicast = multicast;
+  }
+
+  public void run() {
+    try {
+      connectAndSetUp();
+      if (sender)
+        sendLoops();
+      else
+        receiveLoops();
+    } catch (IOException e) {
+      if (!killed)
+        e.printStackTrace();
+    } catch (ClosedSelectorException e) {
+      // Killed while waiting for a packet.
+    } finally {
+      if (receivingEndedAt == 0)
+        receivingEndedAt = System.nanoTime();
+      setUp.countDown();
+      if (!killed && isLogging(LogLevel.DEBUG))
+        debug("Connection ended.");
+    }
+  }
+
+  /**
+    * Waits till the client knows its role.
+    *
+    * @return false if it failed to set up, or didn't in time.
+    */
+  boolean awaitSetUp(long timeoutMs) throws InterruptedException {
+    return setUp.await(timeoutMs, TimeUnit.MILLISECONDS) && id > 0;
+  }
+
+  int getClientId() {
+    return id;
+  }
+
+  boolean isSender() {
+    return sender;
+  }
+
+  /**
+    * @return whether the client's been killed or frozen.
+    */
+  boolean isKilled() {
+    return killed || frozen;
+  }
+
+  /**
+    * Drops the connection and sockets at once, as if the client's process had died.
+    */
+  void kill() {
+    killed = true;
+    closeQuietly(control);
+    closeQuietly(udpChannel);
+    closeQuietly(udpReceiver);
+    closeQuietly(groupReceiver);
+  }
+
+  /**
+    * Stops sending anything, heartbeats included, but leaves the connection open, as if the
+    * client's process had hung or its network had gone. The server can only tell from what
+    * stops arriving. The client's thread ends once the server drops it, or on kill().
+    */
+  void freeze() {
+    frozen = true;
+    if (heartbeatSender != null)
+      heartbeatSender.stopSending();
+  }
+
+  private void closeQuietly(Closeable closeable) {
+    try {
+      if (closeable != null)
+        closeable.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+    * @return key of the words of a loop: the sender's ID, and the loop's number, cut to loopBits.
+    */
+  static int key(int senderId, int loop) {
+    return senderId << loopBits | loop & (1 << loopBits) - 1;
+  }
+
+  static int senderOf(int key) {
+    return key >>> loopBits;
+  }
+
+  static int loopOf(int key) {
+    return key & (1 << loopBits) - 1;
+  }
+
+  /**
+    * @return whether the loop with key a was sent after the one with key b, by the same sender.
+    */
+  static boolean isLaterLoop(int a, int b) {
+    int ahead = loopOf(a) - loopOf(b) & (1 << loopBits) - 1;
+    return ahead != 0 && ahead < 1 << loopBits - 1;
+  }
+
+  /**
+    * @return word at this index of every loop, before it's keyed: a hash of the index.
+    */
+  static int word(int index) {
+    int h = index * 0x9e3779b1;
+    return h ^ h >>> 15;
+  }
+
+  /**
+    * @param loop  number of a loop this client sent, as in its key.
+    * @return      System.nanoTime() when it finished going, or -1 if that's not known.
+    */
+  long loopSentAt(int loop) {
+    int sent = loopsSent;
+    int latest = sent - 1 - (sent - 1 - loop & (1 << loopBits) - 1);
+    if (latest < 0 || sent - latest > sentLoopSlots)
+      return -1;
+    return loopSentAt[latest & sentLoopSlots - 1];
+  }
+
+  private void connectAndSetUp() throws IOException {
+    socket = connect();
+    control = new ControlChannel(socket);
+    udpReceiver = new DatagramReceiver(0);
+
+    int idTag = control.request(ControlOp.ID);
+    int roleTag = control.request(ControlOp.ROLE);
+    int payloadTag = control.request(ControlOp.PAYLOAD_SIZE, payloadSize);
+    int udpPortTag = control.request(ControlOp.UDP_PORT);
+    control.flush();
+
+    if (expectReply(idTag, ControlOp.ID))
+      id = control.getArg();
+    setName("SimulatedClient-" + id);
+    if (expectReply(roleTag, ControlOp.ROLE))
+      sender = control.getArg() == ControlMessage.SENDER;
+    if (expectReply(payloadTag, ControlOp.PAYLOAD_SIZE) && control.getArg() > 0)
+      payloadSize = control.getArg();
+    else
+      payloadSize = Math.min(payloadSize, AudioPacket.defaultPayload);
+    if (expectReply(udpPortTag, ControlOp.UDP_PORT))
+      udpServerAddress = new InetSocketAddress(host, control.getArg());
+
+    readyAt = System.nanoTime();
+    harness.clientSetUp(this);
+    setUp.countDown();
+    if (isLogging(LogLevel.DEBUG))
+      debug("Set up as " + (sender ? "sender" : "receiver") + ", payload " + payloadSize);
+  }
+
+  /**
+    * Connects to the server, trying again for a while if it's not listening yet or
+    * its backlog is full, as it can be when hundreds of clients start at once.
+    */
+  private Socket connect() throws IOException {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return new Socket(host, tcpPort);
+      } catch (ConnectException e) {
+        if (attempt == connectAttempts || killed)
+          throw e;
+      }
+      try {
+        Thread.sleep(connectRetryMs);
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted connecting", e);
+      }
+    }
+  }
+
+  /**
+    * @return whether the reply to the request with this tag is as expected.
+    * @throws IOException if the connection's gone.
+    */
+  private boolean expectReply(int tag, ControlOp expected) throws IOException {
+    ControlOp reply = control.receiveReply(tag);
+    if (reply == null)
+      throw new IOException("Lost connection with server waiting for " + expected);
+    if (reply != expected)
+      error("Got " + reply + " reply from server when requesting " + expected);
+    return reply == expected;
+  }
+
+  /**
+    * Sends a loop each time the server's ready for one, till the connection goes.
+    */
+  private void sendLoops() throws IOException {
+    sender = true;
+    ByteBuffer packet = ByteBuffer.allocateDirect(AudioPacket.headerLength + payloadSize);
+    long streamStart = System.nanoTime();
+
+    if (standingBy) { // Server knows it all already: the first loop's asked for straight away.
+      if (heartbeatMs > 0)
+        heartbeatSender.setIntervalMs(heartbeatMs);
+      else
+        heartbeatSender.stopSending();
+    } else {
+      udpChannel = DatagramChannel.open();
+      if (heartbeatMs > 0) {
+        control.request(ControlOp.HEARTBEAT, heartbeatMs); // No reply comes. Goes with AUDIO_FORMAT.
+        heartbeatSender = new HeartbeatSender(udpChannel, udpServerAddress, id, heartbeatMs);
+        heartbeatSender.start();
+      }
+      int[] formatArgs = new int[AudioFormatArgs.count];
+      AudioFormatArgs.put(format, formatArgs);
+      int tag = control.request(ControlOp.AUDIO_FORMAT, formatArgs, formatArgs.length);
+      control.flush();
+      expectReply(tag, ControlOp.AUDIO_FORMAT);
+      if (streamFrameMs > 0) {
+        tag = control.request(ControlOp.STREAM, loopLength);
+        control.flush();
+        expectReply(tag, ControlOp.ACK_STREAM);
+      } else {
+        tag = control.request(ControlOp.ACK_LENGTH, loopLength);
+        control.flush();
+        expectReply(tag, ControlOp.ACK_LENGTH);
+      }
+    }
+    if (streamFrameMs > 0) {
+      streamLoops(packet, streamStart);
+      return;
+    }
+
+    int seq = 0;
+    for (int loop = 0; ; loop++) {
+      ControlOp message = control.receive();
+      if (message == null)
+        return;
+      if (message != ControlOp.READY_TO_RECEIVE || frozen)
+        continue;
+      control.reply(ControlOp.READY_TO_SEND);
+      control.flush();
+
+      int key = key(id, loop);
+      for (int offset = 0; offset < loopLength && !frozen; )
+        offset += sendPacket(packet, key, offset, seq++, streamStart);
+      loopSent(loop);
+    }
+  }
+
+  /**
+    * Streams loops a frame of streamFrameMs at a time, as SoundClient --stream does: each
+    * frame's packets together when it's due, going by how long the audio takes to play,
+    * then nothing till the next's. Goes on till the connection goes or the client's frozen,
+    * when it waits for the server to drop it.
+    */
+  private void streamLoops(ByteBuffer packet, long streamStart) throws IOException {
+    double nanosPerByte = 1e9 / (format.getFrameRate() * format.getFrameSize());
+    long frameNanos = TimeUnit.MILLISECONDS.toNanos(streamFrameMs);
+    long start = System.nanoTime();
+    long nextFrame = start;
+    long sent = 0;
+    int seq = 0;
+    int loop = 0;
+    int offset = 0;
+
+    while (!frozen) {
+      nextFrame += frameNanos;
+      // Send everything that starts playing before the next frame is due.
+      while (start + (long) (sent * nanosPerByte) < nextFrame && !frozen) {
+        int length = sendPacket(packet, key(id, loop), offset, seq++, streamStart);
+        sent += length;
+        offset += length;
+        if (offset == loopLength) {
+          loopSent(loop++);
+          offset = 0;
+        }
+      }
+      long remaining;
+      while ((remaining = nextFrame - System.nanoTime()) > 0)
+        LockSupport.parkNanos(remaining);
+    }
+    while (control.receive() != null)
+      ;
+  }
+
+  /**
+    * Sends the packet of synthetic audio at this offset of a loop with this key.
+    *
+    * @return audio bytes sent.
+    */
+  private int sendPacket(ByteBuffer packet, int key, int offset, int seq, long streamStart) throws IOException {
+    int length = Math.min(payloadSize, loopLength - offset);
+    packet.clear();
+    AudioPacket.putHeader(packet, 0, id, offset == 0 ? AudioPacket.LOOP_START : 0, seq, offset,
+        AudioPacket.timestamp(streamStart));
+    for (int i = 0; i < length; i += 4)
+      packet.putInt(AudioPacket.headerLength + i, word((offset + i) / 4) ^ key);
+    packet.limit(AudioPacket.headerLength + length);
+    udpChannel.send(packet, udpServerAddress);
+    return length;
+  }
+
+  /**
+    * Notes that the last of this loop's gone.
+    */
+  private void loopSent(int loop) {
+    loopSentAt[loop & sentLoopSlots - 1] = System.nanoTime();
+    loopsSent = loop + 1;
+  }
+
+  /**
+    * Asks for loops and checks them, till the connection goes or the server says to take over as sender.
+    */
+  private void receiveLoops() throws IOException {
+    ByteBuffer packet = ByteBuffer.allocateDirect(AudioPacket.headerLength + AudioPacket.maxPayload);
+    int port = udpReceiver.getLocalPort();
+    if (standby)
+      offerStandby();
+
+    while (true) {
+      int tag = multicast
+          ? control.request(ControlOp.READY_FOR_ARRAY_LENGTH, ControlMessage.MULTICAST)
+          : control.request(ControlOp.READY_FOR_ARRAY_LENGTH);
+      control.flush();
+      ControlOp reply = control.receiveReply(tag);
+      while (reply == ControlOp.AUDIO_FORMAT) // Comes ahead of the reply when the audio's format is new to us.
+        reply = control.receiveReply(control.getTag());
+      if (reply == null)
+        return;
+      if (reply == ControlOp.BECOME_SENDER) {
+        log("Taking over as sender.");
+        receivingEndedAt = System.nanoTime();
+        sendLoops();
+        return;
+      }
+      if (reply == ControlOp.MULTICAST_LOOP) {
+        int length = control.getArg();
+        int firstSeq = control.getArg(1);
+        int payload = control.getArg(4);
+        if (joinGroup(control.getArg(2), control.getArg(3)))
+          receiveLoop(groupReceiver, packet, length, payload, firstSeq);
+        continue;
+      }
+      if (reply != ControlOp.ARRAY_LENGTH) {
+        error("Unexpected reply when asking for a loop: " + reply);
+        return;
+      }
+
+      int length = control.getArg();
+      int payload = control.getArg(1);
+      if (control.receive() != ControlOp.READY_FOR_UDP_PORT)
+        return;
+      control.reply(ControlOp.RECEIVER_UDP_PORT, port);
+      control.send(ControlOp.READY_TO_RECEIVE);
+      control.flush();
+      receiveLoop(udpReceiver, packet, length, payload, -1);
+    }
+  }
+
+  /**
+    * Joins the multicast group at this address and port, if it hasn't already.
+    *
+    * @return false if it's only just joined, so the loop's partly gone by and is skipped, as
+    *         SoundClient skips it.
+    */
+  private boolean joinGroup(int address, int port) throws IOException {
+    if (groupReceiver != null && address == groupAddress && port == groupPort)
+      return true;
+    closeQuietly(groupReceiver);
+    MulticastGroup group = new MulticastGroup(address, port, MulticastGroup.loopbackInterface());
+    if (isLogging(LogLevel.DEBUG))
+      debug("Joining multicast group " + group);
+    groupReceiver = DatagramReceiver.join(group, multicastReceiveBufferSize);
+    groupAddress = address;
+    groupPort = port;
+    if (killed)
+      closeQuietly(groupReceiver);
+    return false;
+  }
+
+  /**
+    * Offers to stand by to take over as sender, telling the server all it would be told on
+    * taking over, and sends keepalives to it if it takes the offer up.
+    */
+  private void offerStandby() throws IOException {
+    int[] args = new int[StandbyArgs.count];
+    StandbyArgs.put(format, loopLength, streamFrameMs > 0, heartbeatMs, StandbyArgs.defaultKeepaliveMs, args);
+    int tag = control.request(ControlOp.STANDBY, args, args.length);
+    control.flush();
+    if (!expectReply(tag, ControlOp.STANDBY) || control.getArg() != 1)
+      return;
+    standingBy = true;
+    udpChannel = DatagramChannel.open();
+    heartbeatSender = new HeartbeatSender(udpChannel, udpServerAddress, id, StandbyArgs.defaultKeepaliveMs);
+    heartbeatSender.start();
+  }
+
+  /**
+    * Receives a loop of this length, in packets of this payload, checking every word. Once
+    * it stops arriving, waits as long as SoundClient's jitter buffer would for the rest.
+    *
+    * @param receiver  socket the loop arrives on: the client's own, or the multicast group's.
+    * @param payload   audio bytes per packet, or -1 if the server didn't say, so it's the default.
+    * @param firstSeq  for the multicast group, sequence number of the loop's first packet; otherwise -1.
+    */
+  private void receiveLoop(DatagramReceiver receiver, ByteBuffer packet, int length, int payload, int firstSeq) throws IOException {
+    if (payload <= 0)
+      payload = AudioPacket.defaultPayload;
+    if (jitterBuffer == null || payload != receivePayloadSize) {
+      jitterBuffer = new JitterBuffer(payload);
+      receivePayloadSize = payload;
+    }
+    if (loopBytes.length != length)
+      loopBytes = new byte[length];
+    if (firstSeq >= 0)
+      jitterBuffer.startLoop(loopBytes, firstSeq);
+    else
+      jitterBuffer.startLoop(loopBytes);
+    int packets = (length + payload - 1) / payload;
+    int loopKey = 0;
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(firstPacketTimeoutMs);
+
+    while (!jitterBuffer.isComplete()) {
+      long waitMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime() + 999999);
+      if (waitMs <= 0)
+        break;
+      packet.clear();
+      if (receiver.receive(packet, waitMs) == null)
+        continue;
+      packet.flip();
+      if (!AudioPacket.hasHeader(packet.limit())
+          || (AudioPacket.getFlags(packet, 0) & (AudioPacket.FEC | AudioPacket.NACK | AudioPacket.PROBE)) != 0)
+        continue;
+      if (firstSeq >= 0 && (AudioPacket.getSeq(packet, 0) - firstSeq < 0 || AudioPacket.getSeq(packet, 0) - firstSeq >= packets)) {
+        stalePackets++; // Another loop's, multicast to the group.
+        continue;
+      }
+
+      int offset = AudioPacket.getOffset(packet, 0);
+      int n = packet.limit() - AudioPacket.headerLength;
+      int key = checkedKey(packet, offset, n);
+      if (offset % payload != 0 || offset / payload >= packets || offset + n > length || key == -1) {
+        corruptPackets++;
+        continue;
+      }
+      if (jitterBuffer.getPacketsReceived() == 0)
+        loopKey = key;
+      else if (key != loopKey && senderOf(key) == senderOf(loopKey) && isLaterLoop(key, loopKey)) {
+        stalePackets += jitterBuffer.getPacketsReceived(); // What came first was left over from a loop before.
+        if (firstSeq >= 0)
+          jitterBuffer.startLoop(loopBytes, firstSeq);
+        else
+          jitterBuffer.startLoop(loopBytes);
+        loopKey = key;
+      } else if (key != loopKey) {
+        stalePackets++; // Left over from a loop before.
+        continue;
+      }
+      if (jitterBuffer.offer(packet, System.nanoTime()))
+        deadline = jitterBuffer.getDeadline();
+    }
+
+    long now = System.nanoTime();
+    int bytesReceived = jitterBuffer.getBytesReceived();
+    bytesExpected += length;
+    bytesVerified += bytesReceived;
+    if (bytesReceived < length) {
+      loopsIncomplete++;
+      if (isLogging(LogLevel.DEBUG))
+        debug("Loop incomplete: " + bytesReceived + " of " + length + " bytes");
+      return;
+    }
+    loopsComplete++;
+    if (loopKey == lastLoopKey)
+      loopsRepeated++;
+    lastLoopKey = loopKey;
+    SimulatedClient loopSender = harness.getClient(senderOf(loopKey));
+    long sentAt = loopSender == null ? -1 : loopSender.loopSentAt(loopOf(loopKey));
+    if (sentAt >= 0)
+      addLatency(TimeUnit.NANOSECONDS.toMicros(now - sentAt));
+    failoverSeen = harness.loopReceived(failoverSeen, senderOf(loopKey), now);
+  }
+
+  /**
+    * @return key of a packet's audio, which starts at this offset of its loop and is n bytes,
+    *         or -1 if it isn't words of synthetic audio all with the same key.
+    */
+  private static int checkedKey(ByteBuffer packet, int offset, int n) {
+    if (offset % 4 != 0 || n % 4 != 0 || n == 0)
+      return -1;
+    int first = offset / 4;
+    int key = packet.getInt(AudioPacket.headerLength) ^ word(first);
+    for (int i = 4; i < n; i += 4) {
+      if ((packet.getInt(AudioPacket.headerLength + i) ^ word(first + i / 4)) != key)
+        return -1;
+    }
+    return key;
+  }
+
+  private void addLatency(long micros) {
+    if (latencyCount == latencyMicros.length)
+      latencyMicros = Arrays.copyOf(latencyMicros, latencyCount * 2);
+    latencyMicros[latencyCount++] = micros;
+  }
+
+  /**
+    * @return latencies of loops received whole: from the sender sending the last of a loop
+    *         to this client having all of it, in microseconds.
+    */
+  long[] getLatencyMicros() {
+    return Arrays.copyOf(latencyMicros, latencyCount);
+  }
+
+  /**
+    * @return seconds from the client being set up till it stopped receiving, or till now if it hasn't.
+    */
+  double getSecondsReceiving(long now) {
+    if (readyAt == 0)
+      return 0;
+    return ((receivingEndedAt != 0 ? receivingEndedAt : now) - readyAt) / 1e9;
+  }
+
+  long getLoopsComplete() {
+    return loopsComplete;
+  }
+
+  long getLoopsIncomplete() {
+    return loopsIncomplete;
+  }
+
+  /**
+    * @return loops received whole that were the same loop as the one before.
+    */
+  long getLoopsRepeated() {
+    return loopsRepeated;
+  }
+
+  long getBytesExpected() {
+    return bytesExpected;
+  }
+
+  /**
+    * @return bytes received that were checked and found to be what was sent.
+    */
+  long getBytesVerified() {
+    return bytesVerified;
+  }
+
+  /**
+    * @return packets received whose audio wasn't what any sender sent, in the place it said.
+    */
+  long getCorruptPackets() {
+    return corruptPackets;
+  }
+
+  long getStalePackets() {
+    return stalePackets;
+  }
+
+  private void log(String msg) {
+    logger(getName(), msg);
+  }
+
+  private void debug(String msg) {
+    logger(LogLevel.DEBUG, getName(), msg);
+  }
+
+  private void error(String msg) {
+    logger(LogLevel.ERROR, getName(), msg);
+  }
+
+}
@@ -0,0 +1,171 @@
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import javax.sound.sampled.AudioFormat;
+
+import audio.AudioRing;
+
+import net.AudioPacket;
+import net.MulticastGroup;
+
+/**
+  * A named stream of audio on a SoundServer, with its own sender and receivers. Each
+  * channel has its own storage and failover info, so channels' handler threads never
+  * touch the same state and carry on independently of each other.
+  *
+  * On a server that mixes, every client on a channel that may send is a sender, and
+  * what they send is mixed (see ChannelMixer) and put in the channel's storage, as if
+  * one sender client had streamed it.
+  */
+public class SoundChannel {
+
+  private final String name;
+
+  /**
+    * Number of the channel, in the order channels were first asked for. The unnamed channel is 0.
+    */
+  private final int id;
+
+  /**
+    * Storage for the channel's audio: written by its sender-handling thread (or its mixer)
+    * and read by its receiver-handling threads, without locking.
+    */
+  private final AudioRing audioRing;
+
+  private final SharedFailoverInfo failoverInfo;
+
+  /**
+    * Counters for the channel, shown over JMX.
+    */
+  private final ChannelMetrics metrics;
+
+  /**
+    * Group the channel's audio is multicast to, or null if it isn't.
+    */
+  private final MulticastGroup multicastGroup;
+
+  /**
+    * Mixes the channel's senders, or null if it has one sender at a time.
+    */
+  private final ChannelMixer mixer;
+
+  /**
+    * @param multicastGroup  group to multicast the channel's audio to, or null for none.
+    * @param maxMixInputs    most senders to mix, or 0 for one sender at a time.
+    */
+  SoundChannel(String name, int id, AudioRing audioRing, MulticastGroup multicastGroup, int fecGroupSize, int fecParityCount, int maxPayload,
+      int maxMixInputs) throws IOException {
+    this.name = name;
+    this.id = id;
+    this.audioRing = audioRing;
+    this.multicastGroup = multicastGroup;
+    metrics = new ChannelMetrics(name, id);
+    failoverInfo = new SharedFailoverInfo(metrics);
+    mixer = maxMixInputs > 0 ? new ChannelMixer(id, maxMixInputs, maxPayload, new RingOutput()) : null;
+
+    if (multicastGroup != null) {
+      MulticastPublisher publisher = new MulticastPublisher(multicastGroup, fecGroupSize, fecParityCount, maxPayload);
+      publisher.forwardFrom(audioRing);
+      publisher.start();
+    }
+  }
+
+  String getName() {
+    return name;
+  }
+
+  int getId() {
+    return id;
+  }
+
+  AudioRing getAudioRing() {
+    return audioRing;
+  }
+
+  SharedFailoverInfo getFailoverInfo() {
+    return failoverInfo;
+  }
+
+  ChannelMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+    * @return group the channel's audio is multicast to, or null if it isn't.
+    */
+  MulticastGroup getMulticastGroup() {
+    return multicastGroup;
+  }
+
+  /**
+    * @return whether the channel mixes its senders rather than having one at a time.
+    */
+  boolean isMixing() {
+    return mixer != null;
+  }
+
+  /**
+    * Adds a sender to the channel's mix.
+    *
+    * @param format  format of the audio it sends, as sent.
+    * @return        its way into the mix, or null if it can't be mixed.
+    */
+  MixerFeed joinMix(AudioFormat format) {
+    return mixer.join(format);
+  }
+
+  public String toString() {
+    return id + " (\"" + name + "\")";
+  }
+
+  /**
+    * Puts the mix in the channel's storage in loops of ChannelMixer.loopMs, in packets
+    * as a sender client's would be: all the same size but the last of each loop.
+    */
+  private class RingOutput implements ChannelMixer.Output {
+
+    private final long streamStart = System.nanoTime();
+
+    /**
+      * Audio of the packet being filled, where in its loop it starts, and how much it has.
+      */
+    private byte[] packet;
+    private int loopOffset;
+    private int packetLength;
+
+    private int loopLength;
+
+    private int seq;
+
+    public void mixed(byte[] block, int length, AudioFormat format) {
+      if (packet == null) {
+        int payload = Math.min(AudioPacket.defaultPayload, audioRing.getFrameSize() - AudioPacket.headerLength);
+        packet = new byte[Math.max(format.getFrameSize(), payload - payload % format.getFrameSize())];
+        loopLength = length * (ChannelMixer.loopMs / ChannelMixer.blockMs);
+        audioRing.setFormat(format);
+      }
+      for (int i = 0; i < length; ) {
+        int n = Math.min(length - i, Math.min(packet.length, loopLength - loopOffset) - packetLength);
+        System.arraycopy(block, i, packet, packetLength, n);
+        packetLength += n;
+        i += n;
+        if (packetLength == packet.length || loopOffset + packetLength == loopLength)
+          writePacket();
+      }
+    }
+
+    private void writePacket() {
+      ByteBuffer frame = audioRing.beginWrite();
+      int start = frame.position();
+      AudioPacket.putHeader(frame, start, 0, loopOffset == 0 ? AudioPacket.LOOP_START : 0, seq++, loopOffset,
+          AudioPacket.timestamp(streamStart));
+      frame.position(start + AudioPacket.headerLength);
+      frame.put(packet, 0, packetLength);
+      audioRing.commitWrite(loopOffset, loopLength);
+      loopOffset = (loopOffset + packetLength) % loopLength;
+      packetLength = 0;
+    }
+  }
+
+}
@@ -1,32 +1,46 @@
-import java.io.BufferedReader;
-import java.io.PrintWriter;
-import java.io.InputStreamReader;
 import java.io.IOException;
-import java.io.ByteArrayInputStream;
 
-import java.nio.file.Path;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+
 import java.nio.file.Paths;
-import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 
 import java.net.Socket;
-import java.net.DatagramSocket;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.ConnectException;
 import java.net.UnknownHostException;
 
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
-import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.DataLine;
-import javax.sound.sampled.Clip;
-import javax.sound.sampled.AudioSystem;
 
-import javax.sound.sampled.LineEvent.Type;
+import audio.AudioCodec;
+import audio.AudioCodecs;
+import audio.LoopScheduler;
+import audio.PlaybackEngine;
+import audio.WavFile;
+
+import net.AudioFormatArgs;
+import net.AudioPacket;
+import net.BufferPool;
+import net.ControlChannel;
+import net.ControlMessage;
+import net.ControlOp;
+import net.DatagramReceiver;
+import net.Heartbeat;
+import net.HeartbeatSender;
+import net.JitterBuffer;
+import net.Nack;
+import net.MulticastGroup;
+import net.PayloadProbe;
+import net.StandbyArgs;
+
+import util.LogLevel;
 
 import static util.SoundUtil.*;
 
@@ -42,6 +56,90 @@ public class SoundClient {
     */
   private final String audioFilename;
 
+  /**
+    * Whether, as sender, we stream audio continuously rather than sending a loop when asked.
+    */
+  private boolean streaming;
+
+  /**
+    * How much audio to send at a time when streaming, in milliseconds.
+    */
+  private int streamFrameMs;
+
+  /**
+    * Whether, as receiver, we ask the server again for packets lost on the way.
+    */
+  private boolean nack;
+
+  /**
+    * Most times we ask again for what's missing from a loop.
+    */
+  private final static int maxNackRounds = 3;
+
+  /**
+    * Count of NACKs sent.
+    */
+  private int nackSeq;
+
+  /**
+    * NACKs are written here.
+    */
+  private final ByteBuffer nackBuffer = ByteBuffer.allocateDirect(AudioPacket.headerLength + Nack.maxSlots / 8);
+
+  /**
+    * Whether, as receiver, we take loops from the server's multicast group if it has one.
+    */
+  private boolean multicast;
+
+  /**
+    * Name of the interface to join the multicast group on, or null for loopback.
+    */
+  private String multicastInterfaceName;
+
+  /**
+    * For receiving audio the server sends to its multicast group. Joined when first told to take a loop from it.
+    */
+  private DatagramReceiver multicastReceiver;
+
+  /**
+    * Group joined, as given by server.
+    */
+  private int multicastAddress;
+  private int multicastPort;
+
+  /**
+    * Socket buffer for the multicast group: room for a loop or two that's sent while we're playing the last.
+    */
+  private final static int multicastReceiveBufferSize = 4 * 1024 * 1024;
+
+  private final static int defaultStreamFrameMs = 20;
+
+  /**
+    * How often to send the server a heartbeat (see net.Heartbeat) while we're the sender, or 0 for never.
+    */
+  private int heartbeatMs;
+
+  /**
+    * Sends our heartbeats while we're the sender, or keepalives while we stand by, or null before
+    * either (or if we don't send them).
+    */
+  private HeartbeatSender heartbeatSender;
+
+  /**
+    * Whether to offer, as receiver, to stand by to take over as sender (see ControlOp.STANDBY).
+    */
+  private boolean standby;
+
+  /**
+    * How often to send keepalives while standing by.
+    */
+  private int keepaliveMs;
+
+  /**
+    * Whether server took up our offer to stand by, until we take over.
+    */
+  private boolean standingBy;
+
   /**
     * Hostname of SoundServer.
     */
@@ -74,19 +172,9 @@ public class SoundClient {
   private static int defaultId = 0;
 
   /**
-    * For receiving TCP signalling from server.
-    */
-  private BufferedReader bufferedReader;
-
-  /**
-    * For receiving TCP signalling from server.
-    */
-  private InputStreamReader isr;
-
-  /**
-    * For sending TCP signalling to server.
+    * For TCP signalling with server.
     */
-  private PrintWriter printWriter;
+  private ControlChannel control;
 
   /**
     * For TCP signalling with server.
@@ -101,29 +189,66 @@ public class SoundClient {
   /**
     * For receiving audio from server.
     */
-  private DatagramSocket udpReceiverSocket;
+  private DatagramReceiver udpReceiver;
 
   private int udpReceiverPort;
-  private DatagramSocket udpSocket;
+
+  /**
+    * For sending audio to server.
+    */
+  private DatagramChannel udpChannel;
   private InetAddress udpHost;
   private int udpPort;
 
   /**
-    * UDP guarantees delivery of 576 bytes/packet without having to rely on
-    * automatic splitting up and reassembling at the other end. Such reassembly
-    * fails if any packets are lost. As we are not dealing with lost packets, we need
-    * to stay below 576. 512 seemed to be common practice when working with
-    * this constraint.
+    * Where on the server to send audio to.
     */
-  private static final int udpMaxPayload = 512;
+  private InetSocketAddress udpServerAddress;
 
   /**
-    * Sent to receiver client to trigger it to change its role to sender during failover situation.
-    * This is done when receiver client is expecting an array length from its handling server thread.
-    * Client must be set to expect same value shown here.
+    * Audio bytes per packet we send: proposed to server, then as agreed (see ControlOp.PAYLOAD_SIZE).
+    * See AudioPacket.defaultPayload for why it's small unless asked otherwise.
     */
-  private static int resetClient = -1;
-  
+  private int payloadSize;
+
+  /**
+    * Whether to propose the biggest payload size that gets to server and back without loss
+    * (see PayloadProbe) rather than payloadSize as given.
+    */
+  private boolean probePayload;
+
+  /**
+    * Direct buffers for sending and receiving packets in: big enough for any payload size,
+    * as what we receive is whatever size the sender client sends.
+    */
+  private static final BufferPool bufferPool = new BufferPool(AudioPacket.headerLength + AudioPacket.maxPayload, 4);
+
+  /**
+    * How long to wait for the first packet of a loop.
+    */
+  private static final long udpFirstPacketTimeoutMs = 2000;
+
+  /**
+    * Puts received loops back together and decides how long to wait for missing packets.
+    * Made afresh if the payload size of the audio we're sent changes.
+    */
+  private JitterBuffer jitterBuffer;
+
+  /**
+    * Audio bytes per packet of the audio jitterBuffer was made for.
+    */
+  private int receivePayloadSize;
+
+  /**
+    * Sequence number of the next audio packet we send.
+    */
+  private int udpSeq;
+
+  /**
+    * System.nanoTime() when we started sending audio, for packet timestamps.
+    */
+  private long udpStreamStart;
+
   /**
     * Possible Roles we can take on. NOT_SET is before we are assigned a role by server.
     */
@@ -139,32 +264,70 @@ public class SoundClient {
   private Role role;
 
   /**
-    * Requests we need to send to server.
+    * Audio to be sent to server if we are sender, laid out as packets: every payloadSize
+    * bytes of audio has room for a header before it. Headers are written in place and
+    * packets sent straight from it.
     */
-  private enum Request {
-    ID,
-    ROLE,
-    UDP_PORT,
-    ACK_LENGTH,
-    READY_TO_SEND
-  }
+  private ByteBuffer soundBytesToSend; 
 
   /**
-    * Replies we may get.
+    * Length of the audio in soundBytesToSend.
     */
-  private enum Replies { 
-    ACK_LENGTH
-  }
+  private int soundLengthToSend;
 
   /**
-    * Audio to be sent to server if we are sender.
+    * Format of the audio we send, if we are sender: the wav file's, encoded with codec.
     */
-  private byte[] soundBytesToSend; 
+  private AudioFormat soundFormatToSend;
 
   /**
-    * Audio to be played if we're a receiver.
+    * Name of the codec to send audio with (see AudioCodecs), if it can encode the wav file's audio.
     */
-  private byte[] soundBytes; 
+  private String codecName;
+
+  /**
+    * Codec audio is sent with, chosen when the wav file is read.
+    */
+  private AudioCodec codec;
+
+  /**
+    * Format of the audio we receive, if we are receiver, as server last said (see ControlOp.AUDIO_FORMAT).
+    */
+  private AudioFormat soundFormat;
+
+  /**
+    * Arguments of an AUDIO_FORMAT message, reused.
+    */
+  private final int[] formatArgs = new int[AudioFormatArgs.count];
+
+  /**
+    * Plays received loops back to back on a thread of its own. Started when the first loop arrives.
+    */
+  private PlaybackEngine playback;
+
+  /**
+    * Where jitterBuffer plays audio as it puts it together: on to playback, a packet at a time.
+    */
+  private final JitterBuffer.Output playbackOutput = new JitterBuffer.Output() {
+    public void play(byte[] audio, int offset, int length) {
+      playback.write(audio, offset, length, soundFormat);
+    }
+  };
+
+  /**
+    * Mixer to play through: null for the default, or PlaybackEngine.nullMixerName for none.
+    */
+  private String mixerName;
+
+  /**
+    * Channel to join on server, or null for the unnamed one.
+    */
+  private String channelName;
+
+  /**
+    * Whether to only ever receive on the channel, never becoming its sender.
+    */
+  private boolean subscribeOnly;
 
   /**
     * Length of audio receive array.
@@ -182,20 +345,73 @@ public class SoundClient {
     role = Role.NOT_SET;
     udpReceiverIsUp = false;
     this.audioFilename = audioFilename;
+    streaming = false;
+    streamFrameMs = defaultStreamFrameMs;
+    payloadSize = AudioPacket.defaultPayload;
+    heartbeatMs = Heartbeat.defaultIntervalMs;
+    keepaliveMs = StandbyArgs.defaultKeepaliveMs;
   }
 
+  /**
+    * Usage: java SoundClient [--stream [--frame-ms n]] [--nack] [--multicast [--multicast-if name]]
+    *                         [--payload n] [--probe-payload] [--mixer name] [--codec name]
+    *                         [--channel name] [--subscribe] [--heartbeat-ms n] [--standby [--keepalive-ms n]]
+    *                         [--log-level level] wav_filename
+    *
+    * --stream      as sender, stream audio a frame at a time, at the rate it plays,
+    *               instead of sending the whole file each time the server asks.
+    * --frame-ms n  how much audio to send at a time when streaming (default 20).
+    * --nack        as receiver, ask the server again for lost packets.
+    * --multicast   as receiver, take audio from the server's multicast group if it has one.
+    *               Otherwise it's sent to us alone as usual.
+    * --multicast-if  interface to join the group on (default: loopback).
+    * --payload n   audio bytes per packet to propose to server (default 512). It may agree to less.
+    * --probe-payload  propose the biggest payload size, up to --payload if given, that gets to
+    *               server and back without loss.
+    * --mixer name  as receiver, play through the named mixer rather than the default one. "null"
+    *               throws audio away at the rate it plays, eg for testing without a sound card.
+    * --codec name  as sender, encode audio to send with this codec: pcm (none, the default), ulaw
+    *               (half the size) or adpcm (a quarter). Needs 16-bit audio; other audio is sent as PCM.
+    * --channel name  join the named channel on server rather than the unnamed one. Each channel has
+    *               its own sender and receivers.
+    * --subscribe   only ever receive on the channel: don't send, even if it has no sender.
+    * --heartbeat-ms n  as sender, tell server we're still there this often (default 100), so it
+    *               can fail over within a few of them if we stop. 0 for never.
+    * --standby     as receiver, stand by to take over as sender: load the audio now and tell
+    *               server about it, so if we're to take over, audio goes as soon as we're told.
+    * --keepalive-ms n  while standing by, send server a keepalive this often (default 500).
+    * --log-level   least important messages to log: debug (every control message), info (the
+    *               default) or error. Messages are written on a thread of their own.
+    */
   public static void main(String[] args) { 
 
     String filename = null;
 
-    if (args.length == 1) { 
-      filename = args[0];
+    if (args.length >= 1 && !args[args.length - 1].startsWith("--")) { 
+      filename = args[args.length - 1];
     } else { 
-      System.out.println("Usage: java " + loggingName + " <wav_filename>");
+      System.out.println("Usage: java " + loggingName + " [--stream [--frame-ms n]] [--nack] [--multicast [--multicast-if name]]"
+          + " [--payload n] [--probe-payload] [--mixer name] [--codec name] [--channel name] [--subscribe] [--heartbeat-ms n] [--standby [--keepalive-ms n]] [--log-level level] <wav_filename>");
       System.exit(0);
     }
 
+    setLogLevel(args);
     SoundClient soundClient = new SoundClient(filename);  
+    soundClient.streaming = hasFlag(args, "--stream");
+    soundClient.streamFrameMs = Math.max(1, intFlag(args, "--frame-ms", defaultStreamFrameMs));
+    soundClient.nack = hasFlag(args, "--nack");
+    soundClient.multicast = hasFlag(args, "--multicast");
+    soundClient.multicastInterfaceName = stringFlag(args, "--multicast-if", null);
+    soundClient.probePayload = hasFlag(args, "--probe-payload");
+    soundClient.mixerName = stringFlag(args, "--mixer", null);
+    soundClient.codecName = stringFlag(args, "--codec", AudioCodecs.pcm.getName());
+    soundClient.channelName = stringFlag(args, "--channel", null);
+    soundClient.subscribeOnly = hasFlag(args, "--subscribe");
+    soundClient.heartbeatMs = Math.max(0, intFlag(args, "--heartbeat-ms", Heartbeat.defaultIntervalMs));
+    soundClient.standby = hasFlag(args, "--standby");
+    soundClient.keepaliveMs = Math.max(1, intFlag(args, "--keepalive-ms", StandbyArgs.defaultKeepaliveMs));
+    soundClient.payloadSize = Math.max(1, Math.min(AudioPacket.maxPayload,
+        intFlag(args, "--payload", soundClient.probePayload ? AudioPacket.maxPayload : AudioPacket.defaultPayload)));
     soundClient.launch();
 
   }
@@ -213,24 +429,35 @@ public class SoundClient {
     while(true) {  
 
       if (getRole() == Role.SENDER) { 
-        loopSendingAudio();
+        if (streaming)
+          streamAudio();
+        else
+          loopSendingAudio();
       }
 
       else if (getRole() == Role.RECEIVER) { 
 
         udpSetUpReceiverSocket();
+        if (standby && !subscribeOnly)
+          tcpOfferStandby();
 
         // receiver loop:
 
         while(true) {
 
-          System.out.println();
-          tcpSend("READY_FOR_ARRAY_LENGTH"); // todo: what if this is sent before ServerThread does tcpWaitForMessage("READY_FOR_ARRAY_LENGTH")? Not heard!!
-          String length = tcpListen(); // todo: what if connection is broken and length is null? Add exception handling to tcpListen();
-          log("Received array length: " + length);
-          setArrayLength(Integer.parseInt(length)); 
+          ControlOp reply = multicast
+              ? tcpRequestAndWaitForReply(ControlOp.READY_FOR_ARRAY_LENGTH, ControlMessage.MULTICAST)
+              : tcpRequestAndWaitForReply(ControlOp.READY_FOR_ARRAY_LENGTH);
+          while (reply == ControlOp.AUDIO_FORMAT) { // Comes ahead of the reply when the audio's format is new to us.
+            setSoundFormat();
+            reply = tcpWaitForReply(control.getTag());
+          }
+          if (reply == null) {
+            error("Lost connection with receiver on server thread.");
+            System.exit(0);
+          }
 
-          if (getArrayLength() == resetClient) { 
+          if (reply == ControlOp.BECOME_SENDER) { 
             // This means there is a failover situation.
             // Become a sender instead of a receiver.
             setRole(Role.SENDER);
@@ -238,12 +465,26 @@ public class SoundClient {
             break;
           }
 
-          soundBytes = new byte[getArrayLength()];
-          tcpWaitForMessage("READY_FOR_UDP_PORT");
-          tcpSend(new Integer(getUdpReceiverPort()).toString());
-          tcpSend("READY_TO_RECEIVE"); 
-          udpReceiveAudioFromSender();
-          playAudio(soundBytes); // rename
+          if (reply == ControlOp.MULTICAST_LOOP) { 
+            if (udpJoinMulticastGroup()) { 
+              setArrayLength(control.getArg()); 
+              setReceivePayloadSize(control.getArg(4));
+              udpReceiveAudioFromSender(multicastReceiver, control.getArg(1));
+              endPlayingLoop();
+            }
+            continue;
+          }
+
+          setArrayLength(control.getArg()); 
+          if (isLogging(LogLevel.DEBUG))
+            debug("Received array length: " + getArrayLength());
+          setReceivePayloadSize(control.getArg(1));
+          tcpWaitForMessage(ControlOp.READY_FOR_UDP_PORT);
+          tcpReply(ControlOp.RECEIVER_UDP_PORT, getUdpReceiverPort());
+          tcpSend(ControlOp.READY_TO_RECEIVE); // Goes with the port: no need to wait for a reply in between.
+          tcpFlush();
+          udpReceiveAudioFromSender(udpReceiver, -1);
+          endPlayingLoop();
 
         } // end of receiver loop
 
@@ -258,151 +499,384 @@ public class SoundClient {
     */
   private void loopSendingAudio() {
 
-    readSoundFileIntoByteArray(audioFilename);
-    tcpSendArrayLength();
+    if (standingBy) { 
+      takeOverFromStandby();
+    } else { 
+      readSoundFileIntoByteArray(audioFilename);
+      startHeartbeats();
+      tcpSendAudioFormat();
+      tcpSendArrayLength();
+    }
     int audioSendCount = 0;
     
     while(true) { 
-      System.out.println();
-      log("Audio send count: " + audioSendCount++);
-      String reply = tcpWaitForMessage("READY_TO_RECEIVE");
+      if (isLogging(LogLevel.DEBUG))
+        debug("Audio send count: " + audioSendCount);
+      audioSendCount++;
+      ControlOp reply = tcpWaitForMessage(ControlOp.READY_TO_RECEIVE);
       if (reply == null) {
         error("Lost connection with receiver on server thread.");
         //break;
         System.exit(0);
       }
-      tcpSend("READY_TO_SEND");
-      try {
-        Thread.sleep(1000); // todo: remove after testing?
-      } catch (InterruptedException e) {
-        e.printStackTrace();
-      }
+      tcpReply(ControlOp.READY_TO_SEND); // Server paces loops to how long they take to play, so send straight away.
+      tcpFlush();
       udpSendSoundBytesToServerThread();
     }
   }
 
+  /**
+    * Streams audio to server continuously, a frame at a time, reading the file as it goes
+    * so memory use doesn't depend on its length. Each frame is sent when it's due, going
+    * by how long the audio takes to play, and the file starts again when it runs out.
+    */
+  private void streamAudio() {
+    FileChannel file = null;
+    ByteBuffer packetBuffer = bufferPool.acquire();
+
+    try {
+      WavFile wav = WavFile.open(Paths.get(audioFilename));
+      chooseCodec(wav.getFormat());
+      long dataOffset = wav.getDataOffset();
+      int dataLength = wav.getDataLength();
+      int sendLength = codec.encodedLength(soundFormatToSend, dataLength);
+      file = FileChannel.open(Paths.get(audioFilename), StandardOpenOption.READ);
+
+      double nanosPerByte = (double) LoopScheduler.playingNanos(soundFormatToSend, sendLength) / sendLength;
+      long frameNanos = TimeUnit.MILLISECONDS.toNanos(streamFrameMs);
+      alignPayloadSizeToFrames();
+
+      // With a codec, each packet's audio is read into pcmChunk and encoded into encodedChunk first.
+      ByteBuffer pcmChunk = codec == AudioCodecs.pcm ? null : ByteBuffer.allocate(codec.decodedLength(soundFormatToSend, payloadSize));
+      byte[] encodedChunk = pcmChunk == null ? null : new byte[payloadSize];
+
+      if (standingBy) { 
+        takeOverFromStandby();
+      } else { 
+        startHeartbeats();
+        tcpSendAudioFormat();
+        tcpSendStreamLength(sendLength);
+      }
+      exitWhenServerGoes();
+
+      log("Streaming " + streamFrameMs + "ms frames to server thread.");
+      long start = System.nanoTime();
+      udpStreamStart = start;
+      long nextFrame = start;
+      long sent = 0;       // bytes sent since start
+      int filePosition = 0; // of PCM audio read
+      int sendPosition = 0; // of audio as sent
+
+      while (true) {
+        nextFrame += frameNanos;
+        // Send everything that starts playing before the next frame is due.
+        while (start + (long) (sent * nanosPerByte) < nextFrame) {
+          int len = Math.min(payloadSize, sendLength - sendPosition);
+          packetBuffer.clear();
+          packetBuffer.position(AudioPacket.headerLength);
+          if (pcmChunk == null) { 
+            packetBuffer.limit(AudioPacket.headerLength + len);
+            len = file.read(packetBuffer, dataOffset + filePosition);
+            if (len <= 0)
+              throw new IOException("Couldn't read " + audioFilename + " at " + filePosition);
+            filePosition += len;
+          } else { 
+            int pcmLength = Math.min(codec.decodedLength(soundFormatToSend, len), dataLength - filePosition);
+            pcmChunk.clear();
+            pcmChunk.limit(pcmLength);
+            while (pcmChunk.hasRemaining()) { 
+              if (file.read(pcmChunk, dataOffset + filePosition + pcmChunk.position()) <= 0)
+                throw new IOException("Couldn't read " + audioFilename + " at " + filePosition);
+            }
+            len = codec.encode(soundFormatToSend, pcmChunk.array(), 0, pcmLength, encodedChunk, 0);
+            packetBuffer.put(encodedChunk, 0, len);
+            filePosition += pcmLength;
+          }
+          packetBuffer.flip();
+          AudioPacket.putHeader(packetBuffer, 0, getId(), sendPosition == 0 ? AudioPacket.LOOP_START : 0,
+              udpSeq++, sendPosition, AudioPacket.timestamp(udpStreamStart));
+          udpChannel.send(packetBuffer, udpServerAddress);
+
+          sent += len;
+          sendPosition += len;
+          if (sendPosition == sendLength) { 
+            sendPosition = 0;
+            filePosition = 0;
+          }
+        }
+
+        long remaining;
+        while ((remaining = nextFrame - System.nanoTime()) > 0)
+          LockSupport.parkNanos(remaining);
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+      System.exit(0);
+    } finally {
+      bufferPool.release(packetBuffer);
+    }
+  }
+
+  /**
+    * Tell server we'll stream audio, and the length of the audio in the file it's streamed from.
+    */
+  private void tcpSendStreamLength(long dataLength) { 
+    ControlOp reply = tcpRequestAndWaitForReply(ControlOp.STREAM, (int) dataLength);
+
+    if (reply == ControlOp.ACK_STREAM)
+      log("Server thread says it's ready to receive audio stream.");
+    else { 
+      error("Unexpected reply when asking to stream audio: " + reply);
+      System.exit(0);
+    }
+  }
+
+  /**
+    * Server has nothing to say while we're streaming, so all that can come over TCP is
+    * the connection closing. Watch for it so we stop, as when it goes while sending loops.
+    */
+  private void exitWhenServerGoes() {
+    Thread watcher = new Thread(new Runnable() {
+      public void run() {
+        while (tcpListen() != null)
+          ;
+        error("Lost connection with receiver on server thread.");
+        System.exit(0);
+      }
+    });
+    watcher.setDaemon(true);
+    watcher.start();
+  }
+
   /**
     * Set up TCP and UDP links with server.
     */
   private void connectAndSetUp() {
     connectTcp();
     setUpTcpIo();
-    requestAndSetId();
-    requestAndSetRole();
-    requestAndSetUdpPort();
+
+    // Asked for all at once: each reply has its request's tag, so they needn't take turns.
+    // Replies are awaited in the order asked for, as waiting for one skips those before it.
+    int idTag = tcpRequest(ControlOp.ID);
+    int channelTag = channelName != null || subscribeOnly ? tcpRequestChannel() : -1;
+    int roleTag = tcpRequest(ControlOp.ROLE);
+    int payloadTag = tcpRequest(ControlOp.PAYLOAD_SIZE, payloadSize);
+    if (probePayload) { 
+      // Most server allows, and where to probe, are needed before probing, and probing before the final proposal.
+      tcpFlush();
+      awaitAndSetId(idTag);
+      awaitChannel(channelTag);
+      awaitAndSetRole(roleTag);
+      int echoPort = awaitAndSetPayloadSize(payloadTag);
+      if (echoPort > 0)
+        payloadTag = tcpRequest(ControlOp.PAYLOAD_SIZE, udpProbePayloadSize(echoPort));
+      else
+        payloadTag = -1;
+    }
+    int udpPortTag = tcpRequest(ControlOp.UDP_PORT);
+    tcpFlush();
+    if (!probePayload) { 
+      awaitAndSetId(idTag);
+      awaitChannel(channelTag);
+      awaitAndSetRole(roleTag);
+    }
+    if (payloadTag >= 0)
+      awaitAndSetPayloadSize(payloadTag);
+    awaitAndSetUdpPort(udpPortTag);
+
     setUpUdpSending();
   }
 
-  private int getUdpReceiverPort() {
-    return udpReceiverSocket.getLocalPort();
+  /**
+    * Finds the biggest payload size, no more than server agreed to, that gets to its echo port and back.
+    */
+  private int udpProbePayloadSize(int echoPort) { 
+    DatagramReceiver socket = null;
+    try { 
+      socket = new DatagramReceiver(0);
+      InetSocketAddress echo = new InetSocketAddress(InetAddress.getByName(ipHost), echoPort);
+      log("Probing payload sizes up to " + payloadSize + " against " + echo);
+      int probed = PayloadProbe.probe(socket, echo, payloadSize);
+      log("Biggest payload size that got there and back: " + probed);
+      return probed;
+    } catch (IOException e) { 
+      e.printStackTrace();
+      return Math.min(payloadSize, AudioPacket.defaultPayload);
+    } finally { 
+      try { 
+        if (socket != null)
+          socket.close();
+      } catch (IOException e) { 
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+    * Makes jitterBuffer ready for audio sent in packets of this much audio, as the server said.
+    *
+    * @param payload  audio bytes per packet, or -1 if server didn't say, so it's the default.
+    */
+  private void setReceivePayloadSize(int payload) { 
+    if (payload <= 0)
+      payload = AudioPacket.defaultPayload;
+    if (jitterBuffer == null || payload != receivePayloadSize) { 
+      log("Audio arrives in packets of " + payload + " bytes.");
+      jitterBuffer = new JitterBuffer(payload);
+      receivePayloadSize = payload;
+    }
   }
 
-  private void udpSetTimeout(int ms) {
+  private int getUdpReceiverPort() {
     try {
-      udpSocket.setSoTimeout(ms);
-    } catch (SocketException e) {
+      return udpReceiver.getLocalPort();
+    } catch (IOException e) {
       e.printStackTrace();
+      return -1;
     }
   }
 
   
   /**
-    * Transfers audio from server for playing.
+    * Joins the multicast group the server named in the MULTICAST_LOOP message just received,
+    * if we haven't already.
+    *
+    * @return false if we've only just joined, so the loop's already partly gone by and is
+    *         skipped, or if joining failed. Either way, ask for the next loop.
     */
-  private void udpReceiveAudioFromSender() {
-    DatagramPacket packet;
-    byte[] packetBytes = new byte[udpMaxPayload];
-
-    int byteI = 0;
+  private boolean udpJoinMulticastGroup() { 
+    int address = control.getArg(2);
+    int port = control.getArg(3);
+    if (multicastReceiver != null && address == multicastAddress && port == multicastPort)
+      return true;
 
-    try {
-      udpReceiverSocket.setSoTimeout(2000);
-    } catch (SocketException e) {
+    try { 
+      if (multicastReceiver != null)
+        multicastReceiver.close();
+      MulticastGroup group = new MulticastGroup(address, port, MulticastGroup.interfaceNamed(multicastInterfaceName));
+      log("Joining multicast group " + group);
+      multicastReceiver = DatagramReceiver.join(group, multicastReceiveBufferSize);
+      multicastAddress = address;
+      multicastPort = port;
+    } catch (IOException e) { 
       e.printStackTrace();
+      multicastReceiver = null;
     }
+    return false;
+  }
 
-    int arrLen = getArrayLength();
-    while (byteI < arrLen - udpMaxPayload) {
-        packet = new DatagramPacket(packetBytes, packetBytes.length);
+  /**
+    * Transfers audio from server for playing. Packets are put in place by their offset,
+    * whatever order they come in, and played as soon as they and all before them are in,
+    * so only the jitter buffer's window of the loop is held however long it is. A lost
+    * packet holds up what's behind it only as long as the jitter buffer reckons stragglers
+    * can take. Once the loop stops arriving we wait only that long too, and what's missing
+    * is played as silence, unless we're asking for it again, in which case we send a NACK
+    * to where the audio came from and wait a round trip for it, a few times at most.
+    *
+    * @param receiver  socket the audio arrives on: our own, or the multicast group's.
+    * @param firstSeq  for the multicast group, sequence number of the loop's first packet,
+    *                  so other loops' packets can be told apart; otherwise -1.
+    */
+  private void udpReceiveAudioFromSender(DatagramReceiver receiver, int firstSeq) {
+    ByteBuffer packetBuffer = bufferPool.acquire();
+    boolean fromGroup = receiver == multicastReceiver;
 
-        try {
-          udpReceiverSocket.receive(packet);
-        } catch (SocketTimeoutException e) {
-          log("**** UDP TIMEOUT ****");
-          break; // This is the normal course of events.
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
+    if (playback == null) { 
+      playback = new PlaybackEngine(mixerName);
+      playback.start();
+    }
+    if (fromGroup)
+      jitterBuffer.startLoop(getArrayLength(), playbackOutput, firstSeq);
+    else
+      jitterBuffer.startLoop(getArrayLength(), playbackOutput);
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(udpFirstPacketTimeoutMs);
+    SocketAddress audioSource = null;
+    int nackRounds = 0;
 
-        try { 
-          System.arraycopy(packetBytes, 0, soundBytes, byteI, packetBytes.length);
-        } catch (ArrayIndexOutOfBoundsException e) { 
-          e.printStackTrace();
-          log("packetBytes.length: " + packetBytes.length);
-          log("soundBytes.length: " + soundBytes.length);
-          log("byteI: " + byteI);
-          log("arrLen: " + arrLen);
-        }
+    try {
+      while (!jitterBuffer.isComplete()) {
+
+          long wakeAt = deadline;
+          if (jitterBuffer.isHolding() && jitterBuffer.getHoldDeadline() - deadline < 0)
+            wakeAt = jitterBuffer.getHoldDeadline();
+          long waitMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(wakeAt - System.nanoTime() + 999999));
+          packetBuffer.clear();
+          SocketAddress from;
+          try {
+            from = receiver.receive(packetBuffer, waitMs);
+            if (from == null) {
+              long now = System.nanoTime();
+              jitterBuffer.playLate(now);
+              if (now - deadline < 0)
+                continue;
+              if (nack && !fromGroup && audioSource != null && nackRounds < maxNackRounds && udpSendNack(audioSource, now)) {
+                nackRounds++;
+                deadline = now + jitterBuffer.getRetransmitWaitNanos();
+                continue;
+              }
+              log("**** UDP TIMEOUT ****");
+              break;
+            }
+          } catch (IOException e) {
+            e.printStackTrace();
+            break;
+          }
 
-        byteI += udpMaxPayload;
-    
+          packetBuffer.flip();
+          long arrival = System.nanoTime();
+          if (jitterBuffer.offer(packetBuffer, arrival)) {
+            audioSource = from;
+            long expected = jitterBuffer.getDeadline();
+            deadline = nackRounds == 0 ? expected : Math.max(deadline, expected); // Don't cut short a wait for retransmissions.
+          }
+          jitterBuffer.playLate(arrival);
+      
+      }
+    } finally {
+      bufferPool.release(packetBuffer);
+      jitterBuffer.finishLoop();
     }
 
+    log("Received final byte: " + jitterBuffer.getBytesReceived() + " (missing packets: " + jitterBuffer.getPacketsMissing()
+        + ", recovered: " + jitterBuffer.getPacketsRecovered()
+        + (nack ? ", retransmitted: " + jitterBuffer.getPacketsRetransmitted() + " in " + nackRounds + " NACKs, mean "
+            + TimeUnit.NANOSECONDS.toMicros(jitterBuffer.getMeanRecoveryNanos()) + "us" : "")
+        + ", jitter: " + TimeUnit.NANOSECONDS.toMicros(jitterBuffer.getJitterNanos()) + "us, playout delay: "
+        + TimeUnit.NANOSECONDS.toMillis(jitterBuffer.getPlayoutDelayNanos()) + "ms)");
 
-    log("Received final byte: " + byteI);
-
-    udpSetTimeout(100);
-    
+  }
 
+  /**
+    * Ask where the audio came from for the packets of the loop still missing.
+    *
+    * @return whether there was anything to ask for.
+    */
+  private boolean udpSendNack(SocketAddress audioSource, long now) throws IOException {
+    int asked = jitterBuffer.putNack(nackBuffer, nackSeq++, now);
+    if (asked == 0)
+      return false;
+    log("Asking again for " + asked + " lost packets.");
+    udpReceiver.send(nackBuffer, audioSource);
+    return true;
   }
 
   /**
-    * Listen for a TCP message from server.
+    * Listen for a TCP message from server. Its tag and arguments can then be had from control.
     *
-    * @return message
+    * @return message, or null if the connection's gone.
     */
 
-  private String tcpListen() {
-    String msg = null;
+  private ControlOp tcpListen() {
+    ControlOp msg = null;
     try {
-      msg = bufferedReader.readLine();
+      msg = control.receive();
     } catch (IOException e) {
       e.printStackTrace();
     }
     return msg;
   }
 
-  /**
-    * Wait for a message from server and reply.
-    *
-    * @param expected   expected message, for eg logging and checking.
-    * @param sendThis   message to reply with.
-    * @return           what was received.
-    */
-  private String tcpExpectAndSend(String expected, String sendThis) {
-    String request = null;
-    log("Waiting for message from SoundServerThread: " + expected);
-    request = tcpListen();
-    log("Message received.");
-    if (request.startsWith(expected)) {
-      log("Message received was as expected.");
-      printWriter.println(sendThis);
-      log("Sent this message: " + sendThis);
-    } else {
-      log("SoundServerThread sent this instead of '" + expected + "': " + request);
-    }
-    return request;
-  }
-
-  private void tcpExpectAndSetArrayLength() {
-    String request = tcpExpectAndSend("ACK_LENGTH", "ACK_LENGTH"); // todo: rewrite, this is confusing.
-    Pattern p = Pattern.compile("\\d+");
-    Matcher m = p.matcher(request);
-    m.find();
-    setArrayLength(Integer.parseInt(m.group(0)));
-    log("Array length set to " + getArrayLength());
-  }
-  
   private void setArrayLength(int len) {
     receiveArrayLength = len;
   }
@@ -413,16 +887,55 @@ public class SoundClient {
 
 
 
-  private void tcpSend(String message) {
-    log("Sending TCP message: " + message);
-    printWriter.println(message);
+  /**
+    * Queue a message for server. Goes when tcpFlush() is called.
+    */
+  private void tcpSend(ControlOp message) {
+    if (isLogging(LogLevel.DEBUG))
+      debug("Sending TCP message: " + message);
+    try {
+      control.send(message);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+    * Queue a reply to the message last received from server.
+    */
+  private void tcpReply(ControlOp message) {
+    if (isLogging(LogLevel.DEBUG))
+      debug("Sending TCP message: " + message);
+    try {
+      control.reply(message);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void tcpReply(ControlOp message, int arg) {
+    if (isLogging(LogLevel.DEBUG))
+      debug("Sending TCP message: " + message + " " + arg);
+    try {
+      control.reply(message, arg);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void tcpFlush() {
+    try {
+      control.flush();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
   }
 
 
   private void udpSetUpReceiverSocket() {
     if (!udpReceiverIsUp) {
       try {
-        udpReceiverSocket = new DatagramSocket();
+        udpReceiver = new DatagramReceiver(0);
         udpReceiverIsUp = true;
       } catch (IOException e) {
         e.printStackTrace();
@@ -432,42 +945,133 @@ public class SoundClient {
 
 
   /**
-    * Play audio received from server.
+    * Marks the end of the loop just received, whose audio's queued to play as it arrived.
+    * Waits while enough is queued already, so we ask for the next loop as this one's being played.
     */
-  private void playAudio(byte[] bytes) {
+  private void endPlayingLoop() {
 
-    log("Playing audio byte array of length " + bytes.length);
+    log("Queued loop of length " + getArrayLength() + " to play (loops played: " + playback.getLoopsPlayed()
+        + ", gaps in playing: " + playback.getUnderruns() + ")");
     try {
-      ByteArrayInputStream bais = new ByteArrayInputStream(bytes, 0, bytes.length);
-      log("available: " + bais.available());
-
-      AudioInputStream stream; // input stream with format and length
-      AudioFormat format;
-      DataLine.Info info;
-      Clip clip;
-
-      stream = AudioSystem.getAudioInputStream(bais);
-      format = stream.getFormat();
-      info = new DataLine.Info(Clip.class, format);
-      clip = (Clip) AudioSystem.getLine(info);
-      clip.open(stream);
-      clip.start();
-      do {
-        Thread.sleep(1);
-      } while (clip.isActive());
-    } catch (Exception e) {
+      playback.endLoop();
+    } catch (InterruptedException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+    * Starts sending heartbeats to server, unless we don't, and queues word of how often they'll
+    * come, to go with the next request. Heartbeats go till we exit, as we're sender from now on.
+    */
+  private void startHeartbeats() { 
+    if (heartbeatMs <= 0 || heartbeatSender != null)
+      return;
+    tcpRequest(ControlOp.HEARTBEAT, heartbeatMs); // No reply comes.
+    heartbeatSender = new HeartbeatSender(udpChannel, udpServerAddress, getId(), heartbeatMs);
+    heartbeatSender.start();
+    log("Sending heartbeats every " + heartbeatMs + " ms.");
+  }
+
+  /**
+    * Offers server to stand by to take over as sender: loads our audio, tells server now all it
+    * would be told when we took over, and if it takes up the offer, keeps the way to its UDP
+    * port open with keepalives. Then if we're to take over, audio goes as soon as we're told.
+    */
+  private void tcpOfferStandby() { 
+    int length = 0;
+    if (streaming) { 
+      try { 
+        WavFile wav = WavFile.open(Paths.get(audioFilename));
+        chooseCodec(wav.getFormat());
+        length = codec.encodedLength(soundFormatToSend, wav.getDataLength());
+      } catch (IOException e) { 
+        e.printStackTrace();
+        return;
+      }
+    } else { 
+      readSoundFileIntoByteArray(audioFilename);
+      length = soundLengthToSend;
+    }
+
+    int[] args = new int[StandbyArgs.count];
+    StandbyArgs.put(soundFormatToSend, length, streaming, heartbeatMs, keepaliveMs, args);
+    int tag = -1;
+    try { 
+      tag = control.request(ControlOp.STANDBY, args, args.length);
+    } catch (IOException e) { 
+      e.printStackTrace();
+    }
+    tcpFlush();
+    ControlOp reply = tcpWaitForReply(tag);
+    if (reply != ControlOp.STANDBY || control.getArg() != 1) { 
+      log("Server didn't take up offer to stand by.");
+      return;
+    }
+    standingBy = true;
+    heartbeatSender = new HeartbeatSender(udpChannel, udpServerAddress, getId(), keepaliveMs);
+    heartbeatSender.start();
+    log("Standing by to take over as sender. Sending keepalives every " + keepaliveMs + " ms.");
+  }
+
+  /**
+    * Starts sending as we told server we would when we offered to stand by. Keepalives become
+    * heartbeats at their usual rate, or stop if we don't send them. Nothing needs saying over TCP.
+    */
+  private void takeOverFromStandby() { 
+    standingBy = false;
+    if (heartbeatMs > 0) { 
+      heartbeatSender.setIntervalMs(heartbeatMs);
+      log("Sending heartbeats every " + heartbeatMs + " ms.");
+    } else { 
+      heartbeatSender.stopSending();
+      heartbeatSender = null;
+    }
+  }
+
+  /**
+    * Tell server the format of the audio we'll send, so it needn't be found in the audio.
+    */
+  private void tcpSendAudioFormat() { 
+    AudioFormatArgs.put(soundFormatToSend, formatArgs);
+    log("Requesting " + ControlOp.AUDIO_FORMAT + " " + soundFormatToSend + " from server.");
+    int tag = -1;
+    try { 
+      tag = control.request(ControlOp.AUDIO_FORMAT, formatArgs, formatArgs.length);
+    } catch (IOException e) { 
       e.printStackTrace();
     }
+    tcpFlush();
+    ControlOp reply = tcpWaitForReply(tag);
+
+    if (reply == ControlOp.AUDIO_FORMAT)
+      log("Server thread says it has the audio format.");
+    else { 
+      log("Unexpected reply when sending audio format: " + reply);
+    }
+  }
+
+  /**
+    * Takes the format of the audio we'll receive from the AUDIO_FORMAT message just received.
+    */
+  private void setSoundFormat() { 
+    AudioFormat format = AudioFormatArgs.get(control.getArg(0), control.getArg(1), control.getArg(2), control.getArg(3),
+        control.getArg(4));
+    if (format == null) { 
+      error("Bad audio format from server. Loops will be dropped till a good one comes.");
+      soundFormat = null;
+      return;
+    }
+    soundFormat = format;
+    log("Audio format: " + soundFormat);
   }
 
   /**
     * Send server length of audio array (prior to sending audio).
     */
   private void tcpSendArrayLength() { 
-    String request = Replies.ACK_LENGTH.toString() + " " + soundBytesToSend.length;
-    String reply = tcpRequest(request);
+    ControlOp reply = tcpRequestAndWaitForReply(ControlOp.ACK_LENGTH, soundLengthToSend);
 
-    if (reply != null && reply.startsWith(Replies.ACK_LENGTH.toString()))
+    if (reply == ControlOp.ACK_LENGTH)
       log("Server thread says it's ready to receive audio of requested length.");
     else { 
       log("Unexpected reply when sending array length.");
@@ -475,49 +1079,114 @@ public class SoundClient {
   }
 
   /**
-    * Prepare wav audio for sending to server.
+    * Prepare wav audio for sending to server: its PCM audio only, with the format kept to send separately.
     */
   private void readSoundFileIntoByteArray(String filename) { 
-    Path path = Paths.get(filename);
+    FileChannel file = null;
 
     try { 
       log("Reading file " + filename + " into byte array.");
-      soundBytesToSend = Files.readAllBytes(path);
+      WavFile wav = WavFile.open(Paths.get(filename));
+      chooseCodec(wav.getFormat());
+      byte[] bytes = new byte[wav.getDataLength()];
+      file = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+      ByteBuffer dst = ByteBuffer.wrap(bytes);
+      while (dst.hasRemaining()) { 
+        if (file.read(dst, wav.getDataOffset() + dst.position()) < 0)
+          throw new IOException("Wav file cut short");
+      }
+      if (codec != AudioCodecs.pcm) { 
+        byte[] encoded = new byte[codec.encodedLength(soundFormatToSend, bytes.length)];
+        codec.encode(soundFormatToSend, bytes, 0, bytes.length, encoded, 0);
+        log("Encoded " + bytes.length + " bytes of audio to " + encoded.length + " with " + codec.getName());
+        bytes = encoded;
+      }
+      alignPayloadSizeToFrames();
+      soundLengthToSend = bytes.length;
+      int packetSize = AudioPacket.headerLength + payloadSize;
+      int packets = (bytes.length + payloadSize - 1) / payloadSize;
+      soundBytesToSend = ByteBuffer.allocateDirect(packets * packetSize);
+      for (int i = 0; i < packets; i++) {
+        soundBytesToSend.position(i * packetSize + AudioPacket.headerLength);
+        soundBytesToSend.put(bytes, i * payloadSize, Math.min(payloadSize, bytes.length - i * payloadSize));
+      }
     } catch (IOException e) { 
       e.printStackTrace();
+      System.exit(0);
+    } finally { 
+      try { 
+        if (file != null)
+          file.close();
+      } catch (IOException e) { 
+        e.printStackTrace();
+      }
     }
   }
 
   /**
-    * Send audio via UDP.
+    * Chooses the codec named on the command line to send audio in this format with, or
+    * none if it can't encode it, or its frames won't fit in a packet.
     */
-  private void udpSendSoundBytesToServerThread() { 
+  private void chooseCodec(AudioFormat pcm) { 
+    codec = AudioCodecs.named(codecName);
+    AudioFormat encoded = codec == null ? null : codec.encodedFormat(pcm);
+    if (encoded == null || codec != AudioCodecs.pcm && encoded.getFrameSize() > payloadSize) { 
+      log("Can't send " + pcm + " with codec " + codecName + " (known: " + AudioCodecs.names() + "). Sending PCM.");
+      codec = AudioCodecs.pcm;
+      encoded = pcm;
+    }
+    soundFormatToSend = encoded;
+  }
 
-    DatagramPacket packet;
+  /**
+    * Trims payloadSize to whole audio frames of what we send, so no frame is split between packets.
+    */
+  private void alignPayloadSizeToFrames() { 
+    int frameSize = Math.max(1, soundFormatToSend.getFrameSize());
+    if (payloadSize >= frameSize)
+      payloadSize -= payloadSize % frameSize;
+  }
+
+  /**
+    * Send audio via UDP. Each packet is a slice of soundBytesToSend, header and all, so nothing is allocated or copied.
+    * The final packet is whatever is left over, so server doesn't wait for it in vain.
+    */
+  private void udpSendSoundBytesToServerThread() { 
 
     int i = 0;
+    int length = soundLengthToSend;
+    int packetSize = AudioPacket.headerLength + payloadSize;
+    if (udpStreamStart == 0)
+      udpStreamStart = System.nanoTime();
     
     log("Sending sound to server thread.");
-    while (i < soundBytesToSend.length - udpMaxPayload) { 
+    while (i < length) { 
       //log("i: " + i);
-      packet = new DatagramPacket(soundBytesToSend, i, udpMaxPayload, udpHost, udpPort);
+      int packetStart = i / payloadSize * packetSize;
+      soundBytesToSend.clear();
+      AudioPacket.putHeader(soundBytesToSend, packetStart, getId(), i == 0 ? AudioPacket.LOOP_START : 0,
+          udpSeq++, i, AudioPacket.timestamp(udpStreamStart));
+      soundBytesToSend.limit(packetStart + AudioPacket.headerLength + Math.min(payloadSize, length - i));
+      soundBytesToSend.position(packetStart);
       try { 
-        udpSocket.send(packet);
+        udpChannel.send(soundBytesToSend, udpServerAddress);
       } catch (IOException e) { 
         e.printStackTrace();
       }
-      i += udpMaxPayload;
+      i += payloadSize;
     }
   }
 
+
   private void setUpUdpSending() { 
     try { 
-      udpSocket = new DatagramSocket();
+      udpChannel = DatagramChannel.open();
     } catch (IOException e) { 
       e.printStackTrace();
     }
     try { 
       udpHost = InetAddress.getByName(defaultHost); // todo: get it working over the network.
+      udpServerAddress = new InetSocketAddress(udpHost, udpPort);
     } catch (UnknownHostException e) { 
       e.printStackTrace();
     }
@@ -546,10 +1215,7 @@ public class SoundClient {
 
     log("Setting up TCP IO streams with server.");
     try { 
-      isr = new InputStreamReader(sock.getInputStream());
-      bufferedReader = new BufferedReader(isr);
-      //printWriter = new PrintWriter(sock.getOutputStream(), true); // true autoFlushes output buffer
-      printWriter = new PrintWriter(sock.getOutputStream(), true);
+      control = new ControlChannel(sock);
     } catch (IOException e) { 
       e.printStackTrace();
     }
@@ -571,100 +1237,168 @@ public class SoundClient {
     return udpPort;
   }
 
-  private void requestAndSetId() { 
-    String request = "ID";
-    String reply = tcpRequest(request);
-    if (reply != null) { 
-      id = Integer.parseInt(reply); 
-      log(request + " received: " + getId());
+  private void awaitAndSetId(int tag) { 
+    ControlOp reply = tcpWaitForReply(tag);
+    if (reply == ControlOp.ID) { 
+      id = control.getArg(); 
+      log(reply + " received: " + getId());
     } else { 
-      log("Got null reply from server when requesting " + request);
+      log("Got " + reply + " reply from server when requesting " + ControlOp.ID);
     }
   }
 
-  private void requestAndSetUdpPort() { 
-    String request = "UDP_PORT";
-    String reply = tcpRequest(request);
-    if (reply != null) { 
-      udpPort = Integer.parseInt(reply); 
-      log(request + " received: " + getUdpPort());
+  /**
+    * Queue a request to join channelName (or the unnamed channel), as a sender or, if subscribeOnly, only a receiver.
+    *
+    * @return its tag.
+    */
+  private int tcpRequestChannel() { 
+    String name = channelName == null ? "" : channelName;
+    int[] args = new int[1 + ControlMessage.stringArgs()];
+    args[0] = subscribeOnly ? ControlMessage.RECEIVER : ControlMessage.SENDER;
+    int count = ControlMessage.putString(name, args, 1);
+    log("Requesting " + ControlOp.CHANNEL + " \"" + name + "\"" + (subscribeOnly ? ", subscribing only" : "") + " from server.");
+    try { 
+      return control.request(ControlOp.CHANNEL, args, count);
+    } catch (IOException e) { 
+      e.printStackTrace(); 
+      return -1;
+    }
+  }
+
+  /**
+    * @param tag  of the CHANNEL request, or -1 if none was made.
+    */
+  private void awaitChannel(int tag) { 
+    if (tag < 0)
+      return;
+    ControlOp reply = tcpWaitForReply(tag);
+    if (reply == ControlOp.CHANNEL)
+      log(reply + " received: on channel " + control.getArg());
+    else
+      log("Got " + reply + " reply from server when requesting " + ControlOp.CHANNEL);
+  }
+
+  private void awaitAndSetUdpPort(int tag) { 
+    ControlOp reply = tcpWaitForReply(tag);
+    if (reply == ControlOp.UDP_PORT) { 
+      udpPort = control.getArg(); 
+      log(reply + " received: " + getUdpPort());
     } else { 
-      log("Got null reply from server when requesting " + request);
+      log("Got " + reply + " reply from server when requesting " + ControlOp.UDP_PORT);
     }
   }
 
-  private void requestAndSetRole() { 
-    String request = "ROLE";
-    String reply = tcpRequest(request);
+  /**
+    * @return UDP port server echoes payload size probes on, or -1 if it didn't agree a size.
+    */
+  private int awaitAndSetPayloadSize(int tag) { 
+    ControlOp reply = tcpWaitForReply(tag);
+    if (reply == ControlOp.PAYLOAD_SIZE && control.getArg() > 0) { 
+      payloadSize = control.getArg();
+      log(reply + " received: " + payloadSize + ", probe port " + control.getArg(1));
+      return control.getArg(1);
+    } else { 
+      log("Got " + reply + " reply from server when requesting " + ControlOp.PAYLOAD_SIZE + ". Using " + AudioPacket.defaultPayload);
+      payloadSize = Math.min(payloadSize, AudioPacket.defaultPayload);
+      return -1;
+    }
+  }
 
-    if (reply == null) 
-      log("Got null reply from server when requesting " + request);
+  private void awaitAndSetRole(int tag) { 
+    ControlOp reply = tcpWaitForReply(tag);
+
+    if (reply != ControlOp.ROLE) 
+      log("Got " + reply + " reply from server when requesting " + ControlOp.ROLE);
     else {
-      if (reply.contains("RECEIVER")) { 
+      if (control.getArg() == ControlMessage.RECEIVER) { 
         role = Role.RECEIVER;
         log("Role set to " + getRole()); 
       }
-      else if (reply.contains("SENDER")) {
+      else if (control.getArg() == ControlMessage.SENDER) {
         role = Role.SENDER;
         log("Role set to " + getRole()); 
       }
       else {
-        log("Unexpected reply from server when requesting " + request + ": " + reply);
+        log("Unexpected reply from server when requesting " + ControlOp.ROLE + ": " + control.getArg());
       }
     }
 
   }
 
-  private String tcpRequest(String request) { 
-    String reply = null;
-    if (printWriter != null) { 
-      log("Requesting " + request + " from server.");
-      printWriter.println(request);   
-      try { 
-        reply = bufferedReader.readLine();
-      } catch (IOException e) { 
-        e.printStackTrace(); 
-      }
-    } else { 
-      log("Can't request " + request + " - no IO stream set up with server.");
+  /**
+    * Queue a request for server. Goes when tcpFlush() is called.
+    *
+    * @return its tag, which its reply will have.
+    */
+  private int tcpRequest(ControlOp request) { 
+    if (isLogging(LogLevel.DEBUG))
+      debug("Requesting " + request + " from server.");
+    try { 
+      return control.request(request);
+    } catch (IOException e) { 
+      e.printStackTrace(); 
+      return -1;
     }
-    return reply;
   }
 
-  private String tcpSendAndWaitForReply(String message) { 
-    String reply = null;
-    if (printWriter != null) { 
-      log("Sent TCP message: " + message);
-      printWriter.println(message);   
-      try { 
-        reply = bufferedReader.readLine();
-        log("Received TCP reply from server: " + reply);
-      } catch (IOException e) { 
-        e.printStackTrace(); 
-      }
-    } else { 
-      log("Can't send message - no IO stream set up with server.");
+  private int tcpRequest(ControlOp request, int arg) { 
+    if (isLogging(LogLevel.DEBUG))
+      debug("Requesting " + request + " " + arg + " from server.");
+    try { 
+      return control.request(request, arg);
+    } catch (IOException e) { 
+      e.printStackTrace(); 
+      return -1;
     }
-    return reply;
   }
 
-  private String tcpWaitForMessage(String message) { 
-    log("Waiting for TCP message: " + message);
+  private ControlOp tcpRequestAndWaitForReply(ControlOp request) { 
+    int tag = tcpRequest(request);
+    tcpFlush();
+    return tcpWaitForReply(tag);
+  }
+
+  private ControlOp tcpRequestAndWaitForReply(ControlOp request, int arg) { 
+    int tag = tcpRequest(request, arg);
+    tcpFlush();
+    return tcpWaitForReply(tag);
+  }
+
+  /**
+    * @return reply to the request with this tag, or null if the connection's gone.
+    */
+  private ControlOp tcpWaitForReply(int tag) { 
+    ControlOp reply = null;
     try { 
-      message = bufferedReader.readLine();
-      log("Received TCP message: " + message);
+      reply = control.receiveReply(tag);
+      if (isLogging(LogLevel.DEBUG))
+        debug("Received TCP reply from server: " + reply);
     } catch (IOException e) { 
       e.printStackTrace(); 
     }
-    return message;
+    return reply;
+  }
+
+  private ControlOp tcpWaitForMessage(ControlOp message) { 
+    if (isLogging(LogLevel.DEBUG))
+      debug("Waiting for TCP message: " + message);
+    ControlOp received = tcpListen();
+    if (isLogging(LogLevel.DEBUG))
+      debug("Received TCP message: " + received);
+    return received;
   }
 
   private void log(String msg) { 
     logger(loggingName + "-" + getId(), msg);
   }
 
+  private void debug(String msg) { 
+    logger(LogLevel.DEBUG, loggingName + "-" + getId(), msg);
+  }
+
   private void error(String msg) { 
-    logger(loggingName + "-" + getId() + ": ERROR",  msg);
+    logger(LogLevel.ERROR, loggingName + "-" + getId(), msg);
   }
 
 }
@@ -1,5 +1,6 @@
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
@@ -7,9 +8,17 @@ import java.net.UnknownHostException;
 
 import java.io.*;
 import java.util.*;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.Lock;
+
+import audio.AudioRing;
+
+import net.AudioPacket;
+import net.Heartbeat;
+import net.MulticastGroup;
+import net.ProbeEchoer;
+
+import util.VirtualThreads;
 
 import static util.SoundUtil.*;
 
@@ -40,37 +49,219 @@ public class SoundServer {
     */
   private int nextUdpPort;
 
+
+  /**
+    * Bytes of audio frames (UDP packets) the shared storage holds, roughly. A couple of megabytes.
+    */
+  private final static int ringBytes = 4096 * (AudioPacket.headerLength + AudioPacket.defaultPayload);
+
+  /**
+    * Fewest frames the shared storage holds, however big they are, so receiver-handlers have some slack.
+    */
+  private final static int minRingFrames = 256;
+
+  private final static int defaultFecGroupSize = 8;
+
+  private final static int defaultRetransmitRate = 500;
+
   /**
-    * Whether client connecting to server thread was first (ie sender client).
+    * Channels by name, each with its own storage for audio and failover info, made when first
+    * asked for. Threads of one channel share its storage: one writes and the rest read, without locking.
     */
-  private boolean isFirstClient;
+  private final Map<String, SoundChannel> channels;
 
+  /**
+    * Held while a channel's looked up or made. Not synchronized, as making one opens its
+    * multicast publisher, and a handler on a virtual thread mustn't block holding a monitor.
+    */
+  private final ReentrantLock channelsLock = new ReentrantLock();
+
+  /**
+    * UDP port payload size probes are echoed on.
+    */
+  private int probePort;
+
+  /**
+    * Data packets per forward error correction group sent to receivers.
+    */
+  private int fecGroupSize;
+
+  /**
+    * Parity packets per group sent to receivers. 0 means no forward error correction.
+    */
+  private int fecParityCount;
 
   /**
-    * This the lock shared between the server threads which keeps audio from being written as it's read.
+    * Most packets a second resent to each receiver that asks for them again. 0 means none are.
     */
-  private ReentrantReadWriteLock lock;
+  private int retransmitRate;
 
   /**
-    * Storage for audio, shared between server threads, for each receiving into or sending out of.
+    * Group audio is multicast to, for receivers that can take it, or null to unicast to each receiver.
     */
-  private ByteArrayOutputStream byteStream;
+  private MulticastGroup multicastGroup;
 
   /**
-    * Info shared between threads for managing failover in the event that sender client dies.
+    * Most audio bytes per packet a client may agree to (see net.ControlOp.PAYLOAD_SIZE).
     */
-  private SharedFailoverInfo failoverInfo;
+  private int maxPayload;
+
+  /**
+    * Most senders mixed on each channel, or 0 for one sender per channel at a time.
+    */
+  private int maxMixInputs;
+
+  private final static int defaultMixInputs = 32;
+
+  /**
+    * Heartbeats in a row a sender client that sends them may miss before it's taken to be dead.
+    */
+  private int heartbeatMisses;
+
+  private final static ThreadFactory platformThreads = new ThreadFactory() { 
+    public Thread newThread(Runnable handler) { 
+      return new Thread(handler);
+    }
+  };
+
+  /**
+    * Makes the thread each client's handled on: a platform thread unless setVirtualThreads() says otherwise.
+    */
+  private ThreadFactory handlerThreads;
 
   public SoundServer() { 
     defaultTcpPort = 789;
     firstClientId = 1;
     nextClientId = firstClientId;
     nextUdpPort = firstUdpPort;
-    isFirstClient = true;
-    lock = new ReentrantReadWriteLock(true);  // 'true' means lock should go to waiting 
-                                              // writer when all readers have given up their lock
-    byteStream = new ByteArrayOutputStream();
-    failoverInfo = new SharedFailoverInfo(firstUdpPort);  
+    channels = new HashMap<String, SoundChannel>();
+    fecGroupSize = defaultFecGroupSize;
+    fecParityCount = 0;
+    retransmitRate = 0;
+    maxPayload = AudioPacket.defaultPayload;
+    heartbeatMisses = Heartbeat.defaultMisses;
+    handlerThreads = platformThreads;
+  }
+
+  /**
+    * Have audio sent to receivers protected by forward error correction (see net.FecEncoder).
+    *
+    * @param groupSize    data packets per group.
+    * @param parityCount  parity packets per group, or 0 for none.
+    */
+  public void setFec(int groupSize, int parityCount) { 
+    fecGroupSize = groupSize;
+    fecParityCount = parityCount;
+  }
+
+  /**
+    * Have packets receivers say they lost (see net.Nack) resent, up to a rate.
+    *
+    * @param packetsPerSecond  most packets a second resent to each receiver, or 0 for none.
+    */
+  public void setRetransmitRate(int packetsPerSecond) { 
+    retransmitRate = packetsPerSecond;
+  }
+
+  /**
+    * Have audio sent once to a multicast group for receivers that can take it, rather than
+    * to each receiver separately. Receivers that can't are still sent it separately.
+    *
+    * @param group  the group, or null to send to each receiver separately.
+    */
+  public void setMulticast(MulticastGroup group) { 
+    multicastGroup = group;
+  }
+
+  /**
+    * Have every client on a channel that may send be a sender, and mix what they send (see ChannelMixer)
+    * rather than having one sender at a time, with the rest waiting to take over.
+    *
+    * @param maxInputs  most senders mixed on each channel, or 0 for one sender at a time.
+    */
+  public void setMix(int maxInputs) { 
+    maxMixInputs = Math.max(0, maxInputs);
+  }
+
+  /**
+    * Let clients agree to packets of up to this much audio (see net.ControlOp.PAYLOAD_SIZE).
+    * Frames of the shared storage are made this big, header and all.
+    */
+  public void setMaxPayload(int bytes) { 
+    maxPayload = Math.max(1, Math.min(AudioPacket.maxPayload, bytes));
+  }
+
+  /**
+    * Have a sender client that sends heartbeats (see net.Heartbeat) taken to be dead, and failed
+    * over from, once it's missed this many in a row.
+    */
+  public void setHeartbeatMisses(int misses) { 
+    heartbeatMisses = Math.max(1, misses);
+  }
+
+  /**
+    * Have each client handled on a virtual thread rather than a platform thread, so that
+    * clients that are idle, or slow, cost little more than their sockets and buffers. Virtual
+    * threads need Java 21; on an earlier JVM clients are handled on platform threads as usual.
+    *
+    * @return whether clients will be handled on virtual threads.
+    */
+  public boolean setVirtualThreads(boolean virtual) { 
+    handlerThreads = virtual && VirtualThreads.available() ? VirtualThreads.factory() : platformThreads;
+    return handlerThreads != platformThreads;
+  }
+
+  /**
+    * @return heartbeats in a row a sender client may miss before it's taken to be dead.
+    */
+  int getHeartbeatMisses() { 
+    return heartbeatMisses;
+  }
+
+  /**
+    * @return number of frames of the shared storage: a power of two, as AudioRing needs, making about ringBytes.
+    */
+  static int ringFrames(int frameSize) { 
+    return Math.max(minRingFrames, Integer.highestOneBit(ringBytes / frameSize));
+  }
+
+  /**
+    * @return channel with this name, made if it's the first time it's been asked for.
+    * @throws IOException if its multicast publisher can't be set up.
+    */
+  SoundChannel joinChannel(String name) throws IOException { 
+    channelsLock.lock();
+    try { 
+      SoundChannel channel = channels.get(name);
+      if (channel == null) { 
+        int id = channels.size();
+        int frameSize = AudioPacket.headerLength + maxPayload; // Whole datagrams, so frames can be forwarded as received.
+        channel = new SoundChannel(name, id, new AudioRing(ringFrames(frameSize), frameSize), channelMulticastGroup(id),
+            fecGroupSize, fecParityCount, maxPayload, maxMixInputs);
+        channels.put(name, channel);
+        log("Channel " + channel + " opened" + (channel.getMulticastGroup() == null ? "." : ", multicast to " + channel.getMulticastGroup()));
+      }
+      return channel;
+    } finally { 
+      channelsLock.unlock();
+    }
+  }
+
+  /**
+    * @return group a channel's audio is multicast to: the server's, on the port after the last
+    *         channel's, or null if audio isn't multicast.
+    */
+  private MulticastGroup channelMulticastGroup(int channelId) { 
+    if (multicastGroup == null)
+      return null;
+    return new MulticastGroup(multicastGroup.getAddress(), multicastGroup.getPort() + channelId, multicastGroup.getNetworkInterface());
+  }
+
+  /**
+    * @return UDP port payload size probes are echoed on.
+    */
+  int getProbePort() { 
+    return probePort;
   }
 
   /**
@@ -92,36 +283,102 @@ public class SoundServer {
     * @throws IOException on socket setup failure.  
     */
   public void launch() throws IOException { 
-    log("Starting SoundServer");
+    log("Starting SoundServer, handling each client on a " + (handlerThreads == platformThreads ? "platform" : "virtual") + " thread.");
     log("Creating TCP socket.");
     serverSocket = new ServerSocket(defaultTcpPort); 
     log("Listening for TCP client.");
 
-    // A thread handles each client. First client will end up sender.
-
-    Socket socket = serverSocket.accept();
-    log("Connection with first client established. This client will be the sender.");
-    new SoundServerThread(socket, nextClientId(), nextUdpPort(), isFirstClient, lock, byteStream, failoverInfo).start();
+    ProbeEchoer probeEchoer = new ProbeEchoer(0);
+    probeEchoer.start();
+    probePort = probeEchoer.getLocalPort();
+    log("Packets carry up to " + maxPayload + " bytes of audio. Echoing payload size probes on UDP port " + probePort);
+    joinChannel(""); // The unnamed channel, for clients that don't name one, gets the first multicast port.
 
-    isFirstClient = false;
-
-    // Subsequent clients will be receivers (at least start out that way).
+    // A thread handles each client. First client on a channel that may send will end up its sender;
+    // later ones will be receivers (at least start out that way).
 
     while(true) { 
-      socket = serverSocket.accept();
-      log("Connection with additional client established. This client will be a receiver.");
-      new SoundServerThread(socket, nextClientId(), nextUdpPort(), isFirstClient, lock, byteStream, failoverInfo).start();
+      Socket socket = serverSocket.accept();
+      socket.setTcpNoDelay(true); // Messages are batched till flushed, so none should wait on the last one's ACK.
+      log("Connection with client established.");
+      int clientId = nextClientId();
+      Thread handler = handlerThreads.newThread(new SoundServerThread(socket, clientId, nextUdpPort(), this, fecGroupSize, fecParityCount, retransmitRate));
+      handler.setName("SoundServerThread-" + clientId);
+      handler.start();
     }
   }
 
+  /**
+    * Launches the event-driven server instead, which serves all clients from a fixed number of threads.
+    * @param loopCount number of event loops (threads).
+    * @throws IOException on socket setup failure.  
+    */
+  public void launchNio(int loopCount) throws IOException { 
+    NioSoundServer server = new NioSoundServer(defaultTcpPort, firstUdpPort, loopCount);
+    server.setFec(fecGroupSize, fecParityCount);
+    server.setRetransmitRate(retransmitRate);
+    server.setMaxPayload(maxPayload);
+    server.setMulticast(multicastGroup);
+    server.setMix(maxMixInputs);
+    server.setHeartbeatMisses(heartbeatMisses);
+    server.launch();
+  }
+
   static void log(String msg) { 
     logger(programName, msg);
   }
 
+  /**
+    * Usage: java SoundServer [--nio [--loops n]] [--fec-parity m [--fec-group k]] [--nack [--nack-rate n]]
+    *                          [--multicast [--multicast-group a.b.c.d] [--multicast-port n] [--multicast-if name]]
+    *                          [--max-payload n] [--mix [--mix-inputs n]] [--heartbeat-misses n] [--virtual-threads]
+    *                          [--log-level level]
+    *
+    * --nio         serve clients from a few event loops rather than a thread per client.
+    * --loops       number of event loops for --nio (default: one per core).
+    * --fec-parity  parity packets sent to receivers per group of audio packets (default: 0, none).
+    * --fec-group   audio packets per group (default: 8).
+    * --nack        resend packets receivers say they lost.
+    * --nack-rate   most packets a second resent to each receiver (default: 500).
+    * --multicast   send audio once to a multicast group for receivers started with --multicast.
+    *               Other receivers are sent it separately as usual.
+    * --multicast-group, --multicast-port  the group (default: 239.255.77.77:42000).
+    * --multicast-if                       interface to send on (default: loopback).
+    * --max-payload most audio bytes per packet clients may agree to (default: 512, at most 65491).
+    * --mix         mix all the senders on each channel, rather than one sending while the rest wait
+    *               to take over. Clients started with --subscribe receive the mix.
+    * --mix-inputs  most senders mixed on each channel (default: 32).
+    * --heartbeat-misses  heartbeats in a row a sender client may miss before it's taken to be
+    *               dead and failed over from (default: 3). Only senders that send them are watched.
+    * --virtual-threads  handle each client on a virtual thread rather than a platform thread,
+    *               so thousands of idle or slow clients take little memory. Needs Java 21:
+    *               on earlier JVMs it's ignored, with a warning. Not used with --nio.
+    * --log-level   least important messages to log: debug (every control message), info (the
+    *               default) or error. Messages are written on a thread of their own.
+    */
   public static void main(String[] args) { 
+    setLogLevel(args);
     SoundServer soundServer = new SoundServer();
+    soundServer.setFec(intFlag(args, "--fec-group", defaultFecGroupSize), intFlag(args, "--fec-parity", 0));
+    if (hasFlag(args, "--nack"))
+      soundServer.setRetransmitRate(Math.max(1, intFlag(args, "--nack-rate", defaultRetransmitRate)));
+    soundServer.setMaxPayload(intFlag(args, "--max-payload", AudioPacket.defaultPayload));
+    if (hasFlag(args, "--mix"))
+      soundServer.setMix(Math.max(1, intFlag(args, "--mix-inputs", defaultMixInputs)));
+    soundServer.setHeartbeatMisses(intFlag(args, "--heartbeat-misses", Heartbeat.defaultMisses));
+    if (hasFlag(args, "--virtual-threads") && !soundServer.setVirtualThreads(true))
+      log("This JVM has no virtual threads (they need Java 21). Handling clients on platform threads.");
     try { 
-      soundServer.launch();
+      if (hasFlag(args, "--multicast")) { 
+        soundServer.setMulticast(new MulticastGroup(
+            (Inet4Address) InetAddress.getByName(stringFlag(args, "--multicast-group", MulticastGroup.defaultAddress)),
+            intFlag(args, "--multicast-port", MulticastGroup.defaultPort),
+            MulticastGroup.interfaceNamed(stringFlag(args, "--multicast-if", null))));
+      }
+      if (hasFlag(args, "--nio"))
+        soundServer.launchNio(intFlag(args, "--loops", Runtime.getRuntime().availableProcessors()));
+      else
+        soundServer.launch();
     } catch (IOException e) { 
       e.printStackTrace();
     }
@@ -1,27 +1,51 @@
 import java.net.Socket;
-import java.net.DatagramSocket;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 
-import java.io.BufferedReader;
-import java.io.PrintWriter;
-import java.io.InputStreamReader;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ByteArrayInputStream;
 
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
 
-import java.util.concurrent.locks.ReentrantReadWriteLock; 
 import java.util.concurrent.TimeUnit; 
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+import javax.sound.sampled.AudioFormat;
+
+import audio.AudioRing;
+import audio.LoopScheduler;
+
+import net.AudioFormatArgs;
+import net.AudioPacket;
+import net.BufferPool;
+import net.ControlChannel;
+import net.ControlMessage;
+import net.ControlOp;
+import net.DatagramReceiver;
+import net.FecEncoder;
+import net.Heartbeat;
+import net.Liveness;
+import net.MulticastGroup;
+import net.Nack;
+import net.StandbyArgs;
+import net.TokenBucket;
+
+import util.LogLevel;
 
 import static util.SoundUtil.*;
 
-public class SoundServerThread extends Thread { 
+/**
+  * Handles one client, on a thread of its own: a platform thread, or a virtual one if the
+  * server was started with --virtual-threads. Either way it blocks on the client's sockets
+  * and on the channel's storage, and never while holding a monitor (see util.VirtualThreads).
+  */
+public class SoundServerThread implements Runnable { 
 
   /**
     * Program's name as displayed in log messages.
@@ -50,29 +74,60 @@ public class SoundServerThread extends Thread {
   private ClientRoles clientRole;
 
   /**
-    * Whether client this thread handles is the first client. The first client is the audio sender (until failover).
+    * Server whose channels client may join.
     */
-  private boolean isFirstClient;
+  private final SoundServer server;
 
   /**
-    * For receiving TCP signalling from client.
+    * Channel client joined, whose audio it sends or receives.
     */
-  private BufferedReader bufferedReader;
+  private SoundChannel channel;
 
   /**
-    * For receiving TCP signalling from client.
+    * For TCP signalling with client.
     */
-  private InputStreamReader isr;
+  private ControlChannel control;
 
   /**
-    * For sending TCP signalling to client.
+    * For receiving audio via UDP from sender client (if this thread handles the sender client).
     */
-  private PrintWriter printWriter;
+  private DatagramReceiver udpReceiver;
 
   /**
-    * For receiving audio via UDP from sender client (if this thread handles the sender client).
+    * How long to wait for each audio packet from sender client.
     */
-  private DatagramSocket udpReceivingSocket;
+  private static long udpReceiveTimeoutMs = 1000;
+
+  /**
+    * How long a streaming sender client can go without sending before it's taken to be dead.
+    */
+  private static long udpStreamTimeoutMs = 2000;
+
+  /**
+    * Tells whether sender client is still there, from its heartbeats, or null if it doesn't send
+    * them (see ControlOp.HEARTBEAT), in which case it's only missed when its audio or connection stops.
+    */
+  private Liveness senderLiveness;
+
+  /**
+    * Heartbeats in a row sender client may miss before it's taken to be dead.
+    */
+  private final int heartbeatMisses;
+
+  /**
+    * Whether sender client streams audio continuously rather than sending a loop when asked.
+    */
+  private boolean streamingSender;
+
+  /**
+    * What receiver client said, in a STANDBY request, it would send if it took over: the
+    * format, length and kind of its audio, and how often it would send heartbeats. Format's
+    * null if it's not standing by.
+    */
+  private AudioFormat standbyFormat;
+  private int standbyLength;
+  private boolean standbyStreams;
+  private int standbyHeartbeatMs;
 
   /**
     * UDP port this thread receives audio on from sender client (if this thread handles the sender client).
@@ -93,50 +148,136 @@ public class SoundServerThread extends Thread {
   }
 
   /**
-    * Possible client requests - not exhaustive.
+    * Most audio bytes per packet the client may agree to (see ControlOp.PAYLOAD_SIZE): as much as a
+    * frame of the shared storage holds. A sender client sends packets of the size agreed; a receiver
+    * client is forwarded the sender client's packets, whatever their size.
     */
-  private enum ClientRequests { 
-    ID,
-    ROLE,
-    UDP_PORT,
-    ACK_LENGTH
-  }
+  private int udpMaxPayload;
 
   /**
-    * Possible replies to client requests - not exhaustive.
+    * UDP port payload size probes are echoed on.
     */
-  private enum Replies { 
-    ACK_LENGTH
-  }
+  private final int probePort;
 
   /**
-    * UDP guarantees delivery of 576 bytes/packet without having to rely on 
-    * automatic splitting up and reassembling at the other end. Such reassembly
-    * fails if any packets are lost. As we are not dealing with lost packets, we need
-    * to stay below 576. 512 seemed to be common practice when working with
-    * this constraint.
+    * Direct buffers shared by all server threads for scratch packet space: big enough for a NACK.
     */
-  private static int udpMaxPayload = 512; 
+  private static final BufferPool bufferPool = new BufferPool(AudioPacket.headerLength + Nack.maxSlots / 8, 64);
 
   /**
-    * Shared between sending and receiving threads for storing audio.
+    * Shared between the channel's sending and receiving threads for storing audio. Written frame by frame
+    * by the sender-handling thread and read, without locking, by the receiver-handling threads.
     */
-  private ByteArrayOutputStream byteArrayOutputStream;
+  private AudioRing audioRing;
 
   /**
-    * Client sends this length before sending the audio itself so that storage can be made for it.
-    */ 
-  private int receivedAudioArrayLength;
+    * This thread's copy of the frame it is forwarding (if this thread is a receiver-handler).
+    */
+  private AudioRing.Frame frame;
+
+  /**
+    * Works out forward error correction parity for audio sent to receiver client, or null if none is sent.
+    */
+  private FecEncoder fecEncoder;
+
+  private final int fecGroupSize;
+
+  /**
+    * Parity packets per group sent to receiver client, or 0 for none.
+    */
+  private final int fecParityCount;
+
+  /**
+    * Limits how fast packets receiver client asks for again (see Nack) are resent, or null if they aren't.
+    */
+  private TokenBucket retransmitBucket;
+
+  /**
+    * Ring sequence number of the frame sent for each packet slot of the loop last sent to receiver
+    * client, or -1. NACKed packets are resent from the ring, for as long as it still holds them.
+    */
+  private long[] sentFrames = new long[0];
+
+  /**
+    * How long after sending a loop, or after the last NACK, to keep listening for NACKs.
+    */
+  private static long nackWindowMs = 2000;
+
+  /**
+    * How long each wait for a NACK lasts before checking whether receiver client has moved on.
+    */
+  private static long nackPollMs = 20;
+
+  /**
+    * Group the MulticastPublisher sends audio to, or null if there's none.
+    */
+  private MulticastGroup multicastGroup;
+
+  /**
+    * Arguments of a MULTICAST_LOOP message, reused.
+    */
+  private final int[] multicastLoopArgs = new int[5];
 
   /**
-    * For ensuring that sender-handling thread does not write to shared audio storage while receiver-handling threads are reading from it, and vice versa. 
+    * Arguments of an ARRAY_LENGTH or PAYLOAD_SIZE message, reused.
+    */
+  private final int[] replyArgs = new int[2];
+
+  /**
+    * Arguments of an AUDIO_FORMAT message, reused.
+    */
+  private final int[] formatArgs = new int[AudioFormatArgs.count];
+
+  /**
+    * Format of the audio sender client said it sends, as sent, or null if it hasn't said.
+    */
+  private AudioFormat senderFormat;
+
+  /**
+    * Way into the channel's mix for sender client's audio, if the channel mixes and its audio can be mixed.
+    */
+  private MixerFeed mixerFeed;
+
+  /**
+    * Each packet from sender client is received into this, if the channel mixes.
+    */
+  private ByteBuffer mixPacket;
+
+  /**
+    * Format of the audio receiver client was last told of, or null if it hasn't been.
+    */
+  private AudioFormat formatSent;
+
+  /**
+    * Whether receiver client asked to take its loops from the multicast group.
+    */
+  private boolean clientWantsMulticast;
+
+  /**
+    * Sequence number of the first frame of the last loop sent (or multicast) to receiver client, so it isn't sent twice.
+    */
+  private long lastLoopSent;
+
+  /**
+    * Whether receiver client has asked for an array length that it hasn't been sent yet.
+    */
+  private boolean clientAwaitingArrayLength;
+
+  /**
+    * How long a receiver-handler waits for the sender-handler to write a frame before giving up on
+    * the rest of the loop. Also how long it waits at a time for a loop to start.
+    */
+  private static long frameWaitTimeoutMs = 3000;
+
+  /**
+    * Client sends this length before sending the audio itself so that storage can be made for it.
     */ 
-  private ReentrantReadWriteLock rwLock;
+  private int receivedAudioArrayLength;
 
   /**
-    * For sending packets to receiver client (if this thread is a receiver-handler).
+    * For sending packets to receiver client, and hearing its NACKs back (if this thread is a receiver-handler).
     */
-  private DatagramSocket udpSenderSocket;
+  private DatagramReceiver udpSender;
 
   /**
     * For sending packets to receiver client (if this thread is a receiver-handler).
@@ -144,39 +285,79 @@ public class SoundServerThread extends Thread {
   private InetAddress udpReceiverHost;
 
   /**
-    * For information, shared between threads, to manage failover (ie when sender client dies and a receiver client must take over). 
+    * For information, shared between the channel's threads, to manage failover (ie when sender client dies and a receiver client must take over). 
     */
   private SharedFailoverInfo failoverInfo;
 
+  /**
+    * This thread as a candidate to take over as sender-client handler, or null if its client may not send.
+    */
+  private SharedFailoverInfo.Candidate candidate;
+
+  /**
+    * Set, by the thread that failed over, when this thread's been elected to take over as sender-client handler.
+    */
+  private volatile boolean elected;
+
+  /**
+    * Tells the shared storage to stop waiting for audio once this thread's been elected.
+    */
+  private final BooleanSupplier takingOver = new BooleanSupplier() {
+    public boolean getAsBoolean() { 
+      return elected;
+    }
+  };
+
+  /**
+    * Thread this runs on, to be woken when it's elected. Set as it starts.
+    */
+  private volatile Thread thread;
 
-  /** 
-    * Sent to receiver client to trigger it to change its role to sender during failover situation.
-    * This is done when receiver client is expecting an array length from its handling server thread.
-    * Client must be set to expect same value shown here.
+  /**
+    * Counters for the client, shown over JMX. Null until it's joined a channel.
     */
-  private static int resetClient = -1;
+  private ClientMetrics metrics;
 
-  SoundServerThread(Socket s, int id, int port, boolean isFirst, ReentrantReadWriteLock rwLock, ByteArrayOutputStream byteArrayOutputStream, SharedFailoverInfo info) { 
+  SoundServerThread(Socket s, int id, int port, SoundServer server, int fecGroupSize, int fecParityCount, int retransmitRate) { 
     tcpSocket = s;
     clientId = id; 
     udpPort = port;
-    isFirstClient = isFirst;
-    clientRole = isFirstClient ? ClientRoles.SENDER : ClientRoles.RECEIVER;   
+    this.server = server;
+    clientRole = ClientRoles.RECEIVER; // Until client's joined a channel.
     udpIsUp = false;
-    this.rwLock = rwLock;
-    this.byteArrayOutputStream = byteArrayOutputStream;
-    failoverInfo = info;
+    lastLoopSent = -1;
+    clientAwaitingArrayLength = false;
+    this.fecGroupSize = fecGroupSize;
+    this.fecParityCount = fecParityCount;
+    retransmitBucket = retransmitRate > 0 ? new TokenBucket(retransmitRate, Math.max(1, retransmitRate / 4)) : null;
+    probePort = server.getProbePort();
+    heartbeatMisses = server.getHeartbeatMisses();
 
     log("Initialized to listen on UDP port " + udpPort);
   }
 
+  public void run() { 
+    thread = Thread.currentThread();
+    try {
+      handleClient();
+    } finally {
+      if (metrics != null)
+        metrics.close();
+    }
+  }
+
   /**
     * Contains the two main loops:
     * One for sender-client handling (SCH) and another receiver-client handling (RCH). 
     */
-  public void run() { 
+  private void handleClient() { 
 
-    setUpClient();
+    if (!setUpClient()) { 
+      if (failoverInfo != null)
+        failoverInfo.leave(candidate); // Joined, but went before it could be told its role.
+      log("Lost connection with client before it joined a channel. Thread ending.");
+      return;
+    }
 
     boolean takingOverHandlingSender = false; // During failover situation 
                                               // this tells thread if it 
@@ -195,50 +376,26 @@ public class SoundServerThread extends Thread {
 
       if (clientRole == ClientRoles.RECEIVER) { 
 
-        boolean readLocked = false;
-        boolean readLockTimedOut = false;
-
         while(true) {
 
           // First check whether we are supposed to take over as sender-client handler 
           // thread (SCHT) ie because the current SCHT said there was problem with its sender client.
 
-          log("failoverInfo.isFailed(): " + failoverInfo.isFailed() + " failoverInfo.getUdpPort(): " + failoverInfo.getUdpPort());
-          if (failoverInfo.isFailed() && udpPort == failoverInfo.getUdpPort()) { 
+          if (isTakingOverHandlingSender()) { 
             log("Taking over as sender handler thread. Changing client role to sender client.");
             clientRole = ClientRoles.SENDER; 
+            metrics.setSender(true);
             takingOverHandlingSender = true;
             break;
           }
 
-          int timeout = 10; // In seconds - causes lock attempt to timeout during failover.
-
-          try { 
-            log("Waiting for read lock.");
-            readLocked = rwLock.readLock().tryLock(timeout, TimeUnit.SECONDS); // Has to be able to time out here during failover. 
-
-            if (readLocked)
-              log("Read lock obtained.");
-            else { 
-              log("Timed out waiting for read lock");
-              readLockTimedOut = true;
-            }
-
-          } catch (InterruptedException e) { 
-            e.printStackTrace();
+          if (!sendAudio()) { // Returns early if a failover starts while waiting for audio.
+            failoverInfo.leave(candidate); // Out of line to take over.
+            udpCloseReceivingSocket(); // Opened if client stood by.
+            log("Lost connection with receiver client. Thread ending.");
+            return;
           }
 
-          try {
-
-            sendAudio();
-
-          } finally {
-            if (readLocked) { 
-              rwLock.readLock().unlock(); 
-              log("Read lock released.");
-            }
-          }       
-
         } // end of while loop for receiver-client handler
 
       } // end of if block for receiver-client handler
@@ -255,11 +412,29 @@ public class SoundServerThread extends Thread {
 
         if (takingOverHandlingSender) { 
           log("Notifying client it needs to be sender now.");
-          tcpExpectAndSend("READY_FOR_ARRAY_LENGTH", new Integer(resetClient).toString());  
+          if (clientAwaitingArrayLength || tcpAwaitReadyForArrayLength() == ControlOp.READY_FOR_ARRAY_LENGTH)
+            tcpReplyBecomeSender();
+          else
+            log("Unexpected message. Not replying.");
+          clientAwaitingArrayLength = false;
         }
 
         udpSetUpReceivingSocket();
-        tcpExpectAndSetArrayLength();
+        if (takingOverHandlingSender && standbyFormat != null)
+          takeOverFromStandby();
+        else
+          tcpExpectAndSetArrayLength();
+
+        if (streamingSender) { 
+          udpReceiveStreamFromClient(); // Returns when client stops sending.
+          log(isSenderDead() ? "Sender client missed its heartbeats." : "Lost sender client's stream.");
+          closeTcp(); // In case it's alive but stuck, so it doesn't think it's still sending.
+          failOver();
+          log("Sender client gone and failover started. Thread ending.");
+          return;
+        }
+
+        LoopScheduler loopScheduler = null;
         int audioReceiveCount = 0;
         boolean lostConnection = false;
         boolean iShouldDie = false;
@@ -268,101 +443,373 @@ public class SoundServerThread extends Thread {
 
         while(true) { 
           
-          System.out.println();
-          log("Audio receive count: " + audioReceiveCount++);
-          log("Waiting for write lock.");
-          rwLock.writeLock().lock(); 
-
-          try {
-
-            log("Write lock obtained.");
-
-            try {
-              Thread.sleep(2000);
-            } catch (InterruptedException e) { 
-              e.printStackTrace();
-            }
-
-            tcpSend("READY_TO_RECEIVE");
-            String reply = tcpListen();
-
-            if (reply == null) {
-              log("Lost connection with sender client");
-              lostConnection = true; 
-              log("Releasing write lock so a new sender handling thread can take over.");
-              rwLock.writeLock().unlock(); // unlock soundBytes so it can be read by thread we're failing over to. 
-              failOver();
-              break;
-            } else if (reply.equals("READY_TO_SEND"))
-              udpReceiveAudioFromClient(); // write soundBytes
-
-          } finally {
-
-            rwLock.writeLock().unlock(); // unlock soundBytes.
-            log("Write lock released.");
+          if (isLogging(LogLevel.DEBUG))
+            debug("Audio receive count: " + audioReceiveCount);
+          audioReceiveCount++;
+
+          if (loopScheduler != null)
+            udpAwaitNextIngest(loopScheduler); // Until the loop receivers are playing is nearly over.
+
+          ControlOp reply = null;
+          long ingestStart = System.nanoTime();
+          if (!isSenderDead()) { 
+            udpDrainStalePackets();
+            tcpSend(ControlOp.READY_TO_RECEIVE);
+            reply = tcpListen();
+          }
 
-          }       
+          if (reply == null || isSenderDead()) {
+            log(reply == null ? "Lost connection with sender client" : "Sender client missed its heartbeats");
+            lostConnection = true; 
+            closeTcp(); // In case it's alive but stuck, so it doesn't think it's still sending.
+            failOver();
+            iShouldDie = true; // Otherwise we'd come round again and fail over a second time.
+            break;
+          } else if (reply == ControlOp.READY_TO_SEND) { 
+            udpReceiveAudioFromClient(); // write frames to audioRing
+            metrics.loopDone(System.nanoTime() - ingestStart);
+            if (loopScheduler == null)
+              loopScheduler = newLoopScheduler();
+            loopScheduler.loopIngested(ingestStart);
+          }
 
         } // end of while loop for sender-client handler
+
+        if (iShouldDie) { 
+          log("Sender client gone and failover started. Thread ending.");
+          return;
+        }
         
       } // end of if block for sender-client handler
 
     } // end of run() loop
 
-  } // end of run()
+  } // end of handleClient()
 
 
   /**
     * Set up communication with client for later data transfer
+    *
+    * @return false if the connection was lost before client joined a channel.
     */
-  private void setUpClient() { 
+  private boolean setUpClient() { 
 
     tcpSetUpIo();
-    tcpExpectAndSend(ClientRequests.ID.toString(), clientId.toString());
-    tcpExpectAndSend(ClientRequests.ROLE.toString(), clientRole.toString());
-    tcpExpectAndSend(ClientRequests.UDP_PORT.toString(), udpPort.toString());
+    tcpExpectAndReply(ControlOp.ID, clientId);
+    ControlOp message = tcpListen();
+    if (message == ControlOp.CHANNEL) { // Optional: without it client is on the unnamed channel, and may send.
+      String name = control.getString(1);
+      if (!joinChannel(name == null ? "" : name, control.getArg(0) != ControlMessage.RECEIVER))
+        return false;
+      tcpReply(ControlOp.CHANNEL, channel.getId());
+      message = tcpListen();
+    } else if (message != null && !joinChannel("", true)) { 
+      return false;
+    }
+    if (message == null)
+      return false;
+    if (isLogging(LogLevel.DEBUG))
+      debug("Message received: " + message);
+    if (message == ControlOp.ROLE)
+      tcpReply(ControlOp.ROLE, clientRole == ClientRoles.SENDER ? ControlMessage.SENDER : ControlMessage.RECEIVER);
+    else
+      log("Unexpected message. Not replying.");
+    message = tcpListen();
+    while (message == ControlOp.PAYLOAD_SIZE) { // Optional, and may come again after probing.
+      tcpReplyPayloadSize(control.getArg());
+      message = tcpListen();
+    }
+    if (message == ControlOp.UDP_PORT)
+      tcpReply(ControlOp.UDP_PORT, udpPort);
+    else
+      log("Unexpected message. Not replying: " + message);
+    return true;
+
+  }
 
+  /**
+    * Agrees a payload size with client: what it proposes, if the shared storage's frames hold it.
+    */
+  private void tcpReplyPayloadSize(int proposed) { 
+    int payload = Math.max(1, Math.min(proposed, udpMaxPayload));
+    replyArgs[0] = payload;
+    replyArgs[1] = probePort;
+    log("Sending TCP message: " + ControlOp.PAYLOAD_SIZE + " " + payload + " (proposed " + proposed + "), probe port " + probePort);
+    try { 
+      control.reply(ControlOp.PAYLOAD_SIZE, replyArgs, 2);
+      control.flush();
+    } catch (IOException e) { 
+      e.printStackTrace();
+    }
   }
 
   /**
     * Negotiate and carry out transfer of audio to client
+    *
+    * @return false if the client's gone.
     */
-  private void sendAudio() { 
+  private boolean sendAudio() { 
 
-    tcpWaitForMessage("READY_FOR_ARRAY_LENGTH"); // First message to expect from client. 
-    log("byteArrayOutputStream.size(): " + byteArrayOutputStream.size());
-    tcpSend(new Integer(byteArrayOutputStream.size()).toString());
-    tcpSend("READY_FOR_UDP_PORT");
-    String reply = tcpListen(); // todo: check for null (here and elsewhere!).
-    int port = Integer.parseInt(reply);
-    log("Received receiver's UDP port: " + port);
+    if (!clientAwaitingArrayLength) { 
+      if (tcpAwaitReadyForArrayLength() == null) // First message to expect from client.
+        return false;
+      clientAwaitingArrayLength = true;
+      clientWantsMulticast = control.getArg() == ControlMessage.MULTICAST;
+    }
+
+    long loopStart = awaitNextLoop();
+    if (loopStart < 0)
+      return true; // Failover: the reply the client is waiting for will be BECOME_SENDER.
+
+    clientAwaitingArrayLength = false;
+    tcpReplyFormatIfNew();
+    int loopLength = frame.loopLength;
+    int loopPayload = frame.length - AudioPacket.headerLength; // Sender client's packets are all this big but the last.
+    if (isLogging(LogLevel.DEBUG))
+      debug("Loop length: " + loopLength + " in packets of " + loopPayload);
+    if (multicastGroup != null && clientWantsMulticast) { 
+      tcpSendMulticastLoop(loopStart, loopLength, loopPayload);
+      return true;
+    }
+    replyArgs[0] = loopLength;
+    replyArgs[1] = loopPayload;
+    if (isLogging(LogLevel.DEBUG))
+      debug("Sending TCP message: " + ControlOp.ARRAY_LENGTH + " " + loopLength + " " + loopPayload);
+    try { 
+      control.reply(ControlOp.ARRAY_LENGTH, replyArgs, 2);
+    } catch (IOException e) { 
+      e.printStackTrace();
+    }
+    tcpSend(ControlOp.READY_FOR_UDP_PORT);
+    if (tcpWaitForMessage(ControlOp.RECEIVER_UDP_PORT) == null)
+      return false;
+    int port = control.getArg();
+    if (isLogging(LogLevel.DEBUG))
+      debug("Received receiver's UDP port: " + port);
     udpSetUpSenderSocket();
-    tcpWaitForMessage("READY_TO_RECEIVE");  
-    udpSendSoundBytesToClient(port);
+    if (tcpWaitForMessage(ControlOp.READY_TO_RECEIVE) == null)
+      return false;
+    InetSocketAddress clientAddress = new InetSocketAddress(tcpSocket.getInetAddress(), port);
+    long sendStart = System.nanoTime();
+    udpSendSoundBytesToClient(clientAddress, loopStart, loopLength, loopPayload);
+    metrics.loopDone(System.nanoTime() - sendStart);
+    if (retransmitBucket != null)
+      udpServeNacks(clientAddress, loopLength, loopPayload);
+    return true;
 
   }
 
   /**
-    * Update object shared between threads for managing failover so that another thread takes over as sender-client handler.
+    * Waits for receiver client to ask for the next loop's length, taking up any offer to stand
+    * by that comes first.
+    *
+    * @return message received, or null if the client's gone.
+    */
+  private ControlOp tcpAwaitReadyForArrayLength() { 
+    ControlOp message = tcpWaitForMessage(ControlOp.READY_FOR_ARRAY_LENGTH);
+    while (message == ControlOp.STANDBY) { 
+      tcpReplyStandby();
+      message = tcpListen();
+    }
+    return message;
+  }
+
+  /**
+    * Takes up receiver client's offer, in the STANDBY message just received, to stand by to take
+    * over as sender, if it's in line to. Opens the socket its audio would come to now, so its
+    * keepalives find it open, and so it can start sending as soon as it's told to.
+    */
+  private void tcpReplyStandby() { 
+    AudioFormat format = AudioFormatArgs.get(control.getArg(0), control.getArg(1), control.getArg(2), control.getArg(3),
+        control.getArg(4));
+    int length = control.getArg(StandbyArgs.length);
+    boolean accepted = candidate != null && format != null && length > 0;
+    if (accepted) { 
+      standbyFormat = format;
+      standbyLength = length;
+      standbyStreams = control.getArg(StandbyArgs.streams) == 1;
+      standbyHeartbeatMs = control.getArg(StandbyArgs.heartbeatMs);
+      udpSetUpReceivingSocket();
+      log("Client standing by to take over, " + (standbyStreams ? "streaming " : "looping ") + length + " bytes of " + format
+          + ", with keepalives every " + control.getArg(StandbyArgs.keepaliveMs) + " ms.");
+    } else { 
+      log(candidate == null ? "Client can't take over, so can't stand by." : "Bad offer to stand by. Declining it.");
+    }
+    tcpReply(ControlOp.STANDBY, accepted ? 1 : 0);
+  }
+
+  /**
+    * Tells client to take over as sender. If it's standing by, the reply waits to go with what
+    * follows, the request for its first loop, so one message isn't held up behind the other;
+    * unless it streams, when nothing follows.
+    */
+  private void tcpReplyBecomeSender() { 
+    if (standbyFormat == null || standbyStreams) { 
+      tcpReply(ControlOp.BECOME_SENDER);
+      return;
+    }
+    try { 
+      control.reply(ControlOp.BECOME_SENDER);
+    } catch (IOException e) { 
+      e.printStackTrace();
+    }
+  }
+
+  /**
+    * Takes over from the sender client with what this client said when it offered to stand by,
+    * rather than waiting for it to say it again.
+    */
+  private void takeOverFromStandby() { 
+    senderFormat = standbyFormat;
+    audioRing.setFormat(standbyFormat);
+    log("Audio format set to " + standbyFormat);
+    streamingSender = standbyStreams;
+    setAudioReceivedArrayLength(standbyLength);
+    if (standbyHeartbeatMs > 0)
+      watchHeartbeats(standbyHeartbeatMs);
+    standbyFormat = null;
+  }
+
+  /**
+    * Tells receiver client the format of the audio it's about to be sent, if it's changed
+    * (eg after a failover) or the client hasn't been told it yet. Goes ahead of the reply it
+    * asked for, with the same tag.
+    */
+  private void tcpReplyFormatIfNew() { 
+    AudioFormat format = audioRing.getFormat();
+    if (format == null || formatSent != null && format.matches(formatSent))
+      return;
+    AudioFormatArgs.put(format, formatArgs);
+    log("Sending TCP message: " + ControlOp.AUDIO_FORMAT + " " + format);
+    try { 
+      control.reply(ControlOp.AUDIO_FORMAT, formatArgs, formatArgs.length);
+      formatSent = format;
+    } catch (IOException e) { 
+      e.printStackTrace();
+    }
+  }
+
+  /**
+    * Tells receiver client to take the loop starting at loopStart from the multicast group,
+    * which the MulticastPublisher is already sending it to. Its packets are told apart from
+    * those of other loops by their sequence numbers, the first of which is in frame's header.
+    */
+  private void tcpSendMulticastLoop(long loopStart, int loopLength, int loopPayload) { 
+    multicastLoopArgs[0] = loopLength;
+    multicastLoopArgs[1] = AudioPacket.getSeq(frame.data, frame.data.position());
+    multicastLoopArgs[2] = multicastGroup.getAddressAsInt();
+    multicastLoopArgs[3] = multicastGroup.getPort();
+    multicastLoopArgs[4] = loopPayload;
+    lastLoopSent = loopStart;
+    if (isLogging(LogLevel.DEBUG))
+      debug("Sending TCP message: " + ControlOp.MULTICAST_LOOP + " " + loopLength + " from seq " + multicastLoopArgs[1]);
+    try { 
+      control.reply(ControlOp.MULTICAST_LOOP, multicastLoopArgs, multicastLoopArgs.length);
+      control.flush();
+    } catch (IOException e) { 
+      e.printStackTrace();
+    }
+  }
+
+  /**
+    * Waits for a loop of audio this client hasn't had yet to start arriving from the sender client.
+    * The loop's first frame is left in frame.
+    *
+    * @return sequence number of the loop's first frame, or -1 if this thread is to take over as sender-client handler.
+    */
+  private long awaitNextLoop() { 
+    while (true) { 
+      long loopStart = audioRing.getLatestLoopStart();
+      if (loopStart > lastLoopSent && audioRing.read(loopStart, frame) == AudioRing.OK)
+        return loopStart;
+
+      if (isTakingOverHandlingSender())
+        return -1;
+
+      audioRing.awaitPublished(audioRing.getPublished() + 1, TimeUnit.MILLISECONDS.toNanos(frameWaitTimeoutMs), takingOver);
+    }
+  }
+
+  /**
+    * @return whether this thread has been elected to take over as sender-client handler.
+    */
+  private boolean isTakingOverHandlingSender() { 
+    return elected;
+  }
+
+  /**
+    * Called, on the thread that failed over, when this thread's been elected to take over as
+    * sender-client handler. Wakes it if it's waiting for audio.
+    */
+  private void onElected() { 
+    elected = true;
+    LockSupport.unpark(thread);
+  }
+
+  /**
+    * Update object shared between the channel's threads for managing failover so that another thread takes over as sender-client handler.
     */
   private void failOver() {
 
+    if (channel.isMixing()) { // Senders come and go from the mix: nobody takes over.
+      log("Sender client leaving the mix.");
+      if (mixerFeed != null)
+        mixerFeed.close();
+      mixerFeed = null;
+      return;
+    }
+
     log("Sender-handling thread needs to fail over.");
 
-    failoverInfo.setNeedFailover(true);
-    failoverInfo.incrementUdpPort();
+    failoverInfo.failOver(candidate);
 
   }
 
   /**
-    * Set up UDP sending.
+    * Join a channel of the server, taking its storage and failover info. Client is sender if it
+    * may send and the channel has no sender yet, otherwise a receiver.
+    *
+    * @param mayPublish  whether client may send, and so take over if the channel's sender dies.
+    * @return            false if the channel couldn't be set up.
     */
-  private void udpSetUpSenderSocket() {
+  private boolean joinChannel(String name, boolean mayPublish) { 
     try {
-      log("Setting up UDP sender socket.");
-      udpSenderSocket = new DatagramSocket();
+      channel = server.joinChannel(name);
     } catch (IOException e) {
       e.printStackTrace();
+      return false;
+    }
+    audioRing = channel.getAudioRing();
+    frame = audioRing.newFrame();
+    failoverInfo = channel.getFailoverInfo();
+    multicastGroup = channel.getMulticastGroup();
+    udpMaxPayload = audioRing.getFrameSize() - AudioPacket.headerLength;
+    if (channel.isMixing()) // Every client that may send does, and none is in line to take over.
+      clientRole = mayPublish ? ClientRoles.SENDER : ClientRoles.RECEIVER;
+    else { 
+      candidate = failoverInfo.join(mayPublish, new SharedFailoverInfo.Listener() {
+        public void electedSender() { 
+          onElected();
+        }
+      });
+      clientRole = failoverInfo.isSender(candidate) ? ClientRoles.SENDER : ClientRoles.RECEIVER;
+    }
+    metrics = new ClientMetrics(clientId, channel.getMetrics(), clientRole == ClientRoles.SENDER);
+    log("Client joined channel " + channel + " as " + clientRole + (mayPublish ? "." : ", subscribed only."));
+    return true;
+  }
+
+  /**
+    * Set up UDP sending.
+    */
+  private void udpSetUpSenderSocket() {
+    if (udpSender == null) { 
+      try {
+        log("Setting up UDP sender socket.");
+        udpSender = new DatagramReceiver(0);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
     }
     try {
       udpReceiverHost = InetAddress.getByName(defaultClientHostname); // todo: get it working over the network.
@@ -373,124 +820,403 @@ public class SoundServerThread extends Thread {
 
 
   /**
-    * Send audio to receiver client.
+    * Send audio to receiver client, frame by frame as the sender-handling thread writes it.
+    * Each packet is sent straight from the shared storage, header and all, without copying it.
+    *
+    * @param clientAddress  where to send to.
+    * @param loopStart      sequence number of the loop's first frame.
+    * @param loopLength     length of the loop.
+    * @param loopPayload    audio bytes in each of the loop's packets but the last.
     */
-  private void udpSendSoundBytesToClient(int clientUdpPort) {
+  private void udpSendSoundBytesToClient(InetSocketAddress clientAddress, long loopStart, int loopLength, int loopPayload) {
+
+    int slots = (loopLength + loopPayload - 1) / loopPayload;
+    fecEncoder = fecEncoderFor(loopPayload);
+    if (sentFrames.length < slots)
+      sentFrames = new long[slots];
+    Arrays.fill(sentFrames, -1);
+
+    long seq = loopStart;
+    long waitNanos = TimeUnit.MILLISECONDS.toNanos(frameWaitTimeoutMs);
+    long waitingSince = -1;
+
+    debug("Sending sound to client.");
+    lastLoopSent = loopStart;
+    while (true) {
+      int status = audioRing.read(seq, frame);
+
+      if (status == AudioRing.NOT_YET) { 
+        if (waitingSince < 0)
+          waitingSince = System.nanoTime();
+        long left = Math.max(0, waitingSince + waitNanos - System.nanoTime());
+        if (audioRing.awaitPublished(seq, left, takingOver)) { 
+          waitingSince = -1;
+          continue;
+        }
+        if (isTakingOverHandlingSender()) { 
+          log("Sender client gone mid-loop and this thread is to take over. Skipping rest of loop.");
+          break;
+        }
+        log("Timed out waiting for audio from sender handler.");
+        break;
+      }
 
-    DatagramPacket packet;
+      if (status == AudioRing.OVERRUN) { 
+        log("Fell a whole ring behind the sender handler. Skipping rest of loop.");
+        break;
+      }
 
-    int i = 0;
+      if (seq != loopStart && frame.loopOffset == 0) 
+        break; // Next loop has started, so this one was cut short.
 
-    //log("soundBytes: " + soundBytes);
-    log("Sending sound to client.");
-    byte[] bytes = byteArrayOutputStream.toByteArray();
-    while (i < bytes.length - udpMaxPayload) {
-      //log("i: " + i);
-      packet = new DatagramPacket(bytes, i, udpMaxPayload, tcpSocket.getInetAddress(), clientUdpPort);
-      if (packet == null) log("null packet");
+      if (fecEncoder != null)
+        fecEncoder.add(frame.data);
       try {
-        if (udpSenderSocket == null) log("null udpSenderSocket");
-        udpSenderSocket.send(packet);
+        udpSender.send(frame.data, clientAddress);
+        metrics.packetOut(frame.length);
       } catch (IOException e) {
         e.printStackTrace();
       }
-      i += udpMaxPayload;
+      if (!audioRing.isIntact(frame)) { 
+        log("Sender handler overwrote frame while it was being sent. Skipping rest of loop.");
+        if (fecEncoder != null)
+          fecEncoder.reset(); // Parity would be of the wrong audio.
+        break;
+      }
+      udpSendParity(clientAddress);
+      sentFrames[frame.loopOffset / loopPayload] = seq;
+
+      if (frame.loopOffset + frame.length - AudioPacket.headerLength >= loopLength)
+        break; // Nothing more of this loop to send.
+
+      seq++;
+    }
+
+    if (fecEncoder != null) { 
+      fecEncoder.flush();
+      udpSendParity(clientAddress);
     }
   }
 
   /**
-    * Displays the message it's TCP waiting for from client
-    * and returns the message it actually received.
-    * 
-    * @return message received.
+    * @return forward error correction encoder for packets of this many audio bytes (reusing the
+    *         last one if it's for the same size), or null if no parity is sent.
     */
-  private String tcpWaitForMessage(String message) { 
-    String received = null;
-    log("Waiting for TCP message: " + message);
-    try {
-      received = bufferedReader.readLine();
-      log("Received TCP message: " + received);
-    } catch (IOException e) {
-      e.printStackTrace();
+  private FecEncoder fecEncoderFor(int payload) { 
+    if (fecParityCount == 0)
+      return null;
+    if (fecEncoder == null || fecEncoder.getPayloadSize() != payload)
+      fecEncoder = new FecEncoder(fecGroupSize, fecParityCount, payload);
+    return fecEncoder;
+  }
+
+  /**
+    * Sends receiver client any forward error correction parity packets that are ready.
+    */
+  private void udpSendParity(InetSocketAddress clientAddress) { 
+    if (fecEncoder == null)
+      return;
+    while (fecEncoder.getParityReady() > 0) { 
+      try {
+        ByteBuffer parity = fecEncoder.nextParity();
+        metrics.packetOut(parity.remaining());
+        udpSender.send(parity, clientAddress);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
     }
-    return received;
   }
 
   /**
-    * Sets timeout on UDP socket for receiving audio packets from sender client
+    * Resends packets of the loop just sent that receiver client says it lost, until it moves
+    * on (ie says something over TCP) or stops asking. Each is re-read from the shared storage;
+    * one that's been overwritten since is gone for good. Resending is rate-limited, and what's
+    * over the limit is dropped rather than queued, as the client will ask again if it still can.
     */
-  private void udpSetReceivingTimeout(int ms) { 
-    try { 
-      udpReceivingSocket.setSoTimeout(ms);
-    } catch (SocketException e) { 
+  private void udpServeNacks(InetSocketAddress clientAddress, int loopLength, int loopPayload) {
+    ByteBuffer nackBuffer = bufferPool.acquire();
+    long windowEnd = System.currentTimeMillis() + nackWindowMs;
+    int resent = 0;
+    int gone = 0;
+    int limited = 0;
+
+    try {
+      while (!control.isReady() && System.currentTimeMillis() < windowEnd) {
+        nackBuffer.clear();
+        if (udpSender.receive(nackBuffer, nackPollMs) == null)
+          continue;
+        int length = nackBuffer.position();
+        if (!Nack.isNack(nackBuffer, 0, length))
+          continue;
+        windowEnd = System.currentTimeMillis() + nackWindowMs;
+
+        int first = Nack.getFirstSlot(nackBuffer, 0, loopPayload);
+        int count = Math.min(Nack.getSlotCount(length), sentFrames.length - first);
+        for (int i = 0; i < count; i++) {
+          if (first < 0 || !Nack.isMissing(nackBuffer, 0, i))
+            continue;
+          int slot = first + i;
+          if (sentFrames[slot] < 0 || audioRing.read(sentFrames[slot], frame) != AudioRing.OK
+              || frame.loopOffset != slot * loopPayload || frame.loopLength != loopLength) { 
+            gone++;
+            continue;
+          }
+          if (!retransmitBucket.tryTake()) { 
+            limited++;
+            continue;
+          }
+          udpSender.send(frame.data, clientAddress);
+          metrics.packetOut(frame.length);
+          resent++;
+        }
+      }
+    } catch (IOException e) { 
       e.printStackTrace();
+    } finally { 
+      bufferPool.release(nackBuffer);
     }
+
+    metrics.missingPackets(resent + gone + limited);
+    if (resent + gone + limited > 0)
+      log("Resent " + resent + " packets on request (" + gone + " no longer held, " + limited + " over rate limit).");
+  }
+
+  /**
+    * Displays the message it's TCP waiting for from client
+    * and returns the message it actually received.
+    * 
+    * @return message received.
+    */
+  private ControlOp tcpWaitForMessage(ControlOp message) { 
+    if (isLogging(LogLevel.DEBUG))
+      debug("Waiting for TCP message: " + message);
+    ControlOp received = tcpListen();
+    if (isLogging(LogLevel.DEBUG))
+      debug("Received TCP message: " + received);
+    return received;
   }
 
   /**
     * Receive audio from sender client via UDP and store in object shared by
-    * receiver-handling threads
+    * receiver-handling threads, a frame at a time so they can forward it straight away.
+    * Packets are received straight into the shared storage, header and all. Each one's
+    * header says where in the loop it goes, so order doesn't matter; the loop is done
+    * once its length has arrived or packets stop coming.
     */
   private void udpReceiveAudioFromClient() { 
-    DatagramPacket packet;
-    byte[] packetBytes = new byte[udpMaxPayload];
-  
-    udpSetReceivingTimeout(1000);
-
-    byteArrayOutputStream.reset(); // clear it, otherwise we're just appending.
-
-
-    // First get packets with constant payload size (udpMaxPayload) 
 
     int arrLen = getAudioReceivedArrayLength();
     int byteNum = 0;
-    log("Receiving byte " + byteNum);
-    log("Array length: " + arrLen);
-
-    while (byteNum < arrLen - udpMaxPayload) {
-        packet = new DatagramPacket(packetBytes, packetBytes.length);
-
-        try {
-          udpReceivingSocket.receive(packet);
-        } catch (SocketTimeoutException e) {
-          log("**** UDP TIMEOUT ****"); 
-          break; // This is the normal course of events.
-        } catch (IOException e) { 
-          e.printStackTrace();
-        }
-
-        byteArrayOutputStream.write(packetBytes, 0, packetBytes.length);
-        byteNum += udpMaxPayload;
+    int packetLength = 0; // Sender's packets are all this big but the last.
+    if (isLogging(LogLevel.DEBUG))
+      debug("Array length: " + arrLen);
+
+    while (byteNum < arrLen) {
+      int len = udpReceiveFrame(arrLen, udpReceiveTimeoutMs);
+      if (len < 0) { 
+        log("**** UDP TIMEOUT ****"); 
+        metrics.udpTimeout();
+        if (packetLength > 0)
+          metrics.missingPackets((arrLen - byteNum + packetLength - 1) / packetLength);
+        break;
+      }
+      byteNum += len;
+      packetLength = Math.max(packetLength, len);
     }
 
-        log("byteArrayOutputStream.size(): " + byteArrayOutputStream.size());
+    if (isLogging(LogLevel.DEBUG))
+      debug("Received final byte: " + byteNum);
 
-    // get final packet, size being what ever is left after getting contant length packets.
+  }
 
-    if (byteNum < arrLen) { 
-      int finLen = arrLen - byteNum;
-      log("Last packet length: " + finLen);
-      byte[] finBytes = new byte[finLen];
-      packet = new DatagramPacket(finBytes, finLen);
+  /**
+    * Receive audio streamed continuously by sender client, storing each packet as a frame in the
+    * object shared by receiver-handling threads as soon as it arrives. Loops follow one another
+    * with no signalling; each packet's header says where in its loop it falls.
+    * Returns once the client stops sending.
+    */
+  private void udpReceiveStreamFromClient() { 
+    int loopLength = getAudioReceivedArrayLength();
+
+    log("Receiving audio stream.");
+    long loopStart = System.nanoTime();
+    int loopBytes = 0;
+    while (true) { 
+      int len = udpReceiveFrame(loopLength, udpStreamTimeoutMs);
+      if (len < 0) { 
+        metrics.udpTimeout();
+        return;
+      }
+      loopBytes += len;
+      if (loopBytes >= loopLength) { // A loop's worth in, whatever order it came in.
+        long now = System.nanoTime();
+        metrics.loopDone(now - loopStart);
+        loopStart = now;
+        loopBytes -= loopLength;
+      }
+    }
+  }
 
+  /**
+    * Receives one packet from the sender client straight into the next frame of the shared storage.
+    * Packets with no audio after their header, or whose offset is outside the loop, are dropped.
+    *
+    * @param loopLength  length of the loop.
+    * @param timeoutMs   how long to wait for the packet.
+    * @return            audio bytes received, or -1 on timeout.
+    */
+  private int udpReceiveFrame(int loopLength, long timeoutMs) { 
+    if (channel.isMixing())
+      return udpReceiveFrameIntoMix(loopLength, timeoutMs);
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    while (true) { 
+      ByteBuffer frameBuffer = audioRing.beginWrite();
+      int start = frameBuffer.position();
       try {
-        udpReceivingSocket.receive(packet);
-      } catch (SocketTimeoutException e) {
-        log("Packet receive timeout");
+        if (!udpReceiveFromSender(frameBuffer, deadline))
+          break;
       } catch (IOException e) { 
-        e.printStackTrace(); 
+        e.printStackTrace();
+        break;
       }
 
-      byteArrayOutputStream.write(finBytes, 0, finBytes.length);
-      byteNum += finLen;
+      // Whatever came is in the slot now, so if it's no good the slot's old frame is lost too.
+      // Not rewinding means abortWrite() leaves the slot marked as overwritten.
+      if (Heartbeat.isHeartbeat(frameBuffer, start, frameBuffer.position() - start)) { 
+        audioRing.abortWrite();
+        continue;
+      }
+      int payload = frameBuffer.position() - start - AudioPacket.headerLength;
+      int loopOffset = payload <= 0 ? -1 : AudioPacket.getOffset(frameBuffer, start);
+      if (loopOffset < 0 || loopOffset >= loopLength) { 
+        audioRing.abortWrite();
+        metrics.badPacket();
+        continue;
+      }
+      audioRing.commitWrite(loopOffset, loopLength);
+      metrics.packetIn(payload + AudioPacket.headerLength);
+      return payload;
     }
+    audioRing.abortWrite();
+    return -1;
+  }
 
-    log("Received final byte: " + byteNum);
+  /**
+    * Receives one packet from the sender client and puts its audio in the channel's mix, if it
+    * can be mixed. Packets with no audio after their header, or whose offset is outside the loop, are dropped.
+    *
+    * @return            audio bytes received, or -1 on timeout.
+    */
+  private int udpReceiveFrameIntoMix(int loopLength, long timeoutMs) { 
+    if (mixPacket == null)
+      mixPacket = ByteBuffer.allocateDirect(audioRing.getFrameSize());
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    while (true) { 
+      mixPacket.clear();
+      try {
+        if (!udpReceiveFromSender(mixPacket, deadline))
+          return -1;
+      } catch (IOException e) { 
+        e.printStackTrace();
+        return -1;
+      }
 
-    log("byteArrayOutputStream.size(): " + byteArrayOutputStream.size());
+      if (Heartbeat.isHeartbeat(mixPacket, 0, mixPacket.position()))
+        continue;
+      int payload = mixPacket.position() - AudioPacket.headerLength;
+      int loopOffset = payload <= 0 ? -1 : AudioPacket.getOffset(mixPacket, 0);
+      if (loopOffset < 0 || loopOffset >= loopLength) { 
+        metrics.badPacket();
+        continue;
+      }
+      metrics.packetIn(mixPacket.position());
+      if (mixerFeed != null)
+        mixerFeed.feed(mixPacket, 0, mixPacket.position());
+      return payload;
+    }
+  }
 
-    udpSetReceivingTimeout(100); 
 
+  /**
+    * Receives the next packet from the sender client into dst, from its position. Anything
+    * that arrives, heartbeats included, is word the client's still there, but telling
+    * heartbeats from audio is left to the caller, as dst may be a slot of the ring that
+    * mustn't be rewound over.
+    *
+    * @param deadline  System.currentTimeMillis() by which the packet must arrive.
+    * @return          whether one did, before then and before the client was taken to be dead.
+    */
+  private boolean udpReceiveFromSender(ByteBuffer dst, long deadline) throws IOException { 
+    while (true) { 
+      long waitMs = deadline - System.currentTimeMillis();
+      if (senderLiveness != null)
+        waitMs = Math.min(waitMs, senderLiveness.getMillisUntilDead());
+      if (waitMs <= 0)
+        return false;
+      if (udpReceiver.receive(dst, waitMs) == null)
+        continue;
+      if (senderLiveness != null)
+        senderLiveness.heard();
+      return true;
+    }
+  }
+
+  /**
+    * Waits until the next loop should be asked for from the sender client. If it sends
+    * heartbeats, they're taken meanwhile, and the wait ends early if it misses them.
+    */
+  private void udpAwaitNextIngest(LoopScheduler loopScheduler) { 
+    if (senderLiveness == null) { 
+      loopScheduler.awaitNextIngest();
+      return;
+    }
+    ByteBuffer scratch = bufferPool.acquire();
+    try {
+      long remainingNanos;
+      while ((remainingNanos = loopScheduler.getNanosUntilNextIngest()) > 0 && !senderLiveness.isDead()) { 
+        long waitMs = Math.min(TimeUnit.NANOSECONDS.toMillis(remainingNanos + 999999), senderLiveness.getMillisUntilDead());
+        scratch.clear();
+        if (udpReceiver.receive(scratch, Math.max(1, waitMs)) != null)
+          senderLiveness.heard(); // Anything else is left over from the loop before, and would be drained anyway.
+      }
+    } catch (IOException e) { 
+      e.printStackTrace();
+    } finally { 
+      bufferPool.release(scratch);
+    }
+  }
+
+  /**
+    * Makes a scheduler for asking the sender client for loops, based on how long the loop just received takes to play.
+    */
+  private LoopScheduler newLoopScheduler() { 
+    LoopScheduler scheduler = new LoopScheduler(channel.isMixing() ? senderFormat : audioRing.getFormat(), getAudioReceivedArrayLength());
+    log("Loop plays for " + TimeUnit.NANOSECONDS.toMillis(scheduler.getLoopNanos()) + " ms");
+    return scheduler;
+  }
+
+  /**
+    * Throws away packets left over from an earlier loop (eg ones that arrived after
+    * it timed out) so they aren't taken for the start of the next one.
+    */
+  private void udpDrainStalePackets() { 
+    ByteBuffer scratch = bufferPool.acquire();
+    int drained = 0;
+    try {
+      while (udpReceiver.receiveNow(scratch) != null) { 
+        if (senderLiveness != null)
+          senderLiveness.heard();
+        if (!Heartbeat.isHeartbeat(scratch, 0, scratch.position()))
+          drained++;
+        scratch.clear();
+      }
+    } catch (IOException e) { 
+      e.printStackTrace();
+    } finally { 
+      bufferPool.release(scratch);
+    }
+    if (drained > 0)
+      log("Dropped " + drained + " stale packets.");
   }
 
 
@@ -500,27 +1226,109 @@ public class SoundServerThread extends Thread {
   private void tcpSetUpIo() {
     log("Setting up TCP IO stream with client.");
     try {
-      isr = new InputStreamReader(tcpSocket.getInputStream());
-      bufferedReader = new BufferedReader(isr);
-      printWriter = new PrintWriter(tcpSocket.getOutputStream(), true);
+      control = new ControlChannel(tcpSocket);
     } catch (IOException e) {
       e.printStackTrace();
     }
   }
 
   /**
-    * Gets audio array length from sender client and sets it locally.
+    * Gets audio array length from sender client and sets it locally. Client either asks
+    * to send a loop at a time when told to (ACK_LENGTH) or to stream continuously (STREAM).
+    * Before either it says what format its audio is in (AUDIO_FORMAT), which receivers are told.
     */
   private void tcpExpectAndSetArrayLength() { 
-    String message = tcpExpectAndSend(ClientRequests.ACK_LENGTH.toString(), Replies.ACK_LENGTH.toString()); // todo: check length ok before ack?
+    if (isLogging(LogLevel.DEBUG))
+      debug("Waiting for message: " + ControlOp.ACK_LENGTH + " or " + ControlOp.STREAM);
+    ControlOp message = tcpListen();
+    if (isLogging(LogLevel.DEBUG))
+      debug("Message received: " + message);
+    while (message == ControlOp.AUDIO_FORMAT || message == ControlOp.HEARTBEAT) { 
+      if (message == ControlOp.AUDIO_FORMAT)
+        tcpSetAudioFormat();
+      else
+        watchHeartbeats(control.getArg());
+      message = tcpListen();
+      if (isLogging(LogLevel.DEBUG))
+        debug("Message received: " + message);
+    }
+    int length = control.getArg();
+
+    if (message == ControlOp.STREAM && length > 0) { 
+      streamingSender = true;
+      tcpReply(ControlOp.ACK_STREAM);
+    } else if (message == ControlOp.ACK_LENGTH && length >= 0) { 
+      streamingSender = false;
+      tcpReply(ControlOp.ACK_LENGTH);
+    } else { 
+      log("Unexpected message. Not replying.");
+      message = null;
+    }
+
     if (message != null) { 
-      Pattern p = Pattern.compile("\\d+");
-      Matcher m = p.matcher(message);
-      m.find();
-      setAudioReceivedArrayLength(Integer.parseInt(m.group(0)));
-      log("Array length set to " + getAudioReceivedArrayLength());
+      setAudioReceivedArrayLength(length);
+      if (isLogging(LogLevel.DEBUG))
+        debug("Array length set to " + getAudioReceivedArrayLength());
     } else { 
-      error("Array length can't be set to specified value: " + message);
+      error("Array length can't be set to specified value: " + length);
+    }
+  }
+
+  /**
+    * Has sender client taken to be dead once it's missed heartbeatMisses of the heartbeats it
+    * said it sends, and has TCP messages from it waited for no longer than that.
+    *
+    * @param intervalMs  how often it said it sends them.
+    */
+  private void watchHeartbeats(int intervalMs) { 
+    if (intervalMs <= 0) { 
+      error("Bad heartbeat interval: " + intervalMs);
+      return;
+    }
+    senderLiveness = new Liveness(intervalMs, heartbeatMisses);
+    log("Sender client sends heartbeats every " + intervalMs + " ms. Taken to be dead after "
+        + senderLiveness.getDeadAfterMillis() + " ms without them.");
+    try { 
+      tcpSocket.setSoTimeout((int) senderLiveness.getDeadAfterMillis());
+    } catch (SocketException e) { 
+      e.printStackTrace();
+    }
+  }
+
+  /**
+    * @return whether sender client has missed too many heartbeats (never, if it doesn't send them).
+    */
+  private boolean isSenderDead() { 
+    return senderLiveness != null && senderLiveness.isDead();
+  }
+
+  /**
+    * Takes the format in the AUDIO_FORMAT message just received as that of the audio written
+    * from now on, and replies with it.
+    */
+  private void tcpSetAudioFormat() { 
+    AudioFormat format = AudioFormatArgs.get(control.getArg(0), control.getArg(1), control.getArg(2), control.getArg(3),
+        control.getArg(4));
+    if (format == null) { 
+      error("Bad audio format. Not replying.");
+      return;
+    }
+    senderFormat = format;
+    if (channel.isMixing()) { 
+      if (mixerFeed != null)
+        mixerFeed.close();
+      mixerFeed = channel.joinMix(format);
+      log(mixerFeed != null ? "Mixing audio in " + format : "Audio in " + format + " can't be mixed with the channel's. Ignoring it.");
+    } else { 
+      audioRing.setFormat(format);
+      log("Audio format set to " + format);
+    }
+    AudioFormatArgs.put(format, formatArgs);
+    try { 
+      control.reply(ControlOp.AUDIO_FORMAT, formatArgs, formatArgs.length);
+      control.flush();
+    } catch (IOException e) { 
+      e.printStackTrace();
     }
   }
 
@@ -543,50 +1351,113 @@ public class SoundServerThread extends Thread {
   }
 
   /**
-    * Wait for a message from client and reply.
+    * Wait for a request from client and reply with its opcode and an argument.
+    *
+    * @param expected   expected request, for eg logging and checking.
+    * @param arg        argument to reply with. 
+    * @return           what was received. 
+    */
+  private ControlOp tcpExpectAndReply(ControlOp expected, int arg) { 
+    ControlOp message = tcpExpect(expected);
+    if (message == expected) { 
+      tcpReply(expected, arg);
+      if (isLogging(LogLevel.DEBUG))
+        debug("Replied with: " + arg);
+    }
+    return message;
+  }
+
+  /**
+    * Wait for a message from client and reply with another.
     *
     * @param expected   expected message, for eg logging and checking.
     * @param sendThis   message to reply with. 
     * @return           what was received. 
     */
-  private String tcpExpectAndSend(String expected, String sendThis) { 
-    String message = null;
-    log("Waiting for message: " + expected);
-    message = tcpListen();
-
-    log("Message received: " + message);
-
-    if (message != null) { 
-      if (message.startsWith(expected)) {
-        printWriter.println(sendThis);
-        log("Replied with: " + sendThis);
-      } else {
-        log("Unexpected message. Not replying.") ;
-      }
+  private ControlOp tcpExpectAndReply(ControlOp expected, ControlOp sendThis) { 
+    ControlOp message = tcpExpect(expected);
+    if (message == expected) { 
+      tcpReply(sendThis);
+      if (isLogging(LogLevel.DEBUG))
+        debug("Replied with: " + sendThis);
     }
+    return message;
+  }
 
-    return message; 
+  private ControlOp tcpExpect(ControlOp expected) { 
+    if (isLogging(LogLevel.DEBUG))
+      debug("Waiting for message: " + expected);
+    ControlOp message = tcpListen();
+    if (isLogging(LogLevel.DEBUG))
+      debug("Message received: " + message);
+    if (message != null && message != expected)
+      log("Unexpected message. Not replying.");
+    return message;
   }
 
   /**
-    * Send a String via TCP to client.
+    * Send a message via TCP to client.
     * 
     * @param message to send
     */
-  private void tcpSend(String message) { 
-    log("Sending TCP message: " + message);
-    printWriter.println(message);
+  private void tcpSend(ControlOp message) { 
+    if (isLogging(LogLevel.DEBUG))
+      debug("Sending TCP message: " + message);
+    try {
+      control.send(message);
+      control.flush();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+    * Reply via TCP to the message last received from client.
+    */
+  private void tcpReply(ControlOp message) { 
+    if (isLogging(LogLevel.DEBUG))
+      debug("Sending TCP message: " + message);
+    try {
+      control.reply(message);
+      control.flush();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void tcpReply(ControlOp message, int arg) { 
+    if (isLogging(LogLevel.DEBUG))
+      debug("Sending TCP message: " + message + " " + arg);
+    try {
+      control.reply(message, arg);
+      control.flush();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+    * Close TCP connection with client.
+    */
+  private void closeTcp() { 
+    try {
+      tcpSocket.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
   }
 
   /**
-    * Listen for a TCP message from client.
+    * Listen for a TCP message from client. Its tag and arguments can then be had from control.
     *
-    * @return message
+    * @return message, or null if the connection's gone.
     */
-  private String tcpListen() { 
-    String msg = null;
+  private ControlOp tcpListen() { 
+    ControlOp msg = null;
     try {
-      msg = bufferedReader.readLine();
+      msg = control.receive();
+    } catch (SocketTimeoutException e) {
+      log("Sender client said nothing for " + (senderLiveness != null ? senderLiveness.getDeadAfterMillis() + " ms" : "too long") + ".");
     } catch (IOException e) {
       e.printStackTrace();
     }
@@ -599,8 +1470,8 @@ public class SoundServerThread extends Thread {
   private void udpSetUpReceivingSocket() {
     if (!udpIsUp) { 
       try {
-        log("Instantiating UDP datagram socket.");
-        udpReceivingSocket = new DatagramSocket(udpPort);
+        log("Instantiating UDP datagram channel.");
+        udpReceiver = new DatagramReceiver(udpPort);
         udpIsUp = true;
       } catch (IOException e) {
         e.printStackTrace();
@@ -608,18 +1479,37 @@ public class SoundServerThread extends Thread {
     }
   }
 
+  private void udpCloseReceivingSocket() {
+    if (udpIsUp) { 
+      try {
+        udpReceiver.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      udpIsUp = false;
+    }
+  }
+
   /**
     * For logging (normal) messages to the console. Relies on logger from "util.SoundUtil.*" import.
     */
   private void log(String msg) {
-    logger(loggingName + "-" + getId(), msg);
+    logger(loggingName + "-" + clientId, msg);
+  }
+
+  /**
+    * For tracing every step, eg each TCP message. Only logged at LogLevel.DEBUG, so
+    * guard messages that take building with isLogging(LogLevel.DEBUG).
+    */
+  private void debug(String msg) { 
+    logger(LogLevel.DEBUG, loggingName + "-" + clientId, msg);
   }
 
   /**
     * For logging errors to the console. Relies on logger from "util.SoundUtil.*" import.
     */
   private void error(String msg) { 
-    logger(loggingName + "-" + getId() + ": ERROR",  msg);
+    logger(LogLevel.ERROR, loggingName + "-" + clientId, msg);
   }
 
 }
@@ -0,0 +1,134 @@
+import java.lang.management.ManagementFactory;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+  * Counters for audio going through the server, kept in LongAdders so handler threads
+  * counting at once each add to their own cell and never contend or wait. Counts are
+  * only summed when read, over JMX.
+  */
+public class StreamMetrics implements StreamMetricsMBean {
+
+  /**
+    * Domain of the server's MBeans' names.
+    */
+  static final String domain = "SoundServer";
+
+  private final LongAdder packetsIn = new LongAdder();
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder packetsOut = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+  private final LongAdder udpTimeouts = new LongAdder();
+  private final LongAdder badPackets = new LongAdder();
+  private final LongAdder missingPackets = new LongAdder();
+  private final LongAdder loops = new LongAdder();
+  private final LongAdder loopNanos = new LongAdder();
+  private volatile long lastLoopNanos;
+
+  /**
+    * Name registered under, or null if not registered.
+    */
+  private ObjectName name;
+
+  void packetIn(int bytes) {
+    packetsIn.increment();
+    bytesIn.add(bytes);
+  }
+
+  void packetOut(int bytes) {
+    packetsOut.increment();
+    bytesOut.add(bytes);
+  }
+
+  void udpTimeout() {
+    udpTimeouts.increment();
+  }
+
+  void badPacket() {
+    badPackets.increment();
+  }
+
+  void missingPackets(int count) {
+    missingPackets.add(count);
+  }
+
+  /**
+    * @param nanos  how long the loop took to receive or send.
+    */
+  void loopDone(long nanos) {
+    loops.increment();
+    loopNanos.add(nanos);
+    lastLoopNanos = nanos;
+  }
+
+  public long getPacketsIn() {
+    return packetsIn.sum();
+  }
+
+  public long getBytesIn() {
+    return bytesIn.sum();
+  }
+
+  public long getPacketsOut() {
+    return packetsOut.sum();
+  }
+
+  public long getBytesOut() {
+    return bytesOut.sum();
+  }
+
+  public long getUdpTimeouts() {
+    return udpTimeouts.sum();
+  }
+
+  public long getBadPackets() {
+    return badPackets.sum();
+  }
+
+  public long getMissingPackets() {
+    return missingPackets.sum();
+  }
+
+  public long getLoops() {
+    return loops.sum();
+  }
+
+  public double getLastLoopMillis() {
+    return lastLoopNanos / 1e6;
+  }
+
+  public double getAverageLoopMillis() {
+    long count = loops.sum();
+    return count == 0 ? 0 : loopNanos.sum() / 1e6 / count;
+  }
+
+  /**
+    * Makes the counters visible over JMX.
+    *
+    * @param properties  key properties of the name to register under, eg "type=Channel,id=0".
+    */
+  void register(String properties) {
+    try {
+      name = new ObjectName(domain + ":" + properties);
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+    } catch (JMException e) {
+      e.printStackTrace();
+      name = null;
+    }
+  }
+
+  void unregister() {
+    if (name == null)
+      return;
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    } catch (JMException e) {
+      e.printStackTrace();
+    }
+    name = null;
+  }
+
+}
@@ -0,0 +1,55 @@
+/**
+  * Counters for audio going through the server, as seen over JMX (eg with jconsole): for
+  * a channel (see ChannelMetricsMBean) or a client (see ClientMetricsMBean).
+  */
+public interface StreamMetricsMBean {
+
+  /**
+    * @return audio packets received from sender clients.
+    */
+  long getPacketsIn();
+
+  /**
+    * @return bytes of audio packets received from sender clients, headers included.
+    */
+  long getBytesIn();
+
+  /**
+    * @return packets sent to receiver clients, parity and resent packets included.
+    */
+  long getPacketsOut();
+
+  /**
+    * @return bytes of packets sent to receiver clients, headers included.
+    */
+  long getBytesOut();
+
+  /**
+    * @return times a sender client's packets stopped coming before its loop was all in.
+    */
+  long getUdpTimeouts();
+
+  /**
+    * @return packets dropped for having no audio after their header (or no header), or for falling outside their loop.
+    */
+  long getBadPackets();
+
+  /**
+    * @return packets that never arrived: those missing from a sender's loops when they
+    *         timed out, and those receivers asked to be sent again.
+    */
+  long getMissingPackets();
+
+  /**
+    * @return loops received from the sender (of a channel), or received or sent (of a client).
+    */
+  long getLoops();
+
+  /**
+    * @return how long the last loop took to receive or send, in milliseconds.
+    */
+  double getLastLoopMillis();
+
+  double getAverageLoopMillis();
+
+}
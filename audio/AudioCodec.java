@@ -0,0 +1,69 @@
+package audio;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+  * Turns PCM audio into something smaller to send, and back again for playing. A codec
+  * is chosen by the sender client for its stream and said in the AUDIO_FORMAT message
+  * (see ControlOp.AUDIO_FORMAT), by id. Servers forward what's sent as it is; receiver
+  * clients decode it as it's played (see PlaybackEngine).
+  *
+  * What's sent is described by an encoded AudioFormat whose frames are the smallest
+  * pieces that decode on their own, so packets holding whole frames can be decoded
+  * whatever else is lost. Codecs keep no state between calls, so one can serve many
+  * streams on many threads.
+  *
+  * Built-in codecs are in AudioCodecs, which also finds others (see ServiceLoader).
+  */
+public interface AudioCodec {
+
+  /**
+    * @return what the codec's known by in AUDIO_FORMAT messages. Must be unique.
+    */
+  int getId();
+
+  /**
+    * @return what the codec's known by on the command line.
+    */
+  String getName();
+
+  /**
+    * @return format of pcm encoded, or null if this codec can't encode it.
+    */
+  AudioFormat encodedFormat(AudioFormat pcm);
+
+  /**
+    * @return whether audio in this format is what this codec encodes to.
+    */
+  boolean decodes(AudioFormat encoded);
+
+  /**
+    * @return PCM format audio in encoded decodes to.
+    */
+  AudioFormat decodedFormat(AudioFormat encoded);
+
+  /**
+    * @return bytes pcmLength bytes of PCM audio encode to: whole encoded frames, the last padded with silence.
+    */
+  int encodedLength(AudioFormat encoded, int pcmLength);
+
+  /**
+    * @return bytes of PCM audio encodedLength bytes decode to. Any part frame is left out.
+    */
+  int decodedLength(AudioFormat encoded, int encodedLength);
+
+  /**
+    * Encodes pcmLength bytes of PCM audio into out, which must have room for encodedLength(encoded, pcmLength).
+    *
+    * @return bytes written.
+    */
+  int encode(AudioFormat encoded, byte[] pcm, int pcmOffset, int pcmLength, byte[] out, int outOffset);
+
+  /**
+    * Decodes the whole frames in length bytes into out, which must have room for decodedLength(encoded, length).
+    *
+    * @return bytes written.
+    */
+  int decode(AudioFormat encoded, byte[] in, int inOffset, int length, byte[] out, int outOffset);
+
+}
@@ -0,0 +1,83 @@
+package audio;
+
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+  * Codecs that can be negotiated: PCM (none), G.711 mu-law and IMA-ADPCM, and any other
+  * AudioCodec on the class path that's listed in META-INF/services/audio.AudioCodec, or
+  * registered before streams start.
+  */
+public final class AudioCodecs {
+
+  public static final AudioCodec pcm = new PcmCodec();
+
+  public static final AudioCodec muLaw = new MuLawCodec();
+
+  public static final AudioCodec imaAdpcm = new ImaAdpcmCodec();
+
+  private static final List<AudioCodec> codecs = new CopyOnWriteArrayList<AudioCodec>(List.of(pcm, muLaw, imaAdpcm));
+
+  static {
+    for (AudioCodec codec : ServiceLoader.load(AudioCodec.class))
+      register(codec);
+  }
+
+  private AudioCodecs() {
+  }
+
+  /**
+    * Adds a codec, unless one with its id is known already.
+    */
+  public static void register(AudioCodec codec) {
+    if (forId(codec.getId()) == null)
+      codecs.add(codec);
+  }
+
+  /**
+    * @return codec with this id, or null if there's none.
+    */
+  public static AudioCodec forId(int id) {
+    for (AudioCodec codec : codecs) {
+      if (codec.getId() == id)
+        return codec;
+    }
+    return null;
+  }
+
+  /**
+    * @return codec with this name, or null if there's none.
+    */
+  public static AudioCodec named(String name) {
+    for (AudioCodec codec : codecs) {
+      if (codec.getName().equalsIgnoreCase(name))
+        return codec;
+    }
+    return null;
+  }
+
+  /**
+    * @return codec that decodes audio in this format, or null if there's none.
+    */
+  public static AudioCodec forFormat(AudioFormat encoded) {
+    for (AudioCodec codec : codecs) {
+      if (codec.decodes(encoded))
+        return codec;
+    }
+    return null;
+  }
+
+  /**
+    * @return names of the codecs known, for usage messages.
+    */
+  public static String names() {
+    StringBuilder names = new StringBuilder();
+    for (AudioCodec codec : codecs)
+      names.append(names.length() == 0 ? "" : ", ").append(codec.getName());
+    return names.toString();
+  }
+
+}
@@ -0,0 +1,302 @@
+package audio;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+  * Mixes several streams of 16-bit little-endian PCM, all in one format, into one.
+  *
+  * Each input has a ring of samples laid out on the mix's own timeline, in blocks. A
+  * stream's first packet is placed a little ahead of what's being mixed (the latency),
+  * which anchors its timestamps to the timeline; later packets go where their timestamps
+  * say, relative to that, so streams that started at different times, or whose packets
+  * arrive late or out of order, still line up. Packets too late to be mixed are dropped,
+  * as are ones too far ahead for the ring to hold.
+  *
+  * Each input is written by one thread and mix() is called by one other. Like AudioRing,
+  * a block's stamp says which block of the timeline it holds, so the mixing thread takes
+  * a block whose stamp doesn't match as silence and nothing is ever cleared behind it.
+  *
+  * Nothing is allocated once the mixer's made. The inner loops add and clip plain int
+  * and short arrays, one sample after another, which the JIT can vectorize.
+  */
+public class AudioMixer {
+
+  /**
+    * Block stamp of a slot that holds no block yet.
+    */
+  private static final long EMPTY = -1;
+
+  /**
+    * How far, in microseconds, a packet may be from where its input's audio left off and
+    * still be taken to follow on from it, so timestamp jitter doesn't leave gaps or overlaps.
+    */
+  private static final int snapMicros = 2000;
+
+  /**
+    * One stream being mixed.
+    */
+  private static class Input {
+
+    /**
+      * Samples of each slot, the slot's block of the timeline if its stamp says so.
+      */
+    final short[] samples;
+
+    final AtomicLongArray stamps;
+
+    volatile boolean active;
+
+    /**
+      * Writer's state: where on the timeline the input's anchor timestamp falls, and where its audio left off.
+      */
+    boolean anchored;
+    int anchorTimestamp;
+    long anchorPosition;
+    long nextPosition;
+
+    Input(int slots, int blockSamples) {
+      samples = new short[slots * blockSamples];
+      stamps = new AtomicLongArray(slots);
+      for (int i = 0; i < slots; i++)
+        stamps.set(i, EMPTY);
+    }
+  }
+
+  private final AudioFormat format;
+
+  private final Input[] inputs;
+
+  private final int channels;
+
+  private final int frameSize;
+
+  private final float sampleRate;
+
+  /**
+    * Frames of each block: what mix() mixes at a time.
+    */
+  private final int blockFrames;
+
+  private final int blockSamples;
+
+  private final int slotMask;
+
+  /**
+    * Frames of the timeline an input's ring holds.
+    */
+  private final long capacityFrames;
+
+  /**
+    * How far ahead of what's being mixed a stream's first packet is placed, in frames.
+    */
+  private final int latencyFrames;
+
+  private final int snapFrames;
+
+  /**
+    * Frame of the timeline mix() mixes next. Only the mixing thread writes it.
+    */
+  private volatile long position;
+
+  /**
+    * Sums of the inputs' samples for the block being mixed, before clipping.
+    */
+  private final int[] sums;
+
+  /**
+    * @param maxInputs     most streams mixed at once.
+    * @param format        format of every stream, and of the mix: see mixes().
+    * @param blockFrames   frames mixed at a time.
+    * @param latencyFrames how far ahead of what's being mixed a stream's first packet is placed,
+    *                      which is how late its later packets may be.
+    * @param slots         blocks each input's ring holds, a power of two; bigger than
+    *                      latencyFrames plus however much jitter is to be absorbed.
+    */
+  public AudioMixer(int maxInputs, AudioFormat format, int blockFrames, int latencyFrames, int slots) {
+    if (!mixes(format))
+      throw new IllegalArgumentException("Can't mix " + format);
+    if (Integer.bitCount(slots) != 1 || (long) slots * blockFrames <= latencyFrames + blockFrames)
+      throw new IllegalArgumentException("Slots must be a power of two holding more than the latency: " + slots);
+    this.format = format;
+    channels = format.getChannels();
+    frameSize = format.getFrameSize();
+    sampleRate = format.getSampleRate();
+    this.blockFrames = blockFrames;
+    blockSamples = blockFrames * channels;
+    slotMask = slots - 1;
+    capacityFrames = (long) slots * blockFrames;
+    this.latencyFrames = latencyFrames;
+    snapFrames = Math.max(1, (int) (sampleRate * snapMicros / 1000000));
+    sums = new int[blockSamples];
+    inputs = new Input[maxInputs];
+    for (int i = 0; i < maxInputs; i++)
+      inputs[i] = new Input(slots, blockSamples);
+  }
+
+  /**
+    * @return whether audio in this format can be mixed: signed 16-bit little-endian PCM.
+    */
+  public static boolean mixes(AudioFormat format) {
+    return format.getEncoding() == AudioFormat.Encoding.PCM_SIGNED && format.getSampleSizeInBits() == 16
+        && !format.isBigEndian();
+  }
+
+  public AudioFormat getFormat() {
+    return format;
+  }
+
+  public int getBlockFrames() {
+    return blockFrames;
+  }
+
+  /**
+    * @return bytes mix() writes.
+    */
+  public int getBlockBytes() {
+    return blockFrames * frameSize;
+  }
+
+  /**
+    * @return frame of the timeline mixed next.
+    */
+  public long getPosition() {
+    return position;
+  }
+
+  /**
+    * Adds a stream to the mix. Its first packet anchors it to the timeline.
+    *
+    * @return the input to write it to, or -1 if the mixer has as many as it can take.
+    */
+  public synchronized int addInput() {
+    for (int i = 0; i < inputs.length; i++) {
+      Input in = inputs[i];
+      if (!in.active) {
+        in.anchored = false;
+        in.active = true;
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+    * Takes a stream out of the mix. Its input may be given to another.
+    */
+  public synchronized void removeInput(int input) {
+    inputs[input].active = false;
+  }
+
+  /**
+    * @return number of streams being mixed.
+    */
+  public synchronized int getInputCount() {
+    int count = 0;
+    for (Input in : inputs) {
+      if (in.active)
+        count++;
+    }
+    return count;
+  }
+
+  /**
+    * Places a packet of a stream on the timeline, where its timestamp says. Only the
+    * input's own writer may call this.
+    *
+    * @param timestamp  when the packet's audio starts, in microseconds, on the stream's own clock.
+    * @param pcm        audio in the mixer's format; a part frame at the end is ignored.
+    * @return           frames placed, or -1 if the packet was too late to be mixed, or too early.
+    */
+  public int write(int input, int timestamp, byte[] pcm, int off, int len) {
+    Input in = inputs[input];
+    int frames = len / frameSize;
+    if (frames == 0)
+      return 0;
+
+    long mixing = position;
+    long at = -1;
+    if (in.anchored) {
+      at = in.anchorPosition + (long) ((timestamp - in.anchorTimestamp) * (double) sampleRate / 1000000);
+      if (Math.abs(at - in.nextPosition) <= snapFrames)
+        at = in.nextPosition;
+    }
+    if (!in.anchored || at < mixing - latencyFrames || at > mixing + 2 * capacityFrames) {
+      // First packet, or the stream's clock has wandered far off ours (eg it restarted): start it afresh.
+      in.anchored = true;
+      in.anchorTimestamp = timestamp;
+      in.anchorPosition = mixing + latencyFrames;
+      at = in.anchorPosition;
+    }
+    if (at < mixing || at + frames > mixing + capacityFrames - blockFrames)
+      return -1;  // Too late, or too early for the ring to hold.
+
+    in.nextPosition = at + frames;
+    place(in, at, pcm, off, frames);
+    return frames;
+  }
+
+  /**
+    * Copies frames into an input's ring, block by block. A block the input hasn't
+    * written to yet is cleared first, and stamped once it's written.
+    */
+  private void place(Input in, long at, byte[] pcm, int off, int frames) {
+    short[] samples = in.samples;
+    long end = at + frames;
+    while (at < end) {
+      long block = at / blockFrames;
+      int slot = (int) block & slotMask;
+      int slotStart = slot * blockSamples;
+      if (in.stamps.get(slot) != block)
+        Arrays.fill(samples, slotStart, slotStart + blockSamples, (short) 0);
+
+      int from = (int) (at - block * blockFrames);
+      int count = (int) Math.min(blockFrames - from, end - at);
+      int s = slotStart + from * channels;
+      for (int i = 0, n = count * channels; i < n; i++, off += 2)
+        samples[s + i] = (short) ((pcm[off] & 0xff) | pcm[off + 1] << 8);
+
+      in.stamps.set(slot, block);   // volatile write publishes the samples written before it
+      at += count;
+    }
+  }
+
+  /**
+    * Mixes the next block of the timeline: sums what each input has for it, clipping
+    * the sum to 16 bits, and moves on. Only one thread may call this.
+    *
+    * @param out  room for getBlockBytes() bytes from off.
+    * @return     number of inputs that had audio for the block.
+    */
+  public int mix(byte[] out, int off) {
+    long block = position / blockFrames;
+    int slotStart = ((int) block & slotMask) * blockSamples;
+    int[] sums = this.sums;
+    Arrays.fill(sums, 0);
+
+    int mixed = 0;
+    for (Input in : inputs) {
+      if (in.active && in.stamps.get((int) block & slotMask) == block) {
+        add(sums, in.samples, slotStart);
+        mixed++;
+      }
+    }
+
+    for (int i = 0; i < sums.length; i++, off += 2) {
+      int sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sums[i]));
+      out[off] = (byte) sample;
+      out[off + 1] = (byte) (sample >> 8);
+    }
+
+    position += blockFrames;
+    return mixed;
+  }
+
+  private static void add(int[] sums, short[] samples, int from) {
+    for (int i = 0; i < sums.length; i++)
+      sums[i] += samples[from + i];
+  }
+
+}
@@ -0,0 +1,428 @@
+package audio;
+
+import java.lang.invoke.VarHandle;
+
+import java.nio.ByteBuffer;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+  * Preallocated ring of fixed-size audio frames, written by one producer (the
+  * sender-client handler) and read by any number of consumers (receiver-client
+  * handlers) without locks.
+  *
+  * Every frame gets a sequence number. A slot's stamp holds the sequence number of
+  * the frame in it, or WRITING while the producer is overwriting it. Readers check
+  * the stamp before and after using a frame, so they can tell if it was overwritten
+  * meanwhile (a per-slot seqlock). Readers chase the writer frame by frame; one that
+  * falls a whole ring behind is told so and must skip ahead.
+  *
+  * Frames are never copied out. The storage is published once as a read-only
+  * direct ByteBuffer and each reader's Frame is a window onto it, so forwarding a
+  * frame to any number of receivers allocates and copies nothing.
+  *
+  * A reader waiting for a frame parks until the producer publishes one and unparks it,
+  * so thousands of idle readers cost nothing between frames.
+  */
+public class AudioRing {
+
+  /**
+    * read() status: frame ready to use.
+    */
+  public static final int OK = 0;
+
+  /**
+    * read() status: frame not written yet.
+    */
+  public static final int NOT_YET = -1;
+
+  /**
+    * read() status: frame already overwritten; reader fell a ring behind.
+    */
+  public static final int OVERRUN = -2;
+
+  /**
+    * Slot stamp while the producer is writing to it.
+    */
+  private static final long WRITING = -1;
+
+  /**
+    * How many times a waiting reader looks at the ring before it starts sleeping.
+    */
+  private static final int spinTries = 100;
+
+  /**
+    * A reader's window onto one frame of the ring. Each reader owns one (see newFrame())
+    * and reuses it for every frame it reads.
+    */
+  public static class Frame {
+
+    /**
+      * Read-only view of the ring's storage, positioned and limited to the frame.
+      */
+    public final ByteBuffer data;
+
+    public long seq;
+    public int length;
+
+    /**
+      * Where in its loop of audio the frame starts.
+      */
+    public int loopOffset;
+
+    /**
+      * Length of the loop of audio the frame belongs to.
+      */
+    public int loopLength;
+
+    private Frame(ByteBuffer data) {
+      this.data = data;
+    }
+  }
+
+  /**
+    * A reader parked in awaitPublished().
+    */
+  private static class Waiter {
+    final Thread thread = Thread.currentThread();
+
+    /**
+      * Sequence number of the frame it's waiting for.
+      */
+    final long seq;
+
+    /**
+      * Whether it's in waiters, to be unparked by the next frame published.
+      */
+    volatile boolean queued;
+
+    Waiter(long seq) {
+      this.seq = seq;
+    }
+  }
+
+  private final int frameSize;
+
+  private final int mask;
+
+  /**
+    * Only written through by the producer, via writeView.
+    */
+  private final ByteBuffer storage;
+
+  /**
+    * Read-only snapshot of storage that readers' frames are views of.
+    */
+  private final ByteBuffer readOnlyStorage;
+
+  /**
+    * Producer's own view of storage, so writing doesn't disturb anyone's position.
+    */
+  private final ByteBuffer writeView;
+
+  private final int[] lengths;
+
+  private final int[] loopOffsets;
+
+  private final int[] loopLengths;
+
+  private final AtomicLongArray stamps;
+
+  /**
+    * Sequence number of the latest complete frame, or -1.
+    */
+  private final AtomicLong published;
+
+  /**
+    * Sequence number of the latest frame that starts a loop, or -1.
+    */
+  private volatile long latestLoopStart;
+
+  /**
+    * Readers parked until the next frame's published.
+    */
+  private final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<Waiter>();
+
+  /**
+    * Only touched by the producer.
+    */
+  private long nextSeq;
+
+  /**
+    * Format of the audio being written, as the sender client gave it, or null if not known yet.
+    */
+  private volatile AudioFormat format;
+
+  /**
+    * Stamp of the slot being written before beginWrite() changed it, so abortWrite() can put it back.
+    */
+  private long overwrittenStamp;
+
+  /**
+    * @param capacity   number of frames held. Rounded up to a power of two.
+    * @param frameSize  maximum bytes per frame.
+    */
+  public AudioRing(int capacity, int frameSize) {
+    int slots = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+    this.frameSize = frameSize;
+    mask = slots - 1;
+    storage = ByteBuffer.allocateDirect(slots * frameSize);
+    readOnlyStorage = storage.asReadOnlyBuffer();
+    writeView = storage.duplicate();
+    lengths = new int[slots];
+    loopOffsets = new int[slots];
+    loopLengths = new int[slots];
+    stamps = new AtomicLongArray(slots);
+    for (int i = 0; i < slots; i++)
+      stamps.set(i, WRITING);
+    published = new AtomicLong(-1);
+    latestLoopStart = -1;
+    nextSeq = 0;
+  }
+
+  public int getFrameSize() {
+    return frameSize;
+  }
+
+  public int getCapacity() {
+    return mask + 1;
+  }
+
+  /**
+    * Only call from the producer, before writing audio of the format.
+    */
+  public void setFormat(AudioFormat format) {
+    this.format = format;
+  }
+
+  /**
+    * @return format of the audio being written, or null if not known yet.
+    */
+  public AudioFormat getFormat() {
+    return format;
+  }
+
+  /**
+    * @return a new window onto the ring for a reader to reuse for every frame it reads.
+    */
+  public Frame newFrame() {
+    return new Frame(readOnlyStorage.duplicate());
+  }
+
+  /**
+    * Appends a frame. Only the single producer may call this.
+    *
+    * @param src         audio bytes.
+    * @param off         start of frame in src.
+    * @param len         length of frame, at most the frame size.
+    * @param loopOffset  where in its loop the frame starts.
+    * @param loopLength  length of the loop the frame belongs to.
+    * @return            sequence number of the frame.
+    */
+  public long write(byte[] src, int off, int len, int loopOffset, int loopLength) {
+    if (len > frameSize)
+      throw new IllegalArgumentException("Frame of " + len + " bytes exceeds frame size " + frameSize);
+
+    beginWrite().put(src, off, len);
+    return commitWrite(loopOffset, loopLength);
+  }
+
+  /**
+    * Starts writing the next frame in place, eg by receiving a datagram straight into it.
+    * Only the single producer may call this, and must follow with commitWrite() or abortWrite().
+    *
+    * @return the producer's view of the ring, positioned at the start of the next frame
+    *         and limited to the frame size.
+    */
+  public ByteBuffer beginWrite() {
+    int slot = (int) nextSeq & mask;
+
+    overwrittenStamp = stamps.get(slot);
+    stamps.set(slot, WRITING);
+    VarHandle.storeStoreFence(); // stamp must be seen to change before the data does
+
+    writeView.limit(slot * frameSize + frameSize);
+    writeView.position(slot * frameSize);
+    return writeView;
+  }
+
+  /**
+    * Publishes the frame started with beginWrite(). Its length is however far the view's position was moved.
+    *
+    * @param loopOffset  where in its loop the frame starts.
+    * @param loopLength  length of the loop the frame belongs to.
+    * @return            sequence number of the frame.
+    */
+  public long commitWrite(int loopOffset, int loopLength) {
+    long seq = nextSeq++;
+    int slot = (int) seq & mask;
+
+    lengths[slot] = writeView.position() - slot * frameSize;
+    loopOffsets[slot] = loopOffset;
+    loopLengths[slot] = loopLength;
+
+    stamps.set(slot, seq);       // volatile write publishes the data written before it
+    if (loopOffset == 0)
+      latestLoopStart = seq;
+    published.set(seq);
+    if (!waiters.isEmpty())
+      wakeWaiters(seq);
+
+    return seq;
+  }
+
+  /**
+    * Unparks the readers waiting for frames up to one just published. Only the producer
+    * calls this. Readers wait for the frame after the latest, so they're queued in the order
+    * of the frames they want: once one's come that wants a later frame, woken ones queuing
+    * again for the next, the rest are left for it.
+    */
+  private void wakeWaiters(long seq) {
+    Waiter waiter;
+    while ((waiter = waiters.poll()) != null) {
+      waiter.queued = false;
+      LockSupport.unpark(waiter.thread);
+      if (waiter.seq > seq)
+        return; // Woken for nothing, but only the once.
+    }
+  }
+
+  /**
+    * Abandons the frame started with beginWrite(), eg because no datagram came.
+    * The slot's old frame is readable again unless the view was written to. Don't move
+    * the view back to hide something written: the old frame's bytes are gone all the same,
+    * so it's to be left marked as overwritten, and readers of it told OVERRUN.
+    */
+  public void abortWrite() {
+    int slot = (int) nextSeq & mask;
+    if (writeView.position() == slot * frameSize)
+      stamps.set(slot, overwrittenStamp);
+  }
+
+  /**
+    * @return length of the frame just committed. Only the producer may call this.
+    */
+  public int getLastWriteLength() {
+    return lengths[(int) (nextSeq - 1) & mask];
+  }
+
+  /**
+    * Points a reader's frame at a frame in the ring. Nothing is copied, so once
+    * done with frame.data the reader should check isIntact() to be sure the
+    * producer didn't overwrite it meanwhile.
+    *
+    * @param seq    sequence number of the frame.
+    * @param frame  reader's window, from newFrame().
+    * @return       OK, NOT_YET or OVERRUN.
+    */
+  public int read(long seq, Frame frame) {
+    int slot = (int) seq & mask;
+
+    long before = stamps.get(slot);
+    if (before == WRITING)
+      return seq <= published.get() ? OVERRUN : NOT_YET; // Published, then overwritten or spoilt since.
+    if (before != seq)
+      return before < seq ? NOT_YET : OVERRUN;
+
+    int len = lengths[slot];
+    frame.loopOffset = loopOffsets[slot];
+    frame.loopLength = loopLengths[slot];
+
+    VarHandle.acquireFence();    // reads above must complete before the stamp is re-read
+    if (stamps.get(slot) != seq)
+      return OVERRUN;
+
+    frame.seq = seq;
+    frame.length = len;
+    frame.data.limit(slot * frameSize + len);
+    frame.data.position(slot * frameSize);
+    return OK;
+  }
+
+  /**
+    * @return whether the frame a reader last read is still in the ring, ie
+    *         whatever it did with frame.data saw the frame and not a later one.
+    */
+  public boolean isIntact(Frame frame) {
+    VarHandle.acquireFence();
+    return stamps.get((int) frame.seq & mask) == frame.seq;
+  }
+
+  /**
+    * @return sequence number of the latest complete frame, or -1 if none.
+    */
+  public long getPublished() {
+    return published.get();
+  }
+
+  /**
+    * @return sequence number of the latest frame that starts a loop, or -1 if none.
+    */
+  public long getLatestLoopStart() {
+    return latestLoopStart;
+  }
+
+  /**
+    * @return sequence number of the oldest frame that may still be read.
+    */
+  public long getOldestAvailable() {
+    return Math.max(0, published.get() - mask);
+  }
+
+  /**
+    * Waits, without locking, until a frame has been published.
+    *
+    * @param seq            sequence number of the frame.
+    * @param timeoutNanos   how long to wait.
+    * @return               whether the frame has been published.
+    */
+  public boolean awaitPublished(long seq, long timeoutNanos) {
+    return awaitPublished(seq, timeoutNanos, null);
+  }
+
+  /**
+    * Waits, without locking, until a frame has been published, or until something else the
+    * waiter's waiting for has happened. Whatever makes that happen must unpark the waiter,
+    * as it's otherwise only noticed when the next frame's published or the wait times out.
+    *
+    * @param seq            sequence number of the frame.
+    * @param timeoutNanos   how long to wait.
+    * @param stop           whether to stop waiting, or null to wait only for the frame.
+    * @return               whether the frame has been published.
+    */
+  public boolean awaitPublished(long seq, long timeoutNanos, BooleanSupplier stop) {
+    for (int i = 0; i < spinTries; i++) {
+      if (published.get() >= seq)
+        return true;
+      Thread.onSpinWait();
+    }
+
+    long deadline = System.nanoTime() + timeoutNanos;
+    Waiter waiter = new Waiter(seq);
+    try {
+      while (published.get() < seq) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0 || stop != null && stop.getAsBoolean())
+          return false;
+        if (!waiter.queued) {
+          // Queued, then published looked at again, so a frame published meanwhile isn't slept through.
+          waiter.queued = true;
+          waiters.add(waiter);
+          continue;
+        }
+        LockSupport.parkNanos(this, remaining);
+      }
+      return true;
+    } finally {
+      if (waiter.queued)
+        waiters.remove(waiter);
+    }
+  }
+
+}
@@ -0,0 +1,184 @@
+package audio;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+  * IMA-ADPCM: each 16-bit sample as a 4-bit step from the one before, about a quarter of
+  * what's sent. Blocks are laid out as in a wav file: per channel, a header holding the
+  * first sample and step index, then 4 bytes (8 samples) of each channel in turn. Every
+  * block decodes on its own, so blocks are the encoded format's frames.
+  */
+class ImaAdpcmCodec implements AudioCodec {
+
+  static final int id = 2;
+
+  static final AudioFormat.Encoding encoding = new AudioFormat.Encoding("IMA_ADPCM");
+
+  /**
+    * Bytes per channel per block. Small, so at most a few ms of silence pads a loop out to whole blocks.
+    */
+  private static final int blockBytesPerChannel = 128;
+
+  private static final int headerBytesPerChannel = 4;
+
+  /**
+    * Samples per channel per block: the header's, then two per byte.
+    */
+  static final int samplesPerBlock = 1 + (blockBytesPerChannel - headerBytesPerChannel) * 2;
+
+  private static final int[] indexTable = { -1, -1, -1, -1, 2, 4, 6, 8, -1, -1, -1, -1, 2, 4, 6, 8 };
+
+  private static final int[] stepTable = {
+    7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+    50, 55, 60, 66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+    337, 371, 408, 449, 494, 544, 598, 658, 724, 796, 876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+    2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899,
+    15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+  };
+
+  public int getId() {
+    return id;
+  }
+
+  public String getName() {
+    return "adpcm";
+  }
+
+  public AudioFormat encodedFormat(AudioFormat pcm) {
+    if (pcm.getEncoding() != AudioFormat.Encoding.PCM_SIGNED || pcm.getSampleSizeInBits() != 16 || pcm.isBigEndian())
+      return null;
+    int channels = pcm.getChannels();
+    return new AudioFormat(encoding, pcm.getSampleRate(), 4, channels, blockBytesPerChannel * channels,
+        pcm.getSampleRate() / samplesPerBlock, false);
+  }
+
+  public boolean decodes(AudioFormat encoded) {
+    return encoded.getEncoding().equals(encoding);
+  }
+
+  public AudioFormat decodedFormat(AudioFormat encoded) {
+    return new AudioFormat(encoded.getSampleRate(), 16, encoded.getChannels(), true, false);
+  }
+
+  public int encodedLength(AudioFormat encoded, int pcmLength) {
+    int pcmBlock = samplesPerBlock * 2 * encoded.getChannels();
+    return (pcmLength + pcmBlock - 1) / pcmBlock * encoded.getFrameSize();
+  }
+
+  public int decodedLength(AudioFormat encoded, int encodedLength) {
+    return encodedLength / encoded.getFrameSize() * samplesPerBlock * 2 * encoded.getChannels();
+  }
+
+  public int encode(AudioFormat encoded, byte[] pcm, int pcmOffset, int pcmLength, byte[] out, int outOffset) {
+    int channels = encoded.getChannels();
+    int blockSize = encoded.getFrameSize();
+    int pcmBlock = samplesPerBlock * 2 * channels;
+    int pcmEnd = pcmOffset + pcmLength / (2 * channels) * (2 * channels);
+    int length = encodedLength(encoded, pcmLength);
+
+    for (int channel = 0; channel < channels; channel++) {
+      int index = 0; // Carried from block to block, as the header says where each starts.
+      for (int block = outOffset, blockPcm = pcmOffset; block < outOffset + length; block += blockSize, blockPcm += pcmBlock) {
+        int predictor = sample(pcm, blockPcm + channel * 2, pcmEnd);
+        int header = block + channel * headerBytesPerChannel;
+        out[header] = (byte) predictor;
+        out[header + 1] = (byte) (predictor >> 8);
+        out[header + 2] = (byte) index;
+        out[header + 3] = 0;
+
+        // Samples after the header's go 8 at a time into 4 bytes, a channel's bytes after the one before's.
+        int samplePcm = blockPcm + channels * 2 + channel * 2;
+        for (int group = 0; group < samplesPerBlock / 8; group++) {
+          int o = block + headerBytesPerChannel * channels + (group * channels + channel) * 4;
+          for (int i = 0; i < 8; i++, samplePcm += channels * 2) {
+            int sample = sample(pcm, samplePcm, pcmEnd);
+            int step = stepTable[index];
+            int diff = sample - predictor;
+            int code = 0;
+            if (diff < 0) {
+              code = 8;
+              diff = -diff;
+            }
+            int delta = step >> 3;
+            if (diff >= step) {
+              code |= 4;
+              diff -= step;
+              delta += step;
+            }
+            if (diff >= step >> 1) {
+              code |= 2;
+              diff -= step >> 1;
+              delta += step >> 1;
+            }
+            if (diff >= step >> 2) {
+              code |= 1;
+              delta += step >> 2;
+            }
+            predictor = clamp((code & 8) != 0 ? predictor - delta : predictor + delta);
+            index = Math.max(0, Math.min(stepTable.length - 1, index + indexTable[code]));
+            if ((i & 1) == 0)
+              out[o + i / 2] = (byte) code;
+            else
+              out[o + i / 2] |= (byte) (code << 4);
+          }
+        }
+      }
+    }
+    return length;
+  }
+
+  public int decode(AudioFormat encoded, byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+    int channels = encoded.getChannels();
+    int blockSize = encoded.getFrameSize();
+    int pcmBlock = samplesPerBlock * 2 * channels;
+    int blocks = length / blockSize;
+
+    for (int b = 0; b < blocks; b++) {
+      int block = inOffset + b * blockSize;
+      int blockPcm = outOffset + b * pcmBlock;
+      for (int channel = 0; channel < channels; channel++) {
+        int header = block + channel * headerBytesPerChannel;
+        int predictor = (short) ((in[header] & 0xff) | in[header + 1] << 8);
+        int index = Math.max(0, Math.min(stepTable.length - 1, in[header + 2]));
+        int o = blockPcm + channel * 2;
+        out[o] = (byte) predictor;
+        out[o + 1] = (byte) (predictor >> 8);
+        o += channels * 2;
+
+        for (int group = 0; group < samplesPerBlock / 8; group++) {
+          int i4 = block + headerBytesPerChannel * channels + (group * channels + channel) * 4;
+          for (int i = 0; i < 8; i++, o += channels * 2) {
+            int code = (in[i4 + i / 2] >> ((i & 1) * 4)) & 0x0f;
+            int step = stepTable[index];
+            int delta = step >> 3;
+            if ((code & 4) != 0)
+              delta += step;
+            if ((code & 2) != 0)
+              delta += step >> 1;
+            if ((code & 1) != 0)
+              delta += step >> 2;
+            predictor = clamp((code & 8) != 0 ? predictor - delta : predictor + delta);
+            index = Math.max(0, Math.min(stepTable.length - 1, index + indexTable[code]));
+            out[o] = (byte) predictor;
+            out[o + 1] = (byte) (predictor >> 8);
+          }
+        }
+      }
+    }
+    return blocks * pcmBlock;
+  }
+
+  /**
+    * @return 16-bit little-endian sample at offset, or silence past end.
+    */
+  private static int sample(byte[] pcm, int offset, int end) {
+    if (offset >= end)
+      return 0;
+    return (short) ((pcm[offset] & 0xff) | pcm[offset + 1] << 8);
+  }
+
+  private static int clamp(int sample) {
+    return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+  }
+
+}
@@ -0,0 +1,118 @@
+package audio;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+  * Works out when the sender client should be asked for the next loop of audio,
+  * from how long a loop takes to play rather than a fixed sleep.
+  *
+  * A loop's playing time comes from its AudioFormat's frame rate and frame size and
+  * its length in bytes. The next loop is asked for so that it has finished arriving
+  * (going by how long the last one took to arrive) just as the current one finishes
+  * playing. Throughput is then set by the audio itself.
+  */
+public class LoopScheduler {
+
+  /**
+    * Used when the loop's format isn't known.
+    */
+  private static final long defaultLoopNanos = TimeUnit.SECONDS.toNanos(2);
+
+  /**
+    * Extra time allowed for the next loop to arrive, on top of how long the last one took.
+    */
+  private static final long marginNanos = TimeUnit.MILLISECONDS.toNanos(20);
+
+  private final long loopNanos;
+
+  private long ingestNanos;
+
+  private long nextIngestStart;
+
+  /**
+    * When the loops that have arrived so far will have finished playing, or 0 before the first.
+    */
+  private long playingUntil;
+
+  /**
+    * @param loopNanos how long a loop takes to play.
+    */
+  public LoopScheduler(long loopNanos) {
+    this.loopNanos = loopNanos;
+    nextIngestStart = System.nanoTime();
+  }
+
+  /**
+    * @param format      format of the audio, or null if not known.
+    * @param audioBytes  length of a loop's audio data, in bytes.
+    */
+  public LoopScheduler(AudioFormat format, long audioBytes) {
+    this(playingNanos(format, audioBytes));
+  }
+
+  /**
+    * @return how long audio of a given length takes to play.
+    */
+  public static long playingNanos(AudioFormat format, long audioBytes) {
+    if (format == null)
+      return defaultLoopNanos;
+    int frameSize = format.getFrameSize();
+    float frameRate = format.getFrameRate();
+    if (frameSize <= 0 || frameRate <= 0)
+      return defaultLoopNanos;
+    return framesToNanos(audioBytes / frameSize, frameRate);
+  }
+
+  private static long framesToNanos(long frames, float frameRate) {
+    return (long) (frames * 1e9 / frameRate);
+  }
+
+  /**
+    * @return how long a loop takes to play.
+    */
+  public long getLoopNanos() {
+    return loopNanos;
+  }
+
+  /**
+    * Call when a loop has arrived. Sets when the next one should be asked for.
+    *
+    * @param ingestStart System.nanoTime() when the sender client was asked for the loop.
+    */
+  public void loopIngested(long ingestStart) {
+    long now = System.nanoTime();
+    ingestNanos = now - ingestStart;
+    playingUntil = Math.max(playingUntil, now) + loopNanos; // A loop that's late starts playing when it arrives.
+    nextIngestStart = playingUntil - ingestNanos - marginNanos;
+  }
+
+  /**
+    * @return how long the last loop took to arrive.
+    */
+  public long getIngestNanos() {
+    return ingestNanos;
+  }
+
+  /**
+    * @return how long until the next loop should be asked for (0 if it's due).
+    */
+  public long getNanosUntilNextIngest() {
+    return Math.max(0, nextIngestStart - System.nanoTime());
+  }
+
+  /**
+    * Blocks until the next loop should be asked for.
+    */
+  public void awaitNextIngest() {
+    long remaining;
+    while ((remaining = getNanosUntilNextIngest()) > 0) {
+      LockSupport.parkNanos(remaining);
+      if (Thread.currentThread().isInterrupted())
+        return;
+    }
+  }
+
+}
@@ -0,0 +1,108 @@
+package audio;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+  * G.711 mu-law: each 16-bit sample as 8 bits, spaced logarithmically, so quiet sounds
+  * lose less than loud ones. Halves what's sent. Both ways are table lookups.
+  */
+class MuLawCodec implements AudioCodec {
+
+  static final int id = 1;
+
+  private static final int bias = 0x84;
+
+  private static final int clip = 32635;
+
+  /**
+    * mu-law byte for each 16-bit sample, indexed by sample & 0xffff.
+    */
+  private static final byte[] encodeTable = new byte[1 << 16];
+
+  /**
+    * 16-bit sample for each mu-law byte.
+    */
+  private static final short[] decodeTable = new short[1 << 8];
+
+  static {
+    for (int i = 0; i < encodeTable.length; i++)
+      encodeTable[i] = encodeSample((short) i);
+    for (int i = 0; i < decodeTable.length; i++)
+      decodeTable[i] = decodeSample(i);
+  }
+
+  private static byte encodeSample(int sample) {
+    int sign = (sample >> 8) & 0x80;
+    if (sign != 0)
+      sample = -sample;
+    if (sample > clip)
+      sample = clip;
+    sample += bias;
+    int exponent = 7;
+    for (int mask = 0x4000; (sample & mask) == 0 && exponent > 0; mask >>= 1)
+      exponent--;
+    int mantissa = (sample >> (exponent + 3)) & 0x0f;
+    return (byte) ~(sign | (exponent << 4) | mantissa);
+  }
+
+  private static short decodeSample(int mulaw) {
+    mulaw = ~mulaw & 0xff;
+    int exponent = (mulaw >> 4) & 0x07;
+    int sample = (((mulaw & 0x0f) << 3) + bias) << exponent;
+    sample -= bias;
+    return (short) ((mulaw & 0x80) != 0 ? -sample : sample);
+  }
+
+  public int getId() {
+    return id;
+  }
+
+  public String getName() {
+    return "ulaw";
+  }
+
+  public AudioFormat encodedFormat(AudioFormat pcm) {
+    if (pcm.getEncoding() != AudioFormat.Encoding.PCM_SIGNED || pcm.getSampleSizeInBits() != 16 || pcm.isBigEndian())
+      return null;
+    int channels = pcm.getChannels();
+    return new AudioFormat(AudioFormat.Encoding.ULAW, pcm.getSampleRate(), 8, channels, channels, pcm.getSampleRate(), false);
+  }
+
+  public boolean decodes(AudioFormat encoded) {
+    return encoded.getEncoding() == AudioFormat.Encoding.ULAW;
+  }
+
+  public AudioFormat decodedFormat(AudioFormat encoded) {
+    return new AudioFormat(encoded.getSampleRate(), 16, encoded.getChannels(), true, false);
+  }
+
+  public int encodedLength(AudioFormat encoded, int pcmLength) {
+    int frames = (pcmLength / 2 + encoded.getChannels() - 1) / encoded.getChannels();
+    return frames * encoded.getChannels();
+  }
+
+  public int decodedLength(AudioFormat encoded, int encodedLength) {
+    return encodedLength / encoded.getChannels() * encoded.getChannels() * 2;
+  }
+
+  public int encode(AudioFormat encoded, byte[] pcm, int pcmOffset, int pcmLength, byte[] out, int outOffset) {
+    int samples = pcmLength / 2;
+    for (int i = 0, in = pcmOffset; i < samples; i++, in += 2)
+      out[outOffset + i] = encodeTable[(pcm[in] & 0xff) | (pcm[in + 1] & 0xff) << 8];
+    int length = encodedLength(encoded, pcmLength);
+    for (int i = samples; i < length; i++)
+      out[outOffset + i] = encodeTable[0];
+    return length;
+  }
+
+  public int decode(AudioFormat encoded, byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+    int samples = length / encoded.getChannels() * encoded.getChannels();
+    for (int i = 0, o = outOffset; i < samples; i++, o += 2) {
+      short sample = decodeTable[in[inOffset + i] & 0xff];
+      out[o] = (byte) sample;
+      out[o + 1] = (byte) (sample >> 8);
+    }
+    return samples * 2;
+  }
+
+}
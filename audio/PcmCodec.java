@@ -0,0 +1,58 @@
+package audio;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+  * No codec: PCM audio is sent as it is.
+  */
+class PcmCodec implements AudioCodec {
+
+  static final int id = 0;
+
+  public int getId() {
+    return id;
+  }
+
+  public String getName() {
+    return "pcm";
+  }
+
+  public AudioFormat encodedFormat(AudioFormat pcm) {
+    return decodes(pcm) ? pcm : null;
+  }
+
+  public boolean decodes(AudioFormat encoded) {
+    AudioFormat.Encoding encoding = encoded.getEncoding();
+    return encoding == AudioFormat.Encoding.PCM_SIGNED || encoding == AudioFormat.Encoding.PCM_UNSIGNED;
+  }
+
+  public AudioFormat decodedFormat(AudioFormat encoded) {
+    return encoded;
+  }
+
+  public int encodedLength(AudioFormat encoded, int pcmLength) {
+    int frameSize = Math.max(1, encoded.getFrameSize());
+    return (pcmLength + frameSize - 1) / frameSize * frameSize;
+  }
+
+  public int decodedLength(AudioFormat encoded, int encodedLength) {
+    int frameSize = Math.max(1, encoded.getFrameSize());
+    return encodedLength / frameSize * frameSize;
+  }
+
+  public int encode(AudioFormat encoded, byte[] pcm, int pcmOffset, int pcmLength, byte[] out, int outOffset) {
+    int length = encodedLength(encoded, pcmLength);
+    System.arraycopy(pcm, pcmOffset, out, outOffset, pcmLength);
+    byte silence = (byte) (encoded.getEncoding() == AudioFormat.Encoding.PCM_UNSIGNED && encoded.getSampleSizeInBits() <= 8 ? 0x80 : 0);
+    for (int i = pcmLength; i < length; i++)
+      out[outOffset + i] = silence;
+    return length;
+  }
+
+  public int decode(AudioFormat encoded, byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+    int decoded = decodedLength(encoded, length);
+    System.arraycopy(in, inOffset, out, outOffset, decoded);
+    return decoded;
+  }
+
+}
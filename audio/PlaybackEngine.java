@@ -0,0 +1,423 @@
+package audio;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.Mixer;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+  * Plays loops of audio one after another on a single SourceDataLine, from a thread of
+  * its own, so the next loop can be received while one plays and there's no gap between
+  * them. The line is opened for the first loop and kept open while loops keep its format.
+  * Loops sent with a codec are decoded a chunk at a time as they're written to the line.
+  *
+  * A loop's audio is queued by write() as it arrives, in chunks of whatever whole frames
+  * there are, so it's played as soon as it's in rather than once the loop's whole, and
+  * only what's queued is held. Once the line's run dry, a little is let build up before
+  * playing again, so the next late packet doesn't starve it straight away. endLoop()
+  * marks where a loop ends, and waits while prefetchLoops have ended without having
+  * finished playing, so whoever's receiving them keeps no further ahead of what's heard
+  * than that.
+  *
+  * With the null mixer (see nullMixerName), or if no line can be had, eg on a machine
+  * with no sound card, audio goes nowhere but is taken at the rate it would play, so
+  * everything else runs as it would with a real line.
+  */
+public class PlaybackEngine extends Thread {
+
+  /**
+    * Mixer name that has audio thrown away at the rate it plays, eg for testing.
+    */
+  public static final String nullMixerName = "null";
+
+  /**
+    * Loops queued to play after the one playing.
+    */
+  private static final int prefetchLoops = 2;
+
+  /**
+    * Audio let build up before playing starts, or starts again after the line's run dry.
+    */
+  private static final long startBufferNanos = TimeUnit.MILLISECONDS.toNanos(60);
+
+  /**
+    * How much audio the line holds, so how far ahead of what's heard writing to it gets.
+    */
+  private static final long lineBufferNanos = TimeUnit.MILLISECONDS.toNanos(200);
+
+  /**
+    * Most audio written to the line at once.
+    */
+  private static final int chunkLength = 4096;
+
+  /**
+    * Spare chunks kept for reuse, at most.
+    */
+  private static final int spareChunksKept = 64;
+
+  /**
+    * Mixer to play through: null for the default, nullMixerName for none.
+    */
+  private final String mixerName;
+
+  /**
+    * Audio queued to play, and the ends of loops.
+    */
+  private final LinkedBlockingQueue<Chunk> chunks;
+
+  private final ConcurrentLinkedQueue<Chunk> spareChunks;
+
+  /**
+    * A permit for each loop that can end without having finished playing.
+    */
+  private final Semaphore loopsAhead;
+
+  /**
+    * Audio bytes queued.
+    */
+  private final AtomicLong queuedBytes;
+
+  /**
+    * Whether the playing thread's waiting for audio to build up, to be woken as it's queued.
+    */
+  private volatile boolean buffering;
+
+  /**
+    * Chunk write() is filling, not yet queued, or null.
+    */
+  private Chunk filling;
+
+  /**
+    * Line being played to, or null if audio's being thrown away.
+    */
+  private SourceDataLine line;
+
+  /**
+    * Format the line was opened for, or null if it hasn't been.
+    */
+  private AudioFormat lineFormat;
+
+  /**
+    * Format of the loop last played, as sent, and the codec that decodes it.
+    */
+  private AudioFormat loopFormat;
+
+  private AudioCodec codec;
+
+  /**
+    * Decoded audio, a chunk at a time. Sized for the codec when the format changes.
+    */
+  private byte[] decoded;
+
+  /**
+    * When there's no line, System.nanoTime() when what's been written would have finished playing.
+    */
+  private long nullPlayedUntil;
+
+  private volatile long loopsPlayed;
+
+  /**
+    * Times the line ran dry, between loops or within one, so there was a gap.
+    */
+  private volatile long underruns;
+
+  /**
+    * Whether any audio's been played.
+    */
+  private boolean played;
+
+  /**
+    * @param mixerName  name of the mixer to play through (see AudioSystem.getMixerInfo()),
+    *                   null for the default, or nullMixerName for none.
+    */
+  public PlaybackEngine(String mixerName) {
+    super("PlaybackEngine");
+    this.mixerName = mixerName;
+    chunks = new LinkedBlockingQueue<Chunk>();
+    spareChunks = new ConcurrentLinkedQueue<Chunk>();
+    loopsAhead = new Semaphore(prefetchLoops);
+    queuedBytes = new AtomicLong();
+    setDaemon(true);
+  }
+
+  /**
+    * Queues the next of a loop's audio to play once what's before it has. The whole frames
+    * in it go now; what's left of a part frame goes with the next write. Doesn't wait.
+    *
+    * @param audio   audio, copied, so it can be reused once this returns.
+    * @param format  its format, as sent. Audio with none, or with no codec to decode it, is dropped.
+    */
+  public void write(byte[] audio, int offset, int length, AudioFormat format) {
+    if (format == null || AudioCodecs.forFormat(format) == null)
+      return;
+    if (filling != null && !format.matches(filling.format))
+      queueFilling(); // What's left of the last format is only part of a frame.
+    int frameSize = Math.max(1, format.getFrameSize());
+    while (length > 0) {
+      if (filling == null)
+        filling = newChunk(format, frameSize);
+      int n = Math.min(length, filling.audio.length - filling.length);
+      System.arraycopy(audio, offset, filling.audio, filling.length, n);
+      filling.length += n;
+      offset += n;
+      length -= n;
+      if (filling.length >= frameSize)
+        queueFilling();
+    }
+  }
+
+  /**
+    * Marks the end of a loop written. Waits while prefetchLoops loops have ended without
+    * having finished playing.
+    */
+  public void endLoop() throws InterruptedException {
+    if (filling != null) {
+      filling.length = 0; // A part frame would put the line out of step.
+      queueFilling();
+    }
+    Chunk end = spareChunks.poll();
+    if (end == null)
+      end = new Chunk(chunkLength);
+    end.length = 0;
+    end.end = true;
+    chunks.put(end);
+    loopsAhead.acquire();
+  }
+
+  /**
+    * Queues the whole frames of the chunk being filled, and carries what's left over to a new one.
+    */
+  private void queueFilling() {
+    Chunk chunk = filling;
+    int frameSize = Math.max(1, chunk.format.getFrameSize());
+    int whole = chunk.length / frameSize * frameSize;
+    int left = chunk.length - whole;
+    filling = null;
+    if (left > 0) {
+      filling = newChunk(chunk.format, frameSize);
+      System.arraycopy(chunk.audio, whole, filling.audio, 0, left);
+      filling.length = left;
+    }
+    if (whole == 0) {
+      recycle(chunk);
+      return;
+    }
+    chunk.length = whole;
+    queuedBytes.addAndGet(whole);
+    chunks.add(chunk);
+    if (buffering)
+      LockSupport.unpark(this);
+  }
+
+  /**
+    * @return an empty chunk for audio of a format, big enough for a frame of it.
+    */
+  private Chunk newChunk(AudioFormat format, int frameSize) {
+    Chunk chunk = frameSize <= chunkLength ? spareChunks.poll() : null;
+    if (chunk == null)
+      chunk = new Chunk(Math.max(chunkLength, frameSize));
+    chunk.format = format;
+    chunk.length = 0;
+    chunk.end = false;
+    return chunk;
+  }
+
+  private void recycle(Chunk chunk) {
+    if (chunk.audio.length == chunkLength && spareChunks.size() < spareChunksKept)
+      spareChunks.add(chunk);
+  }
+
+  public long getLoopsPlayed() {
+    return loopsPlayed;
+  }
+
+  public long getUnderruns() {
+    return underruns;
+  }
+
+  public void run() {
+    try {
+      while (true) {
+        Chunk chunk = chunks.take();
+        if (chunk.end) {
+          loopsPlayed++;
+          loopsAhead.release();
+        } else {
+          queuedBytes.addAndGet(-chunk.length);
+          playChunk(chunk);
+        }
+        recycle(chunk);
+      }
+    } catch (InterruptedException e) {
+      // Stopped.
+    } finally {
+      closeLine();
+    }
+  }
+
+  private void playChunk(Chunk chunk) throws InterruptedException {
+    AudioFormat format = chunk.format;
+    if (loopFormat == null || !format.matches(loopFormat)) {
+      setFormat(format);
+      awaitStartBuffer(format);
+    } else if (isDrained()) {
+      if (played)
+        underruns++;
+      awaitStartBuffer(format);
+    }
+
+    int frameSize = Math.max(1, format.getFrameSize());
+    int step = Math.max(frameSize, chunkLength / frameSize * frameSize);
+    for (int offset = 0; offset < chunk.length; offset += step) {
+      int length = Math.min(step, chunk.length - offset);
+      if (decoded == null)
+        writeLine(chunk.audio, offset, length);
+      else
+        writeLine(decoded, 0, codec.decode(format, chunk.audio, offset, length, decoded, 0));
+    }
+    played = true;
+  }
+
+  /**
+    * Waits, startBufferNanos at most, for that much audio to be queued behind what's about to be played.
+    */
+  private void awaitStartBuffer(AudioFormat format) throws InterruptedException {
+    long deadline = System.nanoTime() + startBufferNanos;
+    buffering = true;
+    try {
+      long wait;
+      while (LoopScheduler.playingNanos(format, queuedBytes.get()) < startBufferNanos
+          && (wait = deadline - System.nanoTime()) > 0 && !chunksHoldEnd()) {
+        LockSupport.parkNanos(this, wait);
+        if (interrupted())
+          throw new InterruptedException();
+      }
+    } finally {
+      buffering = false;
+    }
+  }
+
+  /**
+    * @return whether the end of a loop is queued, so there's no more of it to wait for.
+    */
+  private boolean chunksHoldEnd() {
+    for (Chunk chunk : chunks) {
+      if (chunk.end)
+        return true;
+    }
+    return false;
+  }
+
+  /**
+    * @return whether everything written has finished playing.
+    */
+  private boolean isDrained() {
+    if (line == null)
+      return System.nanoTime() - nullPlayedUntil >= 0;
+    return line.available() >= line.getBufferSize();
+  }
+
+  /**
+    * Writes audio to the line, waiting while it's full.
+    */
+  private void writeLine(byte[] bytes, int offset, int length) {
+    if (line != null) {
+      line.write(bytes, offset, length);
+      return;
+    }
+
+    long now = System.nanoTime();
+    if (now - nullPlayedUntil > 0)
+      nullPlayedUntil = now;
+    nullPlayedUntil += LoopScheduler.playingNanos(lineFormat, length);
+    long wait;
+    while ((wait = nullPlayedUntil - lineBufferNanos - System.nanoTime()) > 0)
+      LockSupport.parkNanos(wait);
+  }
+
+  /**
+    * Gets ready to play loops in a new format, as sent: finds its codec and opens a line
+    * for what it decodes to, if that's not what's open already.
+    */
+  private void setFormat(AudioFormat format) {
+    loopFormat = format;
+    codec = AudioCodecs.forFormat(format);
+    int frameSize = Math.max(1, format.getFrameSize());
+    decoded = codec == AudioCodecs.pcm ? null
+        : new byte[codec.decodedLength(format, Math.max(frameSize, chunkLength / frameSize * frameSize))];
+    AudioFormat pcm = codec.decodedFormat(format);
+    if (lineFormat == null || !pcm.matches(lineFormat))
+      openLine(pcm);
+  }
+
+  /**
+    * Opens a line for a format, closing any open for another. If none can be had, audio's thrown away instead.
+    */
+  private void openLine(AudioFormat format) {
+    closeLine();
+    lineFormat = format;
+    nullPlayedUntil = System.nanoTime();
+    if (nullMixerName.equals(mixerName))
+      return;
+
+    int bufferSize = (int) (format.getFrameSize() * format.getFrameRate() * lineBufferNanos / 1e9);
+    try {
+      line = AudioSystem.getSourceDataLine(format, mixerNamed(mixerName));
+      line.open(format, Math.max(chunkLength, bufferSize));
+      line.start();
+    } catch (LineUnavailableException e) {
+      e.printStackTrace();
+      line = null;
+    } catch (IllegalArgumentException e) { // No line matching the format, or no such mixer.
+      e.printStackTrace();
+      line = null;
+    }
+  }
+
+  private void closeLine() {
+    if (line != null) {
+      line.close();
+      line = null;
+    }
+  }
+
+  /**
+    * @return mixer's info, or null (the default mixer) if name is null.
+    */
+  private static Mixer.Info mixerNamed(String name) {
+    if (name == null)
+      return null;
+    for (Mixer.Info info : AudioSystem.getMixerInfo()) {
+      if (info.getName().equals(name))
+        return info;
+    }
+    throw new IllegalArgumentException("No such mixer: " + name);
+  }
+
+  /**
+    * Audio queued to play, or the end of a loop.
+    */
+  private static class Chunk {
+
+    final byte[] audio;
+
+    int length;
+
+    AudioFormat format;
+
+    boolean end;
+
+    Chunk(int capacity) {
+      audio = new byte[capacity];
+    }
+  }
+
+}
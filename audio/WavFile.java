@@ -0,0 +1,143 @@
+package audio;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+  * Where the PCM audio in a wav file is and what format it's in, found by reading the
+  * file's RIFF chunks once. What's sent is then just the audio, from dataOffset on.
+  *
+  * Only uncompressed PCM is understood (format tag 1, or WAVE_FORMAT_EXTENSIBLE holding
+  * it). 8-bit samples are unsigned, wider ones signed, and all little-endian, as in any
+  * wav file.
+  */
+public class WavFile {
+
+  private static final int riffHeaderLength = 12;
+
+  private static final int chunkHeaderLength = 8;
+
+  private static final int formatPcm = 1;
+
+  private static final int formatExtensible = 0xfffe;
+
+  private final AudioFormat format;
+
+  private final long dataOffset;
+
+  private final int dataLength;
+
+  private WavFile(AudioFormat format, long dataOffset, int dataLength) {
+    this.format = format;
+    this.dataOffset = dataOffset;
+    this.dataLength = dataLength;
+  }
+
+  /**
+    * Reads a wav file's chunk headers, not its audio.
+    *
+    * @throws IOException if it can't be read or isn't a PCM wav file.
+    */
+  public static WavFile open(Path path) throws IOException {
+    FileChannel file = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      return read(file);
+    } finally {
+      file.close();
+    }
+  }
+
+  private static WavFile read(FileChannel file) throws IOException {
+    long fileLength = file.size();
+    ByteBuffer header = ByteBuffer.allocate(riffHeaderLength).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(file, header, 0);
+    if (header.getInt(0) != fourCc("RIFF") || header.getInt(8) != fourCc("WAVE"))
+      throw new IOException("Not a wav file");
+
+    AudioFormat format = null;
+    long position = riffHeaderLength;
+    ByteBuffer chunk = ByteBuffer.allocate(chunkHeaderLength + 16).order(ByteOrder.LITTLE_ENDIAN);
+
+    while (position + chunkHeaderLength <= fileLength) {
+      chunk.clear();
+      chunk.limit(chunkHeaderLength);
+      readFully(file, chunk, position);
+      int id = chunk.getInt(0);
+      long length = chunk.getInt(4) & 0xffffffffL;
+      long body = position + chunkHeaderLength;
+
+      if (id == fourCc("fmt ")) {
+        if (length < 16)
+          throw new IOException("Format chunk too short");
+        chunk.clear();
+        chunk.limit(16);
+        readFully(file, chunk, body);
+        format = pcmFormat(chunk);
+      } else if (id == fourCc("data")) {
+        if (format == null)
+          throw new IOException("Audio before format");
+        int frameSize = format.getFrameSize();
+        long available = Math.min(length, fileLength - body);
+        return new WavFile(format, body, (int) Math.min(Integer.MAX_VALUE - frameSize, available / frameSize * frameSize));
+      }
+      position = body + length + (length & 1); // Chunks are padded to even lengths.
+    }
+    throw new IOException("No audio in wav file");
+  }
+
+  /**
+    * @param fmt  body of a "fmt " chunk.
+    */
+  private static AudioFormat pcmFormat(ByteBuffer fmt) throws IOException {
+    int tag = fmt.getShort(0) & 0xffff;
+    int channels = fmt.getShort(2) & 0xffff;
+    int sampleRate = fmt.getInt(4);
+    int blockAlign = fmt.getShort(12) & 0xffff;
+    int bits = fmt.getShort(14) & 0xffff;
+    if (tag != formatPcm && tag != formatExtensible)
+      throw new IOException("Not PCM audio: format " + tag);
+    if (channels <= 0 || sampleRate <= 0 || bits <= 0 || blockAlign != channels * ((bits + 7) / 8))
+      throw new IOException("Bad format chunk");
+    return new AudioFormat(sampleRate, bits, channels, bits > 8, false);
+  }
+
+  private static int fourCc(String id) {
+    return (id.charAt(0)) | (id.charAt(1) << 8) | (id.charAt(2) << 16) | (id.charAt(3) << 24);
+  }
+
+  private static void readFully(FileChannel file, ByteBuffer dst, long position) throws IOException {
+    while (dst.hasRemaining()) {
+      int n = file.read(dst, position);
+      if (n < 0)
+        throw new IOException("Wav file cut short");
+      position += n;
+    }
+  }
+
+  public AudioFormat getFormat() {
+    return format;
+  }
+
+  /**
+    * @return where the audio starts in the file.
+    */
+  public long getDataOffset() {
+    return dataOffset;
+  }
+
+  /**
+    * @return bytes of audio: whole frames only.
+    */
+  public int getDataLength() {
+    return dataLength;
+  }
+
+}
@@ -0,0 +1,99 @@
+package bench;
+
+import java.util.Random;
+
+import javax.sound.sampled.AudioFormat;
+
+import audio.AudioCodec;
+import audio.AudioCodecs;
+
+/**
+  * Measures each codec on one thread, so one core: how fast it encodes and decodes a
+  * loop of 16-bit stereo 44.1kHz audio, as megabytes of PCM a second and as how many
+  * streams of it one core keeps up with, and what it does to the audio: how much smaller
+  * it is and the signal to noise ratio of what comes back.
+  *
+  * The audio is a couple of tones and a little noise, so neither codec has it too easy.
+  * jmh.CodecBenchmark times the codecs more carefully.
+  *
+  * Usage: java bench.CodecBenchmark [rounds]
+  */
+public class CodecBenchmark {
+
+  private static final AudioFormat pcmFormat = new AudioFormat(44100, 16, 2, true, false);
+
+  /**
+    * Ten seconds of audio.
+    */
+  private static final int loopLength = 44100 * 2 * 2 * 10;
+
+  private static final int defaultRounds = 20;
+
+  public static void main(String[] args) {
+    int rounds = args.length > 0 ? Integer.parseInt(args[0]) : defaultRounds;
+    byte[] pcm = audio();
+    double loopSeconds = loopLength / (pcmFormat.getFrameRate() * pcmFormat.getFrameSize());
+
+    System.out.println("Loop: " + loopLength + " bytes, " + loopSeconds + " s of " + pcmFormat + ". Rounds: " + rounds);
+    for (AudioCodec codec : new AudioCodec[] { AudioCodecs.pcm, AudioCodecs.muLaw, AudioCodecs.imaAdpcm }) {
+      AudioFormat encodedFormat = codec.encodedFormat(pcmFormat);
+      byte[] encoded = new byte[codec.encodedLength(encodedFormat, pcm.length)];
+      byte[] decoded = new byte[codec.decodedLength(encodedFormat, encoded.length)];
+
+      for (int warmup = 0; warmup < rounds; warmup++) {
+        codec.encode(encodedFormat, pcm, 0, pcm.length, encoded, 0);
+        codec.decode(encodedFormat, encoded, 0, encoded.length, decoded, 0);
+      }
+
+      long start = System.nanoTime();
+      for (int round = 0; round < rounds; round++)
+        codec.encode(encodedFormat, pcm, 0, pcm.length, encoded, 0);
+      long encodeNanos = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int round = 0; round < rounds; round++)
+        codec.decode(encodedFormat, encoded, 0, encoded.length, decoded, 0);
+      long decodeNanos = System.nanoTime() - start;
+
+      System.out.println();
+      System.out.printf("%s: %.2f:1, SNR %.1f dB%n", codec.getName(), (double) pcm.length / encoded.length, snr(pcm, decoded));
+      report("encode", encodeNanos, rounds, loopSeconds);
+      report("decode", decodeNanos, rounds, loopSeconds);
+    }
+  }
+
+  private static void report(String what, long nanos, int rounds, double loopSeconds) {
+    double seconds = nanos / 1e9;
+    System.out.printf("  %s  %8.0f MB/s of PCM, %8.0f streams per core%n",
+        what, (double) loopLength * rounds / seconds / 1e6, loopSeconds * rounds / seconds);
+  }
+
+  private static byte[] audio() {
+    Random random = new Random(42);
+    byte[] pcm = new byte[loopLength];
+    for (int i = 0; i < loopLength / 2; i++) {
+      double t = (i / 2) / 44100.0;
+      int sample = (int) (8000 * Math.sin(2 * Math.PI * 440 * t) + 4000 * Math.sin(2 * Math.PI * 1250 * t)
+          + 500 * random.nextGaussian());
+      pcm[2 * i] = (byte) sample;
+      pcm[2 * i + 1] = (byte) (sample >> 8);
+    }
+    return pcm;
+  }
+
+  /**
+    * @return signal to noise ratio of decoded against the original, in dB.
+    */
+  private static double snr(byte[] original, byte[] decoded) {
+    double signal = 0;
+    double noise = 0;
+    for (int i = 0; i < original.length / 2; i++) {
+      int a = (short) ((original[2 * i] & 0xff) | original[2 * i + 1] << 8);
+      int b = (short) ((decoded[2 * i] & 0xff) | decoded[2 * i + 1] << 8);
+      signal += (double) a * a;
+      noise += (double) (a - b) * (a - b);
+    }
+    return noise == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(signal / noise);
+  }
+
+}
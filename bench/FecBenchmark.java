@@ -0,0 +1,165 @@
+package bench;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import net.AudioPacket;
+import net.FecEncoder;
+import net.JitterBuffer;
+
+/**
+  * Measures forward error correction: how fast FecEncoder works out parity, and,
+  * with packets dropped at random, how fast a JitterBuffer rebuilds a loop and how
+  * much of what was lost it gets back. Rebuilt audio is checked against the original.
+  * jmh.FecBenchmark times encoding and rebuilding more carefully.
+  *
+  * Usage: java bench.FecBenchmark [loop_packets] [rounds]
+  */
+public class FecBenchmark {
+
+  private static final int payloadSize = 512;
+
+  private static final int defaultLoopPackets = 2000;
+
+  private static final int defaultRounds = 100;
+
+  /**
+    * Group size and parity count pairs tried.
+    */
+  private static final int[][] configs = { { 8, 1 }, { 8, 2 }, { 16, 2 }, { 16, 4 }, { 4, 2 } };
+
+  private static final double[] lossRates = { 0.01, 0.05, 0.10, 0.20 };
+
+  public static void main(String[] args) {
+    int loopPackets = args.length > 0 ? Integer.parseInt(args[0]) : defaultLoopPackets;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : defaultRounds;
+
+    Random random = new Random(42);
+    byte[] audio = new byte[loopPackets * payloadSize - payloadSize / 3]; // Partial last packet, as in a real loop.
+    random.nextBytes(audio);
+    List<ByteBuffer> data = packetise(audio);
+
+    System.out.println("Loop: " + data.size() + " packets, " + audio.length + " bytes. Rounds: " + rounds);
+
+    for (int[] config : configs) {
+      int groupSize = config[0];
+      int parityCount = config[1];
+      System.out.println();
+      System.out.println("Group size " + groupSize + ", parity " + parityCount
+          + " (overhead " + String.format("%.0f", 100.0 * parityCount / groupSize) + "%):");
+
+      List<ByteBuffer> sent = null;
+      FecEncoder encoder = new FecEncoder(groupSize, parityCount, payloadSize);
+      for (int warmup = 0; warmup < rounds; warmup++)
+        sent = encode(encoder, data);
+      long start = System.nanoTime();
+      for (int round = 0; round < rounds; round++)
+        sent = encode(encoder, data);
+      long encodeNanos = System.nanoTime() - start;
+      System.out.printf("  encode             %.0f MB/s%n", (double) audio.length * rounds / encodeNanos * 1000);
+
+      for (double lossRate : lossRates)
+        decode(sent, audio, lossRate, rounds, random);
+    }
+  }
+
+  /**
+    * @return the loop as audio packets, as a sender would send them.
+    */
+  private static List<ByteBuffer> packetise(byte[] audio) {
+    List<ByteBuffer> packets = new ArrayList<ByteBuffer>();
+    for (int offset = 0, seq = 0; offset < audio.length; offset += payloadSize, seq++) {
+      int length = Math.min(payloadSize, audio.length - offset);
+      ByteBuffer packet = ByteBuffer.allocate(AudioPacket.headerLength + length);
+      AudioPacket.putHeader(packet, 0, 1, offset == 0 ? AudioPacket.LOOP_START : 0, seq, offset, seq * 1000);
+      packet.position(AudioPacket.headerLength);
+      packet.put(audio, offset, length);
+      packet.flip();
+      packets.add(packet);
+    }
+    return packets;
+  }
+
+  /**
+    * @return data and parity packets in the order they'd be sent.
+    */
+  private static List<ByteBuffer> encode(FecEncoder encoder, List<ByteBuffer> data) {
+    List<ByteBuffer> sent = new ArrayList<ByteBuffer>(data.size() * 2);
+    encoder.reset();
+    for (ByteBuffer packet : data) {
+      encoder.add(packet);
+      takeParity(encoder, sent);
+      sent.add(packet);
+    }
+    encoder.flush();
+    takeParity(encoder, sent);
+    return sent;
+  }
+
+  private static void takeParity(FecEncoder encoder, List<ByteBuffer> sent) {
+    while (encoder.getParityReady() > 0) {
+      ByteBuffer parity = encoder.nextParity();
+      ByteBuffer copy = ByteBuffer.allocate(parity.remaining());
+      copy.put(parity).flip();
+      sent.add(copy);
+    }
+  }
+
+  private static void decode(List<ByteBuffer> sent, byte[] audio, double lossRate, int rounds, Random random) {
+    JitterBuffer jitterBuffer = new JitterBuffer(payloadSize);
+    byte[] loop = new byte[audio.length];
+    boolean[] dropped = new boolean[sent.size()];
+    long lost = 0;
+    long missing = 0;
+    long recovered = 0;
+    long decodeNanos = 0;
+    boolean intact = true;
+
+    for (int round = 0; round < rounds; round++) {
+      for (int i = 0; i < dropped.length; i++) {
+        dropped[i] = random.nextDouble() < lossRate;
+        if (dropped[i] && (AudioPacket.getFlags(sent.get(i), 0) & AudioPacket.FEC) == 0)
+          lost++;
+      }
+
+      Arrays.fill(loop, (byte) 0);
+      long start = System.nanoTime();
+      jitterBuffer.startLoop(loop);
+      for (int i = 0; i < dropped.length; i++) {
+        if (!dropped[i])
+          jitterBuffer.offer(sent.get(i), start);
+      }
+      decodeNanos += System.nanoTime() - start;
+
+      missing += jitterBuffer.getPacketsMissing();
+      recovered += jitterBuffer.getPacketsRecovered();
+      intact &= checkIntact(loop, audio);
+    }
+
+    System.out.printf("  %4.0f%% loss: decode %5.0f MB/s, lost %6d, recovered %6d (%5.1f%%), still missing %5.2f%% of packets%s%n",
+        lossRate * 100, (double) audio.length * rounds / decodeNanos * 1000, lost, recovered,
+        lost == 0 ? 100.0 : 100.0 * recovered / lost,
+        100.0 * missing / ((double) rounds * ((audio.length + payloadSize - 1) / payloadSize)),
+        intact ? "" : "  REBUILT AUDIO WRONG");
+  }
+
+  /**
+    * @return whether every packet that isn't all zeros (ie wasn't lost for good) matches the original.
+    */
+  private static boolean checkIntact(byte[] loop, byte[] audio) {
+    for (int offset = 0; offset < audio.length; offset += payloadSize) {
+      int end = Math.min(offset + payloadSize, audio.length);
+      boolean silent = true;
+      for (int i = offset; i < end && silent; i++)
+        silent = loop[i] == 0;
+      if (!silent && !Arrays.equals(loop, offset, end, audio, offset, end))
+        return false;
+    }
+    return true;
+  }
+
+}
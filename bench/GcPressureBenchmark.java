@@ -0,0 +1,246 @@
+package bench;
+
+import java.io.IOException;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import net.BufferPool;
+import net.DatagramReceiver;
+
+/**
+  * Streams audio-sized packets over loopback twice: once the way the server and
+  * client used to (a new DatagramPacket per packet on DatagramSockets) and once the
+  * way they do now (slices of a direct buffer sent on a DatagramChannel, received
+  * into a pooled direct buffer). Reports bytes allocated per packet by the sending
+  * and receiving threads, and GC activity during each run.
+  *
+  * Usage: java bench.GcPressureBenchmark [packets] [payload]
+  */
+public class GcPressureBenchmark {
+
+  private static final int defaultPackets = 500000;
+
+  private static final int defaultPayload = 512;
+
+  /**
+    * Receiver gives up this long after the last packet.
+    */
+  private static final int receiveTimeoutMs = 500;
+
+  /**
+    * What one run measured.
+    */
+  private static class Result {
+    long packetsReceived;
+    long senderAllocated;
+    long receiverAllocated;
+    long gcCount;
+    long gcMillis;
+    long elapsedNanos;
+  }
+
+  /**
+    * One way of moving packets: a sender and a receiver, run on separate threads.
+    */
+  private interface PacketPath {
+    void send(int packets) throws IOException;
+    long receive() throws IOException;
+    void close() throws IOException;
+  }
+
+  /**
+    * How SoundServerThread and SoundClient moved packets before: DatagramSockets and a DatagramPacket per packet.
+    */
+  private static class DatagramPacketPath implements PacketPath {
+    private final int payload;
+    private final byte[] audio;
+    private final DatagramSocket receiverSocket;
+    private final DatagramSocket senderSocket;
+    private final InetAddress host;
+
+    DatagramPacketPath(int payload) throws IOException {
+      this.payload = payload;
+      audio = new byte[payload * 1024];
+      receiverSocket = new DatagramSocket(0);
+      receiverSocket.setReceiveBufferSize(4 * 1024 * 1024);
+      receiverSocket.setSoTimeout(receiveTimeoutMs);
+      senderSocket = new DatagramSocket();
+      host = InetAddress.getLoopbackAddress();
+    }
+
+    public void send(int packets) throws IOException {
+      int port = receiverSocket.getLocalPort();
+      int i = 0;
+      for (int n = 0; n < packets; n++) {
+        DatagramPacket packet = new DatagramPacket(audio, i, payload, host, port);
+        senderSocket.send(packet);
+        i = (i + payload) % audio.length;
+      }
+    }
+
+    public long receive() throws IOException {
+      byte[] packetBytes = new byte[payload];
+      long received = 0;
+      while (true) {
+        DatagramPacket packet = new DatagramPacket(packetBytes, packetBytes.length);
+        try {
+          receiverSocket.receive(packet);
+        } catch (SocketTimeoutException e) {
+          return received;
+        }
+        received++;
+      }
+    }
+
+    public void close() {
+      receiverSocket.close();
+      senderSocket.close();
+    }
+  }
+
+  /**
+    * How they move packets now: DatagramChannels, slices of a direct buffer and a BufferPool.
+    */
+  private static class PooledChannelPath implements PacketPath {
+    private final int payload;
+    private final ByteBuffer audio;
+    private final DatagramReceiver receiver;
+    private final DatagramChannel senderChannel;
+    private final BufferPool pool;
+
+    PooledChannelPath(int payload) throws IOException {
+      this.payload = payload;
+      audio = ByteBuffer.allocateDirect(payload * 1024);
+      receiver = new DatagramReceiver(0);
+      receiver.getChannel().setOption(StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+      senderChannel = DatagramChannel.open();
+      pool = new BufferPool(payload, 4);
+    }
+
+    public void send(int packets) throws IOException {
+      InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), receiver.getLocalPort());
+      int i = 0;
+      for (int n = 0; n < packets; n++) {
+        audio.limit(i + payload);
+        audio.position(i);
+        senderChannel.send(audio, address);
+        i = (i + payload) % audio.capacity();
+      }
+    }
+
+    public long receive() throws IOException {
+      ByteBuffer packetBuffer = pool.acquire();
+      long received = 0;
+      try {
+        while (true) {
+          packetBuffer.clear();
+          if (receiver.receive(packetBuffer, receiveTimeoutMs) == null)
+            return received;
+          received++;
+        }
+      } finally {
+        pool.release(packetBuffer);
+      }
+    }
+
+    public void close() throws IOException {
+      receiver.close();
+      senderChannel.close();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int packets = args.length > 0 ? Integer.parseInt(args[0]) : defaultPackets;
+    int payload = args.length > 1 ? Integer.parseInt(args[1]) : defaultPayload;
+
+    System.out.println("Packets: " + packets + ", payload: " + payload + " bytes");
+
+    // Warm up both paths so JIT compilation isn't counted.
+    run(new DatagramPacketPath(payload), packets / 10);
+    run(new PooledChannelPath(payload), packets / 10);
+
+    report("DatagramPacket per packet", run(new DatagramPacketPath(payload), packets), packets);
+    report("Pooled DatagramChannel", run(new PooledChannelPath(payload), packets), packets);
+  }
+
+  private static Result run(final PacketPath path, final int packets) throws Exception {
+    final Result result = new Result();
+    final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    Thread receiver = new Thread(new Runnable() {
+      public void run() {
+        long before = threads.getCurrentThreadAllocatedBytes();
+        try {
+          result.packetsReceived = path.receive();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+        result.receiverAllocated = threads.getCurrentThreadAllocatedBytes() - before;
+      }
+    });
+
+    Thread sender = new Thread(new Runnable() {
+      public void run() {
+        long before = threads.getCurrentThreadAllocatedBytes();
+        try {
+          path.send(packets);
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+        result.senderAllocated = threads.getCurrentThreadAllocatedBytes() - before;
+      }
+    });
+
+    System.gc();
+    long gcCountBefore = gcCount();
+    long gcMillisBefore = gcMillis();
+    long start = System.nanoTime();
+
+    receiver.start();
+    sender.start();
+    sender.join();
+    receiver.join();
+
+    result.elapsedNanos = System.nanoTime() - start - receiveTimeoutMs * 1000000L;
+    result.gcCount = gcCount() - gcCountBefore;
+    result.gcMillis = gcMillis() - gcMillisBefore;
+    path.close();
+    return result;
+  }
+
+  private static void report(String name, Result result, int packets) {
+    System.out.println();
+    System.out.println(name + ":");
+    System.out.printf("  received           %d of %d packets%n", result.packetsReceived, packets);
+    System.out.printf("  sender allocated   %.1f bytes/packet%n", (double) result.senderAllocated / packets);
+    System.out.printf("  receiver allocated %.1f bytes/packet%n", (double) result.receiverAllocated / Math.max(1, result.packetsReceived));
+    System.out.printf("  GCs                %d (%d ms)%n", result.gcCount, result.gcMillis);
+    System.out.printf("  packets/s          %.0f%n", packets / (result.elapsedNanos / 1e9));
+  }
+
+  private static long gcCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+      count += Math.max(0, gc.getCollectionCount());
+    return count;
+  }
+
+  private static long gcMillis() {
+    long millis = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+      millis += Math.max(0, gc.getCollectionTime());
+    return millis;
+  }
+
+}
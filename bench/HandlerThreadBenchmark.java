@@ -0,0 +1,327 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.lang.management.ManagementFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+
+import java.nio.file.Files;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import audio.AudioRing;
+
+import util.VirtualThreads;
+
+/**
+  * Starts a thread per client, as SoundServer does, for thousands of clients, once on
+  * platform threads and once on virtual threads (SoundServer --virtual-threads). Each
+  * thread blocks receiving on a socket of its own, as a handler blocks on its client.
+  *
+  * First they're all left idle, and the memory they take is measured: how much the
+  * process's resident set and the heap grew per client, and how many platform threads
+  * there are. Then they're made slow clients: each is sent a packet every so often, so
+  * every thread wakes, takes it and blocks again, and the cost of that is measured as CPU
+  * time and OS context switches (Linux only) per wake-up.
+  *
+  * Then the same again with each thread waiting on an AudioRing, as a receiver's handler
+  * waits for its channel's sender: idle with nothing published, then woken by a frame
+  * published every so often, all of them at once.
+  *
+  * Virtual threads need Java 21. On an earlier JVM only platform threads are measured.
+  *
+  * Usage: java bench.HandlerThreadBenchmark [clients] [wakeupMs] [seconds]
+  */
+public class HandlerThreadBenchmark {
+
+  private static final int defaultClients = 10000;
+
+  /**
+    * How often each slow client's thread is woken.
+    */
+  private static final int defaultWakeupMs = 100;
+
+  private static final int defaultSeconds = 5;
+
+  /**
+    * How long the idle threads are given to block before memory is measured.
+    */
+  private static final int settleMs = 1000;
+
+  private static final int packetBytes = 64;
+
+  /**
+    * What one run measured.
+    */
+  private static class Result {
+    long startNanos;
+    long rssBytes;
+    long heapBytes;
+    int platformThreads;
+    long wakeups;
+    long cpuNanos;
+    long contextSwitches;
+    long idleCpuNanos;
+    long idleContextSwitches;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int clients = args.length > 0 ? Integer.parseInt(args[0]) : defaultClients;
+    int wakeupMs = args.length > 1 ? Integer.parseInt(args[1]) : defaultWakeupMs;
+    int seconds = args.length > 2 ? Integer.parseInt(args[2]) : defaultSeconds;
+
+    System.out.println("Clients: " + clients + ", each woken every " + wakeupMs + " ms for " + seconds + " s");
+
+    ThreadFactory platform = new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        return new Thread(r);
+      }
+    };
+
+    // Warm up, so JIT compilation and class loading aren't counted.
+    run(platform, Math.min(clients, 1000), wakeupMs, 1);
+    if (VirtualThreads.available())
+      run(VirtualThreads.factory(), Math.min(clients, 1000), wakeupMs, 1);
+
+    report("Platform thread per client", run(platform, clients, wakeupMs, seconds), clients);
+    if (VirtualThreads.available())
+      report("Virtual thread per client", run(VirtualThreads.factory(), clients, wakeupMs, seconds), clients);
+
+    runOnRing(platform, Math.min(clients, 1000), wakeupMs, 1);
+    reportOnRing("Platform thread per client waiting on an AudioRing", runOnRing(platform, clients, wakeupMs, seconds), seconds);
+    if (VirtualThreads.available()) {
+      runOnRing(VirtualThreads.factory(), Math.min(clients, 1000), wakeupMs, 1);
+      reportOnRing("Virtual thread per client waiting on an AudioRing", runOnRing(VirtualThreads.factory(), clients, wakeupMs, seconds),
+          seconds);
+    } else {
+      System.out.println("\nThis JVM has no virtual threads (they need Java 21), so only platform threads were measured.");
+    }
+  }
+
+  private static Result run(ThreadFactory threads, int clients, int wakeupMs, int seconds) throws Exception {
+    final Result result = new Result();
+    final DatagramChannel[] channels = new DatagramChannel[clients];
+    InetSocketAddress[] addresses = new InetSocketAddress[clients];
+    InetAddress loopback = InetAddress.getLoopbackAddress();
+    for (int i = 0; i < clients; i++) {
+      channels[i] = DatagramChannel.open();
+      channels[i].bind(new InetSocketAddress(loopback, 0));
+      addresses[i] = new InetSocketAddress(loopback, channels[i].socket().getLocalPort());
+    }
+
+    System.gc();
+    long rssBefore = residentBytes();
+    long heapBefore = heapUsed();
+
+    final AtomicLong wakeups = new AtomicLong();
+    final CountDownLatch started = new CountDownLatch(clients);
+    Thread[] handlers = new Thread[clients];
+    long start = System.nanoTime();
+    for (int i = 0; i < clients; i++) {
+      final DatagramChannel channel = channels[i];
+      handlers[i] = threads.newThread(new Runnable() {
+        public void run() {
+          ByteBuffer packet = ByteBuffer.allocate(packetBytes);
+          started.countDown();
+          try {
+            while (true) {
+              packet.clear();
+              channel.receive(packet);
+              wakeups.incrementAndGet();
+            }
+          } catch (ClosedChannelException e) {
+            // Run's over.
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+        }
+      });
+      handlers[i].start();
+    }
+    started.await();
+    result.startNanos = System.nanoTime() - start;
+    Thread.sleep(settleMs);
+
+    System.gc();
+    result.rssBytes = residentBytes() < 0 ? -1 : residentBytes() - rssBefore;
+    result.heapBytes = heapUsed() - heapBefore;
+    result.platformThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+    // Wake each in turn, each once every wakeupMs, from one sender.
+    DatagramChannel sender = DatagramChannel.open();
+    ByteBuffer packet = ByteBuffer.allocate(packetBytes);
+    long roundNanos = TimeUnit.MILLISECONDS.toNanos(wakeupMs);
+    long switchesBefore = contextSwitches();
+    long cpuBefore = processCpuNanos();
+    long wakeupsBefore = wakeups.get();
+    long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    long next = System.nanoTime();
+    while (next < end) {
+      for (int i = 0; i < clients; i++) {
+        packet.clear();
+        sender.send(packet, addresses[i]);
+      }
+      next += roundNanos;
+      LockSupport.parkNanos(next - System.nanoTime());
+    }
+    Thread.sleep(100); // For the last round to be taken.
+    result.wakeups = wakeups.get() - wakeupsBefore;
+    result.cpuNanos = processCpuNanos() - cpuBefore;
+    result.contextSwitches = switchesBefore < 0 ? -1 : contextSwitches() - switchesBefore;
+
+    sender.close();
+    for (DatagramChannel channel : channels)
+      channel.close();
+    for (Thread handler : handlers)
+      handler.join();
+    return result;
+  }
+
+  private static Result runOnRing(ThreadFactory threads, int clients, int wakeupMs, int seconds) throws Exception {
+    final Result result = new Result();
+    final AudioRing ring = new AudioRing(64, packetBytes);
+    final AtomicLong wakeups = new AtomicLong();
+    final CountDownLatch started = new CountDownLatch(clients);
+    final long[] stopAt = { Long.MAX_VALUE };
+    final long waitNanos = TimeUnit.SECONDS.toNanos(3); // As long as a handler waits for its sender.
+    Thread[] handlers = new Thread[clients];
+    long start = System.nanoTime();
+    for (int i = 0; i < clients; i++) {
+      handlers[i] = threads.newThread(new Runnable() {
+        public void run() {
+          long seq = 0;
+          started.countDown();
+          while (true) {
+            if (ring.awaitPublished(seq, waitNanos)) {
+              seq = ring.getPublished() + 1;
+              if (seq > stopAt[0])
+                return;
+              wakeups.incrementAndGet();
+            }
+          }
+        }
+      });
+      handlers[i].start();
+    }
+    started.await();
+    result.startNanos = System.nanoTime() - start;
+    Thread.sleep(settleMs);
+
+    // Nothing published: what they cost just waiting.
+    long switchesBefore = contextSwitches();
+    long cpuBefore = processCpuNanos();
+    Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+    result.idleCpuNanos = processCpuNanos() - cpuBefore;
+    result.idleContextSwitches = switchesBefore < 0 ? -1 : contextSwitches() - switchesBefore;
+
+    // A frame every wakeupMs, waking them all.
+    byte[] frame = new byte[packetBytes];
+    long roundNanos = TimeUnit.MILLISECONDS.toNanos(wakeupMs);
+    switchesBefore = contextSwitches();
+    cpuBefore = processCpuNanos();
+    long wakeupsBefore = wakeups.get();
+    long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    long next = System.nanoTime();
+    while (next < end) {
+      ring.write(frame, 0, frame.length, 0, frame.length);
+      next += roundNanos;
+      LockSupport.parkNanos(next - System.nanoTime());
+    }
+    Thread.sleep(100); // For the last frame to be taken.
+    result.wakeups = wakeups.get() - wakeupsBefore;
+    result.cpuNanos = processCpuNanos() - cpuBefore;
+    result.contextSwitches = switchesBefore < 0 ? -1 : contextSwitches() - switchesBefore;
+
+    stopAt[0] = ring.getPublished();
+    ring.write(frame, 0, frame.length, 0, frame.length);
+    for (Thread handler : handlers)
+      handler.join();
+    return result;
+  }
+
+  private static void report(String name, Result result, int clients) {
+    System.out.println();
+    System.out.println(name + ":");
+    System.out.printf("  started in         %.0f ms%n", result.startNanos / 1e6);
+    if (result.rssBytes >= 0)
+      System.out.printf("  resident set       %.1f KB/client%n", result.rssBytes / 1024.0 / clients);
+    System.out.printf("  heap               %.1f KB/client%n", result.heapBytes / 1024.0 / clients);
+    System.out.printf("  platform threads   %d%n", result.platformThreads);
+    System.out.printf("  wake-ups           %d%n", result.wakeups);
+    System.out.printf("  CPU                %.1f us/wake-up (sending included)%n", result.cpuNanos / 1e3 / Math.max(1, result.wakeups));
+    if (result.contextSwitches >= 0)
+      System.out.printf("  context switches   %.2f/wake-up%n", (double) result.contextSwitches / Math.max(1, result.wakeups));
+  }
+
+  private static void reportOnRing(String name, Result result, int seconds) {
+    System.out.println();
+    System.out.println(name + ":");
+    System.out.printf("  idle CPU           %.1f ms/s%n", result.idleCpuNanos / 1e6 / seconds);
+    if (result.idleContextSwitches >= 0)
+      System.out.printf("  idle switches      %.0f/s%n", (double) result.idleContextSwitches / seconds);
+    System.out.printf("  wake-ups           %d%n", result.wakeups);
+    System.out.printf("  CPU                %.1f us/wake-up (publishing included)%n", result.cpuNanos / 1e3 / Math.max(1, result.wakeups));
+    if (result.contextSwitches >= 0)
+      System.out.printf("  context switches   %.2f/wake-up%n", (double) result.contextSwitches / Math.max(1, result.wakeups));
+  }
+
+  private static long heapUsed() {
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+
+  private static long processCpuNanos() {
+    return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+  }
+
+  /**
+    * @return the process's resident set, from /proc, or -1 if there's no /proc.
+    */
+  private static long residentBytes() {
+    long kb = procStatus(new File("/proc/self/status"), "VmRSS:");
+    return kb < 0 ? -1 : kb * 1024;
+  }
+
+  /**
+    * @return OS context switches, voluntary or not, of all the process's threads so far,
+    *         from /proc, or -1 if there's no /proc.
+    */
+  private static long contextSwitches() {
+    File[] tasks = new File("/proc/self/task").listFiles();
+    if (tasks == null)
+      return -1;
+    long switches = 0;
+    for (File task : tasks) {
+      File status = new File(task, "status");
+      switches += Math.max(0, procStatus(status, "voluntary_ctxt_switches:"));
+      switches += Math.max(0, procStatus(status, "nonvoluntary_ctxt_switches:"));
+    }
+    return switches;
+  }
+
+  /**
+    * @return the number on a line of a /proc status file, or -1 if it's not there.
+    */
+  private static long procStatus(File status, String field) {
+    try {
+      for (String line : Files.readAllLines(status.toPath())) {
+        if (line.startsWith(field))
+          return Long.parseLong(line.substring(field.length()).trim().split("\\s+")[0]);
+      }
+    } catch (IOException e) {
+      // No /proc, or the thread's gone.
+    }
+    return -1;
+  }
+
+}
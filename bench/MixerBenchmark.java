@@ -0,0 +1,117 @@
+package bench;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.Random;
+
+import javax.sound.sampled.AudioFormat;
+
+import audio.AudioMixer;
+
+/**
+  * Mixes 16-bit 48kHz streams on one thread, so one core, as a channel's mixer does:
+  * each 10ms block, a packet from every input is placed by its timestamp, then the
+  * block is mixed. Reports how long placing and mixing take per block, how many times
+  * faster than real time that is, so how many such mixes one core keeps up with, and
+  * bytes allocated while mixing, which should be none.
+  *
+  * Inputs are loud enough that their sum clips, so clipping is measured too.
+  * jmh.MixerBenchmark times a block more carefully.
+  *
+  * Usage: java bench.MixerBenchmark [inputs] [channels] [seconds]
+  */
+public class MixerBenchmark {
+
+  private static final int sampleRate = 48000;
+
+  private static final int defaultInputs = 32;
+
+  private static final int defaultChannels = 2;
+
+  /**
+    * Seconds of audio mixed per round.
+    */
+  private static final int defaultSeconds = 60;
+
+  private static final int blockFrames = sampleRate / 100;
+
+  private static final int latencyFrames = sampleRate * 60 / 1000;
+
+  private static final int slots = 64;
+
+  private static final int warmupRounds = 3;
+
+  public static void main(String[] args) {
+    int inputCount = args.length > 0 ? Integer.parseInt(args[0]) : defaultInputs;
+    int channels = args.length > 1 ? Integer.parseInt(args[1]) : defaultChannels;
+    int seconds = args.length > 2 ? Integer.parseInt(args[2]) : defaultSeconds;
+    AudioFormat format = new AudioFormat(sampleRate, 16, channels, true, false);
+    AudioMixer mixer = new AudioMixer(inputCount, format, blockFrames, latencyFrames, slots);
+    int[] inputs = new int[inputCount];
+    for (int i = 0; i < inputCount; i++)
+      inputs[i] = mixer.addInput();
+    byte[][] packets = packets(inputCount, mixer.getBlockBytes(), channels);
+    byte[] out = new byte[mixer.getBlockBytes()];
+    long[] nanos = new long[2];
+    int blocks = seconds * 100;
+
+    System.out.println("Mixing " + inputCount + " inputs of " + format + ", " + seconds + " s a round.");
+    for (int round = 0; round < warmupRounds; round++)
+      run(mixer, inputs, packets, out, blocks, round, nanos);
+
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long allocatedBefore = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    run(mixer, inputs, packets, out, blocks, warmupRounds, nanos);
+    long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore;
+
+    double blockNanos = 1e9 / 100;
+    double placeNanos = (double) nanos[0] / blocks;
+    double mixNanos = (double) nanos[1] / blocks;
+    System.out.printf("  place  %8.1f us per block (%6.2f us per input)%n", placeNanos / 1000, placeNanos / 1000 / inputCount);
+    System.out.printf("  mix    %8.1f us per block%n", mixNanos / 1000);
+    System.out.printf("  total  %8.1f us per 10 ms block: %.0fx real time, so %.0f such mixes per core%n",
+        (placeNanos + mixNanos) / 1000, blockNanos / (placeNanos + mixNanos), blockNanos / (placeNanos + mixNanos));
+    System.out.println("  allocated while mixing: " + allocated + " bytes");
+  }
+
+  /**
+    * Mixes a round of blocks, as if the inputs' packets each came just in time.
+    *
+    * @param nanos  set to nanoseconds spent placing packets, and mixing.
+    */
+  private static void run(AudioMixer mixer, int[] inputs, byte[][] packets, byte[] out, int blocks, int round, long[] nanos) {
+    long placeNanos = 0;
+    long mixNanos = 0;
+    int timestamp = round * blocks * 10000;
+    for (int b = 0; b < blocks; b++, timestamp += 10000) {
+      long start = System.nanoTime();
+      for (int i = 0; i < inputs.length; i++)
+        mixer.write(inputs[i], timestamp + i * 37, packets[i], 0, packets[i].length); // Off by a little jitter each.
+      long placed = System.nanoTime();
+      mixer.mix(out, 0);
+      long mixed = System.nanoTime();
+      placeNanos += placed - start;
+      mixNanos += mixed - placed;
+    }
+    nanos[0] = placeNanos;
+    nanos[1] = mixNanos;
+  }
+
+  /**
+    * @return a block of a tone for each input, each at its own pitch, with a little noise.
+    */
+  private static byte[][] packets(int inputCount, int blockBytes, int channels) {
+    Random random = new Random(42);
+    byte[][] packets = new byte[inputCount][blockBytes];
+    for (int i = 0; i < inputCount; i++) {
+      for (int s = 0; s < blockBytes / 2; s++) {
+        double t = (s / channels) / (double) sampleRate;
+        int sample = (int) (6000 * Math.sin(2 * Math.PI * (200 + 100 * i) * t) + 300 * random.nextGaussian());
+        packets[i][2 * s] = (byte) sample;
+        packets[i][2 * s + 1] = (byte) (sample >> 8);
+      }
+    }
+    return packets;
+  }
+
+}
@@ -0,0 +1,209 @@
+package bench;
+
+import java.io.IOException;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import net.AudioPacket;
+import net.MulticastGroup;
+
+/**
+  * Compares the server's cost of fanning audio out to receivers by unicast, a copy per
+  * receiver as SoundServerThread and ClientSession send it, with sending it once to a
+  * multicast group (SoundServer --multicast), over loopback. For each receiver count,
+  * 16-bit stereo 44.1kHz audio packets are sent at the rate the audio plays, as the
+  * server forwards it. The sending thread's CPU time and the bytes it hands to the
+  * socket are reported per second of audio, along with how long it was busy sending
+  * (more than a second per second means it can't keep up) and how much arrived.
+  *
+  * Loopback delivers a multicast packet to every joined socket from the sending thread,
+  * so multicast's CPU time includes the kernel's copying to each receiver; on a real
+  * network that's done by the switch and the receivers' hosts.
+  *
+  * Usage: java bench.MulticastBenchmark [seconds_of_audio] [receiver_counts...]
+  */
+public class MulticastBenchmark {
+
+  private static final int payloadSize = 512;
+
+  private static final int packetSize = AudioPacket.headerLength + payloadSize;
+
+  /**
+    * Packets a second of 16-bit stereo audio at 44.1kHz takes.
+    */
+  private static final int packetsPerSecond = (44100 * 2 * 2 + payloadSize - 1) / payloadSize;
+
+  private static final int defaultSeconds = 3;
+
+  private static final int[] defaultReceiverCounts = { 10, 100, 1000 };
+
+  /**
+    * How long receivers must go without a packet before everything sent is taken to have arrived.
+    */
+  private static final long quietMs = 200;
+
+  private static final int receiveBufferSize = 256 * 1024;
+
+  public static void main(String[] args) throws Exception {
+    int seconds = args.length > 0 ? Integer.parseInt(args[0]) : defaultSeconds;
+    int[] receiverCounts = defaultReceiverCounts;
+    if (args.length > 1) {
+      receiverCounts = new int[args.length - 1];
+      for (int i = 1; i < args.length; i++)
+        receiverCounts[i - 1] = Integer.parseInt(args[i]);
+    }
+
+    MulticastGroup group = new MulticastGroup((Inet4Address) InetAddress.getByName(MulticastGroup.defaultAddress),
+        MulticastGroup.defaultPort, MulticastGroup.loopbackInterface());
+    System.out.println("Audio: " + seconds + " s, " + packetsPerSecond + " packets/s of " + packetSize + " bytes. Group: " + group);
+
+    run(group, 10, 1, false, false); // Warm up.
+    run(group, 10, 1, true, false);
+    for (int receivers : receiverCounts) {
+      run(group, receivers, seconds, false, true);
+      run(group, receivers, seconds, true, true);
+    }
+  }
+
+  private static void run(MulticastGroup group, int receiverCount, int seconds, boolean multicast, boolean report) throws IOException, InterruptedException {
+    Receivers receivers = new Receivers(group, receiverCount, multicast);
+    receivers.start();
+
+    DatagramChannel sender = multicast ? group.openSender() : DatagramChannel.open(StandardProtocolFamily.INET);
+    InetSocketAddress[] targets = multicast ? new InetSocketAddress[] { group.getSocketAddress() } : receivers.addresses;
+    ByteBuffer packet = ByteBuffer.allocateDirect(packetSize);
+
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    long cpuStart = threads.getCurrentThreadCpuTime();
+    long wallStart = System.nanoTime();
+    long bytesSent = 0;
+    int packets = packetsPerSecond * seconds;
+    long packetGapNanos = 1000000000L / packetsPerSecond;
+    long idleNanos = 0;
+
+    for (int seq = 0; seq < packets; seq++) {
+      long due = wallStart + seq * packetGapNanos;
+      long wait = due - System.nanoTime();
+      if (wait > 0) {
+        idleNanos += wait;
+        LockSupport.parkNanos(wait);
+      }
+      packet.clear();
+      AudioPacket.putHeader(packet, 0, 0, 0, seq, seq * payloadSize, 0);
+      packet.position(AudioPacket.headerLength + payloadSize);
+      packet.flip();
+      for (InetSocketAddress target : targets) {
+        packet.position(0);
+        bytesSent += sender.send(packet, target);
+      }
+    }
+
+    long cpuNanos = threads.getCurrentThreadCpuTime() - cpuStart;
+    long wallNanos = System.nanoTime() - wallStart - idleNanos;
+    receivers.awaitQuiet();
+    sender.close();
+    receivers.close();
+
+    if (!report)
+      return;
+    long expected = (long) packets * receiverCount;
+    System.out.printf("%5d receivers %-9s: CPU %8.2f ms/s of audio, sent %10.0f bytes/s of audio (%8.0f packets/s),"
+        + " busy %8.2f ms/s of audio, %6.2f%% delivered%n",
+        receiverCount, multicast ? "multicast" : "unicast", cpuNanos / 1e6 / seconds, (double) bytesSent / seconds,
+        (double) bytesSent / packetSize / seconds, wallNanos / 1e6 / seconds, 100.0 * receivers.received.get() / expected);
+  }
+
+  /**
+    * Receiver sockets, all drained by one thread so there's no need for a thread each.
+    */
+  private static class Receivers extends Thread {
+
+    private final Selector selector;
+
+    private final DatagramChannel[] channels;
+
+    final InetSocketAddress[] addresses;
+
+    final AtomicLong received = new AtomicLong();
+
+    private volatile long lastReceived = System.currentTimeMillis();
+
+    Receivers(MulticastGroup group, int count, boolean multicast) throws IOException {
+      selector = Selector.open();
+      channels = new DatagramChannel[count];
+      addresses = new InetSocketAddress[count];
+      InetAddress loopback = InetAddress.getByName("127.0.0.1");
+      for (int i = 0; i < count; i++) {
+        DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        if (multicast) {
+          channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+          channel.bind(new InetSocketAddress(group.getPort()));
+          channel.join(group.getAddress(), group.getNetworkInterface());
+        } else {
+          channel.bind(new InetSocketAddress(loopback, 0));
+        }
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ);
+        channels[i] = channel;
+        addresses[i] = new InetSocketAddress(loopback, ((InetSocketAddress) channel.getLocalAddress()).getPort());
+      }
+      setDaemon(true);
+    }
+
+    public void run() {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(packetSize);
+      try {
+        while (selector.isOpen()) {
+          selector.select(quietMs);
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            DatagramChannel channel = (DatagramChannel) keys.next().channel();
+            keys.remove();
+            buffer.clear();
+            while (channel.receive(buffer) != null) {
+              received.incrementAndGet();
+              lastReceived = System.currentTimeMillis();
+              buffer.clear();
+            }
+          }
+        }
+      } catch (IOException e) {
+        if (selector.isOpen())
+          e.printStackTrace();
+      } catch (ClosedSelectorException e) {
+        // Closed by close().
+      }
+    }
+
+    void awaitQuiet() throws InterruptedException {
+      while (System.currentTimeMillis() - lastReceived < quietMs)
+        Thread.sleep(quietMs / 4);
+    }
+
+    void close() throws IOException, InterruptedException {
+      selector.close();
+      join();
+      for (DatagramChannel channel : channels)
+        channel.close();
+    }
+  }
+
+}
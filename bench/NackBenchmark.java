@@ -0,0 +1,276 @@
+package bench;
+
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import java.nio.ByteBuffer;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import net.AudioPacket;
+import net.DatagramReceiver;
+import net.JitterBuffer;
+import net.Nack;
+import net.TokenBucket;
+
+/**
+  * Measures selective retransmission over loopback: a sender thread sends a loop,
+  * dropping packets at random as a lossy link would, and a receiver puts it together
+  * with a JitterBuffer, asking for what's missing with NACKs as SoundClient --nack
+  * does. NACKs are answered, rate-limited, from the same socket, and resent packets
+  * are dropped at the same rate. Reports how much of what was lost came back, how
+  * long it took, and what the resending cost in bandwidth. The CPU time of writing and
+  * answering a NACK is measured by jmh.NackBenchmark.
+  *
+  * Usage: java bench.NackBenchmark [loop_packets] [rounds] [retransmit_rate]
+  */
+public class NackBenchmark {
+
+  private static final int payloadSize = 512;
+
+  private static final int defaultLoopPackets = 500;
+
+  private static final int defaultRounds = 20;
+
+  private static final int defaultRetransmitRate = 5000;
+
+  private static final int maxNackRounds = 3;
+
+  /**
+    * Time between packets sent, roughly that of 16-bit stereo audio at 44.1kHz.
+    */
+  private static final long packetGapNanos = 50000;
+
+  private static final long firstPacketTimeoutMs = 1000;
+
+  private static final double[] lossRates = { 0.01, 0.05, 0.10, 0.20 };
+
+  public static void main(String[] args) throws Exception {
+    int loopPackets = args.length > 0 ? Integer.parseInt(args[0]) : defaultLoopPackets;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : defaultRounds;
+    int retransmitRate = args.length > 2 ? Integer.parseInt(args[2]) : defaultRetransmitRate;
+
+    byte[] audio = new byte[loopPackets * payloadSize - payloadSize / 3];
+    new Random(42).nextBytes(audio);
+
+    System.out.println("Loop: " + loopPackets + " packets, " + audio.length + " bytes. Rounds: " + rounds
+        + ". Retransmit rate limit: " + retransmitRate + " packets/s");
+
+    run(audio, lossRates[0], rounds, retransmitRate, false); // Warm up, so compiling doesn't stall the sender.
+    for (double lossRate : lossRates)
+      run(audio, lossRate, rounds, retransmitRate, true);
+  }
+
+  private static void run(byte[] audio, double lossRate, int rounds, int retransmitRate, boolean report) throws Exception {
+    DatagramReceiver receiver = new DatagramReceiver(0);
+    Sender sender = new Sender(audio, lossRate, retransmitRate);
+    InetSocketAddress receiverAddress = new InetSocketAddress("localhost", receiver.getLocalPort());
+
+    JitterBuffer jitterBuffer = new JitterBuffer(payloadSize);
+    byte[] loop = new byte[audio.length];
+    ByteBuffer packet = ByteBuffer.allocateDirect(AudioPacket.headerLength + payloadSize);
+    ByteBuffer nack = ByteBuffer.allocateDirect(AudioPacket.headerLength + payloadSize);
+    long missing = 0;
+    long retransmitted = 0;
+    long recoveryNanosTotal = 0;
+    long recoveryNanosMax = 0;
+    long nacks = 0;
+    long nackBytes = 0;
+    int nackSeq = 0;
+
+    sender.start();
+    for (int round = 0; round < rounds; round++) {
+      jitterBuffer.startLoop(loop);
+      sender.sendLoop(receiverAddress);
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(firstPacketTimeoutMs);
+      SocketAddress source = null;
+      int nackRounds = 0;
+
+      while (!jitterBuffer.isComplete()) {
+        long waitMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime() + 999999));
+        packet.clear();
+        SocketAddress from = receiver.receive(packet, waitMs);
+        if (from == null) {
+          long now = System.nanoTime();
+          if (now - deadline < 0)
+            continue;
+          if (source == null || nackRounds == maxNackRounds || jitterBuffer.putNack(nack, nackSeq++, now) == 0)
+            break;
+          nacks++;
+          nackBytes += nack.remaining();
+          receiver.send(nack, source);
+          nackRounds++;
+          deadline = now + jitterBuffer.getRetransmitWaitNanos();
+          continue;
+        }
+        packet.flip();
+        if (jitterBuffer.offer(packet, System.nanoTime())) {
+          source = from;
+          long expected = jitterBuffer.getDeadline();
+          deadline = nackRounds == 0 ? expected : Math.max(deadline, expected);
+        }
+      }
+
+      missing += jitterBuffer.getPacketsMissing();
+      retransmitted += jitterBuffer.getPacketsRetransmitted();
+      recoveryNanosTotal += jitterBuffer.getMeanRecoveryNanos() * jitterBuffer.getPacketsRetransmitted();
+      recoveryNanosMax = Math.max(recoveryNanosMax, jitterBuffer.getMaxRecoveryNanos());
+      sender.awaitLoopSent();
+    }
+    sender.interrupt();
+    sender.join();
+    receiver.close();
+
+    if (!report)
+      return;
+    long lost = sender.dropped.get();
+    long sentBytes = (long) audio.length * rounds;
+    System.out.printf("%4.0f%% loss: lost %6d, recovered %6d (%5.1f%%), still missing %5.2f%% of packets,"
+        + " recovery mean %6.2f ms max %6.2f ms, overhead %5.2f%% (%d NACKs, %d resent, %d over rate limit)%n",
+        lossRate * 100, lost, retransmitted, lost == 0 ? 100.0 : 100.0 * retransmitted / lost,
+        100.0 * missing / ((double) rounds * ((audio.length + payloadSize - 1) / payloadSize)),
+        retransmitted == 0 ? 0.0 : recoveryNanosTotal / (double) retransmitted / 1e6, recoveryNanosMax / 1e6,
+        100.0 * (sender.resentBytes.get() + nackBytes) / sentBytes, nacks, sender.resent.get(), sender.limited.get());
+  }
+
+  /**
+    * Sends loops when told to, and answers NACKs, both over a lossy "link".
+    */
+  private static class Sender extends Thread {
+
+    private final byte[] audio;
+
+    private final double lossRate;
+
+    private final Random random = new Random(7);
+
+    private final TokenBucket retransmitBucket;
+
+    private final DatagramReceiver socket;
+
+    private final ByteBuffer packet = ByteBuffer.allocateDirect(AudioPacket.headerLength + payloadSize);
+
+    private final ByteBuffer nack = ByteBuffer.allocateDirect(AudioPacket.headerLength + Nack.maxSlots / 8);
+
+    private final AtomicInteger loopsRequested = new AtomicInteger();
+
+    private final AtomicInteger loopsSent = new AtomicInteger();
+
+    private volatile SocketAddress target;
+
+    private int seq;
+
+    private final long streamStart = System.nanoTime();
+
+    final AtomicInteger dropped = new AtomicInteger();
+
+    final AtomicInteger resent = new AtomicInteger();
+
+    final AtomicInteger limited = new AtomicInteger();
+
+    final AtomicInteger resentBytes = new AtomicInteger();
+
+    Sender(byte[] audio, double lossRate, int retransmitRate) throws IOException {
+      this.audio = audio;
+      this.lossRate = lossRate;
+      retransmitBucket = new TokenBucket(retransmitRate, Math.max(1, retransmitRate / 4));
+      socket = new DatagramReceiver(0);
+      setDaemon(true);
+    }
+
+    void sendLoop(SocketAddress target) {
+      this.target = target;
+      loopsRequested.incrementAndGet();
+    }
+
+    void awaitLoopSent() {
+      while (loopsSent.get() < loopsRequested.get())
+        LockSupport.parkNanos(100000);
+    }
+
+    public void run() {
+      try {
+        while (!isInterrupted()) {
+          if (loopsSent.get() < loopsRequested.get()) {
+            sendLoop();
+            loopsSent.incrementAndGet();
+          }
+          answerNacks(1);
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+      } finally {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+
+    /**
+      * Sends the loop at an audio-like pace, answering NACKs in between.
+      */
+    private void sendLoop() throws IOException {
+      long next = System.nanoTime();
+      for (int offset = 0; offset < audio.length; offset += payloadSize) {
+        if (random.nextDouble() < lossRate) {
+          dropped.incrementAndGet();
+        } else {
+          putPacket(offset);
+          socket.send(packet, target);
+        }
+        next += packetGapNanos;
+        while (System.nanoTime() - next < 0) {
+          if (!answerNacks(0))
+            LockSupport.parkNanos(next - System.nanoTime());
+        }
+      }
+    }
+
+    /**
+      * @return whether a NACK was answered.
+      */
+    private boolean answerNacks(long timeoutMs) throws IOException {
+      nack.clear();
+      SocketAddress from = timeoutMs > 0 ? socket.receive(nack, timeoutMs) : socket.receiveNow(nack);
+      int length = nack.position();
+      if (from == null || !Nack.isNack(nack, 0, length))
+        return false;
+
+      int first = Nack.getFirstSlot(nack, 0, payloadSize);
+      int slots = (audio.length + payloadSize - 1) / payloadSize;
+      int count = Math.min(Nack.getSlotCount(length), slots - first);
+      for (int i = 0; i < count; i++) {
+        if (!Nack.isMissing(nack, 0, i))
+          continue;
+        if (!retransmitBucket.tryTake()) {
+          limited.incrementAndGet();
+          continue;
+        }
+        resent.incrementAndGet();
+        int payload = putPacket((first + i) * payloadSize);
+        resentBytes.addAndGet(AudioPacket.headerLength + payload);
+        if (random.nextDouble() >= lossRate)
+          socket.send(packet, from);
+      }
+      return true;
+    }
+
+    private int putPacket(int offset) {
+      int length = Math.min(payloadSize, audio.length - offset);
+      packet.clear();
+      AudioPacket.putHeader(packet, 0, 1, offset == 0 ? AudioPacket.LOOP_START : 0, seq++, offset, AudioPacket.timestamp(streamStart));
+      packet.position(AudioPacket.headerLength);
+      packet.put(audio, offset, length);
+      packet.flip();
+      return length;
+    }
+  }
+
+}
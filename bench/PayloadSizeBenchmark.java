@@ -0,0 +1,164 @@
+package bench;
+
+import java.io.IOException;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.DatagramChannel;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.AudioPacket;
+
+/**
+  * Measures how fast audio goes from one socket to another over loopback at each payload
+  * size a client and server might agree on (see ControlOp.PAYLOAD_SIZE). For each size, a
+  * loop of audio is packetised and sent, header and all, as SoundClient and ClientSession
+  * send it, over and over for a while, as fast as the socket takes it. Packets and audio
+  * megabytes a second sent are reported, with the sending thread's CPU time per megabyte
+  * and how much arrived.
+  *
+  * Loopback's MTU is big, so nothing is split up on the way; on a real network, payloads
+  * past the path MTU are, and a lost piece loses the whole packet (see PayloadProbe).
+  *
+  * Usage: java bench.PayloadSizeBenchmark [seconds_per_size] [payload_sizes...]
+  */
+public class PayloadSizeBenchmark {
+
+  private static final int[] defaultPayloadSizes = {
+    AudioPacket.defaultPayload, 1456, 4096, 8192, 16384, 32768, AudioPacket.maxPayload
+  };
+
+  private static final int defaultSeconds = 2;
+
+  /**
+    * A second of 16-bit stereo 44.1kHz audio.
+    */
+  private static final int loopLength = 44100 * 2 * 2;
+
+  private static final int receiveBufferSize = 4 * 1024 * 1024;
+
+  /**
+    * How long the receiver must go without a packet before everything sent is taken to have arrived.
+    */
+  private static final long quietMs = 200;
+
+  public static void main(String[] args) throws Exception {
+    int seconds = args.length > 0 ? Integer.parseInt(args[0]) : defaultSeconds;
+    int[] payloadSizes = defaultPayloadSizes;
+    if (args.length > 1) {
+      payloadSizes = new int[args.length - 1];
+      for (int i = 1; i < args.length; i++)
+        payloadSizes[i - 1] = Integer.parseInt(args[i]);
+    }
+
+    System.out.println("Sending " + loopLength + "-byte loops for " + seconds + " s at each payload size.");
+    run(AudioPacket.defaultPayload, 1, false); // Warm up.
+    for (int payloadSize : payloadSizes)
+      run(payloadSize, seconds, true);
+  }
+
+  private static void run(int payloadSize, int seconds, boolean report) throws IOException, InterruptedException {
+    Receiver receiver = new Receiver(payloadSize);
+    receiver.start();
+
+    DatagramChannel sender = DatagramChannel.open(StandardProtocolFamily.INET);
+    InetSocketAddress target = receiver.address;
+    ByteBuffer loop = ByteBuffer.allocateDirect(loopLength);
+    ByteBuffer packet = ByteBuffer.allocateDirect(AudioPacket.headerLength + payloadSize);
+
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    long cpuStart = threads.getCurrentThreadCpuTime();
+    long wallStart = System.nanoTime();
+    long end = wallStart + seconds * 1000000000L;
+    long packets = 0;
+    long audioBytes = 0;
+    int seq = 0;
+
+    while (System.nanoTime() - end < 0) {
+      for (int offset = 0; offset < loopLength; offset += payloadSize) {
+        int payload = Math.min(payloadSize, loopLength - offset);
+        packet.clear();
+        AudioPacket.putHeader(packet, 0, 0, offset == 0 ? AudioPacket.LOOP_START : 0, seq++, offset, 0);
+        packet.put(AudioPacket.headerLength, loop, offset, payload);
+        packet.limit(AudioPacket.headerLength + payload);
+        sender.send(packet, target);
+        packets++;
+        audioBytes += payload;
+      }
+    }
+
+    long cpuNanos = threads.getCurrentThreadCpuTime() - cpuStart;
+    double wallSeconds = (System.nanoTime() - wallStart) / 1e9;
+    receiver.awaitQuiet();
+    sender.close();
+    receiver.close();
+
+    if (!report)
+      return;
+    double megabytes = audioBytes / 1e6;
+    System.out.printf("payload %6d: %10.0f packets/s, %8.1f MB/s of audio, CPU %7.2f ms/MB, %6.2f%% received%n",
+        payloadSize, packets / wallSeconds, megabytes / wallSeconds, cpuNanos / 1e6 / megabytes,
+        100.0 * receiver.received.get() / packets);
+  }
+
+  /**
+    * Counts packets arriving on a loopback socket.
+    */
+  private static class Receiver extends Thread {
+
+    private final DatagramChannel channel;
+
+    private final ByteBuffer buffer;
+
+    final InetSocketAddress address;
+
+    final AtomicLong received = new AtomicLong();
+
+    private volatile long lastReceived = System.currentTimeMillis();
+
+    Receiver(int payloadSize) throws IOException {
+      InetAddress loopback = InetAddress.getByName("127.0.0.1");
+      channel = DatagramChannel.open(StandardProtocolFamily.INET);
+      channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+      channel.bind(new InetSocketAddress(loopback, 0));
+      address = new InetSocketAddress(loopback, ((InetSocketAddress) channel.getLocalAddress()).getPort());
+      buffer = ByteBuffer.allocateDirect(AudioPacket.headerLength + payloadSize);
+      setDaemon(true);
+    }
+
+    public void run() {
+      try {
+        while (true) {
+          buffer.clear();
+          channel.receive(buffer);
+          received.incrementAndGet();
+          lastReceived = System.currentTimeMillis();
+        }
+      } catch (AsynchronousCloseException e) {
+        // Closed by close().
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+
+    void awaitQuiet() throws InterruptedException {
+      while (System.currentTimeMillis() - lastReceived < quietMs)
+        Thread.sleep(quietMs / 4);
+    }
+
+    void close() throws IOException, InterruptedException {
+      channel.close();
+      join();
+    }
+  }
+
+}
@@ -0,0 +1,226 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+  * Elects sender handlers the way ClientSession and SoundServerThread join, leave and fail
+  * over, with no clients. Races are set up by hooking the line of candidates mid-election.
+  */
+class SharedFailoverInfoTest {
+
+  /**
+    * Ids of the test's channel metrics MBeans, clear of any a server in the same JVM registers.
+    */
+  private static final AtomicInteger metricsId = new AtomicInteger(1000000);
+
+  private final ChannelMetrics metrics = new ChannelMetrics("test", metricsId.incrementAndGet());
+
+  @AfterEach
+  void unregister() {
+    metrics.unregister();
+  }
+
+  /**
+    * A handler's listener, counting the times it's been elected.
+    */
+  private static class Handler implements SharedFailoverInfo.Listener {
+    final AtomicInteger elected = new AtomicInteger();
+    SharedFailoverInfo.Candidate candidate;
+
+    public void electedSender() {
+      elected.incrementAndGet();
+    }
+  }
+
+  private static Handler join(SharedFailoverInfo info) {
+    Handler handler = new Handler();
+    handler.candidate = info.join(true, handler);
+    return handler;
+  }
+
+  /**
+    * A line of candidates that runs a hook once, as an election polls the next in line or a
+    * candidate's put in line.
+    */
+  private static class HookedLine extends ConcurrentSkipListMap<Long, SharedFailoverInfo.Candidate> {
+    Runnable onPoll;
+    Runnable onPut;
+
+    public Map.Entry<Long, SharedFailoverInfo.Candidate> pollFirstEntry() {
+      Map.Entry<Long, SharedFailoverInfo.Candidate> oldest = super.pollFirstEntry();
+      Runnable hook = onPoll;
+      onPoll = null;
+      if (hook != null)
+        hook.run();
+      return oldest;
+    }
+
+    public SharedFailoverInfo.Candidate put(Long joinOrder, SharedFailoverInfo.Candidate candidate) {
+      Runnable hook = onPut;
+      onPut = null;
+      if (hook != null)
+        hook.run();
+      return super.put(joinOrder, candidate);
+    }
+  }
+
+  @Test
+  void oldestCandidateIsElectedAndToldOnce() {
+    SharedFailoverInfo info = new SharedFailoverInfo(metrics);
+    Handler first = join(info);
+    Handler second = join(info);
+    Handler third = join(info);
+    Handler fourth = join(info);
+    assertTrue(info.isSender(first.candidate));
+    assertNull(info.join(false, new Handler()), "receive-only clients aren't in line");
+
+    info.failOver(first.candidate);
+    assertTrue(info.isSender(second.candidate));
+    assertEquals(1, second.elected.get());
+    assertEquals(0, third.elected.get());
+    assertEquals(0, fourth.elected.get());
+
+    info.failOver(first.candidate); // Already replaced: nothing happens.
+    info.leave(fourth.candidate);
+    assertEquals(1, second.elected.get());
+    assertTrue(info.isSender(second.candidate));
+
+    info.failOver(second.candidate);
+    assertTrue(info.isSender(third.candidate));
+    assertEquals(1, third.elected.get());
+    assertEquals(0, fourth.elected.get());
+    assertEquals(0, first.elected.get());
+  }
+
+  @Test
+  void candidateLeavingAsItsElectedIsSkipped() {
+    HookedLine line = new HookedLine();
+    final SharedFailoverInfo info = new SharedFailoverInfo(metrics, line);
+    Handler sender = join(info);
+    final Handler leaving = join(info);
+    Handler next = join(info);
+
+    // It leaves once it's been taken out of line, but before it's been made sender.
+    line.onPoll = new Runnable() {
+      public void run() {
+        info.leave(leaving.candidate);
+      }
+    };
+    info.failOver(sender.candidate);
+
+    assertFalse(info.isSender(leaving.candidate));
+    assertEquals(0, leaving.elected.get());
+    assertTrue(info.isSender(next.candidate));
+    assertEquals(1, next.elected.get());
+  }
+
+  @Test
+  void candidateJoiningAfterLastSenderLeftIsElected() {
+    SharedFailoverInfo info = new SharedFailoverInfo(metrics);
+    Handler gone = join(info);
+    info.failOver(gone.candidate);
+    assertFalse(info.isSender(gone.candidate));
+
+    Handler joined = join(info);
+    assertTrue(info.isSender(joined.candidate), "first to join a senderless channel sends");
+  }
+
+  @Test
+  void candidateJoiningAsLastSenderFailsIsElected() {
+    HookedLine line = new HookedLine();
+    final SharedFailoverInfo info = new SharedFailoverInfo(metrics, line);
+    final Handler sender = join(info);
+
+    // The sender fails with nobody in line, after the joiner finds it there and before it's in line.
+    line.onPut = new Runnable() {
+      public void run() {
+        info.failOver(sender.candidate);
+      }
+    };
+    Handler joined = join(info);
+
+    assertTrue(info.isSender(joined.candidate));
+    assertEquals(1, joined.elected.get());
+    assertFalse(info.isSender(sender.candidate));
+  }
+
+  @Test
+  void concurrentJoinsLeavesAndFailoversLeaveOneSenderAtMost() throws InterruptedException {
+    final int threads = 8;
+    final int rounds = 2000;
+    final int keep = 2;
+    for (int run = 0; run < 20; run++) {
+      final SharedFailoverInfo info = new SharedFailoverInfo(metrics);
+      final List<List<Handler>> kept = new ArrayList<List<Handler>>();
+      final List<Handler> ended = new ArrayList<Handler>();
+      final CountDownLatch start = new CountDownLatch(1);
+      List<Thread> workers = new ArrayList<Thread>();
+      for (int t = 0; t < threads; t++) {
+        final List<Handler> mine = new ArrayList<Handler>();
+        final List<Handler> myEnded = new ArrayList<Handler>();
+        final Random random = new Random(run * threads + t);
+        kept.add(mine);
+        Thread worker = new Thread() {
+          public void run() {
+            try {
+              start.await();
+            } catch (InterruptedException e) {
+              return;
+            }
+            for (int i = 0; i < rounds; i++) {
+              mine.add(SharedFailoverInfoTest.join(info));
+              if (mine.size() <= keep || random.nextBoolean())
+                continue;
+              Handler handler = mine.remove(random.nextInt(mine.size()));
+              if (info.isSender(handler.candidate) && random.nextBoolean())
+                info.failOver(handler.candidate);
+              else
+                info.leave(handler.candidate);
+              myEnded.add(handler);
+            }
+            synchronized (ended) {
+              ended.addAll(myEnded);
+            }
+          }
+        };
+        workers.add(worker);
+        worker.start();
+      }
+      start.countDown();
+      for (Thread worker : workers)
+        worker.join();
+
+      int senders = 0;
+      int live = 0;
+      for (List<Handler> mine : kept) {
+        for (Handler handler : mine) {
+          live++;
+          assertTrue(handler.elected.get() <= 1, "told more than once");
+          if (info.isSender(handler.candidate))
+            senders++;
+        }
+      }
+      for (Handler handler : ended) {
+        assertTrue(handler.elected.get() <= 1, "told more than once");
+        assertFalse(info.isSender(handler.candidate), "a handler that's gone is still sender");
+      }
+      assertTrue(senders <= 1, "senders: " + senders);
+      if (live > 0)
+        assertEquals(1, senders, "nobody sending with " + live + " in line");
+    }
+  }
+
+}
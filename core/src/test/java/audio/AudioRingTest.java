@@ -0,0 +1,120 @@
+package audio;
+
+import java.nio.ByteBuffer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import net.AudioPacket;
+
+/**
+  * Drives an AudioRing the way SoundServerThread's udpReceiveFrame does, receiving each
+  * datagram straight into the slot beginWrite() opens, with no network.
+  */
+class AudioRingTest {
+
+  private static final int capacity = 4;
+
+  private static final int frameSize = AudioPacket.headerLength + 64;
+
+  private final AudioRing ring = new AudioRing(capacity, frameSize);
+
+  private final AudioRing.Frame frame = ring.newFrame();
+
+  /**
+    * Fills every slot, so the next write goes over frame 0.
+    */
+  private void wrap() {
+    byte[] audio = new byte[64];
+    for (int i = 0; i < capacity; i++) {
+      audio[0] = (byte) i;
+      ring.write(audio, 0, audio.length, i * audio.length, capacity * audio.length);
+    }
+    assertEquals(AudioRing.OK, ring.read(0, frame));
+  }
+
+  /**
+    * Receives a packet with a header and no audio into the next slot, as a sender would send
+    * it, then gives up on it as udpReceiveFrame does, without moving the view back.
+    */
+  private void receiveHeaderOnly() {
+    ByteBuffer slot = ring.beginWrite();
+    int start = slot.position();
+    AudioPacket.putHeader(slot, start, 1, 0, 99, 0, 0);
+    slot.position(start + AudioPacket.headerLength);
+    ring.abortWrite();
+  }
+
+  @Test
+  void badPacketOverAWrappedRingOverrunsTheOldFrame() {
+    wrap();
+    receiveHeaderOnly();
+    assertEquals(AudioRing.OVERRUN, ring.read(0, frame));
+    assertEquals(AudioRing.OK, ring.read(1, frame));
+  }
+
+  @Test
+  void readerOfTheOldFrameSeesItWasntIntact() {
+    wrap();
+    receiveHeaderOnly();
+    frame.seq = 0;
+    assertFalse(ring.isIntact(frame));
+  }
+
+  @Test
+  void timingOutAfterABadPacketLeavesTheOldFrameOverrun() {
+    wrap();
+    receiveHeaderOnly();
+    ring.beginWrite();
+    ring.abortWrite(); // Nothing came the next time round.
+    assertEquals(AudioRing.OVERRUN, ring.read(0, frame));
+  }
+
+  @Test
+  void timingOutWithNothingReceivedKeepsTheOldFrame() {
+    wrap();
+    ring.beginWrite();
+    ring.abortWrite();
+    assertEquals(AudioRing.OK, ring.read(0, frame));
+    assertTrue(ring.isIntact(frame));
+  }
+
+  @Test
+  void frameBeingWrittenForTheFirstTimeIsNotYet() {
+    assertEquals(AudioRing.NOT_YET, ring.read(0, frame));
+    ring.beginWrite();
+    assertEquals(AudioRing.NOT_YET, ring.read(0, frame));
+  }
+
+  @Test
+  void parkedReadersAreWokenByTheFrameTheyWaitFor() throws InterruptedException {
+    final AtomicInteger woken = new AtomicInteger();
+    Thread[] readers = new Thread[8];
+    for (int i = 0; i < readers.length; i++) {
+      readers[i] = new Thread(new Runnable() {
+        public void run() {
+          if (ring.awaitPublished(0, TimeUnit.SECONDS.toNanos(30)))
+            woken.incrementAndGet();
+        }
+      });
+      readers[i].start();
+    }
+    for (Thread reader : readers) {
+      while (reader.getState() != Thread.State.TIMED_WAITING)
+        Thread.sleep(1);
+    }
+    assertFalse(ring.awaitPublished(0, TimeUnit.MILLISECONDS.toNanos(1)), "nothing published yet");
+
+    ring.write(new byte[64], 0, 64, 0, 64);
+    for (Thread reader : readers)
+      reader.join(5000);
+    assertEquals(readers.length, woken.get(), "woken long before their 30 s wait's up");
+  }
+
+}
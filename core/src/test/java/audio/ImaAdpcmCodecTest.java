@@ -0,0 +1,135 @@
+package audio;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.sound.sampled.AudioFormat;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+  * Encodes and decodes audio with IMA-ADPCM, checking what comes back, that blocks decode
+  * on their own as packets holding them are, and its lengths against what it writes.
+  */
+class ImaAdpcmCodecTest {
+
+  private final AudioCodec codec = AudioCodecs.imaAdpcm;
+
+  private final AudioFormat[] formats = {
+    codec.encodedFormat(new AudioFormat(44100, 16, 1, true, false)),
+    codec.encodedFormat(new AudioFormat(44100, 16, 2, true, false))
+  };
+
+  /**
+    * @return a second of tones and noise, as CodecBenchmark uses, each channel a little different.
+    */
+  private static byte[] audio(int channels) {
+    Random random = new Random(42);
+    byte[] pcm = new byte[44100 * 2 * channels];
+    for (int i = 0; i < pcm.length / 2; i++) {
+      double t = (i / channels) / 44100.0;
+      int channel = i % channels;
+      int sample = (int) (8000 * Math.sin(2 * Math.PI * (440 + 110 * channel) * t) + 4000 * Math.sin(2 * Math.PI * 1250 * t)
+          + 500 * random.nextGaussian());
+      pcm[2 * i] = (byte) sample;
+      pcm[2 * i + 1] = (byte) (sample >> 8);
+    }
+    return pcm;
+  }
+
+  /**
+    * @return signal to noise ratio of the first length bytes of decoded against the original, in dB.
+    */
+  private static double snr(byte[] original, byte[] decoded, int length) {
+    double signal = 0;
+    double noise = 0;
+    for (int i = 0; i < length / 2; i++) {
+      int a = (short) ((original[2 * i] & 0xff) | original[2 * i + 1] << 8);
+      int b = (short) ((decoded[2 * i] & 0xff) | decoded[2 * i + 1] << 8);
+      signal += (double) a * a;
+      noise += (double) (a - b) * (a - b);
+    }
+    return noise == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(signal / noise);
+  }
+
+  @Test
+  void decodesCloseToWhatWasEncoded() {
+    for (AudioFormat format : formats) {
+      byte[] pcm = audio(format.getChannels());
+      byte[] encoded = new byte[codec.encodedLength(format, pcm.length)];
+      codec.encode(format, pcm, 0, pcm.length, encoded, 0);
+      byte[] decoded = new byte[codec.decodedLength(format, encoded.length)];
+      codec.decode(format, encoded, 0, encoded.length, decoded, 0);
+
+      assertTrue(pcm.length / encoded.length >= 3, "about a quarter the size: " + encoded.length);
+      double snr = snr(pcm, decoded, pcm.length);
+      assertTrue(snr > 25, format.getChannels() + " channels, SNR " + snr + " dB");
+    }
+  }
+
+  @Test
+  void eachBlockDecodesOnItsOwn() {
+    for (AudioFormat format : formats) {
+      int blockSize = format.getFrameSize();
+      byte[] pcm = audio(format.getChannels());
+      byte[] encoded = new byte[codec.encodedLength(format, pcm.length)];
+      codec.encode(format, pcm, 0, pcm.length, encoded, 0);
+      byte[] whole = new byte[codec.decodedLength(format, encoded.length)];
+      codec.decode(format, encoded, 0, encoded.length, whole, 0);
+
+      int pcmBlock = codec.decodedLength(format, blockSize);
+      byte[] alone = new byte[pcmBlock];
+      for (int b : new int[] { 0, 1, 7, encoded.length / blockSize - 1 }) {
+        assertEquals(pcmBlock, codec.decode(format, encoded, b * blockSize, blockSize, alone, 0));
+        assertArrayEquals(Arrays.copyOfRange(whole, b * pcmBlock, (b + 1) * pcmBlock), alone,
+            format.getChannels() + " channels, block " + b);
+      }
+
+      // Losing a block, as a lost packet does, leaves the next as it was.
+      Arrays.fill(encoded, 6 * blockSize, 7 * blockSize, (byte) 0x5a);
+      byte[] afterLoss = new byte[whole.length];
+      codec.decode(format, encoded, 0, encoded.length, afterLoss, 0);
+      assertArrayEquals(Arrays.copyOfRange(whole, 7 * pcmBlock, whole.length),
+          Arrays.copyOfRange(afterLoss, 7 * pcmBlock, whole.length));
+    }
+  }
+
+  @Test
+  void lengthsAgreeWithWhatsWritten() {
+    for (AudioFormat format : formats) {
+      int channels = format.getChannels();
+      int blockSize = format.getFrameSize();
+      int pcmBlock = ImaAdpcmCodec.samplesPerBlock * 2 * channels;
+      byte[] pcm = audio(channels);
+      byte[] out = new byte[4 * blockSize];
+      byte[] decoded = new byte[4 * pcmBlock];
+
+      for (int pcmLength : new int[] { 0, 2 * channels, pcmBlock - 2 * channels, pcmBlock, pcmBlock + 2 * channels,
+          2 * pcmBlock + 100 * channels, 3 * pcmBlock }) {
+        Arrays.fill(out, (byte) 0x5a);
+        int length = codec.encode(format, pcm, 0, pcmLength, out, 0);
+        int blocks = (pcmLength + pcmBlock - 1) / pcmBlock;
+        String what = channels + " channels, " + pcmLength + " bytes";
+        assertEquals(codec.encodedLength(format, pcmLength), length, what);
+        assertEquals(blocks * blockSize, length, what + ": whole blocks");
+        for (int i = length; i < out.length; i++)
+          assertEquals(0x5a, out[i], what + ": written past the end");
+
+        int decodedLength = codec.decode(format, out, 0, length, decoded, 0);
+        assertEquals(codec.decodedLength(format, length), decodedLength, what);
+        assertEquals(blocks * pcmBlock, decodedLength, what + ": padded out to whole blocks");
+        if (pcmLength > 0)
+          assertTrue(snr(pcm, decoded, pcmLength) > 15, what + ": partial block decoded");
+
+        // Part of a block left over decodes to nothing.
+        assertEquals(codec.decodedLength(format, length), codec.decodedLength(format, length + blockSize - 1), what);
+        assertEquals(decodedLength, codec.decode(format, out, 0, length + blockSize - 1, decoded, 0), what);
+      }
+    }
+  }
+
+}
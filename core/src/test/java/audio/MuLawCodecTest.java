@@ -0,0 +1,83 @@
+package audio;
+
+import javax.sound.sampled.AudioFormat;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+  * Checks mu-law against G.711, and its lengths against what it writes.
+  */
+class MuLawCodecTest {
+
+  private final AudioCodec codec = AudioCodecs.muLaw;
+
+  private final AudioFormat mono = codec.encodedFormat(new AudioFormat(44100, 16, 1, true, false));
+
+  private final AudioFormat stereo = codec.encodedFormat(new AudioFormat(44100, 16, 2, true, false));
+
+  private int encode(int sample) {
+    byte[] pcm = { (byte) sample, (byte) (sample >> 8) };
+    byte[] out = new byte[1];
+    assertEquals(1, codec.encode(mono, pcm, 0, 2, out, 0));
+    return out[0] & 0xff;
+  }
+
+  private int decode(int mulaw) {
+    byte[] out = new byte[2];
+    assertEquals(2, codec.decode(mono, new byte[] { (byte) mulaw }, 0, 1, out, 0));
+    return (short) ((out[0] & 0xff) | out[1] << 8);
+  }
+
+  @Test
+  void matchesG711CodePoints() {
+    // Sample, and the code G.711 gives it.
+    int[][] encodes = {
+      { 0, 0xff }, { -1, 0x7f }, { 1, 0xff }, { 30, 0xfb }, { 31, 0xfb }, { -31, 0x7b }, { 100, 0xf2 },
+      { 1000, 0xce }, { -1000, 0x4e }, { 8031, 0xa0 }, { 32767, 0x80 }, { -32768, 0x00 }, { 32635, 0x80 }
+    };
+    for (int[] e : encodes)
+      assertEquals(e[1], encode(e[0]), "code for " + e[0]);
+
+    // Code, and the sample G.711 decodes it to.
+    int[][] decodes = {
+      { 0xff, 0 }, { 0x7f, 0 }, { 0xf0, 120 }, { 0xe0, 372 }, { 0x8f, 16764 }, { 0x80, 32124 },
+      { 0x00, -32124 }, { 0x70, -120 }, { 0xce, 988 }
+    };
+    for (int[] d : decodes)
+      assertEquals(d[1], decode(d[0]), "sample for " + Integer.toHexString(d[0]));
+
+    // Every code but negative zero survives decoding and encoding again.
+    for (int code = 0; code < 256; code++) {
+      if (code != 0x7f)
+        assertEquals(code, encode(decode(code)), "code " + Integer.toHexString(code));
+    }
+  }
+
+  @Test
+  void lengthsAgreeWithWhatsWritten() {
+    for (AudioFormat format : new AudioFormat[] { mono, stereo }) {
+      int channels = format.getChannels();
+      for (int pcmLength = 0; pcmLength <= 64; pcmLength += 2) {
+        byte[] pcm = new byte[pcmLength];
+        byte[] out = new byte[128];
+        int length = codec.encode(format, pcm, 0, pcmLength, out, 0);
+        assertEquals(codec.encodedLength(format, pcmLength), length, "encoded from " + pcmLength);
+        assertEquals(0, length % channels, "whole frames");
+        for (int i = length; i < out.length; i++)
+          assertEquals(0, out[i], "written past the end from " + pcmLength);
+
+        byte[] decoded = new byte[256];
+        int decodedLength = codec.decode(format, out, 0, length, decoded, 0);
+        assertEquals(codec.decodedLength(format, length), decodedLength);
+        assertEquals((pcmLength + 2 * channels - 1) / (2 * channels) * 2 * channels, decodedLength,
+            "a part frame is padded out from " + pcmLength);
+        for (int i = 0; i < decodedLength; i++)
+          assertEquals(0, decoded[i], "silence from " + pcmLength);
+      }
+    }
+    assertEquals(2, codec.decodedLength(stereo, 3) / 2, "part frame left out");
+  }
+
+}
@@ -0,0 +1,127 @@
+package net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+  * Sends control messages between two ControlChannels, as SoundClient and SoundServerThread
+  * do, over a loopback connection.
+  */
+class ControlChannelTest {
+
+  private Socket clientSocket;
+
+  private Socket serverSocket;
+
+  private ControlChannel client;
+
+  private ControlChannel server;
+
+  @BeforeEach
+  void connect() throws IOException {
+    try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      clientSocket = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+      serverSocket = listener.accept();
+    }
+    clientSocket.setTcpNoDelay(true);
+    serverSocket.setSoTimeout(5000);
+    clientSocket.setSoTimeout(5000);
+    client = new ControlChannel(clientSocket);
+    server = new ControlChannel(serverSocket);
+  }
+
+  @AfterEach
+  void close() throws IOException {
+    client.close();
+    server.close();
+  }
+
+  @Test
+  void requestsAndRepliesRoundTripWithTheirTags() throws IOException {
+    int id = client.request(ControlOp.ID);
+    int payload = client.request(ControlOp.PAYLOAD_SIZE, 1400);
+    int[] args = { 1, 2, 3 };
+    int format = client.request(ControlOp.AUDIO_FORMAT, args, args.length);
+    client.send(ControlOp.READY_TO_SEND);
+    client.flush();
+
+    assertSame(ControlOp.ID, server.receive());
+    assertEquals(id, server.getTag());
+    assertEquals(-1, server.getArg());
+    server.reply(ControlOp.ID, 7);
+    assertSame(ControlOp.PAYLOAD_SIZE, server.receive());
+    assertEquals(payload, server.getTag());
+    assertEquals(1400, server.getArg());
+    server.reply(ControlOp.PAYLOAD_SIZE, new int[] { 1200, 40000 }, 2);
+    assertSame(ControlOp.AUDIO_FORMAT, server.receive());
+    assertEquals(format, server.getTag());
+    assertEquals(3, server.getArg(2));
+    assertEquals(-1, server.getArg(3));
+    server.reply(ControlOp.AUDIO_FORMAT, args, args.length);
+    assertSame(ControlOp.READY_TO_SEND, server.receive());
+    assertEquals(0, server.getTag());
+    server.flush();
+
+    // Replies are matched by tag, whatever order they're waited for in.
+    assertSame(ControlOp.PAYLOAD_SIZE, client.receiveReply(payload));
+    assertEquals(1200, client.getArg(0));
+    assertEquals(40000, client.getArg(1));
+    assertSame(ControlOp.AUDIO_FORMAT, client.receiveReply(format));
+    assertEquals(2, client.getArg(1));
+  }
+
+  @Test
+  void messageSentByteByByteIsReceivedWhole() throws IOException {
+    ByteBuffer message = ByteBuffer.allocate(64);
+    ControlMessage.put(message, ControlOp.ARRAY_LENGTH, 42, new int[] { 176400, 512 }, 2);
+    ControlMessage.put(message, ControlOp.ROLE, 43, ControlMessage.RECEIVER);
+    message.flip();
+
+    OutputStream out = clientSocket.getOutputStream();
+    while (message.hasRemaining()) {
+      out.write(message.get());
+      out.flush();
+    }
+
+    assertSame(ControlOp.ARRAY_LENGTH, server.receive());
+    assertEquals(42, server.getTag());
+    assertEquals(176400, server.getArg(0));
+    assertEquals(512, server.getArg(1));
+    assertSame(ControlOp.ROLE, server.receive());
+    assertEquals(43, server.getTag());
+    assertEquals(ControlMessage.RECEIVER, server.getArg());
+
+    clientSocket.shutdownOutput();
+    assertNull(server.receive(), "connection closed");
+  }
+
+  @Test
+  void pipelinedMessagesAreReceivedInOrder() throws IOException {
+    // More than one buffer's worth, so some are split across reads.
+    int count = 500;
+    for (int i = 0; i < count; i++)
+      client.request(ControlOp.READY_FOR_ARRAY_LENGTH, i);
+    client.flush();
+
+    for (int i = 0; i < count; i++) {
+      assertSame(ControlOp.READY_FOR_ARRAY_LENGTH, server.receive());
+      assertEquals(i + 1, server.getTag());
+      assertEquals(i, server.getArg());
+    }
+  }
+
+}
@@ -0,0 +1,181 @@
+package net;
+
+import java.nio.ByteBuffer;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import static net.ControlMessage.maxStringLength;
+
+/**
+  * Encodes control messages and decodes them in place, out of a buffer that's read into
+  * and compacted the way ClientSession reads its non-blocking connection, with no network.
+  */
+class ControlMessageTest {
+
+  /**
+    * A message as decoded.
+    */
+  private static class Decoded {
+    final ControlOp op;
+    final int tag;
+    final int[] args;
+
+    Decoded(ByteBuffer in, int start) {
+      op = ControlMessage.getOp(in, start);
+      tag = ControlMessage.getTag(in, start);
+      args = new int[ControlMessage.getArgCount(in, start)];
+      for (int i = 0; i < args.length; i++)
+        args[i] = ControlMessage.getArg(in, start, i, -1);
+    }
+  }
+
+  private final ByteBuffer in = ByteBuffer.allocate(1024);
+
+  private final List<Decoded> decoded = new ArrayList<Decoded>();
+
+  /**
+    * Takes bytes just arrived in a buffer read into, decoding each message complete and
+    * leaving the rest for more to arrive, as ClientSession does.
+    */
+  private void arrive(ByteBuffer bytes) {
+    in.put(bytes);
+    in.flip();
+    while (true) {
+      int start = in.position();
+      int length = ControlMessage.getLength(in, start, in.remaining());
+      if (length < 0)
+        break;
+      in.position(start + length);
+      if (ControlMessage.isWellFormed(in, start) && ControlMessage.getOp(in, start) != null)
+        decoded.add(new Decoded(in, start));
+    }
+    in.compact();
+  }
+
+  private static void assertMessage(Decoded message, ControlOp op, int tag, int... args) {
+    assertSame(op, message.op);
+    assertEquals(tag, message.tag, op + " tag");
+    assertEquals(args.length, message.args.length, op + " arguments");
+    for (int i = 0; i < args.length; i++)
+      assertEquals(args[i], message.args[i], op + " argument " + i);
+  }
+
+  @Test
+  void everyOpRoundTrips() {
+    int[] args = { 0, -1, Integer.MAX_VALUE, Integer.MIN_VALUE, 44100 };
+    ByteBuffer out = ByteBuffer.allocate(1024);
+    for (ControlOp op : ControlOp.values()) {
+      assertSame(op, ControlOp.fromCode(op.getCode()));
+      int tag = 0xff00 + op.getCode();
+
+      out.clear();
+      ControlMessage.put(out, op, tag);
+      assertEquals(ControlMessage.headerLength, out.position());
+      ControlMessage.put(out, op, 0, op.getCode() * 1000);
+      ControlMessage.put(out, op, tag, args, args.length);
+      out.flip();
+      arrive(out);
+
+      assertEquals(3, decoded.size(), op + " messages");
+      assertMessage(decoded.get(0), op, tag);
+      assertMessage(decoded.get(1), op, 0, op.getCode() * 1000);
+      assertMessage(decoded.get(2), op, tag, args);
+      decoded.clear();
+    }
+    assertNull(ControlOp.fromCode(0));
+    assertNull(ControlOp.fromCode(255));
+  }
+
+  @Test
+  void messageArrivingByteByByteIsDecodedOnceWhole() {
+    int[] args = new int[1 + ControlMessage.stringArgs()];
+    args[0] = ControlMessage.SENDER;
+    int count = ControlMessage.putString("room one", args, 1);
+    ByteBuffer out = ByteBuffer.allocate(1024);
+    ControlMessage.put(out, ControlOp.CHANNEL, 0xffff, args, count);
+    out.flip();
+
+    int length = out.remaining();
+    for (int i = 0; i < length; i++) {
+      assertEquals(0, decoded.size(), "decoded after " + i + " of " + length + " bytes");
+      ByteBuffer oneByte = out.duplicate();
+      oneByte.position(i).limit(i + 1);
+      arrive(oneByte);
+    }
+    assertEquals(1, decoded.size());
+    assertMessage(decoded.get(0), ControlOp.CHANNEL, 0xffff, Arrays.copyOf(args, count));
+    assertEquals(0, in.position(), "nothing left over");
+
+    ByteBuffer message = ByteBuffer.allocate(length);
+    message.put(out.position(0)).flip();
+    assertEquals("room one", ControlMessage.getString(message, 0, 1));
+  }
+
+  @Test
+  void nonAsciiNameRoundTripsAndIsCutBetweenCharacters() {
+    String name = "K\u00f6ln \u97f3\u697d\u5ba4";
+    StringBuilder longer = new StringBuilder(name).append(" x");
+    while (longer.toString().getBytes(StandardCharsets.UTF_8).length <= maxStringLength)
+      longer.append('\u00fc'); // Two bytes each, the last split by the cut.
+    String tooLong = longer.toString();
+    assertEquals(maxStringLength + 1, tooLong.getBytes(StandardCharsets.UTF_8).length, "cut in a character");
+
+    String cut = tooLong.substring(0, tooLong.length() - 1);
+    String[][] sentAndReceived = { { name, name }, { tooLong, cut } };
+    for (String[] names : sentAndReceived) {
+      String s = names[0];
+      int[] args = new int[ControlMessage.stringArgs()];
+      int count = ControlMessage.putString(s, args, 0);
+      ByteBuffer message = ByteBuffer.allocate(1024);
+      ControlMessage.put(message, ControlOp.CHANNEL, 1, args, count);
+      message.flip();
+
+      String decoded = ControlMessage.getString(message, 0, 0);
+      assertEquals(names[1], decoded);
+      assertFalse(decoded.contains("\ufffd"), "no character decoded half: " + decoded);
+    }
+    int[] args = new int[ControlMessage.stringArgs()];
+    ControlMessage.putString(tooLong, args, 0);
+    assertEquals(maxStringLength - 1, args[0], "cut before the character that didn't fit");
+  }
+
+  @Test
+  void pipelinedMessagesAreDecodedInOrder() {
+    ByteBuffer out = ByteBuffer.allocate(1024);
+    ControlMessage.put(out, ControlOp.ID, 1);
+    ControlMessage.put(out, ControlOp.ROLE, 2);
+    out.put((byte) 0).put((byte) 3).put((byte) 200).putShort((short) 3); // Opcode from a newer peer: skipped.
+    ControlMessage.put(out, ControlOp.PAYLOAD_SIZE, 3, 1400);
+    ControlMessage.put(out, ControlOp.ARRAY_LENGTH, 0, new int[] { 176400, 512 }, 2);
+    ControlMessage.put(out, ControlOp.READY_FOR_ARRAY_LENGTH, 4, ControlMessage.MULTICAST);
+    out.flip();
+
+    // All but the last message's last byte arrive together, then that byte.
+    ByteBuffer most = out.duplicate();
+    most.limit(out.limit() - 1);
+    arrive(most);
+    assertEquals(4, decoded.size());
+    ByteBuffer last = out.duplicate();
+    last.position(out.limit() - 1);
+    arrive(last);
+
+    assertEquals(5, decoded.size());
+    assertMessage(decoded.get(0), ControlOp.ID, 1);
+    assertMessage(decoded.get(1), ControlOp.ROLE, 2);
+    assertMessage(decoded.get(2), ControlOp.PAYLOAD_SIZE, 3, 1400);
+    assertMessage(decoded.get(3), ControlOp.ARRAY_LENGTH, 0, 176400, 512);
+    assertMessage(decoded.get(4), ControlOp.READY_FOR_ARRAY_LENGTH, 4, ControlMessage.MULTICAST);
+  }
+
+}
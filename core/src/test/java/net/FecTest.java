@@ -0,0 +1,197 @@
+package net;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+  * Sends a loop through a FecEncoder, loses some of its packets and rebuilds them with a
+  * FecDecoder, the way SoundClient does, with no network.
+  */
+class FecTest {
+
+  private static final int payload = 64;
+
+  private static final int groupSize = 8;
+
+  /**
+    * Stands in for audio that never arrived, so rebuilding can't lean on what was there.
+    */
+  private static final byte lost = 0x55;
+
+  private final Random random = new Random(42);
+
+  /**
+    * @return the loop as audio packets, as a sender would send them.
+    */
+  private static List<ByteBuffer> packetise(byte[] audio) {
+    List<ByteBuffer> packets = new ArrayList<ByteBuffer>();
+    for (int offset = 0, seq = 0; offset < audio.length; offset += payload, seq++) {
+      int length = Math.min(payload, audio.length - offset);
+      ByteBuffer packet = ByteBuffer.allocate(AudioPacket.headerLength + length);
+      AudioPacket.putHeader(packet, 0, 1, offset == 0 ? AudioPacket.LOOP_START : 0, seq, offset, seq * 1000);
+      packet.position(AudioPacket.headerLength);
+      packet.put(audio, offset, length);
+      packet.flip();
+      packets.add(packet);
+    }
+    return packets;
+  }
+
+  /**
+    * @return the parity packets of the loop, group by group, copied as they'd be sent.
+    */
+  private static List<ByteBuffer> parity(FecEncoder encoder, List<ByteBuffer> data) {
+    List<ByteBuffer> parity = new ArrayList<ByteBuffer>();
+    encoder.reset();
+    for (ByteBuffer packet : data) {
+      encoder.add(packet);
+      takeParity(encoder, parity);
+    }
+    encoder.flush();
+    takeParity(encoder, parity);
+    return parity;
+  }
+
+  private static void takeParity(FecEncoder encoder, List<ByteBuffer> parity) {
+    while (encoder.getParityReady() > 0) {
+      ByteBuffer packet = encoder.nextParity();
+      ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+      copy.put(packet).flip();
+      parity.add(copy);
+    }
+  }
+
+  /**
+    * Puts the loop together from the packets that arrived, as SoundClient does.
+    *
+    * @param lostData    slots whose data packets were lost.
+    * @param lostParity  indexes into parity of parity packets lost.
+    * @return            loop rebuilt as far as it could be, with lost bytes where it couldn't.
+    */
+  private static byte[] receive(byte[] audio, List<ByteBuffer> parity, BitSet lostData, BitSet lostParity,
+      BitSet received, int[] rebuiltBytes) {
+    byte[] loop = audio.clone();
+    int slots = (audio.length + payload - 1) / payload;
+    for (int slot = 0; slot < slots; slot++) {
+      if (lostData.get(slot)) {
+        Arrays.fill(loop, slot * payload, Math.min(audio.length, (slot + 1) * payload), lost);
+      } else {
+        received.set(slot);
+      }
+    }
+    FecDecoder decoder = new FecDecoder(payload);
+    decoder.startLoop();
+    for (int i = 0; i < parity.size(); i++) {
+      if (!lostParity.get(i))
+        decoder.offerParity(parity.get(i));
+    }
+    rebuiltBytes[0] = decoder.recover(loop, received);
+    return loop;
+  }
+
+  /**
+    * Tries every way of losing up to parityCount of a group's data and parity packets.
+    */
+  @Test
+  void everyLossParityCoversIsRebuilt() {
+    byte[] audio = new byte[groupSize * payload];
+    random.nextBytes(audio);
+    List<ByteBuffer> data = packetise(audio);
+
+    for (int parityCount = 1; parityCount <= 3; parityCount++) {
+      List<ByteBuffer> parity = parity(new FecEncoder(groupSize, parityCount, payload), data);
+      assertEquals(parityCount, parity.size());
+
+      int packets = groupSize + parityCount;
+      for (int pattern = 0; pattern < 1 << packets; pattern++) {
+        if (Integer.bitCount(pattern) > parityCount)
+          continue;
+        BitSet lostData = BitSet.valueOf(new long[] { pattern & (1 << groupSize) - 1 });
+        BitSet lostParity = BitSet.valueOf(new long[] { pattern >>> groupSize });
+        BitSet received = new BitSet();
+        int[] rebuilt = new int[1];
+        byte[] loop = receive(audio, parity, lostData, lostParity, received, rebuilt);
+
+        String loss = "parity " + parityCount + ", lost " + Integer.toBinaryString(pattern);
+        assertArrayEquals(audio, loop, loss);
+        assertEquals(lostData.cardinality() * payload, rebuilt[0], loss);
+        assertEquals(groupSize, received.cardinality(), loss);
+      }
+    }
+  }
+
+  /**
+    * A loop that ends part way through a group, and part way through its last packet.
+    */
+  @Test
+  void partialLastGroupIsRebuilt() {
+    byte[] audio = new byte[(2 * groupSize + 3) * payload - payload / 3];
+    random.nextBytes(audio);
+    List<ByteBuffer> data = packetise(audio);
+    List<ByteBuffer> parity = parity(new FecEncoder(groupSize, 2, payload), data);
+    assertEquals(3 * 2, parity.size());
+
+    ByteBuffer lastParity = parity.get(parity.size() - 1);
+    assertEquals(0b111, AudioPacket.getSeq(lastParity, 0) >>> 16, "slots covered by the last group");
+    assertEquals(2 * groupSize * payload, AudioPacket.getOffset(lastParity, 0));
+
+    BitSet lostData = new BitSet();
+    lostData.set(2 * groupSize + 1);
+    lostData.set(2 * groupSize + 2); // The partial one.
+    BitSet received = new BitSet();
+    int[] rebuilt = new int[1];
+    byte[] loop = receive(audio, parity, lostData, new BitSet(), received, rebuilt);
+
+    assertArrayEquals(audio, loop);
+    assertEquals(payload + payload - payload / 3, rebuilt[0]);
+    assertEquals(data.size(), received.cardinality());
+  }
+
+  /**
+    * Losing more than parity makes up for leaves the group as it was, not rebuilt wrongly.
+    */
+  @Test
+  void tooManyLostIsLeftUnrebuilt() {
+    byte[] audio = new byte[groupSize * payload];
+    random.nextBytes(audio);
+    List<ByteBuffer> data = packetise(audio);
+
+    for (int parityCount = 1; parityCount <= 3; parityCount++) {
+      List<ByteBuffer> parity = parity(new FecEncoder(groupSize, parityCount, payload), data);
+
+      // parityCount + 1 data packets lost, then parityCount data packets and a parity packet.
+      for (int lostParityPackets = 0; lostParityPackets <= 1; lostParityPackets++) {
+        BitSet lostData = new BitSet();
+        for (int i = 0; i < parityCount + 1 - lostParityPackets; i++)
+          lostData.set(i * 2);
+        BitSet lostParity = new BitSet();
+        if (lostParityPackets > 0)
+          lostParity.set(parityCount - 1);
+        BitSet received = new BitSet();
+        int[] rebuilt = new int[1];
+        byte[] loop = receive(audio, parity, lostData, lostParity, received, rebuilt);
+
+        String loss = "parity " + parityCount + ", lost data " + lostData + ", lost parity " + lostParity;
+        assertEquals(0, rebuilt[0], loss);
+        assertEquals(groupSize - lostData.cardinality(), received.cardinality(), loss);
+        for (int slot = lostData.nextSetBit(0); slot >= 0; slot = lostData.nextSetBit(slot + 1)) {
+          assertFalse(received.get(slot), loss);
+          for (int i = slot * payload; i < (slot + 1) * payload; i++)
+            assertEquals(lost, loop[i], loss + ": slot " + slot + " touched");
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,260 @@
+package net;
+
+import java.io.ByteArrayOutputStream;
+
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+  * Replays packet arrivals into a JitterBuffer, the way SoundClient feeds it, with no network.
+  */
+class JitterBufferTest {
+
+  private static final int payload = 512;
+
+  /**
+    * A second of 44.1 kHz 16-bit stereo: 173 packets.
+    */
+  private static final int loopLength = 176400;
+
+  /**
+    * A streaming sender's 20 ms frames of that audio come 7 packets at a time.
+    */
+  private static final int packetsPerFrame = 7;
+
+  private static final long frameNanos = 20000000;
+
+  /**
+    * Packets of one burst leave and arrive this far apart.
+    */
+  private static final long burstSpacingNanos = 20000;
+
+  private final ByteBuffer packet = ByteBuffer.allocate(AudioPacket.headerLength + payload);
+
+  private int seq;
+
+  /**
+    * What a streamed loop's been played as, so far.
+    */
+  private final ByteArrayOutputStream played = new ByteArrayOutputStream();
+
+  private final JitterBuffer.Output output = new JitterBuffer.Output() {
+    public void play(byte[] audio, int offset, int length) {
+      played.write(audio, offset, length);
+    }
+  };
+
+  /**
+    * Offers packet i of audio, as sent with sequence number i.
+    */
+  private boolean offerPacket(JitterBuffer buffer, byte[] audio, int i, long arrival) {
+    int offset = i * payload;
+    packet.clear();
+    AudioPacket.putHeader(packet, 0, 7, offset == 0 ? AudioPacket.LOOP_START : 0, i, offset, (int) (arrival / 1000));
+    packet.put(AudioPacket.headerLength, audio, offset, Math.min(payload, audio.length - offset));
+    packet.limit(AudioPacket.headerLength + Math.min(payload, audio.length - offset));
+    return buffer.offer(packet, arrival);
+  }
+
+  /**
+    * Offers a loop streamed in bursts of packetsPerFrame every frameNanos, as SoundClient
+    * receives it: each packet must arrive before the deadline set after the one before.
+    *
+    * @return when the last packet arrived.
+    */
+  private long streamLoop(JitterBuffer buffer, long start, int[] late) {
+    buffer.startLoop(new byte[loopLength]);
+    long deadline = Long.MAX_VALUE;
+    int packets = (loopLength + payload - 1) / payload;
+    long arrival = start;
+    for (int i = 0; i < packets; i++) {
+      arrival = start + i / packetsPerFrame * frameNanos + i % packetsPerFrame * burstSpacingNanos;
+      if (arrival - deadline > 0)
+        late[0]++;
+      int offset = i * payload;
+      packet.clear();
+      AudioPacket.putHeader(packet, 0, 7, offset == 0 ? AudioPacket.LOOP_START : 0, seq++, offset, (int) (arrival / 1000));
+      packet.limit(AudioPacket.headerLength + Math.min(payload, loopLength - offset));
+      assertTrue(buffer.offer(packet, arrival));
+      deadline = buffer.getDeadline();
+    }
+    return arrival;
+  }
+
+  @Test
+  void streamedLoopsInBurstsArriveWhole() {
+    JitterBuffer buffer = new JitterBuffer(payload);
+    long start = 1000000000;
+    for (int loop = 0; loop < 5; loop++) {
+      int[] late = new int[1];
+      start = streamLoop(buffer, start, late) + frameNanos;
+      assertEquals(0, late[0], "packets of loop " + loop + " arriving after the deadline");
+      assertTrue(buffer.isComplete(), "loop " + loop + " complete");
+      assertEquals(0, buffer.getPacketsMissing());
+    }
+    assertTrue(Math.abs(buffer.getFrameGapNanos() - (frameNanos - (packetsPerFrame - 1) * burstSpacingNanos)) < 1000000,
+        "frame gap learnt from timestamps");
+  }
+
+  @Test
+  void lostTailIsGivenUpOnAboutAFrameLater() {
+    JitterBuffer buffer = new JitterBuffer(payload);
+    long last = streamLoop(buffer, 1000000000, new int[1]);
+
+    buffer.startLoop(new byte[loopLength]);
+    long arrival = last + frameNanos;
+    for (int i = 0; i < 10; i++, arrival += burstSpacingNanos) {
+      packet.clear();
+      AudioPacket.putHeader(packet, 0, 7, i == 0 ? AudioPacket.LOOP_START : 0, seq++, i * payload, (int) (arrival / 1000));
+      buffer.offer(packet, arrival);
+    }
+    long wait = buffer.getDeadline() - (arrival - burstSpacingNanos);
+    assertTrue(wait >= frameNanos - packetsPerFrame * burstSpacingNanos, "waits for the next frame: " + wait);
+    assertTrue(wait < 3 * frameNanos, "but not much longer: " + wait);
+  }
+
+  @Test
+  void loopCutShortLeavesThePaceAsItWas() {
+    JitterBuffer buffer = new JitterBuffer(payload);
+    long last = streamLoop(buffer, 1000000000, new int[1]);
+    last = streamLoop(buffer, last + frameNanos, new int[1]);
+    long frameGap = buffer.getFrameGapNanos();
+    assertTrue(frameGap > 0, "pace learnt from the first loop");
+
+    // Given up on after its first frame, its packets all but evenly spaced.
+    buffer.startLoop(new byte[loopLength]);
+    long arrival = last + frameNanos;
+    for (int i = 0; i < packetsPerFrame; i++, arrival += burstSpacingNanos) {
+      packet.clear();
+      AudioPacket.putHeader(packet, 0, 7, i == 0 ? AudioPacket.LOOP_START : 0, seq++, i * payload, (int) (arrival / 1000));
+      buffer.offer(packet, arrival);
+    }
+    assertFalse(buffer.isComplete());
+
+    buffer.startLoop(new byte[loopLength]);
+    arrival += frameNanos;
+    for (int i = 0; i < packetsPerFrame; i++, arrival += burstSpacingNanos) {
+      packet.clear();
+      AudioPacket.putHeader(packet, 0, 7, i == 0 ? AudioPacket.LOOP_START : 0, seq++, i * payload, (int) (arrival / 1000));
+      buffer.offer(packet, arrival);
+    }
+    assertEquals(frameGap, buffer.getFrameGapNanos(), "pace kept");
+    long wait = buffer.getDeadline() - (arrival - burstSpacingNanos);
+    assertTrue(wait >= frameGap, "waits for the next frame after the first: " + wait);
+  }
+
+  @Test
+  void streamedLoopIsPlayedAsItArrives() {
+    byte[] audio = new byte[loopLength];
+    new Random(42).nextBytes(audio);
+    int packets = (loopLength + payload - 1) / payload;
+    JitterBuffer buffer = new JitterBuffer(payload);
+    buffer.startLoop(loopLength, output);
+
+    // Each pair swapped, and packet 40 lost.
+    long arrival = 1000000000;
+    for (int i = 0; i < 70; i += 2, arrival += 2 * burstSpacingNanos) {
+      assertTrue(offerPacket(buffer, audio, i + 1, arrival));
+      if (i != 40)
+        assertTrue(offerPacket(buffer, audio, i, arrival + burstSpacingNanos));
+      if (i + 2 <= 40)
+        assertEquals((i + 2) * payload, played.size(), "played as soon as it's in order, after packet " + i);
+    }
+    assertEquals(40 * payload, played.size(), "what's behind a hole is held up");
+    assertTrue(buffer.isHolding());
+
+    assertFalse(buffer.playLate(buffer.getHoldDeadline() - 1));
+    assertTrue(buffer.playLate(buffer.getHoldDeadline()));
+    assertFalse(buffer.isHolding());
+    assertEquals(70 * payload, played.size(), "hole given up on once it's been waited for");
+
+    for (int i = 70; i < packets; i++, arrival += burstSpacingNanos)
+      assertTrue(offerPacket(buffer, audio, i, arrival));
+    assertEquals(loopLength, played.size());
+    byte[] expected = audio.clone();
+    Arrays.fill(expected, 40 * payload, 41 * payload, (byte) 0);
+    assertArrayEquals(expected, played.toByteArray(), "hole played as silence");
+
+    assertFalse(offerPacket(buffer, audio, 40, arrival), "too late once played");
+    assertEquals(1, buffer.getStale());
+    assertEquals(1, buffer.getPacketsMissing());
+  }
+
+  @Test
+  void streamedLoopHoldsOnlyItsWindow() {
+    byte[] audio = new byte[loopLength];
+    new Random(7).nextBytes(audio);
+    int packets = (loopLength + payload - 1) / payload;
+    JitterBuffer buffer = new JitterBuffer(payload);
+    buffer.startLoop(loopLength, output);
+
+    // Packet 3 never comes, and nobody gives up on it: once the window's full it's played as silence.
+    long arrival = 1000000000;
+    int heldUntil = -1;
+    for (int i = 0; i < packets; i++, arrival += burstSpacingNanos) {
+      if (i == 3)
+        continue;
+      offerPacket(buffer, audio, i, arrival);
+      if (heldUntil < 0 && played.size() > 3 * payload)
+        heldUntil = i;
+    }
+    assertTrue(heldUntil > 3 && heldUntil < 100, "hole given up on once the window's full: " + heldUntil);
+    assertFalse(buffer.isComplete());
+    buffer.finishLoop();
+    byte[] expected = audio.clone();
+    Arrays.fill(expected, 3 * payload, 4 * payload, (byte) 0);
+    assertArrayEquals(expected, played.toByteArray());
+
+    // Tail lost: played as silence once the loop's over.
+    played.reset();
+    buffer.startLoop(loopLength, output);
+    for (int i = 0; i < packets - 5; i++, arrival += burstSpacingNanos)
+      offerPacket(buffer, audio, i, arrival);
+    buffer.finishLoop();
+    expected = audio.clone();
+    Arrays.fill(expected, (packets - 5) * payload, loopLength, (byte) 0);
+    assertArrayEquals(expected, played.toByteArray());
+  }
+
+  @Test
+  void streamedLoopIsRebuiltFromParityThroughItsWindow() {
+    // Many times longer than the window, with a packet of every group lost.
+    byte[] audio = new byte[20 * loopLength];
+    new Random(3).nextBytes(audio);
+    int packets = (audio.length + payload - 1) / payload;
+    FecEncoder encoder = new FecEncoder(8, 1, payload);
+    JitterBuffer buffer = new JitterBuffer(payload);
+    buffer.startLoop(audio.length, output);
+
+    long arrival = 1000000000;
+    for (int i = 0; i < packets; i++, arrival += burstSpacingNanos) {
+      int offset = i * payload;
+      ByteBuffer data = ByteBuffer.allocate(AudioPacket.headerLength + payload);
+      AudioPacket.putHeader(data, 0, 7, offset == 0 ? AudioPacket.LOOP_START : 0, i, offset, (int) (arrival / 1000));
+      data.put(AudioPacket.headerLength, audio, offset, Math.min(payload, audio.length - offset));
+      data.limit(AudioPacket.headerLength + Math.min(payload, audio.length - offset));
+      encoder.add(data);
+      if (i % 8 != 5)
+        buffer.offer(data, arrival);
+      if (i == packets - 1)
+        encoder.flush();
+      while (encoder.getParityReady() > 0)
+        buffer.offer(encoder.nextParity(), arrival);
+    }
+
+    assertTrue(buffer.isComplete());
+    assertEquals(packets / 8, buffer.getPacketsRecovered());
+    buffer.finishLoop();
+    assertArrayEquals(audio, played.toByteArray());
+  }
+
+}
@@ -0,0 +1,85 @@
+package jmh;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.sampled.AudioFormat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import audio.AudioCodec;
+import audio.AudioCodecs;
+
+/**
+  * Encoding and decoding a second of 16-bit stereo 44.1kHz audio with each codec, as a
+  * sender does to each packet before it goes and a receiver to each loop before it plays.
+  * A second takes the time shown, so one core keeps up with a million over that many
+  * microseconds streams of it. What each codec does to the audio, its ratio and signal to
+  * noise, is reported by bench.CodecBenchmark.
+  *
+  * The audio is a couple of tones and a little noise, so neither codec has it too easy.
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+
+  @Param({ "pcm", "ulaw", "adpcm" })
+  public String codecName;
+
+  private static final AudioFormat pcmFormat = new AudioFormat(44100, 16, 2, true, false);
+
+  private static final int loopLength = 44100 * 2 * 2;
+
+  private AudioCodec codec;
+
+  private AudioFormat encodedFormat;
+
+  private byte[] pcm;
+
+  private byte[] encoded;
+
+  private byte[] decoded;
+
+  @Setup
+  public void setUp() {
+    codec = AudioCodecs.named(codecName);
+    encodedFormat = codec.encodedFormat(pcmFormat);
+    Random random = new Random(42);
+    pcm = new byte[loopLength];
+    for (int i = 0; i < loopLength / 2; i++) {
+      double t = (i / 2) / 44100.0;
+      int sample = (int) (8000 * Math.sin(2 * Math.PI * 440 * t) + 4000 * Math.sin(2 * Math.PI * 1250 * t)
+          + 500 * random.nextGaussian());
+      pcm[2 * i] = (byte) sample;
+      pcm[2 * i + 1] = (byte) (sample >> 8);
+    }
+    encoded = new byte[codec.encodedLength(encodedFormat, pcm.length)];
+    codec.encode(encodedFormat, pcm, 0, pcm.length, encoded, 0);
+    decoded = new byte[codec.decodedLength(encodedFormat, encoded.length)];
+  }
+
+  @Benchmark
+  public int encode() {
+    return codec.encode(encodedFormat, pcm, 0, pcm.length, encoded, 0);
+  }
+
+  @Benchmark
+  public int decode() {
+    return codec.decode(encodedFormat, encoded, 0, encoded.length, decoded, 0);
+  }
+
+}
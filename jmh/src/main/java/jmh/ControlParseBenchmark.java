@@ -0,0 +1,96 @@
+package jmh;
+
+import java.nio.ByteBuffer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import net.ControlMessage;
+import net.ControlOp;
+
+/**
+  * Writing and reading one loop's worth of control messages between a receiver and its
+  * handler. The way it started out, a line of text per message, split on spaces and its
+  * words parsed, against the binary frames that replaced it (see net.ControlMessage),
+  * written and read in place.
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ControlParseBenchmark {
+
+  /**
+    * A receiver's exchange for each loop: asks for its length, is told it, gives its port, says it's ready.
+    */
+  private static final String[] lines = {
+    "READY_FOR_ARRAY_LENGTH", "ARRAY_LENGTH 16000 512", "READY_FOR_UDP_PORT", "RECEIVER_UDP_PORT 55001", "READY_TO_RECEIVE"
+  };
+
+  private ControlOp[] ops;
+
+  private int[][] args;
+
+  private ByteBuffer frames;
+
+  private int[] argBuffer;
+
+  @Setup
+  public void setUp() {
+    ops = new ControlOp[lines.length];
+    args = new int[lines.length][];
+    for (int i = 0; i < lines.length; i++) {
+      String[] words = lines[i].split(" ");
+      ops[i] = ControlOp.valueOf(words[0]);
+      args[i] = new int[words.length - 1];
+      for (int j = 1; j < words.length; j++)
+        args[i][j - 1] = Integer.parseInt(words[j]);
+    }
+    frames = ByteBuffer.allocate(1024);
+    argBuffer = new int[2];
+  }
+
+  @Benchmark
+  public void textLines(Blackhole blackhole) {
+    for (int i = 0; i < ops.length; i++) {
+      StringBuilder written = new StringBuilder(ops[i].name());
+      for (int arg : args[i])
+        written.append(' ').append(arg);
+      String[] words = written.toString().split(" ");
+      blackhole.consume(ControlOp.valueOf(words[0]));
+      for (int j = 1; j < words.length; j++)
+        blackhole.consume(Integer.parseInt(words[j]));
+    }
+  }
+
+  @Benchmark
+  public void binaryFrames(Blackhole blackhole) {
+    frames.clear();
+    for (int i = 0; i < ops.length; i++)
+      ControlMessage.put(frames, ops[i], i, args[i], args[i].length);
+    int end = frames.position();
+    for (int start = 0; start < end; ) {
+      int length = ControlMessage.getLength(frames, start, end - start);
+      blackhole.consume(ControlMessage.getOp(frames, start));
+      blackhole.consume(ControlMessage.getTag(frames, start));
+      for (int j = 0; j < ControlMessage.getArgCount(frames, start) && j < argBuffer.length; j++)
+        argBuffer[j] = ControlMessage.getArg(frames, start, j, 0);
+      blackhole.consume(argBuffer);
+      start += length;
+    }
+  }
+
+}
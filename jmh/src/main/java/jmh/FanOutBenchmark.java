@@ -0,0 +1,129 @@
+package jmh;
+
+import java.io.ByteArrayOutputStream;
+
+import java.nio.ByteBuffer;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import audio.AudioRing;
+
+import net.AudioPacket;
+
+/**
+  * Handing one loop of audio to every receiver's handler. The way it started out, each
+  * handler taking its own copy with toByteArray(), against the ways it's done now: each
+  * reading the loop's frames in place from the AudioRing (thread per client), or taking
+  * a duplicate() of the published read-only loop and putting each packet of it in one
+  * reused direct buffer to send (--nio).
+  *
+  * Each receiver touches every packet's first and last byte, standing in for the send.
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBenchmark {
+
+  @Param({ "1", "8", "64" })
+  public int receivers;
+
+  @Param({ "16000" })
+  public int loopLength;
+
+  private static final int payload = AudioPacket.defaultPayload;
+
+  private ByteArrayOutputStream stream;
+
+  private AudioRing ring;
+
+  private AudioRing.Frame frame;
+
+  private long loopStart;
+
+  private ByteBuffer snapshot;
+
+  private ByteBuffer packet;
+
+  @Setup
+  public void setUp() {
+    byte[] loop = new byte[loopLength];
+    new Random(42).nextBytes(loop);
+
+    stream = new ByteArrayOutputStream(loopLength);
+    stream.write(loop, 0, loopLength);
+
+    ring = new AudioRing(1024, AudioPacket.headerLength + payload);
+    frame = ring.newFrame();
+    loopStart = -1;
+    for (int offset = 0; offset < loopLength; offset += payload) {
+      ByteBuffer slot = ring.beginWrite();
+      int start = slot.position();
+      AudioPacket.putHeader(slot, start, 0, offset == 0 ? AudioPacket.LOOP_START : 0, 0, offset, 0);
+      slot.position(start + AudioPacket.headerLength);
+      slot.put(loop, offset, Math.min(payload, loopLength - offset));
+      long seq = ring.commitWrite(offset, loopLength);
+      if (loopStart < 0)
+        loopStart = seq;
+    }
+
+    ByteBuffer published = ByteBuffer.allocateDirect(loopLength);
+    published.put(loop).flip();
+    snapshot = published.asReadOnlyBuffer();
+    packet = ByteBuffer.allocateDirect(AudioPacket.headerLength + payload);
+  }
+
+  @Benchmark
+  public void toByteArray(Blackhole blackhole) {
+    for (int r = 0; r < receivers; r++) {
+      byte[] copy = stream.toByteArray();
+      for (int offset = 0; offset < copy.length; offset += payload)
+        blackhole.consume(copy[offset] + copy[Math.min(copy.length, offset + payload) - 1]);
+    }
+  }
+
+  @Benchmark
+  public void ringReads(Blackhole blackhole) {
+    for (int r = 0; r < receivers; r++) {
+      for (long seq = loopStart; ring.read(seq, frame) == AudioRing.OK; seq++) {
+        ByteBuffer data = frame.data;
+        blackhole.consume(data.get(data.position()) + data.get(data.limit() - 1));
+        blackhole.consume(ring.isIntact(frame));
+        if (frame.loopOffset + frame.length - AudioPacket.headerLength >= frame.loopLength)
+          break;
+      }
+    }
+  }
+
+  @Benchmark
+  public void snapshotPackets(Blackhole blackhole) {
+    for (int r = 0; r < receivers; r++) {
+      ByteBuffer audio = snapshot.duplicate();
+      for (int offset = 0; offset < audio.limit(); offset += payload) {
+        int length = Math.min(payload, audio.limit() - offset);
+        packet.clear();
+        AudioPacket.putHeader(packet, 0, 0, offset == 0 ? AudioPacket.LOOP_START : 0, 0, offset, 0);
+        packet.put(AudioPacket.headerLength, audio, offset, length);
+        packet.limit(AudioPacket.headerLength + length);
+        blackhole.consume(packet.get(AudioPacket.headerLength) + packet.get(packet.limit() - 1));
+      }
+    }
+  }
+
+}
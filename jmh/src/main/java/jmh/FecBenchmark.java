@@ -0,0 +1,153 @@
+package jmh;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import net.AudioPacket;
+import net.FecEncoder;
+import net.JitterBuffer;
+
+/**
+  * Forward error correction of a second of 16-bit stereo 44.1kHz audio: FecEncoder working
+  * out the parity of its packets, as a server handler does sending a loop, and a
+  * JitterBuffer putting the loop back together from what's left once some are dropped,
+  * rebuilding what it can from parity. How much of what's lost comes back, and that it
+  * comes back right, is reported by bench.FecBenchmark.
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FecBenchmark {
+
+  /**
+    * Group size and parity count.
+    */
+  @Param({ "8:1", "8:2", "16:2", "16:4" })
+  public String fec;
+
+  private static final int payloadSize = AudioPacket.defaultPayload;
+
+  private static final int loopLength = 44100 * 2 * 2;
+
+  private FecEncoder encoder;
+
+  /**
+    * The loop's packets, as a sender sends them.
+    */
+  private List<ByteBuffer> data;
+
+  /**
+    * The same with parity, in the order they'd go.
+    */
+  private List<ByteBuffer> sent;
+
+  private JitterBuffer jitterBuffer;
+
+  private byte[] loop;
+
+  /**
+    * Packets of sent dropped on the way, a fixed pattern at each rate.
+    */
+  @State(Scope.Thread)
+  public static class Losses {
+
+    @Param({ "1", "5", "20" })
+    public int lossPercent;
+
+    boolean[] dropped;
+
+    @Setup
+    public void setUp(FecBenchmark benchmark) {
+      Random random = new Random(42);
+      dropped = new boolean[benchmark.sent.size()];
+      for (int i = 0; i < dropped.length; i++)
+        dropped[i] = random.nextInt(100) < lossPercent;
+    }
+  }
+
+  @Setup
+  public void setUp() {
+    String[] groupAndParity = fec.split(":");
+    encoder = new FecEncoder(Integer.parseInt(groupAndParity[0]), Integer.parseInt(groupAndParity[1]), payloadSize);
+
+    byte[] audio = new byte[loopLength];
+    new Random(42).nextBytes(audio);
+    data = new ArrayList<ByteBuffer>();
+    for (int offset = 0, seq = 0; offset < audio.length; offset += payloadSize, seq++) {
+      int length = Math.min(payloadSize, audio.length - offset);
+      ByteBuffer packet = ByteBuffer.allocate(AudioPacket.headerLength + length);
+      AudioPacket.putHeader(packet, 0, 1, offset == 0 ? AudioPacket.LOOP_START : 0, seq, offset, seq * 1000);
+      packet.position(AudioPacket.headerLength);
+      packet.put(audio, offset, length);
+      packet.flip();
+      data.add(packet);
+    }
+
+    sent = new ArrayList<ByteBuffer>(data.size() * 2);
+    encoder.reset();
+    for (ByteBuffer packet : data) {
+      encoder.add(packet);
+      takeParity();
+      sent.add(packet);
+    }
+    encoder.flush();
+    takeParity();
+
+    jitterBuffer = new JitterBuffer(payloadSize);
+    loop = new byte[loopLength];
+  }
+
+  private void takeParity() {
+    while (encoder.getParityReady() > 0) {
+      ByteBuffer parity = encoder.nextParity();
+      ByteBuffer copy = ByteBuffer.allocate(parity.remaining());
+      copy.put(parity).flip();
+      sent.add(copy);
+    }
+  }
+
+  @Benchmark
+  public void encode(Blackhole blackhole) {
+    encoder.reset();
+    for (int i = 0; i < data.size(); i++) {
+      encoder.add(data.get(i));
+      while (encoder.getParityReady() > 0)
+        blackhole.consume(encoder.nextParity());
+    }
+    encoder.flush();
+    while (encoder.getParityReady() > 0)
+      blackhole.consume(encoder.nextParity());
+  }
+
+  @Benchmark
+  public int rebuild(Losses losses) {
+    long now = System.nanoTime();
+    jitterBuffer.startLoop(loop);
+    for (int i = 0; i < losses.dropped.length; i++) {
+      if (!losses.dropped[i])
+        jitterBuffer.offer(sent.get(i), now);
+    }
+    return jitterBuffer.getPacketsRecovered();
+  }
+
+}
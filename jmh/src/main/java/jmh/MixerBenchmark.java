@@ -0,0 +1,97 @@
+package jmh;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.sampled.AudioFormat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import audio.AudioMixer;
+
+/**
+  * One 10ms block of a channel's mix of 16-bit 48kHz streams: a packet from every input
+  * placed by its timestamp, then the block mixed, as ChannelMixer does. A block is due
+  * every 10000 microseconds, so that over the time shown is how many such mixes one core
+  * keeps up with. Run with -prof gc to see it allocates nothing.
+  *
+  * Inputs are loud enough that their sum clips, so clipping is paid for too.
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MixerBenchmark {
+
+  @Param({ "2", "8", "32" })
+  public int inputCount;
+
+  @Param({ "2" })
+  public int channels;
+
+  private static final int sampleRate = 48000;
+
+  private static final int blockFrames = sampleRate / 100;
+
+  private static final int latencyFrames = sampleRate * 60 / 1000;
+
+  private static final int slots = 64;
+
+  /**
+    * Timestamp units (microseconds) a block lasts.
+    */
+  private static final int blockTimestamp = 10000;
+
+  private AudioMixer mixer;
+
+  private int[] inputs;
+
+  private byte[][] packets;
+
+  private byte[] out;
+
+  private int timestamp;
+
+  @Setup
+  public void setUp() {
+    AudioFormat format = new AudioFormat(sampleRate, 16, channels, true, false);
+    mixer = new AudioMixer(inputCount, format, blockFrames, latencyFrames, slots);
+    inputs = new int[inputCount];
+    for (int i = 0; i < inputCount; i++)
+      inputs[i] = mixer.addInput();
+    out = new byte[mixer.getBlockBytes()];
+
+    // A block of a tone for each input, each at its own pitch, with a little noise.
+    Random random = new Random(42);
+    packets = new byte[inputCount][mixer.getBlockBytes()];
+    for (int i = 0; i < inputCount; i++) {
+      for (int s = 0; s < packets[i].length / 2; s++) {
+        double t = (s / channels) / (double) sampleRate;
+        int sample = (int) (6000 * Math.sin(2 * Math.PI * (200 + 100 * i) * t) + 300 * random.nextGaussian());
+        packets[i][2 * s] = (byte) sample;
+        packets[i][2 * s + 1] = (byte) (sample >> 8);
+      }
+    }
+  }
+
+  @Benchmark
+  public int placeAndMix() {
+    for (int i = 0; i < inputs.length; i++)
+      mixer.write(inputs[i], timestamp + i * 37, packets[i], 0, packets[i].length); // Off by a little jitter each.
+    timestamp += blockTimestamp;
+    return mixer.mix(out, 0);
+  }
+
+}
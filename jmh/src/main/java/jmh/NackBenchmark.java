@@ -0,0 +1,112 @@
+package jmh;
+
+import java.nio.ByteBuffer;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import net.AudioPacket;
+import net.JitterBuffer;
+import net.Nack;
+
+/**
+  * The work of selective retransmission, for a second of 16-bit stereo 44.1kHz audio with
+  * packets lost: a receiver's JitterBuffer writing a NACK for what's missing, and a server
+  * handler reading one and putting each packet it asks for in a reused direct buffer to
+  * resend, as udpServeNacks does. How much comes back over a lossy link, and how soon, is
+  * measured over loopback by bench.NackBenchmark.
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NackBenchmark {
+
+  @Param({ "1", "5", "20" })
+  public int lossPercent;
+
+  private static final int payloadSize = AudioPacket.defaultPayload;
+
+  private static final int loopLength = 44100 * 2 * 2;
+
+  private byte[] audio;
+
+  private JitterBuffer jitterBuffer;
+
+  private ByteBuffer nack;
+
+  private ByteBuffer packet;
+
+  private int nackSeq;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    audio = new byte[loopLength];
+    random.nextBytes(audio);
+    packet = ByteBuffer.allocateDirect(AudioPacket.headerLength + payloadSize);
+    nack = ByteBuffer.allocateDirect(AudioPacket.headerLength + Nack.maxSlots / 8);
+
+    // The loop as received, but for the packets lost, the last always among them.
+    jitterBuffer = new JitterBuffer(payloadSize);
+    jitterBuffer.startLoop(new byte[loopLength]);
+    long now = System.nanoTime();
+    int slots = (loopLength + payloadSize - 1) / payloadSize;
+    for (int slot = 0; slot < slots - 1; slot++) {
+      if (random.nextInt(100) >= lossPercent) {
+        putPacket(slot, slot);
+        jitterBuffer.offer(packet, now);
+      }
+    }
+    jitterBuffer.putNack(nack, nackSeq++, now); // For answerNack() to answer.
+  }
+
+  /**
+    * Puts the packet for this slot of the loop in packet, as a sender or a resending handler does.
+    */
+  private void putPacket(int slot, int seq) {
+    int offset = slot * payloadSize;
+    int length = Math.min(payloadSize, loopLength - offset);
+    packet.clear();
+    AudioPacket.putHeader(packet, 0, 1, offset == 0 ? AudioPacket.LOOP_START : 0, seq, offset, seq * 1000);
+    packet.put(AudioPacket.headerLength, audio, offset, length);
+    packet.limit(AudioPacket.headerLength + length);
+  }
+
+  @Benchmark
+  public int putNack() {
+    return jitterBuffer.putNack(nack, nackSeq++, System.nanoTime());
+  }
+
+  @Benchmark
+  public void answerNack(Blackhole blackhole) {
+    int length = nack.limit();
+    if (!Nack.isNack(nack, 0, length))
+      return;
+    int first = Nack.getFirstSlot(nack, 0, payloadSize);
+    int slots = (loopLength + payloadSize - 1) / payloadSize;
+    int count = Math.min(Nack.getSlotCount(length), slots - first);
+    for (int i = 0; i < count; i++) {
+      if (!Nack.isMissing(nack, 0, i))
+        continue;
+      putPacket(first + i, first + i);
+      blackhole.consume(packet);
+    }
+  }
+
+}
@@ -0,0 +1,116 @@
+package jmh;
+
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import audio.AudioRing;
+
+import net.AudioPacket;
+
+/**
+  * Cutting a loop of audio into packets. The way it started out, copying each chunk of a
+  * byte[] into a DatagramPacket of its own, against the ways it's done now: a header and
+  * the chunk straight into a frame of the AudioRing (the sender handler's side), or into
+  * one reused direct buffer (a ClientSession sending a published loop).
+  */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PacketizeBenchmark {
+
+  /**
+    * 16000 bytes is a second of 8 kHz 16-bit mono, the test files; 192000 a second of CD audio.
+    */
+  @Param({ "16000", "192000" })
+  public int loopLength;
+
+  @Param({ "512" })
+  public int payload;
+
+  private byte[] loop;
+
+  private ByteBuffer directLoop;
+
+  private AudioRing ring;
+
+  private ByteBuffer packet;
+
+  private InetSocketAddress address;
+
+  private long streamStart;
+
+  private int seq;
+
+  @Setup
+  public void setUp() {
+    loop = new byte[loopLength];
+    new Random(42).nextBytes(loop);
+    directLoop = ByteBuffer.allocateDirect(loopLength);
+    directLoop.put(loop).flip();
+    ring = new AudioRing(1024, AudioPacket.headerLength + payload);
+    packet = ByteBuffer.allocateDirect(AudioPacket.headerLength + payload);
+    address = new InetSocketAddress("127.0.0.1", 55001);
+    streamStart = System.nanoTime();
+  }
+
+  @Benchmark
+  public void datagramPackets(Blackhole blackhole) {
+    for (int offset = 0; offset < loopLength; offset += payload) {
+      int length = Math.min(payload, loopLength - offset);
+      byte[] chunk = Arrays.copyOfRange(loop, offset, offset + length);
+      blackhole.consume(new DatagramPacket(chunk, length, address));
+    }
+  }
+
+  @Benchmark
+  public long ringFrames() {
+    long last = -1;
+    for (int offset = 0; offset < loopLength; offset += payload) {
+      int length = Math.min(payload, loopLength - offset);
+      ByteBuffer frame = ring.beginWrite();
+      int start = frame.position();
+      AudioPacket.putHeader(frame, start, 0, offset == 0 ? AudioPacket.LOOP_START : 0, seq++, offset,
+          AudioPacket.timestamp(streamStart));
+      frame.position(start + AudioPacket.headerLength);
+      frame.put(loop, offset, length);
+      last = ring.commitWrite(offset, loopLength);
+    }
+    return last;
+  }
+
+  @Benchmark
+  public void directBuffer(Blackhole blackhole) {
+    for (int offset = 0; offset < loopLength; offset += payload) {
+      int length = Math.min(payload, loopLength - offset);
+      packet.clear();
+      AudioPacket.putHeader(packet, 0, 0, offset == 0 ? AudioPacket.LOOP_START : 0, seq++, offset,
+          AudioPacket.timestamp(streamStart));
+      packet.put(AudioPacket.headerLength, directLoop, offset, length);
+      packet.limit(AudioPacket.headerLength + length);
+      blackhole.consume(packet);
+    }
+  }
+
+}
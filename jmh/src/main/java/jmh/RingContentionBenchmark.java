@@ -0,0 +1,125 @@
+package jmh;
+
+import java.nio.ByteBuffer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import audio.AudioRing;
+
+import net.AudioPacket;
+
+/**
+  * One sender handler writing packets while three receiver handlers read them, at once.
+  * The way it started out, a byte array behind a ReentrantReadWriteLock that readers copy
+  * out of, against the lock-free AudioRing that replaced it, where readers use frames in
+  * place and check afterwards that they weren't overwritten meanwhile.
+  *
+  * Scores are per thread: the writer's packets written and the readers' packets read.
+  */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RingContentionBenchmark {
+
+  private static final int payload = AudioPacket.defaultPayload;
+
+  private static final int loopLength = 16000;
+
+  private ReentrantReadWriteLock lock;
+
+  private byte[] lockedAudio;
+
+  private int lockedOffset;
+
+  private AudioRing ring;
+
+  private byte[] packet;
+
+  /**
+    * Each thread's own: a reader's copy of the packet, or window onto the ring.
+    */
+  @State(Scope.Thread)
+  public static class Reader {
+
+    byte[] copy = new byte[payload];
+
+    AudioRing.Frame frame;
+  }
+
+  @Setup
+  public void setUp() {
+    lock = new ReentrantReadWriteLock();
+    lockedAudio = new byte[loopLength];
+    ring = new AudioRing(1024, AudioPacket.headerLength + payload);
+    packet = new byte[AudioPacket.headerLength + payload];
+  }
+
+  @Benchmark
+  @Group("readWriteLock")
+  @GroupThreads(1)
+  public int lockedWrite() {
+    lock.writeLock().lock();
+    try {
+      int offset = lockedOffset;
+      System.arraycopy(packet, AudioPacket.headerLength, lockedAudio, offset, Math.min(payload, loopLength - offset));
+      lockedOffset = offset + payload < loopLength ? offset + payload : 0;
+      return offset;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Benchmark
+  @Group("readWriteLock")
+  @GroupThreads(3)
+  public byte lockedRead(Reader reader) {
+    lock.readLock().lock();
+    try {
+      int offset = lockedOffset;
+      System.arraycopy(lockedAudio, offset, reader.copy, 0, Math.min(payload, loopLength - offset));
+      return reader.copy[0];
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Benchmark
+  @Group("audioRing")
+  @GroupThreads(1)
+  public long ringWrite() {
+    ByteBuffer frame = ring.beginWrite();
+    frame.put(packet);
+    return ring.commitWrite(0, loopLength);
+  }
+
+  @Benchmark
+  @Group("audioRing")
+  @GroupThreads(3)
+  public boolean ringRead(Reader reader) {
+    if (reader.frame == null)
+      reader.frame = ring.newFrame();
+    long seq = ring.getPublished();
+    if (seq < 0 || ring.read(seq, reader.frame) != AudioRing.OK)
+      return false;
+    ByteBuffer data = reader.frame.data;
+    return data.get(data.position()) + data.get(data.limit() - 1) != 0 && ring.isIntact(reader.frame);
+  }
+
+}
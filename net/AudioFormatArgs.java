@@ -0,0 +1,49 @@
+package net;
+
+import javax.sound.sampled.AudioFormat;
+
+import audio.AudioCodec;
+import audio.AudioCodecs;
+
+/**
+  * Arguments of an AUDIO_FORMAT message: sample rate in Hz, channels, bits per sample,
+  * and flags saying whether samples are signed and big-endian, of the PCM audio sent,
+  * then the id of the codec it's encoded with (see AudioCodec), 0 for none. The codec
+  * works out the rest of the encoded format from the PCM one.
+  */
+public final class AudioFormatArgs {
+
+  public static final int count = 5;
+
+  public static final int SIGNED = 1;
+  public static final int BIG_ENDIAN = 2;
+
+  private AudioFormatArgs() {
+  }
+
+  /**
+    * Puts a format, as sent, in the first count args.
+    */
+  public static void put(AudioFormat format, int[] args) {
+    AudioCodec codec = AudioCodecs.forFormat(format);
+    AudioFormat pcm = codec.decodedFormat(format);
+    args[0] = Math.round(pcm.getSampleRate());
+    args[1] = pcm.getChannels();
+    args[2] = pcm.getSampleSizeInBits();
+    args[3] = (pcm.getEncoding() == AudioFormat.Encoding.PCM_SIGNED ? SIGNED : 0) | (pcm.isBigEndian() ? BIG_ENDIAN : 0);
+    args[4] = codec.getId();
+  }
+
+  /**
+    * @return format, as sent, the arguments describe, or null if they don't make sense or the codec isn't known.
+    */
+  public static AudioFormat get(int sampleRate, int channels, int bits, int flags, int codecId) {
+    if (sampleRate <= 0 || channels <= 0 || bits <= 0 || flags < 0)
+      return null;
+    AudioCodec codec = AudioCodecs.forId(codecId);
+    if (codec == null)
+      return null;
+    return codec.encodedFormat(new AudioFormat(sampleRate, bits, channels, (flags & SIGNED) != 0, (flags & BIG_ENDIAN) != 0));
+  }
+
+}
@@ -0,0 +1,121 @@
+package net;
+
+import java.nio.ByteBuffer;
+
+/**
+  * Header at the front of every audio datagram, so the far end can put each packet's
+  * audio in the right place however many packets were lost, duplicated or reordered
+  * on the way, and can measure how unevenly they arrive.
+  *
+  * Layout, big-endian, headerLength bytes:
+  *
+  *    0  short  stream ID, ie ID of the client the audio came from
+  *    2  short  flags
+  *    4  int    sequence number, one per packet, counting up across loops
+  *    8  int    byte offset of the payload within its loop
+  *   12  int    timestamp: microseconds since the stream started when the packet was sent
+  *
+  * Methods here read and write the header in place with absolute gets and puts,
+  * so they allocate nothing and don't move the buffer's position.
+  */
+public final class AudioPacket {
+
+  public static final int headerLength = 16;
+
+  /**
+    * Audio bytes per packet unless a bigger payload is agreed (see ControlOp.PAYLOAD_SIZE).
+    * UDP guarantees delivery of 576-byte datagrams without relying on their being split
+    * up and put back together on the way, which fails if any piece is lost.
+    */
+  public static final int defaultPayload = 512;
+
+  /**
+    * Most audio bytes per packet: what's left of the largest IPv4 UDP datagram after the header.
+    */
+  public static final int maxPayload = 65507 - headerLength;
+
+  /**
+    * Flag: payload starts a loop.
+    */
+  public static final int LOOP_START = 1;
+
+  /**
+    * Flag: packet is forward error correction parity (see FecEncoder), not audio.
+    */
+  public static final int FEC = 2;
+
+  /**
+    * Flag: packet is a receiver asking for lost packets again (see Nack), not audio.
+    */
+  public static final int NACK = 4;
+
+  /**
+    * Flag: packet is a probe of what payload size gets through (see PayloadProbe), not audio.
+    */
+  public static final int PROBE = 8;
+
+  /**
+    * Flag: packet is a sender client saying it's still there (see Heartbeat), not audio.
+    */
+  public static final int HEARTBEAT = 16;
+
+  private static final int streamIdAt = 0;
+  private static final int flagsAt = 2;
+  private static final int seqAt = 4;
+  private static final int offsetAt = 8;
+  private static final int timestampAt = 12;
+
+  private AudioPacket() {
+  }
+
+  /**
+    * Writes a header.
+    *
+    * @param packet     buffer holding the packet.
+    * @param start      index of the start of the packet in the buffer.
+    */
+  public static void putHeader(ByteBuffer packet, int start, int streamId, int flags, int seq, int offset, int timestamp) {
+    packet.putShort(start + streamIdAt, (short) streamId);
+    packet.putShort(start + flagsAt, (short) flags);
+    packet.putInt(start + seqAt, seq);
+    packet.putInt(start + offsetAt, offset);
+    packet.putInt(start + timestampAt, timestamp);
+  }
+
+  /**
+    * @return whether a packet of this many bytes has a whole header.
+    */
+  public static boolean hasHeader(int packetLength) {
+    return packetLength >= headerLength;
+  }
+
+  public static int getStreamId(ByteBuffer packet, int start) {
+    return packet.getShort(start + streamIdAt) & 0xffff;
+  }
+
+  public static int getFlags(ByteBuffer packet, int start) {
+    return packet.getShort(start + flagsAt) & 0xffff;
+  }
+
+  public static int getSeq(ByteBuffer packet, int start) {
+    return packet.getInt(start + seqAt);
+  }
+
+  public static int getOffset(ByteBuffer packet, int start) {
+    return packet.getInt(start + offsetAt);
+  }
+
+  public static int getTimestamp(ByteBuffer packet, int start) {
+    return packet.getInt(start + timestampAt);
+  }
+
+  /**
+    * @param streamStart  System.nanoTime() when the stream started.
+    * @return             timestamp for a packet sent now. Wraps after about 71 minutes,
+    *                     which is fine as timestamps are only ever subtracted.
+    */
+  public static int timestamp(long streamStart) {
+    return (int) ((System.nanoTime() - streamStart) / 1000);
+  }
+
+}
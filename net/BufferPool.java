@@ -0,0 +1,78 @@
+package net;
+
+import java.nio.ByteBuffer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+  * Lock-free pool of same-sized direct ByteBuffers. Direct buffers are costly to
+  * create and are only freed when the GC gets round to it, so packet paths take
+  * theirs from here and give them back when done, rather than allocating.
+  *
+  * Taking and returning a buffer allocates nothing. If the pool runs dry a new
+  * buffer is made; if it's full a returned buffer is dropped.
+  */
+public class BufferPool {
+
+  private final int bufferSize;
+
+  private final AtomicReferenceArray<ByteBuffer> slots;
+
+  /**
+    * Where the next search for a free (or empty) slot starts, to spread threads out.
+    */
+  private final AtomicInteger hint;
+
+  /**
+    * @param bufferSize  bytes per buffer.
+    * @param capacity    most buffers held (and number made up front).
+    */
+  public BufferPool(int bufferSize, int capacity) {
+    this.bufferSize = bufferSize;
+    slots = new AtomicReferenceArray<ByteBuffer>(capacity);
+    for (int i = 0; i < capacity; i++)
+      slots.set(i, ByteBuffer.allocateDirect(bufferSize));
+    hint = new AtomicInteger();
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+    * @return a cleared buffer, to be given back with release().
+    */
+  public ByteBuffer acquire() {
+    int n = slots.length();
+    int start = (hint.get() & Integer.MAX_VALUE) % n;
+    for (int i = 0; i < n; i++) {
+      int slot = (start + i) % n;
+      ByteBuffer buffer = slots.get(slot);
+      if (buffer != null && slots.compareAndSet(slot, buffer, null)) {
+        hint.set(slot + 1);
+        buffer.clear();
+        return buffer;
+      }
+    }
+    return ByteBuffer.allocateDirect(bufferSize);
+  }
+
+  /**
+    * Gives a buffer back. It must not be used afterwards.
+    */
+  public void release(ByteBuffer buffer) {
+    if (buffer == null || buffer.capacity() != bufferSize || !buffer.isDirect())
+      return;
+    int n = slots.length();
+    int start = (hint.get() & Integer.MAX_VALUE) % n;
+    for (int i = 0; i < n; i++) {
+      int slot = (start + n - 1 - i) % n;
+      if (slots.get(slot) == null && slots.compareAndSet(slot, null, buffer)) {
+        hint.set(slot);
+        return;
+      }
+    }
+  }
+
+}
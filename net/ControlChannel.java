@@ -0,0 +1,231 @@
+package net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.Socket;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+  * Blocking end of a TCP connection speaking the control protocol (see ControlMessage),
+  * for a thread that handles one connection. Messages are written into a buffer and go
+  * out on flush(), so several can be sent in one go; received ones are read out of a
+  * buffer in place. Neither allocates.
+  *
+  * One thread may send while another receives, but no more than one of each.
+  */
+public class ControlChannel implements Closeable {
+
+  /**
+    * Longest message that can be received. No message sent so far comes close.
+    */
+  private static final int bufferSize = 1024;
+
+  private final Socket socket;
+
+  private final InputStream inStream;
+
+  private final ReadableByteChannel in;
+
+  private final WritableByteChannel out;
+
+  private final ByteBuffer inBuffer;
+
+  private final ByteBuffer outBuffer;
+
+  /**
+    * Where in inBuffer the message last received starts, and its length.
+    */
+  private int messageStart;
+  private int messageLength;
+
+  /**
+    * Tag of the next request sent. Never 0, which is for messages that aren't replies.
+    */
+  private int nextTag;
+
+  public ControlChannel(Socket socket) throws IOException {
+    this.socket = socket;
+    inStream = socket.getInputStream();
+    in = Channels.newChannel(inStream);
+    out = Channels.newChannel(socket.getOutputStream());
+    inBuffer = ByteBuffer.allocate(bufferSize);
+    inBuffer.flip();
+    outBuffer = ByteBuffer.allocate(bufferSize);
+    nextTag = 1;
+  }
+
+  /**
+    * Queues a request.
+    *
+    * @return its tag, which its reply will have.
+    */
+  public int request(ControlOp op) throws IOException {
+    int tag = takeTag();
+    send(op, tag);
+    return tag;
+  }
+
+  public int request(ControlOp op, int arg) throws IOException {
+    int tag = takeTag();
+    send(op, tag, arg);
+    return tag;
+  }
+
+  /**
+    * Queues a request with the first count of args, which the caller can reuse afterwards.
+    */
+  public int request(ControlOp op, int[] args, int count) throws IOException {
+    int tag = takeTag();
+    makeRoom(ControlMessage.headerLength + 4 * count);
+    ControlMessage.put(outBuffer, op, tag, args, count);
+    return tag;
+  }
+
+  private int takeTag() {
+    int tag = nextTag;
+    nextTag = nextTag == 0xffff ? 1 : nextTag + 1;
+    return tag;
+  }
+
+  /**
+    * Queues a reply to the message last received.
+    */
+  public void reply(ControlOp op) throws IOException {
+    send(op, getTag());
+  }
+
+  public void reply(ControlOp op, int arg) throws IOException {
+    send(op, getTag(), arg);
+  }
+
+  /**
+    * Queues a reply with the first count of args, which the caller can reuse afterwards.
+    */
+  public void reply(ControlOp op, int[] args, int count) throws IOException {
+    makeRoom(ControlMessage.headerLength + 4 * count);
+    ControlMessage.put(outBuffer, op, getTag(), args, count);
+  }
+
+  /**
+    * Queues a message that isn't a reply.
+    */
+  public void send(ControlOp op) throws IOException {
+    send(op, 0);
+  }
+
+  private void send(ControlOp op, int tag) throws IOException {
+    makeRoom(ControlMessage.headerLength);
+    ControlMessage.put(outBuffer, op, tag);
+  }
+
+  private void send(ControlOp op, int tag, int arg) throws IOException {
+    makeRoom(ControlMessage.headerLength + 4);
+    ControlMessage.put(outBuffer, op, tag, arg);
+  }
+
+  private void makeRoom(int length) throws IOException {
+    if (outBuffer.remaining() < length)
+      flush();
+  }
+
+  /**
+    * Sends what's been queued.
+    */
+  public void flush() throws IOException {
+    outBuffer.flip();
+    while (outBuffer.hasRemaining())
+      out.write(outBuffer);
+    outBuffer.clear();
+  }
+
+  /**
+    * Waits for the next message. Malformed ones, and ones with opcodes we don't know,
+    * are skipped. The message stays readable through getTag() and getArg() until the next call.
+    *
+    * @return its opcode, or null if the connection closed.
+    */
+  public ControlOp receive() throws IOException {
+    inBuffer.position(messageStart + messageLength);
+    messageLength = 0;
+    while (true) {
+      int start = inBuffer.position();
+      int length = ControlMessage.getLength(inBuffer, start, inBuffer.remaining());
+      if (length < 0) {
+        inBuffer.compact();
+        if (!inBuffer.hasRemaining())
+          throw new IOException("Control message too long");
+        int n = in.read(inBuffer);
+        inBuffer.flip();
+        if (n < 0)
+          return null;
+        continue;
+      }
+      inBuffer.position(start + length);
+      if (!ControlMessage.isWellFormed(inBuffer, start))
+        continue;
+      ControlOp op = ControlMessage.getOp(inBuffer, start);
+      if (op == null)
+        continue;
+      messageStart = start;
+      messageLength = length;
+      inBuffer.position(start);
+      return op;
+    }
+  }
+
+  /**
+    * Waits for the reply to a request, skipping anything before it.
+    *
+    * @return its opcode, or null if the connection closed.
+    */
+  public ControlOp receiveReply(int tag) throws IOException {
+    while (true) {
+      ControlOp op = receive();
+      if (op == null || getTag() == tag)
+        return op;
+    }
+  }
+
+  /**
+    * @return tag of the message last received.
+    */
+  public int getTag() {
+    return messageLength == 0 ? 0 : ControlMessage.getTag(inBuffer, messageStart);
+  }
+
+  /**
+    * @return first argument of the message last received, or -1 if it had none.
+    */
+  public int getArg() {
+    return getArg(0);
+  }
+
+  public int getArg(int i) {
+    return messageLength == 0 ? -1 : ControlMessage.getArg(inBuffer, messageStart, i, -1);
+  }
+
+  /**
+    * @return string in the arguments of the message last received from index from (see ControlMessage.putString), or null.
+    */
+  public String getString(int from) {
+    return messageLength == 0 ? null : ControlMessage.getString(inBuffer, messageStart, from);
+  }
+
+  /**
+    * @return whether something has arrived that receive() would read without waiting (or something of it has).
+    */
+  public boolean isReady() throws IOException {
+    return inBuffer.remaining() > messageLength || inStream.available() > 0;
+  }
+
+  public void close() throws IOException {
+    socket.close();
+  }
+
+}
@@ -0,0 +1,168 @@
+package net;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+  * Messages of the TCP control protocol between clients and server. Each is
+  * length-prefixed, so a reader knows where it ends without scanning for a delimiter,
+  * and several can be written back to back without waiting for replies.
+  *
+  * Layout, big-endian:
+  *
+  *    0  short  length of the rest of the message, in bytes
+  *    2  byte   opcode (see ControlOp)
+  *    3  short  tag: a request's number, echoed in its reply so replies can be matched to
+  *              requests that were pipelined; 0 for messages that aren't replies
+  *    5  int[]  arguments, as many as fit in the length
+  *
+  * Methods here work on ByteBuffers with absolute gets and puts, as AudioPacket's do,
+  * so nothing is allocated and no text is parsed.
+  */
+public final class ControlMessage {
+
+  /**
+    * Bytes before the arguments.
+    */
+  public static final int headerLength = 5;
+
+  /**
+    * Argument of a ROLE reply.
+    */
+  public static final int SENDER = 0;
+  public static final int RECEIVER = 1;
+
+  /**
+    * Argument of a READY_FOR_ARRAY_LENGTH request from a client that can take multicast.
+    */
+  public static final int MULTICAST = 1;
+
+  /**
+    * Most bytes of a string argument (see putString).
+    */
+  public static final int maxStringLength = 64;
+
+  private static final int lengthAt = 0;
+  private static final int opAt = 2;
+  private static final int tagAt = 3;
+
+  private ControlMessage() {
+  }
+
+  /**
+    * Writes a message with no arguments at out's position, and moves past it.
+    */
+  public static void put(ByteBuffer out, ControlOp op, int tag) {
+    putHeader(out, op, tag, 0);
+  }
+
+  /**
+    * Writes a message with one argument at out's position, and moves past it.
+    */
+  public static void put(ByteBuffer out, ControlOp op, int tag, int arg) {
+    putHeader(out, op, tag, 1);
+    out.putInt(arg);
+  }
+
+  /**
+    * Writes a message with the first count of args at out's position, and moves past it.
+    */
+  public static void put(ByteBuffer out, ControlOp op, int tag, int[] args, int count) {
+    putHeader(out, op, tag, count);
+    for (int i = 0; i < count; i++)
+      out.putInt(args[i]);
+  }
+
+  private static void putHeader(ByteBuffer out, ControlOp op, int tag, int argCount) {
+    out.putShort((short) (headerLength - opAt + 4 * argCount));
+    out.put((byte) op.getCode());
+    out.putShort((short) tag);
+  }
+
+  /**
+    * @param in         buffer holding received bytes.
+    * @param start      index of the start of a message.
+    * @param available  bytes from start that have arrived.
+    * @return           length of the message, if it's all arrived, otherwise -1.
+    */
+  public static int getLength(ByteBuffer in, int start, int available) {
+    if (available < headerLength)
+      return -1;
+    int length = opAt + (in.getShort(start + lengthAt) & 0xffff);
+    return length <= available ? length : -1;
+  }
+
+  /**
+    * @return whether a message that's all arrived is at least long enough to have a header.
+    */
+  public static boolean isWellFormed(ByteBuffer in, int start) {
+    return opAt + (in.getShort(start + lengthAt) & 0xffff) >= headerLength;
+  }
+
+  /**
+    * @return opcode, or null if it isn't one we know.
+    */
+  public static ControlOp getOp(ByteBuffer in, int start) {
+    return ControlOp.fromCode(in.get(start + opAt) & 0xff);
+  }
+
+  public static int getTag(ByteBuffer in, int start) {
+    return in.getShort(start + tagAt) & 0xffff;
+  }
+
+  public static int getArgCount(ByteBuffer in, int start) {
+    return (opAt + (in.getShort(start + lengthAt) & 0xffff) - headerLength) / 4;
+  }
+
+  /**
+    * @return i-th argument, or defaultValue if there are no more than i.
+    */
+  public static int getArg(ByteBuffer in, int start, int i, int defaultValue) {
+    return i < getArgCount(in, start) ? in.getInt(start + headerLength + 4 * i) : defaultValue;
+  }
+
+  /**
+    * Puts a string in args from index from: its length in UTF-8 bytes, then the bytes, four to
+    * an argument, first in the top byte. Strings longer than maxStringLength bytes are cut
+    * short, between characters.
+    *
+    * @param args  room for at least stringArgs() arguments from from.
+    * @return      index after the last argument used.
+    */
+  public static int putString(String s, int[] args, int from) {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    int length = Math.min(bytes.length, maxStringLength);
+    while (length < bytes.length && length > 0 && (bytes[length] & 0xc0) == 0x80)
+      length--; // Don't cut a character in two.
+    args[from] = length;
+    int words = (length + 3) / 4;
+    for (int w = 0; w < words; w++) {
+      int word = 0;
+      for (int b = 0; b < 4; b++)
+        word = word << 8 | (4 * w + b < length ? bytes[4 * w + b] & 0xff : 0);
+      args[from + 1 + w] = word;
+    }
+    return from + 1 + words;
+  }
+
+  /**
+    * @return arguments a string of up to maxStringLength bytes can take.
+    */
+  public static int stringArgs() {
+    return 1 + (maxStringLength + 3) / 4;
+  }
+
+  /**
+    * @return string put in arguments from index from by putString(), or null if they don't hold one.
+    */
+  public static String getString(ByteBuffer in, int start, int from) {
+    int length = getArg(in, start, from, -1);
+    if (length < 0 || length > maxStringLength || from + 1 + (length + 3) / 4 > getArgCount(in, start))
+      return null;
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++)
+      bytes[i] = in.get(start + headerLength + 4 * (from + 1) + i);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+}
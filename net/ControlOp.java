@@ -0,0 +1,148 @@
+package net;
+
+/**
+  * Opcodes of the TCP control protocol (see ControlMessage). A request and its reply
+  * share an opcode, as the old text messages shared a token (eg "ID" asked for, and
+  * the ID came back); which is which is clear from who sends it.
+  */
+public enum ControlOp {
+
+  /**
+    * Client asks for its ID. Reply's argument is the ID.
+    */
+  ID(1),
+
+  /**
+    * Client asks for its role. Reply's argument is ControlMessage.SENDER or RECEIVER.
+    */
+  ROLE(2),
+
+  /**
+    * Client asks where to send audio if it's the sender. Reply's argument is the server's UDP port.
+    */
+  UDP_PORT(3),
+
+  /**
+    * Sender client announces the length of its loop (argument), in bytes of audio as sent (see AUDIO_FORMAT). Server replies when ready for it.
+    */
+  ACK_LENGTH(4),
+
+  /**
+    * Sender client announces it'll stream a file with this much audio, as sent (argument). Server replies ACK_STREAM.
+    */
+  STREAM(5),
+
+  ACK_STREAM(6),
+
+  /**
+    * Server to sender client: send the next loop. Receiver client to server: send me the loop.
+    */
+  READY_TO_RECEIVE(7),
+
+  /**
+    * Sender client: loop's on its way.
+    */
+  READY_TO_SEND(8),
+
+  /**
+    * Receiver client asks for the next loop's length. Server replies ARRAY_LENGTH, MULTICAST_LOOP
+    * or BECOME_SENDER, first replying AUDIO_FORMAT if the audio's format is new to the client.
+    * An argument of 1 says the client can take the loop from a multicast group.
+    */
+  READY_FOR_ARRAY_LENGTH(9),
+
+  /**
+    * Arguments: loop length, and audio bytes per packet it's sent in.
+    */
+  ARRAY_LENGTH(10),
+
+  /**
+    * Receiver client is to take over as sender (failover).
+    */
+  BECOME_SENDER(11),
+
+  /**
+    * Server asks receiver client where to send audio. Client replies RECEIVER_UDP_PORT.
+    */
+  READY_FOR_UDP_PORT(12),
+
+  RECEIVER_UDP_PORT(13),
+
+  /**
+    * Server to receiver client that can take multicast: the next loop goes to a multicast group
+    * rather than to the client's own port. Arguments: loop length, sequence number of the loop's
+    * first packet, group's IPv4 address, group's port, audio bytes per packet.
+    */
+  MULTICAST_LOOP(14),
+
+  /**
+    * Client proposes the most audio bytes per packet it wants (argument). Reply's arguments are
+    * the size agreed, which is no more than the server allows, and the UDP port the server echoes
+    * probes on (see PayloadProbe). Sent between ROLE and UDP_PORT, as often as the client likes,
+    * eg again after probing; the last reply holds. Without it, AudioPacket.defaultPayload is used.
+    */
+  PAYLOAD_SIZE(15),
+
+  /**
+    * Format of the audio that follows, and the codec it's encoded with (see AudioFormatArgs for
+    * the arguments). Sender client sends it before ACK_LENGTH or STREAM, and server replies it
+    * back, so the codec is chosen per stream and lengths are of encoded audio. Server sends it to a
+    * receiver client, as a reply to READY_FOR_ARRAY_LENGTH ahead of the real one, whenever it's
+    * not what the client was last told. Audio itself carries no header.
+    */
+  AUDIO_FORMAT(16),
+
+  /**
+    * Client names the channel it'll send or receive on, between ID and ROLE. First argument is
+    * ControlMessage.SENDER if it may send (it does if the channel has no sender, or when the
+    * sender goes) or RECEIVER if it only ever receives; then the name (see ControlMessage.putString).
+    * Reply's argument is the channel's number. Without it, a client is on the unnamed channel.
+    */
+  CHANNEL(17),
+
+  /**
+    * Sender client says it sends a heartbeat (see Heartbeat) to the server's UDP port every so
+    * many milliseconds (argument), from now till it stops sending, so the server can tell it's
+    * gone within a few of them rather than waiting on its audio or its connection. Sent before
+    * ACK_LENGTH or STREAM. No reply. Without it, the server goes by audio arriving alone.
+    */
+  HEARTBEAT(18),
+
+  /**
+    * Receiver client that may send offers to stand by to take over: its audio's loaded, and it
+    * tells the server now all it would on taking over (see StandbyArgs), and keeps the way to
+    * the server's UDP port open with keepalives. Sent before READY_FOR_ARRAY_LENGTH. Reply's
+    * argument is 1 if the server takes it up, 0 if not. If it does and the client's elected,
+    * BECOME_SENDER is followed by nothing but audio: READY_TO_RECEIVE at once for loops, or
+    * the client starts streaming. No AUDIO_FORMAT, HEARTBEAT, ACK_LENGTH or STREAM is sent.
+    */
+  STANDBY(19);
+
+  private static final ControlOp[] byCode = new ControlOp[256];
+
+  static {
+    for (ControlOp op : values())
+      byCode[op.code] = op;
+  }
+
+  private final int code;
+
+  private ControlOp(int code) {
+    this.code = code;
+  }
+
+  /**
+    * @return byte this opcode is sent as.
+    */
+  public int getCode() {
+    return code;
+  }
+
+  /**
+    * @return opcode sent as this byte, or null if there's none (eg from a newer peer).
+    */
+  public static ControlOp fromCode(int code) {
+    return code >= 0 && code < byCode.length ? byCode[code] : null;
+  }
+
+}
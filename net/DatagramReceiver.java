@@ -0,0 +1,127 @@
+package net;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+  * A bound DatagramChannel that can be received from with a timeout, which a
+  * blocking DatagramChannel can't do on its own (it ignores SO_TIMEOUT). Waiting
+  * and receiving allocate nothing, so it suits per-packet loops.
+  */
+public class DatagramReceiver implements Closeable {
+
+  private final DatagramChannel channel;
+
+  private final Selector selector;
+
+  /**
+    * How long send() waits before trying again when the send buffer is full.
+    */
+  private static final long sendRetryNanos = 50000;
+
+  /**
+    * @param port  local port to bind to, or 0 for any free port.
+    */
+  public DatagramReceiver(int port) throws IOException {
+    this(DatagramChannel.open());
+    channel.bind(new InetSocketAddress(port));
+  }
+
+  private DatagramReceiver(DatagramChannel channel) throws IOException {
+    this.channel = channel;
+    channel.configureBlocking(false);
+    selector = Selector.open();
+    channel.register(selector, SelectionKey.OP_READ);
+  }
+
+  /**
+    * Joins a multicast group, to receive what's sent to it.
+    *
+    * @param group              the group.
+    * @param receiveBufferSize  bytes the socket holds, so packets sent while nobody's
+    *                           receiving (eg while a loop plays) wait rather than being lost.
+    */
+  public static DatagramReceiver join(MulticastGroup group, int receiveBufferSize) throws IOException {
+    DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+    DatagramReceiver receiver = new DatagramReceiver(channel);
+    channel.setOption(StandardSocketOptions.SO_REUSEADDR, true); // So receivers on one host can share the port.
+    channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+    channel.bind(new InetSocketAddress(group.getPort()));
+    channel.join(group.getAddress(), group.getNetworkInterface());
+    return receiver;
+  }
+
+  /**
+    * @return port bound to.
+    */
+  public int getLocalPort() throws IOException {
+    return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+  }
+
+  /**
+    * Receives one datagram into dst, waiting at most timeoutMs for it. As with
+    * DatagramChannel, what doesn't fit in dst's remaining space is lost.
+    *
+    * @return sender's address, or null if none arrived in time.
+    */
+  public SocketAddress receive(ByteBuffer dst, long timeoutMs) throws IOException {
+    SocketAddress from = channel.receive(dst);
+    if (from != null)
+      return from;
+
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    long remaining = timeoutMs;
+    while (remaining > 0) {
+      selector.select(remaining);
+      selector.selectedKeys().clear();
+      from = channel.receive(dst);
+      if (from != null)
+        return from;
+      remaining = deadline - System.currentTimeMillis();
+    }
+    return null;
+  }
+
+  /**
+    * Receives a datagram only if one is already waiting.
+    *
+    * @return sender's address, or null if none was waiting.
+    */
+  public SocketAddress receiveNow(ByteBuffer dst) throws IOException {
+    return channel.receive(dst);
+  }
+
+  /**
+    * Sends a datagram from the bound port, eg so replies come back to it. The channel
+    * doesn't block, so if the socket's send buffer is full this waits for room.
+    */
+  public void send(ByteBuffer src, SocketAddress target) throws IOException {
+    while (channel.send(src, target) == 0)
+      LockSupport.parkNanos(sendRetryNanos);
+  }
+
+  /**
+    * @return underlying channel, eg for sending replies from the same port.
+    */
+  public DatagramChannel getChannel() {
+    return channel;
+  }
+
+  public void close() throws IOException {
+    selector.close();
+    channel.close();
+  }
+
+}
@@ -0,0 +1,223 @@
+package net;
+
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+  * Rebuilds lost audio packets of a loop from the parity packets a FecEncoder sent
+  * with them. Data packets aren't kept here: they're read back out of the loop being
+  * put together, where they've already been placed, so only parity is stored, for
+  * the few groups still arriving. The loop needn't all be there: a streamed loop's
+  * put together in a window that holds only the packets around those being played.
+  */
+public class FecDecoder {
+
+  /**
+    * Groups whose parity is kept at once. The oldest is dropped for a new one.
+    */
+  private static final int groupsKept = 8;
+
+  private final int payloadSize;
+
+  // Parity of the groups kept, by group
+
+  private final boolean[] active;
+  private final int[] groupStart;
+  private final int[] mask;
+  private final int[] parityCount;
+  private final int[] parityPresent;
+  private final byte[][][] parity;
+
+  // Scratch space for rebuilding
+
+  private final int[] missingColumns;
+  private final int[][] matrix;
+  private final int[][] inverse;
+  private final byte[][] sums;
+  private final byte[] rebuilt;
+
+  private int recoveredPackets;
+
+  /**
+    * @param payloadSize  audio bytes in a full packet.
+    */
+  public FecDecoder(int payloadSize) {
+    this.payloadSize = payloadSize;
+    active = new boolean[groupsKept];
+    groupStart = new int[groupsKept];
+    mask = new int[groupsKept];
+    parityCount = new int[groupsKept];
+    parityPresent = new int[groupsKept];
+    parity = new byte[groupsKept][FecEncoder.maxParityCount][payloadSize];
+    missingColumns = new int[FecEncoder.maxParityCount];
+    matrix = new int[FecEncoder.maxParityCount][FecEncoder.maxParityCount];
+    inverse = new int[FecEncoder.maxParityCount][FecEncoder.maxParityCount];
+    sums = new byte[FecEncoder.maxParityCount][payloadSize];
+    rebuilt = new byte[payloadSize];
+  }
+
+  /**
+    * Forgets all parity, eg for a new loop.
+    */
+  public void startLoop() {
+    Arrays.fill(active, false);
+  }
+
+  /**
+    * @return packets rebuilt since this decoder was made.
+    */
+  public int getRecoveredPackets() {
+    return recoveredPackets;
+  }
+
+  /**
+    * Stores a parity packet.
+    *
+    * @param packet  the packet, header and all, from its position to its limit. Position is left alone.
+    */
+  public void offerParity(ByteBuffer packet) {
+    int start = packet.position();
+    if (packet.remaining() < AudioPacket.headerLength + payloadSize)
+      return;
+
+    int info = AudioPacket.getSeq(packet, start);
+    int groupMask = info >>> 16;
+    int count = info >>> 8 & 0xff;
+    int index = info & 0xff;
+    int first = AudioPacket.getOffset(packet, start) / payloadSize;
+    if (groupMask == 0 || count < 1 || count > FecEncoder.maxParityCount || index >= count || first < 0)
+      return;
+
+    int g = findGroup(first, groupMask, count);
+    if ((parityPresent[g] & 1 << index) != 0)
+      return;
+    packet.get(start + AudioPacket.headerLength, parity[g][index], 0, payloadSize);
+    parityPresent[g] |= 1 << index;
+  }
+
+  /**
+    * @return where the group's parity is kept, making room for it if it's new.
+    */
+  private int findGroup(int first, int groupMask, int count) {
+    int free = -1;
+    int oldest = 0;
+    for (int g = 0; g < groupsKept; g++) {
+      if (!active[g]) {
+        free = g;
+        continue;
+      }
+      if (groupStart[g] == first && mask[g] == groupMask && parityCount[g] == count)
+        return g;
+      if (groupStart[g] < groupStart[oldest])
+        oldest = g;
+    }
+    int g = free >= 0 ? free : oldest;
+    active[g] = true;
+    groupStart[g] = first;
+    mask[g] = groupMask;
+    parityCount[g] = count;
+    parityPresent[g] = 0;
+    return g;
+  }
+
+  /**
+    * Rebuilds whatever lost packets it can from the parity kept.
+    *
+    * @param loop      loop being put together. Rebuilt packets are written into it.
+    * @param received  slots of the loop that have arrived. Rebuilt ones are added.
+    * @return          audio bytes rebuilt.
+    */
+  public int recover(byte[] loop, BitSet received) {
+    int slots = Math.max(1, (loop.length + payloadSize - 1) / payloadSize);
+    return recover(loop, slots, loop.length, 0, slots, received);
+  }
+
+  /**
+    * Rebuilds whatever lost packets it can from the parity kept, in a window onto the loop
+    * that holds slot s at s % slotsKept. Groups with a packet still missing beyond the window
+    * are left till it's moved on; groups with none still to be played are dropped.
+    *
+    * @param window      window onto the loop being put together. Rebuilt packets are written into it.
+    * @param slotsKept   packet slots window holds.
+    * @param loopLength  audio bytes in the loop.
+    * @param firstSlot   first slot still to be played. Those before are past rebuilding.
+    * @param endSlot     slot after the last window holds.
+    * @param received    slots of the loop that have arrived. Rebuilt ones are added.
+    * @return            audio bytes rebuilt.
+    */
+  public int recover(byte[] window, int slotsKept, int loopLength, int firstSlot, int endSlot, BitSet received) {
+    int bytes = 0;
+    for (int g = 0; g < groupsKept; g++) {
+      if (active[g])
+        bytes += recoverGroup(g, window, slotsKept, loopLength, firstSlot, endSlot, received);
+    }
+    return bytes;
+  }
+
+  private int recoverGroup(int g, byte[] window, int slotsKept, int loopLength, int firstSlot, int endSlot,
+      BitSet received) {
+    int slots = (loopLength + payloadSize - 1) / payloadSize;
+    int count = parityCount[g];
+
+    int missing = 0;
+    boolean stillToPlay = false;
+    for (int column = 0; column < FecEncoder.maxGroupSize; column++) {
+      int slot = groupStart[g] + column;
+      if ((mask[g] & 1 << column) == 0 || slot >= slots || received.get(slot))
+        continue;
+      if (missing == count)
+        return 0; // More lost than parity can make up for.
+      if (slot >= endSlot)
+        return 0; // No room for it yet.
+      stillToPlay |= slot >= firstSlot;
+      missingColumns[missing++] = column;
+    }
+    if (!stillToPlay) {
+      active[g] = false; // Whole group's in, or what isn't has been played without it. Parity's no longer needed.
+      return 0;
+    }
+    if (Integer.bitCount(parityPresent[g]) < missing)
+      return 0;
+
+    // Each parity row, less the weighted data that did arrive, is a weighted sum of the missing data.
+    int rows = 0;
+    for (int p = 0; p < count && rows < missing; p++) {
+      if ((parityPresent[g] & 1 << p) == 0)
+        continue;
+      byte[] sum = sums[rows];
+      System.arraycopy(parity[g][p], 0, sum, 0, payloadSize);
+      for (int column = 0; column < FecEncoder.maxGroupSize; column++) {
+        int slot = groupStart[g] + column;
+        if ((mask[g] & 1 << column) == 0 || slot >= slots || !received.get(slot))
+          continue;
+        GaloisField.mulAdd(sum, 0, window, slot % slotsKept * payloadSize, Math.min(payloadSize, loopLength - slot * payloadSize),
+            FecEncoder.coefficient(count, p, column));
+      }
+      for (int m = 0; m < missing; m++)
+        matrix[rows][m] = FecEncoder.coefficient(count, p, missingColumns[m]);
+      rows++;
+    }
+
+    if (!GaloisField.invert(matrix, inverse, missing))
+      return 0;
+
+    int bytes = 0;
+    for (int m = 0; m < missing; m++) {
+      Arrays.fill(rebuilt, (byte) 0);
+      for (int r = 0; r < missing; r++)
+        GaloisField.mulAdd(rebuilt, 0, sums[r], 0, payloadSize, inverse[m][r]);
+
+      int slot = groupStart[g] + missingColumns[m];
+      int length = Math.min(payloadSize, loopLength - slot * payloadSize);
+      System.arraycopy(rebuilt, 0, window, slot % slotsKept * payloadSize, length);
+      received.set(slot);
+      bytes += length;
+      recoveredPackets++;
+    }
+    active[g] = false;
+    return bytes;
+  }
+
+}
@@ -0,0 +1,207 @@
+package net;
+
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+
+/**
+  * Forward error correction for a stream of audio packets (see AudioPacket): after
+  * each group of up to groupSize data packets it has parityCount parity packets
+  * ready to send, from which a FecDecoder can rebuild any parityCount of the
+  * group's data packets that get lost, without asking for them again.
+  *
+  * Groups are runs of groupSize packet slots in a loop (a slot being a full
+  * payload's worth of the loop), so they line up however a receiver joins.
+  * Parity is Reed-Solomon over GF(2^8), each parity packet's payload being a sum of
+  * the group's payloads weighted by a Cauchy matrix, which makes any groupSize of
+  * the group's packets enough to rebuild the rest. With one parity packet the
+  * weights are all 1 and parity is plain XOR.
+  *
+  * A parity packet has the FEC flag set and, in place of its sequence number, the
+  * slots it covers (a bit mask, high 16 bits), the parity count (next 8) and its
+  * own index (low 8). Its offset is the offset of the group's first slot.
+  *
+  * Parity is summed as packets go by, so nothing is copied beyond one payload at a time.
+  */
+public class FecEncoder {
+
+  /**
+    * Most data packets in a group: one per bit of the parity packet's mask.
+    */
+  public static final int maxGroupSize = 16;
+
+  /**
+    * Most parity packets per group.
+    */
+  public static final int maxParityCount = 8;
+
+  private final int groupSize;
+
+  private final int parityCount;
+
+  private final int payloadSize;
+
+  /**
+    * Parity of the group so far, one row per parity packet.
+    */
+  private final byte[][] parity;
+
+  /**
+    * Payload of the packet being added, padded with zeros.
+    */
+  private final byte[] payload;
+
+  /**
+    * Finished parity packets, header and all.
+    */
+  private final ByteBuffer[] parityPackets;
+
+  /**
+    * First slot of the group being summed, or -1.
+    */
+  private int groupStart;
+
+  /**
+    * Slots of the group added so far.
+    */
+  private int mask;
+
+  private int streamId;
+
+  private int timestamp;
+
+  /**
+    * How many of parityPackets are yet to be taken with nextParity().
+    */
+  private int parityReady;
+
+  /**
+    * @param groupSize    data packets per group, 1 to maxGroupSize.
+    * @param parityCount  parity packets per group, 1 to maxParityCount.
+    * @param payloadSize  audio bytes in a full packet.
+    */
+  public FecEncoder(int groupSize, int parityCount, int payloadSize) {
+    if (groupSize < 1 || groupSize > maxGroupSize)
+      throw new IllegalArgumentException("FEC group size must be 1 to " + maxGroupSize + ": " + groupSize);
+    if (parityCount < 1 || parityCount > maxParityCount)
+      throw new IllegalArgumentException("FEC parity count must be 1 to " + maxParityCount + ": " + parityCount);
+
+    this.groupSize = groupSize;
+    this.parityCount = parityCount;
+    this.payloadSize = payloadSize;
+    parity = new byte[parityCount][payloadSize];
+    payload = new byte[payloadSize];
+    parityPackets = new ByteBuffer[parityCount];
+    for (int i = 0; i < parityCount; i++)
+      parityPackets[i] = ByteBuffer.allocateDirect(AudioPacket.headerLength + payloadSize);
+    groupStart = -1;
+  }
+
+  public int getGroupSize() {
+    return groupSize;
+  }
+
+  public int getParityCount() {
+    return parityCount;
+  }
+
+  public int getPayloadSize() {
+    return payloadSize;
+  }
+
+  /**
+    * Adds a data packet to its group's parity. If it's the first of a new group, the
+    * last group is finished first and its parity packets made ready.
+    *
+    * @param packet  the packet, header and all, from its position to its limit. Position is left alone.
+    */
+  public void add(ByteBuffer packet) {
+    int start = packet.position();
+    int length = Math.min(packet.remaining() - AudioPacket.headerLength, payloadSize);
+    if (length <= 0)
+      return;
+
+    int slot = AudioPacket.getOffset(packet, start) / payloadSize;
+    int slotGroupStart = slot - slot % groupSize;
+    if (slotGroupStart != groupStart) {
+      flush();
+      groupStart = slotGroupStart;
+    }
+
+    int bit = 1 << (slot - groupStart);
+    if ((mask & bit) != 0)
+      return; // Already have it.
+    mask |= bit;
+    streamId = AudioPacket.getStreamId(packet, start);
+    timestamp = AudioPacket.getTimestamp(packet, start);
+
+    packet.get(start + AudioPacket.headerLength, payload, 0, length);
+    if (length < payloadSize)
+      Arrays.fill(payload, length, payloadSize, (byte) 0);
+
+    int column = slot - groupStart;
+    for (int p = 0; p < parityCount; p++)
+      GaloisField.mulAdd(parity[p], 0, payload, 0, payloadSize, coefficient(parityCount, p, column));
+  }
+
+  /**
+    * Finishes the group so far, eg at the end of a loop, making its parity packets ready.
+    */
+  public void flush() {
+    if (mask == 0)
+      return;
+
+    for (int p = 0; p < parityCount; p++) {
+      ByteBuffer packet = parityPackets[p];
+      packet.clear();
+      AudioPacket.putHeader(packet, 0, streamId, AudioPacket.FEC, mask << 16 | parityCount << 8 | p,
+          groupStart * payloadSize, timestamp);
+      packet.position(AudioPacket.headerLength);
+      packet.put(parity[p]);
+      packet.flip();
+      Arrays.fill(parity[p], (byte) 0);
+    }
+    parityReady = parityCount;
+    mask = 0;
+    groupStart = -1;
+  }
+
+  /**
+    * @return how many parity packets are ready to send.
+    */
+  public int getParityReady() {
+    return parityReady;
+  }
+
+  /**
+    * @return next parity packet to send, positioned at its start. Valid until the next group is finished.
+    */
+  public ByteBuffer nextParity() {
+    ByteBuffer packet = parityPackets[parityCount - parityReady--];
+    packet.position(0);
+    return packet;
+  }
+
+  /**
+    * Starts afresh, eg for a new loop, dropping any group half summed and any parity not taken.
+    */
+  public void reset() {
+    for (int p = 0; p < parityCount; p++)
+      Arrays.fill(parity[p], (byte) 0);
+    mask = 0;
+    groupStart = -1;
+    parityReady = 0;
+  }
+
+  /**
+    * Weight of a group's data packet in one of its parity packets: Cauchy matrix
+    * entry 1 / (x + y), x being parityIndex + maxGroupSize and y the packet's column,
+    * so no x equals any y. A single parity packet is plain XOR.
+    */
+  static int coefficient(int parityCount, int parityIndex, int column) {
+    if (parityCount == 1)
+      return 1;
+    return GaloisField.inv((parityIndex + maxGroupSize) ^ column);
+  }
+
+}
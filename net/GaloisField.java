@@ -0,0 +1,112 @@
+package net;
+
+/**
+  * Arithmetic in GF(2^8), the field Reed-Solomon parity is worked out in.
+  * Adding is XOR; multiplying goes through log and exp tables.
+  */
+final class GaloisField {
+
+  /**
+    * x^8 + x^4 + x^3 + x^2 + 1, as used by most Reed-Solomon codes.
+    */
+  private static final int polynomial = 0x11d;
+
+  private static final byte[] exp = new byte[512];
+
+  private static final int[] log = new int[256];
+
+  /**
+    * Every product, so a payload can be multiplied a byte at a time with one lookup each. 64KB.
+    */
+  private static final byte[][] products = new byte[256][256];
+
+  static {
+    int x = 1;
+    for (int i = 0; i < 255; i++) {
+      exp[i] = (byte) x;
+      log[x] = i;
+      x <<= 1;
+      if (x >= 256)
+        x ^= polynomial;
+    }
+    for (int i = 255; i < exp.length; i++)
+      exp[i] = exp[i - 255];
+    for (int a = 1; a < 256; a++)
+      for (int b = 1; b < 256; b++)
+        products[a][b] = exp[log[a] + log[b]];
+  }
+
+  private GaloisField() {
+  }
+
+  static int mul(int a, int b) {
+    if (a == 0 || b == 0)
+      return 0;
+    return exp[log[a] + log[b]] & 0xff;
+  }
+
+  static int inv(int a) {
+    if (a == 0)
+      throw new ArithmeticException("0 has no inverse");
+    return exp[255 - log[a]] & 0xff;
+  }
+
+  /**
+    * dst[dstOff..] += coef * src[srcOff..], over len bytes.
+    */
+  static void mulAdd(byte[] dst, int dstOff, byte[] src, int srcOff, int len, int coef) {
+    if (coef == 0)
+      return;
+    if (coef == 1) {
+      for (int i = 0; i < len; i++)
+        dst[dstOff + i] ^= src[srcOff + i];
+      return;
+    }
+    byte[] times = products[coef];
+    for (int i = 0; i < len; i++)
+      dst[dstOff + i] ^= times[src[srcOff + i] & 0xff];
+  }
+
+  /**
+    * Inverts an n x n matrix by Gauss-Jordan elimination.
+    *
+    * @param a    matrix to invert. Overwritten.
+    * @param out  where to put the inverse.
+    * @return     false if the matrix is singular.
+    */
+  static boolean invert(int[][] a, int[][] out, int n) {
+    for (int r = 0; r < n; r++)
+      for (int c = 0; c < n; c++)
+        out[r][c] = r == c ? 1 : 0;
+
+    for (int col = 0; col < n; col++) {
+      int pivot = col;
+      while (pivot < n && a[pivot][col] == 0)
+        pivot++;
+      if (pivot == n)
+        return false;
+      if (pivot != col) {
+        int[] t = a[pivot]; a[pivot] = a[col]; a[col] = t;
+        t = out[pivot]; out[pivot] = out[col]; out[col] = t;
+      }
+
+      int scale = inv(a[col][col]);
+      for (int c = 0; c < n; c++) {
+        a[col][c] = mul(a[col][c], scale);
+        out[col][c] = mul(out[col][c], scale);
+      }
+
+      for (int r = 0; r < n; r++) {
+        int factor = a[r][col];
+        if (r == col || factor == 0)
+          continue;
+        for (int c = 0; c < n; c++) {
+          a[r][c] ^= mul(factor, a[col][c]);
+          out[r][c] ^= mul(factor, out[col][c]);
+        }
+      }
+    }
+    return true;
+  }
+
+}
@@ -0,0 +1,50 @@
+package net;
+
+import java.nio.ByteBuffer;
+
+/**
+  * Heartbeat: a sender client's word that it's still there, sent to the server's UDP port
+  * every so often (see ControlOp.HEARTBEAT) whether or not audio is going. It's an AudioPacket
+  * with the HEARTBEAT flag set and no payload. Its sequence number counts the sender's
+  * heartbeats, and its offset is always 0.
+  *
+  * It goes the way the audio goes, so a sender whose audio can't get through (eg it's hung,
+  * or the network's down) is missed as soon as its heartbeats are, even though its TCP
+  * connection stays open.
+  */
+public final class Heartbeat {
+
+  /**
+    * How often a sender client sends one unless told otherwise.
+    */
+  public static final int defaultIntervalMs = 100;
+
+  /**
+    * How many in a row the server misses before taking the sender to be dead, unless told otherwise.
+    */
+  public static final int defaultMisses = 3;
+
+  public static final int length = AudioPacket.headerLength;
+
+  private Heartbeat() {
+  }
+
+  /**
+    * Writes a heartbeat.
+    *
+    * @param out  buffer of at least length bytes to write into, from 0. Flipped ready to send.
+    */
+  public static void put(ByteBuffer out, int streamId, int seq, int timestamp) {
+    out.clear();
+    AudioPacket.putHeader(out, 0, streamId, AudioPacket.HEARTBEAT, seq, 0, timestamp);
+    out.limit(length);
+  }
+
+  /**
+    * @return whether a packet is a heartbeat.
+    */
+  public static boolean isHeartbeat(ByteBuffer packet, int start, int length) {
+    return AudioPacket.hasHeader(length) && (AudioPacket.getFlags(packet, start) & AudioPacket.HEARTBEAT) != 0;
+  }
+
+}
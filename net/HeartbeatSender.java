@@ -0,0 +1,95 @@
+package net;
+
+import java.io.IOException;
+
+import java.net.SocketAddress;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+  * Sends a sender client's heartbeats (see Heartbeat) to the server at a steady rate, from a
+  * thread of its own so they keep going whatever the client's doing, eg reading its file. They
+  * go from the channel the audio goes from, which can be sent from by several threads at once.
+  */
+public class HeartbeatSender extends Thread {
+
+  private final DatagramChannel channel;
+
+  private final SocketAddress target;
+
+  private final int streamId;
+
+  private volatile long intervalNanos;
+
+  /**
+    * Set when the interval's changed, so the next heartbeat goes at once rather than when it was due.
+    */
+  private volatile boolean rescheduled;
+
+  private final ByteBuffer packet = ByteBuffer.allocateDirect(Heartbeat.length);
+
+  private volatile boolean stopped;
+
+  /**
+    * @param channel     channel the audio goes from.
+    * @param target      where the audio goes to.
+    * @param streamId    ID of the client.
+    * @param intervalMs  how often to send a heartbeat.
+    */
+  public HeartbeatSender(DatagramChannel channel, SocketAddress target, int streamId, int intervalMs) {
+    super("HeartbeatSender");
+    this.channel = channel;
+    this.target = target;
+    this.streamId = streamId;
+    intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, intervalMs));
+    setDaemon(true);
+  }
+
+  /**
+    * Stops sending, eg when the client stops being the sender.
+    */
+  public void stopSending() {
+    stopped = true;
+    LockSupport.unpark(this);
+  }
+
+  /**
+    * Changes how often to send a heartbeat, sending one straight away, eg when a client that
+    * was sending keepalives while standing by starts sending audio.
+    */
+  public void setIntervalMs(int intervalMs) {
+    intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, intervalMs));
+    rescheduled = true;
+    LockSupport.unpark(this);
+  }
+
+  public void run() {
+    long start = System.nanoTime();
+    long next = start;
+    int seq = 0;
+    try {
+      while (!stopped) {
+        Heartbeat.put(packet, streamId, seq++, AudioPacket.timestamp(start));
+        channel.send(packet, target);
+        next += intervalNanos;
+        long remaining;
+        while (!stopped && !rescheduled && (remaining = next - System.nanoTime()) > 0)
+          LockSupport.parkNanos(remaining);
+        if (rescheduled) {
+          rescheduled = false;
+          next = System.nanoTime();
+        }
+      }
+    } catch (ClosedChannelException e) {
+      // Client's gone.
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+}
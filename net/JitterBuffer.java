@@ -0,0 +1,671 @@
+package net;
+
+import java.nio.ByteBuffer;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+  * Puts a loop of audio back together from its packets (see AudioPacket) in whatever
+  * order they arrive, and decides how long to wait for stragglers before playing it.
+  *
+  * Each packet's payload is copied to its offset in the loop, so a lost packet leaves
+  * silence where it was rather than shifting everything after it. Duplicates and
+  * packets from an earlier loop or another stream are dropped, as are, if the loop's
+  * sequence numbers are known, packets of any other loop. If the sender sends
+  * forward error correction parity (see FecEncoder), lost packets are rebuilt from it
+  * as soon as enough of their group is in. Otherwise, what's still missing when
+  * the loop stops arriving can be asked for again with a NACK (see putNack()).
+  *
+  * How long to wait is worked out from how unevenly packets arrive: interarrival
+  * jitter is estimated as RFC 3550 does, by comparing the gaps between arrivals with
+  * the gaps between send timestamps. Once the loop stops arriving the buffer waits
+  * about as long as the next packet should take, plus a few jitters, and no longer,
+  * so a lossy link costs a little audio rather than a long stall.
+  *
+  * A sender that streams in real time sends each frame's packets together, then nothing
+  * till the next frame's due. However short the gaps within a frame, the wait is never
+  * shorter than the gap between frames, which is the longest gap between send timestamps
+  * in the sender's last loop. Until a whole loop of a sender's has shown how it paces
+  * its packets, the longest delay is allowed.
+  *
+  * A loop can be put together whole, into an array of its length, or streamed: played
+  * (see Output) a packet at a time as soon as it and all before it are in, through a
+  * window a few dozen packets long, so however long the loop is, only that much is held.
+  * A hole at the head of the window holds up what's behind it only as long as a
+  * straggler could take, or till the window's full, then it's played as silence.
+  */
+public class JitterBuffer {
+
+  /**
+    * Where a streamed loop's audio goes, in order, as it's put together.
+    */
+  public interface Output {
+
+    /**
+      * Takes the loop's next audio, which is only good till this returns.
+      */
+    void play(byte[] audio, int offset, int length);
+  }
+
+  /**
+    * Never wait less than this for the next packet.
+    */
+  private static final long minDelayNanos = 2000000;
+
+  /**
+    * Nor more than this.
+    */
+  private static final long maxDelayNanos = 1000000000;
+
+  /**
+    * Playout delay is this many jitters.
+    */
+  private static final int jitterMultiple = 4;
+
+  /**
+    * Weight of the latest gap in the mean interarrival time.
+    */
+  private static final double gapWeight = 1.0 / 16;
+
+  /**
+    * Round trip time assumed until a retransmission has been timed.
+    */
+  private static final long initialRoundTripNanos = 50000000;
+
+  /**
+    * Never wait less than this for retransmissions.
+    */
+  private static final long minRetransmitWaitNanos = 10000000;
+
+  /**
+    * Packets of a streamed loop put together ahead of the next to play, at most. A packet
+    * further ahead has the holes at the head of the window played as silence.
+    */
+  private static final int horizonSlots = 64;
+
+  /**
+    * Packets a streamed loop's window holds: the horizon, and behind it room for what
+    * parity groups still being rebuilt read back of packets already played.
+    */
+  private static final int windowSlots = horizonSlots + FecEncoder.maxGroupSize;
+
+  private final int payloadSize;
+
+  private final FecDecoder fecDecoder;
+
+  // Carried over from loop to loop
+
+  /**
+    * Interarrival jitter estimate, in nanoseconds.
+    */
+  private double jitterNanos;
+
+  /**
+    * Mean time between packets, in nanoseconds.
+    */
+  private double meanGapNanos;
+
+  /**
+    * Mean deviation of the time between packets from its mean, in nanoseconds. Senders
+    * pacing by frame send packets unevenly even before the network has its say.
+    */
+  private double gapDeviationNanos;
+
+  /**
+    * Whether there's been a gap between packets to measure yet.
+    */
+  private boolean haveGap;
+
+  /**
+    * Longest gap between packets' send timestamps in the sender's last loop, in nanoseconds:
+    * the time between frames if it streams, next to nothing if it sends loops whole.
+    */
+  private long frameGapNanos;
+
+  /**
+    * Whether frameGapNanos is known: a whole loop's come from the sender.
+    */
+  private boolean havePace;
+
+  /**
+    * Longest gap between packets' send timestamps in this loop so far, in nanoseconds.
+    */
+  private long loopGapNanos;
+
+  private boolean haveArrival;
+
+  private long lastArrival;
+
+  private int lastTimestamp;
+
+  /**
+    * Highest sequence number seen, or -1.
+    */
+  private long highestSeq;
+
+  /**
+    * Stream the last loop came from, or -1.
+    */
+  private int lastStreamId;
+
+  /**
+    * Smoothed time from sending a NACK to getting a packet it asked for.
+    */
+  private double roundTripNanos;
+
+  /**
+    * Window streamed loops are put together in, made when the first one starts.
+    */
+  private byte[] streamWindow;
+
+  // Loop being put together
+
+  /**
+    * Where the loop's audio goes: the whole loop, or a streamed loop's window, which packet
+    * slot s is put in at s % slots kept.
+    */
+  private byte[] loop;
+
+  /**
+    * Slots loop has room for.
+    */
+  private int slotsKept;
+
+  private int loopLength;
+
+  /**
+    * Packets in the loop.
+    */
+  private int slots;
+
+  /**
+    * Where a streamed loop is played, or null if the loop's put together whole.
+    */
+  private Output output;
+
+  /**
+    * Slot of a streamed loop to play next. Every slot before it has been played, or given up on.
+    */
+  private int playSlot;
+
+  /**
+    * Whether packets of a streamed loop are held up behind a hole, and System.nanoTime() since when.
+    */
+  private boolean holding;
+
+  private long heldSince;
+
+  /**
+    * Slots that have arrived, or been rebuilt, numbered from the start of the loop.
+    */
+  private BitSet received;
+
+  private int bytesReceived;
+
+  private int packetsReceived;
+
+  private int packetsRecovered;
+
+  /**
+    * Slots asked for again with a NACK.
+    */
+  private BitSet nacked;
+
+  /**
+    * System.nanoTime() when the last NACK was sent.
+    */
+  private long nackTime;
+
+  /**
+    * Highest slot received when the last NACK was sent, or -1.
+    */
+  private int nackHighestSlot;
+
+  private int packetsRetransmitted;
+
+  private long recoveryNanosTotal;
+
+  private long recoveryNanosMax;
+
+  private int streamId;
+
+  /**
+    * Whether only packets numbered firstSeq onwards, and no more of them than the loop has, are of the loop.
+    */
+  private boolean haveSeqRange;
+
+  private int firstSeq;
+
+  /**
+    * Timestamp of the first packet of the loop to arrive, if it has, when there's a sequence
+    * number range. Parity sent before it is of an earlier loop.
+    */
+  private int firstTimestamp;
+  private boolean haveFirstTimestamp;
+
+  private int duplicates;
+
+  private int stale;
+
+  /**
+    * @param payloadSize  audio bytes in a full packet, so a packet's offset gives its place in the loop.
+    */
+  public JitterBuffer(int payloadSize) {
+    this.payloadSize = payloadSize;
+    highestSeq = -1;
+    lastStreamId = -1;
+    received = new BitSet();
+    nacked = new BitSet();
+    fecDecoder = new FecDecoder(payloadSize);
+    roundTripNanos = initialRoundTripNanos;
+  }
+
+  /**
+    * Starts putting together a new loop.
+    *
+    * @param loop where to put the loop's audio. Its length is the loop's length.
+    */
+  public void startLoop(byte[] loop) {
+    start(loop.length);
+    this.loop = loop;
+    slotsKept = Math.max(1, slots);
+    output = null;
+  }
+
+  /**
+    * Starts putting together a new loop whose packets are numbered from firstSeq on, eg one
+    * taken from a multicast group that other loops are sent to as well. Packets of other
+    * loops are dropped, whenever they arrive.
+    *
+    * @param loop      where to put the loop's audio. Its length is the loop's length.
+    * @param firstSeq  sequence number of the loop's first packet.
+    */
+  public void startLoop(byte[] loop, int firstSeq) {
+    startLoop(loop);
+    haveSeqRange = true;
+    this.firstSeq = firstSeq;
+  }
+
+  /**
+    * Starts streaming a new loop: its audio's played as it's put together, and only a
+    * window of it is held.
+    *
+    * @param loopLength  audio bytes in the loop.
+    * @param output      where to play it.
+    */
+  public void startLoop(int loopLength, Output output) {
+    start(loopLength);
+    if (streamWindow == null)
+      streamWindow = new byte[windowSlots * payloadSize];
+    loop = streamWindow;
+    slotsKept = windowSlots;
+    this.output = output;
+  }
+
+  /**
+    * Starts streaming a new loop whose packets are numbered from firstSeq on (see
+    * startLoop(byte[], int)).
+    *
+    * @param loopLength  audio bytes in the loop.
+    * @param output      where to play it.
+    * @param firstSeq    sequence number of the loop's first packet.
+    */
+  public void startLoop(int loopLength, Output output, int firstSeq) {
+    startLoop(loopLength, output);
+    haveSeqRange = true;
+    this.firstSeq = firstSeq;
+  }
+
+  private void start(int loopLength) {
+    if (loop != null && packetsReceived > 1) {
+      if (isComplete()) {
+        frameGapNanos = loopGapNanos;
+        havePace = true;
+      } else if (havePace) { // Cut short: its gaps are too few to lower the pace by.
+        frameGapNanos = Math.max(frameGapNanos, loopGapNanos);
+      }
+    }
+    loopGapNanos = 0;
+    this.loopLength = loopLength;
+    slots = (loopLength + payloadSize - 1) / payloadSize;
+    playSlot = 0;
+    holding = false;
+    received.clear();
+    bytesReceived = 0;
+    packetsReceived = 0;
+    packetsRecovered = 0;
+    nacked.clear();
+    nackHighestSlot = -1;
+    packetsRetransmitted = 0;
+    recoveryNanosTotal = 0;
+    recoveryNanosMax = 0;
+    fecDecoder.startLoop();
+    streamId = -1;
+    duplicates = 0;
+    stale = 0;
+    haveArrival = false; // The gap between loops says nothing about the network.
+    haveSeqRange = false;
+    haveFirstTimestamp = false;
+  }
+
+  /**
+    * Takes in a packet.
+    *
+    * @param packet       the packet, from its position to its limit. Position is left alone.
+    * @param arrivalNanos System.nanoTime() when it arrived.
+    * @return             whether its audio was used.
+    */
+  public boolean offer(ByteBuffer packet, long arrivalNanos) {
+    int start = packet.position();
+    int length = packet.remaining();
+    if (!AudioPacket.hasHeader(length))
+      return false;
+
+    if ((AudioPacket.getFlags(packet, start) & AudioPacket.FEC) != 0) {
+      if (haveSeqRange && (!haveFirstTimestamp || AudioPacket.getTimestamp(packet, start) - firstTimestamp < 0)) {
+        stale++;
+        return false;
+      }
+      fecDecoder.offerParity(packet);
+      recover();
+      playReceived(arrivalNanos);
+      return false;
+    }
+
+    int seq = AudioPacket.getSeq(packet, start);
+    int offset = AudioPacket.getOffset(packet, start);
+    int payload = Math.min(length - AudioPacket.headerLength, loopLength - offset);
+    int packetIndex = offset / payloadSize;
+
+    if (haveSeqRange) {
+      int index = seq - firstSeq; // Wraps as seq does.
+      if (index < 0 || index >= slots) {
+        stale++;
+        return false;
+      }
+      if (!haveFirstTimestamp) {
+        firstTimestamp = AudioPacket.getTimestamp(packet, start);
+        haveFirstTimestamp = true;
+      }
+    }
+
+    if (streamId < 0) {
+      streamId = AudioPacket.getStreamId(packet, start);
+      if (streamId != lastStreamId) { // New sender (eg after failover): counting from scratch, pace unknown.
+        highestSeq = -1;
+        havePace = false;
+        loopGapNanos = 0;
+      }
+      lastStreamId = streamId;
+    }
+    if (AudioPacket.getStreamId(packet, start) != streamId || offset < 0 || payload <= 0
+        || seq <= highestSeq - (loopLength / payloadSize + 1) || packetIndex < playSlot) {
+      stale++;
+      return false;
+    }
+    if (received.get(packetIndex)) {
+      duplicates++;
+      return false;
+    }
+
+    if (nacked.get(packetIndex))
+      retransmitArrived(arrivalNanos); // Late because it was lost, which says nothing about jitter.
+    else
+      updateJitter(arrivalNanos, AudioPacket.getTimestamp(packet, start));
+    if (seq > highestSeq)
+      highestSeq = seq;
+
+    if (output != null && packetIndex >= playSlot + horizonSlots)
+      playOut(packetIndex - horizonSlots + 1); // No room for it till the head of the window's played.
+    packet.get(start + AudioPacket.headerLength, loop, packetIndex % slotsKept * payloadSize, payload);
+    received.set(packetIndex);
+    bytesReceived += payload;
+    packetsReceived++;
+    recover();
+    playReceived(arrivalNanos);
+    return true;
+  }
+
+  /**
+    * Rebuilds what lost packets the parity received so far allows.
+    */
+  private void recover() {
+    if (loop == null)
+      return;
+    int before = fecDecoder.getRecoveredPackets();
+    int end = output == null ? slots : Math.min(slots, playSlot + horizonSlots);
+    bytesReceived += fecDecoder.recover(loop, slotsKept, loopLength, playSlot, end, received);
+    packetsRecovered += fecDecoder.getRecoveredPackets() - before;
+  }
+
+  /**
+    * Plays as much of a streamed loop as has arrived unbroken, and notes whether what's
+    * arrived beyond it is held up behind a hole.
+    */
+  private void playReceived(long now) {
+    if (output == null)
+      return;
+    int from = playSlot;
+    playOut(Math.min(slots, received.nextClearBit(playSlot)));
+    boolean held = playSlot < slots && received.nextSetBit(playSlot) >= 0;
+    if (held && (!holding || playSlot > from))
+      heldSince = now;
+    holding = held;
+  }
+
+  /**
+    * Plays a streamed loop up to a slot, with silence for what hasn't arrived.
+    */
+  private void playOut(int endSlot) {
+    for (; playSlot < endSlot; playSlot++) {
+      int offset = playSlot % slotsKept * payloadSize;
+      int length = Math.min(payloadSize, loopLength - playSlot * payloadSize);
+      if (!received.get(playSlot))
+        Arrays.fill(loop, offset, offset + length, (byte) 0);
+      output.play(loop, offset, length);
+    }
+  }
+
+  /**
+    * @return whether packets of a streamed loop are held up behind a hole, till getHoldDeadline().
+    */
+  public boolean isHolding() {
+    return holding;
+  }
+
+  /**
+    * @return System.nanoTime() after which a hole holding up a streamed loop is given up on:
+    *         as long as a straggler could take after what's held up first arrived, or, if
+    *         the hole's been asked for again, as long as retransmissions take.
+    */
+  public long getHoldDeadline() {
+    long deadline = heldSince + getPlayoutDelayNanos();
+    if (nacked.get(playSlot) && nackTime + getRetransmitWaitNanos() - deadline > 0)
+      deadline = nackTime + getRetransmitWaitNanos();
+    return deadline;
+  }
+
+  /**
+    * Gives up on a hole holding up a streamed loop, if it's been waited for long enough,
+    * and plays what was held up behind it, with silence for the hole.
+    *
+    * @param now  System.nanoTime().
+    * @return     whether anything was played.
+    */
+  public boolean playLate(long now) {
+    if (!holding || now - getHoldDeadline() < 0)
+      return false;
+    playOut(received.nextSetBit(playSlot));
+    playReceived(now);
+    return true;
+  }
+
+  /**
+    * Plays what's left of a streamed loop, with silence for what never arrived, once no
+    * more of it's coming. Does nothing to a loop put together whole.
+    */
+  public void finishLoop() {
+    if (output == null)
+      return;
+    playOut(slots);
+    holding = false;
+  }
+
+  private void retransmitArrived(long arrivalNanos) {
+    long latency = arrivalNanos - nackTime;
+    packetsRetransmitted++;
+    recoveryNanosTotal += latency;
+    recoveryNanosMax = Math.max(recoveryNanosMax, latency);
+    roundTripNanos += (latency - roundTripNanos) / 8; // As TCP smooths its round trip time.
+  }
+
+  /**
+    * Writes a NACK asking for the packets of the loop still missing, and notes when it was asked.
+    *
+    * At first only holes behind the latest packet, and the one packet after it, are asked
+    * for, as the rest of the loop may just be late (eg the sender stalled). The rest of the
+    * tail is asked for once nothing further along has come since the last NACK.
+    *
+    * @param out      buffer to write into, flipped ready to send.
+    * @param nackSeq  count of NACKs sent.
+    * @param now      System.nanoTime().
+    * @return         packets asked for. 0 if nothing is missing or nothing of the loop
+    *                 has arrived (so there's no telling which stream to ask).
+    */
+  public int putNack(ByteBuffer out, int nackSeq, long now) {
+    if (streamId < 0)
+      return 0;
+    int highestSlot = received.length() - 1;
+    int end = output == null ? slots : Math.min(slots, playSlot + horizonSlots); // What's played is past asking for.
+    if (highestSlot != nackHighestSlot)
+      end = Math.min(end, highestSlot + 2);
+    nackHighestSlot = highestSlot;
+    int asked = Nack.put(out, streamId, nackSeq, 0, received, playSlot, end, payloadSize);
+    for (int slot = received.nextClearBit(playSlot); slot < end; slot = received.nextClearBit(slot + 1))
+      nacked.set(slot);
+    nackTime = now;
+    return asked;
+  }
+
+  /**
+    * @return how long to wait for the packets a NACK asks for.
+    */
+  public long getRetransmitWaitNanos() {
+    return Math.min(maxDelayNanos, Math.max(minRetransmitWaitNanos, 2 * (long) roundTripNanos) + getPlayoutDelayNanos());
+  }
+
+  /**
+    * RFC 3550 section 6.4.1: J += (|D| - J) / 16, D being how much more or less time
+    * passed between two arrivals than between their sending.
+    */
+  private void updateJitter(long arrivalNanos, int timestamp) {
+    if (haveArrival) {
+      long gap = arrivalNanos - lastArrival;
+      long sentGap = (timestamp - lastTimestamp) * 1000L;
+      loopGapNanos = Math.max(loopGapNanos, sentGap);
+      jitterNanos += (Math.abs(gap - sentGap) - jitterNanos) / 16;
+      if (haveGap) {
+        gapDeviationNanos += (Math.abs(gap - meanGapNanos) - gapDeviationNanos) * gapWeight;
+        meanGapNanos += (gap - meanGapNanos) * gapWeight;
+      } else {
+        meanGapNanos = gap;
+      }
+      haveGap = true;
+    }
+    haveArrival = true;
+    lastArrival = arrivalNanos;
+    lastTimestamp = timestamp;
+  }
+
+  /**
+    * @return whether all of the loop has arrived.
+    */
+  public boolean isComplete() {
+    return bytesReceived >= loopLength;
+  }
+
+  /**
+    * @return how long to wait for the next packet beyond when it's expected.
+    */
+  public long getPlayoutDelayNanos() {
+    return Math.max(minDelayNanos, Math.min(maxDelayNanos, (long) (jitterMultiple * jitterNanos)));
+  }
+
+  /**
+    * @return System.nanoTime() after which the rest of the loop is taken to be lost.
+    *         Only meaningful once a packet of the loop has arrived. Never sooner than the
+    *         next frame of a streaming sender's is due. Until packets' spacing, and the
+    *         sender's pace, are known, the longest delay is allowed. A loop played as it
+    *         arrives waits a frame more, as giving up on it early saves nothing already
+    *         played and loses all of it still to come.
+    */
+  public long getDeadline() {
+    if (!haveGap || !havePace)
+      return lastArrival + maxDelayNanos;
+    long nextGap = Math.max((long) (meanGapNanos + 2 * gapDeviationNanos), Math.max(frameGapNanos, loopGapNanos));
+    if (output != null)
+      nextGap += Math.max(frameGapNanos, loopGapNanos);
+    return lastArrival + Math.min(maxDelayNanos, nextGap + getPlayoutDelayNanos());
+  }
+
+  /**
+    * @return the sender's time between frames, as learnt from its last loop, or 0 if not known yet.
+    */
+  public long getFrameGapNanos() {
+    return havePace ? frameGapNanos : 0;
+  }
+
+  public int getBytesReceived() {
+    return bytesReceived;
+  }
+
+  public int getPacketsReceived() {
+    return packetsReceived;
+  }
+
+  /**
+    * @return full packets' worth of the loop that never arrived.
+    */
+  public int getPacketsMissing() {
+    return slots - packetsReceived - packetsRecovered;
+  }
+
+  /**
+    * @return packets of the loop rebuilt from parity.
+    */
+  public int getPacketsRecovered() {
+    return packetsRecovered;
+  }
+
+  /**
+    * @return packets of the loop that arrived after being asked for again.
+    */
+  public int getPacketsRetransmitted() {
+    return packetsRetransmitted;
+  }
+
+  /**
+    * @return mean time from NACK to retransmitted packet this loop, or 0.
+    */
+  public long getMeanRecoveryNanos() {
+    return packetsRetransmitted == 0 ? 0 : recoveryNanosTotal / packetsRetransmitted;
+  }
+
+  public long getMaxRecoveryNanos() {
+    return recoveryNanosMax;
+  }
+
+  public int getDuplicates() {
+    return duplicates;
+  }
+
+  public int getStale() {
+    return stale;
+  }
+
+  public long getJitterNanos() {
+    return (long) jitterNanos;
+  }
+
+}
@@ -0,0 +1,50 @@
+package net;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+  * Tells whether a sender client is still there, from when the server last heard from it:
+  * a heartbeat (see Heartbeat) or any other packet. It's taken to be dead once it's missed
+  * a number of heartbeats in a row. Not thread-safe; each sender handler has its own.
+  */
+public class Liveness {
+
+  private final long deadAfterNanos;
+
+  private long lastHeard;
+
+  /**
+    * @param intervalMs  how often the sender client said it sends heartbeats.
+    * @param misses      heartbeats in a row it may miss before it's taken to be dead.
+    */
+  public Liveness(int intervalMs, int misses) {
+    deadAfterNanos = TimeUnit.MILLISECONDS.toNanos((long) Math.max(1, intervalMs) * Math.max(1, misses));
+    lastHeard = System.nanoTime();
+  }
+
+  /**
+    * Call when anything arrives from the sender client.
+    */
+  public void heard() {
+    lastHeard = System.nanoTime();
+  }
+
+  public boolean isDead() {
+    return System.nanoTime() - lastHeard >= deadAfterNanos;
+  }
+
+  /**
+    * @return how long till the sender client is taken to be dead if nothing more is heard from it (0 if it is).
+    */
+  public long getMillisUntilDead() {
+    return Math.max(0, TimeUnit.NANOSECONDS.toMillis(lastHeard + deadAfterNanos - System.nanoTime() + 999999));
+  }
+
+  /**
+    * @return how long the sender client can go unheard before it's taken to be dead.
+    */
+  public long getDeadAfterMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(deadAfterNanos);
+  }
+
+}
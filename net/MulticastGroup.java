@@ -0,0 +1,124 @@
+package net;
+
+import java.io.IOException;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+  * An IPv4 multicast group audio is published to, and the network interface it's
+  * reached through. The server sends each packet to the group once, however many
+  * receivers have joined it (see DatagramReceiver.join()), rather than once per
+  * receiver. Address and port travel in a MULTICAST_LOOP message as ints.
+  */
+public class MulticastGroup {
+
+  /**
+    * Organisation-local scope (RFC 2365), so it doesn't leave the site.
+    */
+  public static final String defaultAddress = "239.255.77.77";
+
+  public static final int defaultPort = 42000;
+
+  /**
+    * Packets aren't routed beyond the local network.
+    */
+  private static final int timeToLive = 1;
+
+  private final Inet4Address address;
+
+  private final int port;
+
+  private final NetworkInterface networkInterface;
+
+  /**
+    * @param address           group address, 224.0.0.0 to 239.255.255.255.
+    * @param port              group port.
+    * @param networkInterface  interface to send and join on.
+    */
+  public MulticastGroup(Inet4Address address, int port, NetworkInterface networkInterface) {
+    if (!address.isMulticastAddress())
+      throw new IllegalArgumentException("Not a multicast address: " + address.getHostAddress());
+    this.address = address;
+    this.port = port;
+    this.networkInterface = networkInterface;
+  }
+
+  /**
+    * @param address  group address as sent in a MULTICAST_LOOP message (see getAddressAsInt()).
+    */
+  public MulticastGroup(int address, int port, NetworkInterface networkInterface) throws UnknownHostException {
+    this((Inet4Address) InetAddress.getByAddress(ByteBuffer.allocate(4).putInt(address).array()), port, networkInterface);
+  }
+
+  /**
+    * @return interface of the loopback address. Client and server are both on "localhost",
+    *         and loopback carries multicast on the usual platforms even where it doesn't say so.
+    */
+  public static NetworkInterface loopbackInterface() throws IOException {
+    NetworkInterface loopback = NetworkInterface.getByInetAddress(InetAddress.getByName("127.0.0.1"));
+    if (loopback == null)
+      throw new IOException("No loopback interface");
+    return loopback;
+  }
+
+  /**
+    * @return interface named eg "eth0", or the loopback interface if name is null.
+    */
+  public static NetworkInterface interfaceNamed(String name) throws IOException {
+    if (name == null)
+      return loopbackInterface();
+    NetworkInterface networkInterface = NetworkInterface.getByName(name);
+    if (networkInterface == null)
+      throw new IOException("No such network interface: " + name);
+    return networkInterface;
+  }
+
+  /**
+    * Opens a channel for sending to the group. Sent packets loop back to receivers on this host.
+    */
+  public DatagramChannel openSender() throws IOException {
+    DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+    channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+    channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+    channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, timeToLive);
+    channel.bind(new InetSocketAddress(0));
+    return channel;
+  }
+
+  public Inet4Address getAddress() {
+    return address;
+  }
+
+  /**
+    * @return group address, big-endian, as sent in a MULTICAST_LOOP message.
+    */
+  public int getAddressAsInt() {
+    return ByteBuffer.wrap(address.getAddress()).getInt();
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  public InetSocketAddress getSocketAddress() {
+    return new InetSocketAddress(address, port);
+  }
+
+  public NetworkInterface getNetworkInterface() {
+    return networkInterface;
+  }
+
+  public String toString() {
+    return address.getHostAddress() + ":" + port + " on " + networkInterface.getName();
+  }
+
+}
@@ -0,0 +1,103 @@
+package net;
+
+import java.nio.ByteBuffer;
+
+import java.util.BitSet;
+
+/**
+  * Negative acknowledgement: a receiver's request for the packets of a loop it's
+  * missing. It's an AudioPacket with the NACK flag set, sent back to where the
+  * audio came from. Its stream ID is that of the audio; its offset is that of the
+  * first packet slot it covers, and its payload is a bitmap of the slots from there
+  * on, bit i (of byte i / 8, lowest bit first) set if slot first + i is missing.
+  * Its sequence number counts the receiver's NACKs.
+  */
+public final class Nack {
+
+  /**
+    * Most slots one NACK can cover.
+    */
+  public static final int maxSlots = 512 * 8;
+
+  private Nack() {
+  }
+
+  /**
+    * Writes a NACK for the slots of a loop that haven't arrived.
+    *
+    * @param out          buffer to write into, from 0. Flipped ready to send.
+    * @param received     slots that have arrived.
+    * @param slots        slots in the loop.
+    * @param payloadSize  audio bytes in a full packet.
+    * @return             slots asked for. 0 if none is missing, in which case out is left empty.
+    */
+  public static int put(ByteBuffer out, int streamId, int nackSeq, int timestamp, BitSet received, int slots, int payloadSize) {
+    return put(out, streamId, nackSeq, timestamp, received, 0, slots, payloadSize);
+  }
+
+  /**
+    * Writes a NACK for the slots of a loop from firstSlot on that haven't arrived, eg
+    * those of a streamed loop not yet played.
+    *
+    * @param out          buffer to write into, from 0. Flipped ready to send.
+    * @param received     slots that have arrived.
+    * @param firstSlot    first slot that can be asked for.
+    * @param slots        slots in the loop.
+    * @param payloadSize  audio bytes in a full packet.
+    * @return             slots asked for. 0 if none is missing, in which case out is left empty.
+    */
+  public static int put(ByteBuffer out, int streamId, int nackSeq, int timestamp, BitSet received, int firstSlot, int slots,
+      int payloadSize) {
+    int first = received.nextClearBit(firstSlot);
+    out.clear();
+    if (first >= slots)
+      return 0;
+
+    int bitmapLength = Math.min(out.capacity() - AudioPacket.headerLength, maxSlots / 8);
+    int end = Math.min(slots, first + bitmapLength * 8);
+    int last = first;
+    int asked = 0;
+    for (int i = 0; i < bitmapLength; i++)
+      out.put(AudioPacket.headerLength + i, (byte) 0);
+    for (int slot = first; slot < end; slot = received.nextClearBit(slot + 1)) {
+      int bit = slot - first;
+      out.put(AudioPacket.headerLength + bit / 8, (byte) (out.get(AudioPacket.headerLength + bit / 8) | 1 << bit % 8));
+      last = slot;
+      asked++;
+    }
+
+    AudioPacket.putHeader(out, 0, streamId, AudioPacket.NACK, nackSeq, first * payloadSize, timestamp);
+    out.limit(AudioPacket.headerLength + (last - first) / 8 + 1);
+    out.position(0);
+    return asked;
+  }
+
+  /**
+    * @return whether a packet is a NACK.
+    */
+  public static boolean isNack(ByteBuffer packet, int start, int length) {
+    return AudioPacket.hasHeader(length) && (AudioPacket.getFlags(packet, start) & AudioPacket.NACK) != 0;
+  }
+
+  /**
+    * @return first slot a NACK covers.
+    */
+  public static int getFirstSlot(ByteBuffer packet, int start, int payloadSize) {
+    return AudioPacket.getOffset(packet, start) / payloadSize;
+  }
+
+  /**
+    * @return how many slots a NACK of this length covers.
+    */
+  public static int getSlotCount(int length) {
+    return (length - AudioPacket.headerLength) * 8;
+  }
+
+  /**
+    * @return whether a NACK asks for the i-th slot it covers.
+    */
+  public static boolean isMissing(ByteBuffer packet, int start, int i) {
+    return (packet.get(start + AudioPacket.headerLength + i / 8) & 1 << i % 8) != 0;
+  }
+
+}
@@ -0,0 +1,104 @@
+package net;
+
+import java.io.IOException;
+
+import java.net.SocketAddress;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+  * Finds the biggest payload that gets to the server and back without loss, by sending
+  * bursts of probe packets of each candidate size, biggest first, to a port that echoes
+  * them (see ProbeEchoer). The first size all of whose probes come back is taken. Bigger
+  * datagrams mean fewer sends a loop, but past the path's MTU they're split up on the way
+  * and lost whole if any piece is, so on a lossy path smaller ones can do better.
+  *
+  * A probe is an AudioPacket header with the PROBE flag, the probe's number as its
+  * sequence number and its payload size as its offset, then that many bytes of padding.
+  * It's echoed back unchanged.
+  */
+public final class PayloadProbe {
+
+  /**
+    * Sizes tried, biggest first: the most a datagram holds, some in between, what fits an
+    * Ethernet frame (1500 less IPv4 and UDP headers), and the default, which needs no probe.
+    */
+  private static final int[] candidates = {
+    AudioPacket.maxPayload, 32768, 16384, 8192, 4096, 1472 - AudioPacket.headerLength, 1024
+  };
+
+  /**
+    * Probes sent of each size. All must come back.
+    */
+  private static final int probesPerSize = 16;
+
+  /**
+    * How long to wait for a burst's echoes.
+    */
+  private static final long echoTimeoutMs = 250;
+
+  private PayloadProbe() {
+  }
+
+  /**
+    * Probes the path to an echoing port.
+    *
+    * @param socket      socket to probe from. Anything else it receives meanwhile is dropped.
+    * @param echo        where probes are echoed.
+    * @param maxPayload  biggest size to try, eg what the server allows.
+    * @return            biggest size, no more than maxPayload, whose probes all came back,
+    *                    or AudioPacket.defaultPayload (or maxPayload if that's smaller) if none did.
+    */
+  public static int probe(DatagramReceiver socket, SocketAddress echo, int maxPayload) throws IOException {
+    ByteBuffer probe = ByteBuffer.allocateDirect(AudioPacket.headerLength + maxPayload);
+    ByteBuffer reply = ByteBuffer.allocateDirect(AudioPacket.headerLength + maxPayload);
+    int seq = 0;
+
+    for (int i = -1; i < candidates.length; i++) {
+      int size = i < 0 ? maxPayload : candidates[i];
+      if (size > maxPayload || (i >= 0 && size == maxPayload) || size <= AudioPacket.defaultPayload)
+        continue;
+
+      int firstSeq = seq;
+      for (int p = 0; p < probesPerSize; p++) {
+        probe.clear();
+        AudioPacket.putHeader(probe, 0, 0, AudioPacket.PROBE, seq++, size, 0);
+        probe.limit(AudioPacket.headerLength + size);
+        socket.send(probe, echo);
+      }
+
+      int echoed = 0;
+      long deadline = System.currentTimeMillis() + echoTimeoutMs;
+      long remaining = echoTimeoutMs;
+      while (echoed < probesPerSize && remaining > 0) {
+        reply.clear();
+        if (socket.receive(reply, remaining) != null && isProbe(reply, 0, reply.position())
+            && reply.position() == AudioPacket.headerLength + size && AudioPacket.getSeq(reply, 0) - firstSeq >= 0)
+          echoed++;
+        remaining = deadline - System.currentTimeMillis();
+      }
+      if (echoed == probesPerSize)
+        return size;
+    }
+    return Math.min(maxPayload, AudioPacket.defaultPayload);
+  }
+
+  /**
+    * @return whether the length bytes at start are a probe.
+    */
+  public static boolean isProbe(ByteBuffer packet, int start, int length) {
+    return AudioPacket.hasHeader(length) && (AudioPacket.getFlags(packet, start) & AudioPacket.PROBE) != 0;
+  }
+
+  /**
+    * Sends a probe back where it came from, unless the socket's send buffer is full, in
+    * which case it's dropped as the network would drop it.
+    *
+    * @param probe  the probe, from its position to its limit.
+    */
+  public static void echo(DatagramChannel channel, ByteBuffer probe, SocketAddress from) throws IOException {
+    channel.send(probe, from);
+  }
+
+}
@@ -0,0 +1,56 @@
+package net;
+
+import java.io.IOException;
+
+import java.net.SocketAddress;
+
+import java.nio.ByteBuffer;
+
+/**
+  * Echoes payload size probes (see PayloadProbe) back to whoever sent them, from a port
+  * of its own, for a server that has no event loop to do it on.
+  */
+public class ProbeEchoer extends Thread {
+
+  /**
+    * How long each wait for a probe lasts.
+    */
+  private static final long pollMs = 1000;
+
+  private final DatagramReceiver socket;
+
+  private final ByteBuffer buffer;
+
+  /**
+    * @param port  local port to echo on, or 0 for any free port.
+    */
+  public ProbeEchoer(int port) throws IOException {
+    super("ProbeEchoer");
+    socket = new DatagramReceiver(port);
+    buffer = ByteBuffer.allocateDirect(AudioPacket.headerLength + AudioPacket.maxPayload);
+    setDaemon(true);
+  }
+
+  /**
+    * @return port probes are echoed on.
+    */
+  public int getLocalPort() throws IOException {
+    return socket.getLocalPort();
+  }
+
+  public void run() {
+    try {
+      while (true) {
+        buffer.clear();
+        SocketAddress from = socket.receive(buffer, pollMs);
+        if (from == null || !PayloadProbe.isProbe(buffer, 0, buffer.position()))
+          continue;
+        buffer.flip();
+        PayloadProbe.echo(socket.getChannel(), buffer, from);
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+}
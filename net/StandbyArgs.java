@@ -0,0 +1,41 @@
+package net;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+  * Arguments of a STANDBY request: everything a receiver client would tell the server on
+  * taking over as sender, told ahead of time. First the format of the audio it'd send (see
+  * AudioFormatArgs), then the audio's length as sent (as in ACK_LENGTH or STREAM), 1 if it'd
+  * stream rather than send loops, how often it'd send heartbeats once sending (0 for never),
+  * and how often it sends keepalives, which are heartbeats at a lower rate, while it stands by.
+  */
+public final class StandbyArgs {
+
+  public static final int length = AudioFormatArgs.count;
+  public static final int streams = AudioFormatArgs.count + 1;
+  public static final int heartbeatMs = AudioFormatArgs.count + 2;
+  public static final int keepaliveMs = AudioFormatArgs.count + 3;
+
+  public static final int count = AudioFormatArgs.count + 4;
+
+  /**
+    * How often a standby client sends keepalives unless told otherwise.
+    */
+  public static final int defaultKeepaliveMs = 500;
+
+  private StandbyArgs() {
+  }
+
+  /**
+    * Puts an offer to stand by in the first count args.
+    */
+  public static void put(AudioFormat format, int audioLength, boolean streaming, int heartbeatIntervalMs,
+      int keepaliveIntervalMs, int[] args) {
+    AudioFormatArgs.put(format, args);
+    args[length] = audioLength;
+    args[streams] = streaming ? 1 : 0;
+    args[heartbeatMs] = heartbeatIntervalMs;
+    args[keepaliveMs] = keepaliveIntervalMs;
+  }
+
+}
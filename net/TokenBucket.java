@@ -0,0 +1,43 @@
+package net;
+
+/**
+  * Limits how often something happens: a token is added at a steady rate, up to a
+  * maximum, and each event takes one. Used to cap retransmissions so that a lossy
+  * link answering NACKs with yet more packets can't snowball into congestion collapse.
+  * Not thread-safe; each sender has its own.
+  */
+public class TokenBucket {
+
+  private final double tokensPerNano;
+
+  private final double capacity;
+
+  private double tokens;
+
+  private long lastRefill;
+
+  /**
+    * @param ratePerSecond  tokens added a second.
+    * @param capacity       most tokens held, ie largest burst allowed.
+    */
+  public TokenBucket(double ratePerSecond, int capacity) {
+    tokensPerNano = ratePerSecond / 1e9;
+    this.capacity = capacity;
+    tokens = capacity;
+    lastRefill = System.nanoTime();
+  }
+
+  /**
+    * @return whether a token was taken.
+    */
+  public boolean tryTake() {
+    long now = System.nanoTime();
+    tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+    lastRefill = now;
+    if (tokens < 1)
+      return false;
+    tokens--;
+    return true;
+  }
+
+}
@@ -0,0 +1,167 @@
+package util;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+  * Writes log messages to standard output on a thread of its own, so threads that log
+  * never wait on the console or on each other.
+  *
+  * Messages go in a preallocated ring, a bounded queue any number of threads put to
+  * and the writer takes from, without locks. Each slot has a stamp, as in AudioRing:
+  * a thread claims the slot of the next position by compare-and-set, fills it in, and
+  * stamps it to hand it to the writer, who stamps it again once it's taken it. Putting
+  * a message allocates nothing. If the ring is full the message is dropped, and the
+  * writer says how many were once it catches up, rather than the logging thread waiting.
+  *
+  * The writer looks at the ring every flushMs, writing everything in it in one go.
+  * Whatever's left is written when the program exits.
+  */
+public class AsyncLogger extends Thread {
+
+  /**
+    * How often the writer looks for messages when there were none last time.
+    */
+  private static final long flushMs = 5;
+
+  private final int mask;
+
+  /**
+    * Stamp of each slot: its position in the queue if it's free to be put to there,
+    * one more than that once it holds a message to take.
+    */
+  private final AtomicLongArray stamps;
+
+  private final LogLevel[] levels;
+  private final String[] names;
+  private final String[] messages;
+
+  /**
+    * Position the next message goes at, and position the writer takes from next.
+    */
+  private final AtomicLong tail = new AtomicLong();
+  private long head;
+
+  private final AtomicLong dropped = new AtomicLong();
+
+  /**
+    * Messages dropped that the writer's said were.
+    */
+  private long droppedReported;
+
+  private final Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 8192);
+
+  /**
+    * @param capacity  most messages waiting to be written, a power of two.
+    */
+  public AsyncLogger(int capacity) {
+    super("AsyncLogger");
+    if (Integer.bitCount(capacity) != 1)
+      throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+    setDaemon(true);
+    mask = capacity - 1;
+    stamps = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++)
+      stamps.set(i, i);
+    levels = new LogLevel[capacity];
+    names = new String[capacity];
+    messages = new String[capacity];
+
+    Runtime.getRuntime().addShutdownHook(new Thread("AsyncLogger-flush") {
+      public void run() {
+        drain();
+      }
+    });
+  }
+
+  /**
+    * Queues a message to be written. Never waits.
+    *
+    * @param name  of the thread or program logging it.
+    * @return      false if the queue was full, so the message was dropped.
+    */
+  public boolean log(LogLevel level, String name, String message) {
+    long position = tail.get();
+    int slot;
+    while (true) {
+      slot = (int) position & mask;
+      long stamp = stamps.get(slot);
+      if (stamp == position) {
+        if (tail.compareAndSet(position, position + 1))
+          break;
+        position = tail.get();
+      } else if (stamp < position) {
+        dropped.incrementAndGet();  // Slot not taken yet from a lap ago: full.
+        return false;
+      } else {
+        position = tail.get();      // Another thread got there first.
+      }
+    }
+    levels[slot] = level;
+    names[slot] = name;
+    messages[slot] = message;
+    stamps.set(slot, position + 1);  // volatile write publishes the message written before it
+    return true;
+  }
+
+  /**
+    * @return messages dropped so far because the queue was full.
+    */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  public void run() {
+    long parkNanos = TimeUnit.MILLISECONDS.toNanos(flushMs);
+    while (true) {
+      if (drain() == 0)
+        LockSupport.parkNanos(parkNanos);
+    }
+  }
+
+  /**
+    * Writes every message queued, then flushes.
+    *
+    * @return number written.
+    */
+  private synchronized int drain() {
+    int written = 0;
+    try {
+      while (true) {
+        int slot = (int) head & mask;
+        if (stamps.get(slot) != head + 1)
+          break;
+        write(levels[slot], names[slot], messages[slot]);
+        names[slot] = null;
+        messages[slot] = null;
+        stamps.set(slot, head + mask + 1);  // Free for the next lap.
+        head++;
+        written++;
+      }
+      long drops = dropped.get() - droppedReported;
+      droppedReported += drops;
+      if (drops > 0)
+        write(LogLevel.ERROR, getName(), drops + " log messages dropped: queue full.");
+      if (written > 0 || drops > 0)
+        out.flush();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    return written;
+  }
+
+  private void write(LogLevel level, String name, String message) throws IOException {
+    out.write(name);
+    out.write(level == LogLevel.ERROR ? ": ERROR: " : ": ");
+    out.write(message);
+    out.write('\n');
+  }
+
+}
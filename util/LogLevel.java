@@ -0,0 +1,32 @@
+package util;
+
+/**
+  * How much a log message matters. Messages below the level set (see
+  * SoundUtil.setLogLevel()) are dropped before they're written.
+  */
+public enum LogLevel {
+
+  /**
+    * Step by step tracing, eg every control message: several a loop.
+    */
+  DEBUG,
+
+  /**
+    * What's going on, eg roles, channels and formats agreed, and loops received.
+    */
+  INFO,
+
+  ERROR;
+
+  /**
+    * @return level named, in any case, or null if there's none.
+    */
+  public static LogLevel forName(String name) {
+    for (LogLevel level : values()) {
+      if (level.name().equalsIgnoreCase(name))
+        return level;
+    }
+    return null;
+  }
+
+}
@@ -1,8 +1,108 @@
 package util;
 
 public class SoundUtil { 
+
+  /**
+    * Most log messages waiting to be written before more are dropped.
+    */
+  private static final int logQueueCapacity = 8192;
+
+  private static final AsyncLogger asyncLogger = new AsyncLogger(logQueueCapacity);
+
+  static {
+    asyncLogger.start();
+  }
+
+  /**
+    * Least important messages logged. Messages below it are dropped.
+    */
+  private static volatile LogLevel logLevel = LogLevel.INFO;
+
   public static void logger(String programName, String message) { 
-    System.out.println(programName + ": " + message);
+    logger(LogLevel.INFO, programName, message);
+  }
+
+  /**
+    * Logs a message, if its level is logged, on the logging thread (see AsyncLogger),
+    * so this never waits on the console. Where building a message costs anything,
+    * eg for DEBUG messages sent every loop, check isLogging() first.
+    */
+  public static void logger(LogLevel level, String programName, String message) { 
+    if (level.compareTo(logLevel) >= 0)
+      asyncLogger.log(level, programName, message);
+  }
+
+  /**
+    * @return whether messages of this level are logged.
+    */
+  public static boolean isLogging(LogLevel level) {
+    return level.compareTo(logLevel) >= 0;
+  }
+
+  public static void setLogLevel(LogLevel level) {
+    logLevel = level;
+  }
+
+  /**
+    * Sets the log level from a command line flag, eg "--log-level debug". Leaves it as
+    * it is if the flag's absent or names no level.
+    */
+  public static void setLogLevel(String[] args) {
+    LogLevel level = LogLevel.forName(stringFlag(args, "--log-level", ""));
+    if (level != null)
+      setLogLevel(level);
+  }
+
+  /**
+    * Whether a command line flag (eg "--nio") was given.
+    *
+    * @param args   command line arguments.
+    * @param flag   flag to look for.
+    * @return       true if flag is present.
+    */
+  public static boolean hasFlag(String[] args, String flag) {
+    for (String arg : args) {
+      if (arg.equals(flag))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+    * Value following a command line flag, eg "--loops 4" gives 4.
+    *
+    * @param args         command line arguments.
+    * @param flag         flag to look for.
+    * @param defaultValue returned if flag is absent or its value isn't a number.
+    * @return             value of flag.
+    */
+  public static int intFlag(String[] args, String flag, int defaultValue) {
+    for (int i = 0; i < args.length - 1; i++) {
+      if (args[i].equals(flag)) {
+        try {
+          return Integer.parseInt(args[i + 1]);
+        } catch (NumberFormatException e) {
+          return defaultValue;
+        }
+      }
+    }
+    return defaultValue;
+  }
+
+  /**
+    * Value following a command line flag, eg "--multicast-if eth0" gives "eth0".
+    *
+    * @param args         command line arguments.
+    * @param flag         flag to look for.
+    * @param defaultValue returned if flag is absent.
+    * @return             value of flag.
+    */
+  public static String stringFlag(String[] args, String flag, String defaultValue) {
+    for (int i = 0; i < args.length - 1; i++) {
+      if (args[i].equals(flag))
+        return args[i + 1];
+    }
+    return defaultValue;
   }
 
 }
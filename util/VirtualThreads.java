@@ -0,0 +1,60 @@
+package util;
+
+import java.lang.reflect.InvocationTargetException;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+  * Makes virtual threads, where the JVM has them (Java 21 on), for code that spends most of
+  * its time blocked and would rather not have a platform thread, stack and all, for each.
+  *
+  * They're looked up by reflection, so this still compiles and runs on 17, where there are
+  * none. A virtual thread gives up its carrier (platform) thread while it waits on a socket,
+  * a park or a java.util.concurrent lock, but not while it waits inside synchronized, so code
+  * run on them shouldn't block holding a monitor.
+  */
+public final class VirtualThreads {
+
+  /**
+    * Makes unstarted virtual threads, or null if the JVM has none.
+    */
+  private static final ThreadFactory factory = lookUpFactory();
+
+  private VirtualThreads() {
+  }
+
+  /**
+    * @return whether the JVM has virtual threads.
+    */
+  public static boolean available() {
+    return factory != null;
+  }
+
+  /**
+    * @return a factory of unstarted virtual threads, or null if the JVM has none.
+    */
+  public static ThreadFactory factory() {
+    return factory;
+  }
+
+  /**
+    * @return Thread.ofVirtual().factory(), or null if there's no such thing, or it's a preview
+    *         feature (Java 19 and 20) that isn't enabled.
+    */
+  private static ThreadFactory lookUpFactory() {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+      return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+    } catch (NoSuchMethodException e) {
+      return null;
+    } catch (ClassNotFoundException e) {
+      return null;
+    } catch (IllegalAccessException e) {
+      return null;
+    } catch (InvocationTargetException e) { // UnsupportedOperationException, when preview features aren't enabled.
+      return null;
+    }
+  }
+
+}